@@ -22,8 +22,10 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 
+import com.amazonaws.AmazonWebServiceRequest;
 import com.amazonaws.auth.AWSStaticCredentialsProvider;
 import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.handlers.RequestHandler2;
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClientBuilder;
 import com.amazonaws.services.dynamodbv2.document.DynamoDB;
@@ -579,6 +581,23 @@ public class DynamoDb extends Db<DynamoDb>
          BasicAWSCredentials creds = new BasicAWSCredentials(awsAccessKey, awsSecretKey);
          builder.withCredentials(new AWSStaticCredentialsProvider(creds));
       }
+      //-- handlers run on the calling thread so the request deadline can be
+      //-- applied to every call, including those made through the document api
+      builder.withRequestHandlers(new RequestHandler2()
+         {
+            @Override
+            public AmazonWebServiceRequest beforeExecution(AmazonWebServiceRequest request)
+            {
+               long remaining = Chain.getTimeRemaining();
+               if (remaining != Long.MAX_VALUE)
+               {
+                  Chain.checkDeadline();
+                  request.setSdkClientExecutionTimeout((int) Math.min(Integer.MAX_VALUE, remaining));
+               }
+               return request;
+            }
+         });
+
       AmazonDynamoDB dynamoClient = builder.build();
 
       return dynamoClient;
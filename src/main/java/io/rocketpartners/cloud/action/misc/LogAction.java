@@ -90,7 +90,7 @@ public class LogAction extends Action<LogAction>
 
                if (changes.size() > 0)
                {
-                  Connection conn = ((SqlDb)req.getCollection().getDb()).getConnection();
+                  Connection conn = ((SqlDb)req.getCollection().getDb()).getConnection(chain.getContext(), true);
                   Map<String, Object> logParams = new HashMap<>();
                   logParams.put("method", req.getMethod());
                   logParams.put("userId", req.getUser() == null ? null : req.getUser().getId());
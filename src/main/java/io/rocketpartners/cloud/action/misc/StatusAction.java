@@ -1,8 +1,11 @@
 package io.rocketpartners.cloud.action.misc;
 
+import io.rocketpartners.cloud.action.sql.PoolManager;
 import io.rocketpartners.cloud.model.Action;
 import io.rocketpartners.cloud.model.Api;
+import io.rocketpartners.cloud.model.Db;
 import io.rocketpartners.cloud.model.Endpoint;
+import io.rocketpartners.cloud.model.JSNode;
 import io.rocketpartners.cloud.model.Request;
 import io.rocketpartners.cloud.model.Response;
 import io.rocketpartners.cloud.model.SC;
@@ -14,6 +17,10 @@ import io.rocketpartners.cloud.service.Engine;
  * This is useful when you need to setup an automated healthcheck for a service.  For example, 
  * if you are configuring a CICD pipeline that checks the health of a deployment, you might configure
  * this at path GET /status or something like that for the deployer to check for correct deployment.
+ * <p>
+ * Set <code>poolMetrics</code> to have the response body report the active, idle and waiting
+ * connection counts and acquire times of every SQL connection pool along with the queue
+ * depth, rejection and wait time counters of each Db bulkhead.
  * 
  * @author wells
  *
@@ -23,6 +30,7 @@ public class StatusAction extends Action<StatusAction>
    protected int     statusCode    = 200;
    protected String  status        = SC.SC_200_OK;
    protected boolean cancelRequest = true;
+   protected boolean poolMetrics   = false;
 
    public StatusAction()
    {
@@ -43,6 +51,16 @@ public class StatusAction extends Action<StatusAction>
    {
       res.withStatus(status);
       res.withStatusCode(statusCode);
+      if (poolMetrics)
+      {
+         JSNode bulkheads = new JSNode();
+         for (Db db : api.getDbs())
+         {
+            if (db.getBulkhead().isEnabled())
+               bulkheads.put(db.getName(), db.getBulkhead().getMetrics());
+         }
+         res.withJson(new JSNode("pools", PoolManager.getMetrics(), "bulkheads", bulkheads));
+      }
       if (cancelRequest)
          chain.cancel();
    }
@@ -69,6 +87,17 @@ public class StatusAction extends Action<StatusAction>
       return this;
    }
 
+   public boolean isPoolMetrics()
+   {
+      return poolMetrics;
+   }
+
+   public StatusAction withPoolMetrics(boolean poolMetrics)
+   {
+      this.poolMetrics = poolMetrics;
+      return this;
+   }
+
    public boolean isCancelRequest()
    {
       return cancelRequest;
@@ -0,0 +1,462 @@
+/*
+ * Copyright (c) 2015-2018 Rocket Partners, LLC
+ * http://rocketpartners.io
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.rocketpartners.cloud.action.redis;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.rocketpartners.cloud.action.security.RateLimitAction;
+import io.rocketpartners.cloud.model.Api;
+import io.rocketpartners.cloud.model.ApiException;
+import io.rocketpartners.cloud.model.Endpoint;
+import io.rocketpartners.cloud.model.Request;
+import io.rocketpartners.cloud.model.Response;
+import io.rocketpartners.cloud.model.SC;
+import io.rocketpartners.cloud.service.Chain;
+import io.rocketpartners.cloud.service.Engine;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+/**
+ * Enforces the RateLimitAction limits across every node sharing the
+ * RedisDb named by <code>redis</code>, instead of per node.
+ * <p>
+ * Hits are counted locally and flushed to Redis every <code>flushMillis</code>
+ * in one Lua script call that adds each node's counts to the cluster wide
+ * counter for the current window and reads back the current and previous
+ * window totals.  Requests are checked against the last cluster totals plus
+ * the hits this node has not flushed yet, so a request never waits on Redis.
+ * The limit can be overshot by what other nodes count within one flush.
+ * As with RateLimitAction, the client limit is checked before the total and
+ * rejected hits are not counted.
+ * <p>
+ * If a flush fails, the node falls back to the local RateLimitAction limits
+ * for <code>failOpenMillis</code> before trying Redis again.  The failure is
+ * logged once per outage.
+ * <p>
+ * Keys are hash tagged with <code>keyPrefix</code>, for example "{RateLimit-}1-100--1:ip:10.0.0.1:29000000",
+ * so every counter lands in one Redis Cluster slot and a flush never fails with CROSSSLOT.
+ * <p>
+ * Once <code>maxClients</code> clients are being counted, further clients are
+ * limited by this node alone so that they don't share one cluster wide counter.
+ * <p>
+ * The flush task stops when the RedisDb is shutdown, as it is when its Api is
+ * replaced, or when no hits have been counted for a full window.  The next
+ * request starts it again.
+ */
+public class RedisRateLimitAction extends RateLimitAction
+{
+   static final String              SCRIPT         = ""                                                                     //
+         + "local out = {}\n"                                                                                                //
+         + "for i = 1, #KEYS, 2 do\n"                                                                                       //
+         + "  local n = tonumber(ARGV[(i + 1) / 2 + 1])\n"                                                                  //
+         + "  local c = redis.call('INCRBY', KEYS[i], n)\n"                                                                 //
+         + "  if c == n then redis.call('EXPIRE', KEYS[i], ARGV[1]) end\n"                                                  //
+         + "  out[#out + 1] = c\n"                                                                                          //
+         + "  out[#out + 1] = tonumber(redis.call('GET', KEYS[i + 1]) or '0')\n"                                            //
+         + "end\n"                                                                                                          //
+         + "return out\n";
+
+   static ScheduledExecutorService  flusher        = Executors.newSingleThreadScheduledExecutor(r -> {
+                                                       Thread t = new Thread(r, "RedisRateLimitAction flush");
+                                                       t.setDaemon(true);
+                                                       return t;
+                                                    });
+
+   protected transient Logger       log            = LoggerFactory.getLogger(getClass());
+
+   protected String                 redis          = null;
+   protected String                 keyPrefix      = "RateLimit-";
+   protected int                    flushMillis    = 100;
+   protected int                    failOpenMillis = 5000;
+
+   Map<String, Counter>               counters    = new ConcurrentHashMap();
+   transient volatile RedisDb         db          = null;
+   transient volatile String          sha         = null;
+   transient volatile long            failedUntil = 0;
+   transient volatile boolean         outage      = false;
+   transient volatile ScheduledFuture flushTask   = null;
+
+   @Override
+   public void run(Engine engine, Api api, Endpoint endpoint, Chain chain, Request req, Response res) throws Exception
+   {
+      long now = System.currentTimeMillis();
+      if (now < failedUntil)
+      {
+         super.run(engine, api, endpoint, chain, req, res);
+         return;
+      }
+
+      if (db == null && !start(api))
+      {
+         super.run(engine, api, endpoint, chain, req, res);
+         return;
+      }
+
+      int limitMinutes = chain.getConfig("limitMinutes", this.limitMinutes);
+      int limitUserHits = chain.getConfig("limitUserHits", this.limitUserHits);
+      int limitTotalHits = chain.getConfig("limitTotalHits", this.limitTotalHits);
+
+      long limitMillis = Math.max(1, limitMinutes) * 60000L;
+      long window = now / limitMillis;
+      double overlap = 1 - (now % limitMillis) / (double) limitMillis;
+      String bucketKey = limitMinutes + "-" + limitUserHits + "-" + limitTotalHits;
+
+      Counter user = null;
+      if (limitUserHits > 0)
+      {
+         String clientId = getClientId(req);
+         boolean known = counters.containsKey(key(bucketKey, clientId, window)) || counters.containsKey(key(bucketKey, clientId, window - 1));
+         if (!known && counters.size() >= maxClients)
+         {
+            //-- the total is still cluster wide, this client is only counted here
+            if (!hit(limitMinutes, limitUserHits, -1, clientId))
+            {
+               reject(chain, res);
+               return;
+            }
+         }
+         else
+         {
+            user = getCounter(bucketKey, clientId, window, limitMillis);
+            if (!user.hit(overlap, limitUserHits))
+            {
+               reject(chain, res);
+               return;
+            }
+         }
+      }
+
+      if (limitTotalHits >= 0 && !getCounter(bucketKey, "*", window, limitMillis).hit(overlap, limitTotalHits))
+      {
+         //-- a request turned away is not charged to the client either
+         if (user != null)
+            user.unhit();
+
+         reject(chain, res);
+      }
+   }
+
+   /**
+    * @return false if the RedisDb has already been shutdown
+    */
+   synchronized boolean start(Api api)
+   {
+      if (db != null)
+         return true;
+
+      RedisDb db = (RedisDb) api.getDb(redis);
+      if (db == null)
+         throw new ApiException(SC.SC_500_INTERNAL_SERVER_ERROR, "RedisRateLimitAction can not find RedisDb '" + redis + "'");
+
+      if (db.isShutdown())
+         return false;
+
+      this.db = db;
+      if (flushMillis > 0)
+         flushTask = flusher.scheduleWithFixedDelay(() -> flush(), flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+
+      return true;
+   }
+
+   /**
+    * Cancels the flush task and lets go of the RedisDb so a replaced Api
+    * is not held onto by the shared flusher thread.
+    */
+   synchronized void stop()
+   {
+      if (flushTask != null)
+         flushTask.cancel(false);
+
+      flushTask = null;
+      db = null;
+   }
+
+   String key(String bucketKey, String clientId, long window)
+   {
+      return "{" + keyPrefix + "}" + bucketKey + ":" + clientId + ":" + window;
+   }
+
+   Counter getCounter(String bucketKey, String clientId, long window, long limitMillis)
+   {
+      String key = key(bucketKey, clientId, window);
+      Counter counter = counters.get(key);
+      if (counter == null)
+      {
+         counter = counters.computeIfAbsent(key, k -> {
+            Counter c = new Counter(k, key(bucketKey, clientId, window - 1), window, limitMillis);
+
+            //-- until the first flush, the previous window is whatever this node last knew of it
+            Counter previous = counters.get(c.previousKey);
+            if (previous != null)
+            {
+               Totals totals = previous.totals;
+               c.totals = new Totals(0, 0, totals.current + totals.inflight + previous.pending.sum());
+            }
+            return c;
+         });
+      }
+      return counter;
+   }
+
+   /**
+    * Pushes every pending count to Redis in one call and records the cluster totals.
+    */
+   public void flush()
+   {
+      RedisDb db = this.db;
+      if (db == null)
+         return;
+
+      //-- requests are using the local limits until then, see run()
+      long now = System.currentTimeMillis();
+      if (now < failedUntil)
+         return;
+
+      if (db.isShutdown())
+      {
+         stop();
+         return;
+      }
+
+      List<Counter> batch = new ArrayList();
+      List<String> keys = new ArrayList();
+      List<String> args = new ArrayList();
+      args.add("0");
+
+      int ttl = 0;
+      for (Iterator<Counter> it = counters.values().iterator(); it.hasNext();)
+      {
+         Counter counter = it.next();
+         long pending = counter.pending.sum();
+         if (pending == 0)
+         {
+            //-- the previous window is kept around to seed the next counter
+            if (counter.window < now / counter.limitMillis - 1)
+               it.remove();
+            continue;
+         }
+
+         //-- published as inflight before it leaves pending so it is never missing from a check
+         Totals totals = counter.totals;
+         counter.totals = new Totals(totals.current, pending, totals.previous);
+         counter.pending.add(-pending);
+
+         batch.add(counter);
+         keys.add(counter.key);
+         keys.add(counter.previousKey);
+         args.add(pending + "");
+         ttl = Math.max(ttl, (int) (counter.limitMillis / 1000) * 2);
+      }
+
+      if (batch.isEmpty())
+      {
+         //-- nothing counted for a full window
+         if (counters.isEmpty() && flushTask != null)
+            stop();
+         return;
+      }
+
+      args.set(0, ttl + "");
+      try
+      {
+         List<Long> totals = eval(db, keys, args);
+         for (int i = 0; i < batch.size(); i++)
+         {
+            //-- the cluster total includes what was inflight so both are replaced together
+            batch.get(i).totals = new Totals(totals.get(i * 2), 0, totals.get(i * 2 + 1));
+         }
+
+         if (outage)
+         {
+            outage = false;
+            log.info("Flushed rate limits to Redis again, using cluster wide limits");
+         }
+      }
+      catch (Exception ex)
+      {
+         failedUntil = System.currentTimeMillis() + failOpenMillis;
+
+         if (!outage)
+         {
+            outage = true;
+            log.warn("Unable to flush rate limits to Redis, using local limits until it is back", ex);
+         }
+         else
+         {
+            log.debug("Unable to flush rate limits to Redis", ex);
+         }
+
+         for (Counter counter : batch)
+         {
+            Totals totals = counter.totals;
+            counter.pending.add(totals.inflight);
+            counter.totals = new Totals(totals.current, 0, totals.previous);
+         }
+      }
+   }
+
+   /**
+    * Runs the flush script.  The returned list holds the current and previous
+    * window totals for each pair of keys.
+    */
+   protected List<Long> eval(RedisDb db, List<String> keys, List<String> args) throws Exception
+   {
+      try (Jedis jedis = db.getRedisClient())
+      {
+         if (sha == null)
+            sha = jedis.scriptLoad(SCRIPT);
+
+         try
+         {
+            return (List<Long>) jedis.evalsha(sha, keys, args);
+         }
+         catch (JedisDataException ex)
+         {
+            if (ex.getMessage() == null || !ex.getMessage().startsWith("NOSCRIPT"))
+               throw ex;
+
+            sha = jedis.scriptLoad(SCRIPT);
+            return (List<Long>) jedis.evalsha(sha, keys, args);
+         }
+      }
+   }
+
+   /**
+    * The cluster totals from the last flush and the count sent by the flush 
+    * in progress.  Replaced as a whole, never updated, so a check can't see
+    * a flushed count in both <code>current</code> and <code>inflight</code>.
+    */
+   static class Totals
+   {
+      final long current;
+      final long inflight;
+      final long previous;
+
+      Totals(long current, long inflight, long previous)
+      {
+         this.current = current;
+         this.inflight = inflight;
+         this.previous = previous;
+      }
+   }
+
+   static class Counter
+   {
+      final String     key;
+      final String     previousKey;
+      final long       window;
+      final long       limitMillis;
+
+      final LongAdder  pending = new LongAdder();
+      volatile Totals  totals  = new Totals(0, 0, 0);
+
+      Counter(String key, String previousKey, long window, long limitMillis)
+      {
+         this.key = key;
+         this.previousKey = previousKey;
+         this.window = window;
+         this.limitMillis = limitMillis;
+      }
+
+      /**
+       * @return the sliding window estimate of cluster wide hits
+       */
+      long estimate(double overlap)
+      {
+         Totals totals = this.totals;
+         return totals.current + totals.inflight + pending.sum() + (long) (totals.previous * overlap);
+      }
+
+      /**
+       * Counts a hit unless it would put the estimate over <code>limit</code>.
+       * 
+       * @return true if the hit was counted
+       */
+      boolean hit(double overlap, long limit)
+      {
+         pending.increment();
+         if (estimate(overlap) <= limit)
+            return true;
+
+         pending.decrement();
+         return false;
+      }
+
+      /**
+       * Takes back a hit.  If it was already flushed the next flush sends the correction.
+       */
+      void unhit()
+      {
+         pending.decrement();
+      }
+   }
+
+   public String getRedis()
+   {
+      return redis;
+   }
+
+   public RedisRateLimitAction withRedis(String redis)
+   {
+      this.redis = redis;
+      return this;
+   }
+
+   public String getKeyPrefix()
+   {
+      return keyPrefix;
+   }
+
+   public RedisRateLimitAction withKeyPrefix(String keyPrefix)
+   {
+      this.keyPrefix = keyPrefix;
+      return this;
+   }
+
+   public int getFlushMillis()
+   {
+      return flushMillis;
+   }
+
+   public RedisRateLimitAction withFlushMillis(int flushMillis)
+   {
+      this.flushMillis = flushMillis;
+      return this;
+   }
+
+   public int getFailOpenMillis()
+   {
+      return failOpenMillis;
+   }
+
+   public RedisRateLimitAction withFailOpenMillis(int failOpenMillis)
+   {
+      this.failOpenMillis = failOpenMillis;
+      return this;
+   }
+}
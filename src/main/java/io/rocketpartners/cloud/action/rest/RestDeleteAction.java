@@ -1,8 +1,11 @@
 package io.rocketpartners.cloud.action.rest;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import io.rocketpartners.cloud.model.Action;
 import io.rocketpartners.cloud.model.Api;
@@ -23,6 +26,19 @@ import io.rocketpartners.cloud.utils.Utils;
 
 public class RestDeleteAction extends Action<RestDeleteAction>
 {
+   //-- paging and formatting params that do not limit what is deleted
+   protected Set     ignoredParams  = new HashSet(Arrays.asList("includes", "excludes", "expands", "sort", "order", "page", "pagenum", "pagesize", "limit", "offset"));
+
+   /**
+    * Query string deletes normally GET the matching keys through the engine, 
+    * so that everything that restricts what the caller can read (acl rules, 
+    * tenant and auth filters) also restricts what is deleted.  When true the 
+    * db deletes everything matching the query string with one statement 
+    * instead.  Only turn this on for collections where the GET chain adds 
+    * no row filters of its own.
+    */
+   protected boolean setBasedDelete = false;
+
    public RestDeleteAction()
    {
       this(null);
@@ -99,7 +115,8 @@ public class RestDeleteAction extends Action<RestDeleteAction>
          collectionUrl += "/";
       
       collectionUrl += Utils.implode("/", req.getEndpointPath().toString(), req.getCollectionKey().toString());
-      int deleted = delete(req, req.getCollection(), collectionUrl, toDelete);
+      boolean setBasedDelete = chain.getConfig("setBasedDelete", this.setBasedDelete);
+      int deleted = delete(req, req.getCollection(), collectionUrl, toDelete, setBasedDelete);
 
       if (deleted < 1)
          res.withStatus(SC.SC_404_NOT_FOUND);
@@ -108,6 +125,11 @@ public class RestDeleteAction extends Action<RestDeleteAction>
    }
 
    protected int delete(Request req, Collection collection, String collectionUrl, List<String> urls) throws Exception
+   {
+      return delete(req, collection, collectionUrl, urls, setBasedDelete);
+   }
+
+   protected int delete(Request req, Collection collection, String collectionUrl, List<String> urls, boolean setBasedDelete) throws Exception
    {
       int deleted = 0;
       //------------------------------------------------
@@ -133,7 +155,7 @@ public class RestDeleteAction extends Action<RestDeleteAction>
          }
          else
          {
-            Term and = Term.term(null, "and");
+            List<String> termStrs = new ArrayList();
             for (String paramName : params.keySet())
             {
                String termStr = null;
@@ -147,20 +169,36 @@ public class RestDeleteAction extends Action<RestDeleteAction>
                {
                   termStr = "eq(" + paramName + "," + paramValue + ")";
                }
-               Term term = parser.parse(termStr);
-               and.withTerm(term);
+               termStrs.add(termStr);
             }
-            if (and.size() == 0)
+            if (termStrs.size() == 0)
             {
                throw new ApiException(SC.SC_400_BAD_REQUEST, "You can't DELETE to a collection unless you include an entityKey or query string");
             }
-            else
+
+            //-- when opted in, let the db delete everything that matches the 
+            //-- query with a single statement instead of selecting the keys
+            if (setBasedDelete)
             {
-               or.withTerm(and);
+               int count = delete(req, collection, parser, termStrs);
+               if (count >= 0)
+               {
+                  deleted += count;
+                  continue;
+               }
             }
+
+            Term and = Term.term(null, "and");
+            for (String termStr : termStrs)
+               and.withTerm(parser.parse(termStr));
+
+            or.withTerm(and);
          }
       }
 
+      if (in.size() == 0 && or.size() == 0)
+         return deleted;
+
       Term query = in;
       if (or.size() > 0)
       {
@@ -192,9 +230,45 @@ public class RestDeleteAction extends Action<RestDeleteAction>
 
          List<String> entityKeys = new ArrayList();
          res.data().asList().forEach(o -> entityKeys.add((String) Utils.last(Utils.explode("/", ((JSNode) o).getString("href")))));
-         req.getCollection().getDb().delete(collection.getTable(), entityKeys);
+         req.getCollection().getDb().delete(req.getContext(), collection.getTable(), entityKeys);
       }
 
       return deleted;
    }
+
+   /**
+    * Deletes directly through the db without the GET chain, see {@link #setBasedDelete}.
+    * 
+    * @return the number of rows deleted or -1 if the collection's db
+    *         can not do a set based delete for these terms
+    */
+   protected int delete(Request req, Collection collection, Parser parser, List<String> termStrs) throws Exception
+   {
+      List<Term> terms = new ArrayList();
+      for (String termStr : termStrs)
+      {
+         Term term = parser.parse(termStr);
+
+         if (term.hasToken("eq") && ignoredParams.contains(term.getToken(0).toLowerCase()))
+            continue;
+
+         terms.addAll(collection.getDb().mapToColumns(collection, term));
+      }
+
+      if (terms.size() == 0)
+         throw new ApiException(SC.SC_400_BAD_REQUEST, "You can't DELETE to a collection unless you include an entityKey or query string");
+
+      return collection.getDb().delete(req.getContext(), collection.getTable(), terms.toArray(new Term[terms.size()]));
+   }
+
+   public boolean isSetBasedDelete()
+   {
+      return setBasedDelete;
+   }
+
+   public RestDeleteAction withSetBasedDelete(boolean setBasedDelete)
+   {
+      this.setBasedDelete = setBasedDelete;
+      return this;
+   }
 }
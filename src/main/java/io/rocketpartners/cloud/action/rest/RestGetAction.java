@@ -28,6 +28,7 @@ import io.rocketpartners.cloud.model.Endpoint;
 import io.rocketpartners.cloud.model.Entity;
 import io.rocketpartners.cloud.model.Index;
 import io.rocketpartners.cloud.model.JSNode;
+import io.rocketpartners.cloud.model.JSNode.Shape;
 import io.rocketpartners.cloud.model.Relationship;
 import io.rocketpartners.cloud.model.Request;
 import io.rocketpartners.cloud.model.Response;
@@ -337,15 +338,72 @@ public class RestGetAction extends Action<RestGetAction>
          if (db == null)
             throw new ApiException(SC.SC_400_BAD_REQUEST, "Unable to find collection for url '" + req.getUrl() + "'");
 
-         results = db.select(null, terms);
+         results = db.select(req.getContext(), null, terms);
       }
       else
       {
-         results = collection.getDb().select(collection.getTable(), terms);
+         results = collection.getDb().select(req.getContext(), collection.getTable(), terms);
       }
 
       if (results.size() > 0)
       {
+         //-- when the db hands back a Rows, the attribute, primary key and
+         //-- "extra" column positions are looked up once here instead of 
+         //-- doing a case insensitive key lookup for every value of every row
+         Rows rows = results.getRows() instanceof Rows ? (Rows) results.getRows() : null;
+
+         List<Attribute> attrs = null;
+         int[] attrOrdinals = null;
+         int[] pkOrdinals = null;
+         List<String> extraKeys = null;
+         if (rows != null && collection != null)
+         {
+            attrs = collection.getEntity().getAttributes();
+            attrOrdinals = new int[attrs.size()];
+            boolean[] mapped = new boolean[rows.keyList().size()];
+            for (int i = 0; i < attrs.size(); i++)
+            {
+               attrOrdinals[i] = rows.indexOf(attrs.get(i).getColumn().getName());
+               if (attrOrdinals[i] >= 0)
+                  mapped[attrOrdinals[i]] = true;
+            }
+
+            Index pk = req.getCollection().getTable().getPrimaryIndex();
+            if (pk != null)
+            {
+               List<Column> pkCols = pk.getColumns();
+               pkOrdinals = new int[pkCols.size()];
+               for (int i = 0; i < pkCols.size(); i++)
+                  pkOrdinals[i] = rows.indexOf(pkCols.get(i).getName());
+            }
+
+            extraKeys = new ArrayList();
+            List<String> keys = rows.keyList();
+            for (int i = 0; i < keys.size(); i++)
+            {
+               if (!mapped[i])
+                  extraKeys.add(keys.get(i));
+            }
+         }
+
+         //-- every node in the page has the same keys so they share
+         //-- one key table instead of each carrying its own map
+         Shape shape = null;
+         if (collection != null)
+         {
+            List<String> names = new ArrayList();
+            for (Attribute attr : collection.getEntity().getAttributes())
+               names.add(attr.getName());
+
+            for (Relationship rel : collection.getEntity().getRelationships())
+               names.add(rel.getName());
+
+            if (extraKeys != null)
+               names.addAll(extraKeys);
+
+            names.add("href");
+            shape = new Shape(names);
+         }
 
          for (int i = 0; i < results.size(); i++)
          {
@@ -359,10 +417,12 @@ public class RestGetAction extends Action<RestGetAction>
             }
             else
             {
-               JSNode node = new JSNode();
+               JSNode node = new JSNode(shape);
                results.setRow(i, node);
 
-               String entityKey = req.getCollection().getTable().encodeKey(row);
+               boolean ordinals = attrOrdinals != null && pkOrdinals != null && row instanceof Row;
+
+               String entityKey = ordinals ? req.getCollection().getTable().encodeKey((Row) row, pkOrdinals) : req.getCollection().getTable().encodeKey(row);
 
                if (Utils.empty(entityKey))
                   throw new ApiException(SC.SC_500_INTERNAL_SERVER_ERROR, "Unable to determine entity key for " + row);
@@ -370,12 +430,23 @@ public class RestGetAction extends Action<RestGetAction>
                //------------------------------------------------
                //copy over defined attributes first, if the select returned 
                //extra columns they will be copied over last
-               for (Attribute attr : collection.getEntity().getAttributes())
+               if (ordinals)
+               {
+                  for (int j = 0; j < attrOrdinals.length; j++)
+                  {
+                     int ordinal = attrOrdinals[j];
+                     node.put(attrs.get(j).getName(), ordinal < 0 ? null : ((Row) row).get(ordinal));
+                  }
+               }
+               else
                {
-                  String attrName = attr.getName();
-                  String colName = attr.getColumn().getName();
-                  Object val = row.remove(colName);
-                  node.put(attrName, val);
+                  for (Attribute attr : collection.getEntity().getAttributes())
+                  {
+                     String attrName = attr.getName();
+                     String colName = attr.getColumn().getName();
+                     Object val = row.remove(colName);
+                     node.put(attrName, val);
+                  }
                }
 
                //------------------------------------------------
@@ -403,7 +474,7 @@ public class RestGetAction extends Action<RestGetAction>
                //------------------------------------------------
                // next, if the db returned extra columns that 
                // are not mapped to attributes, just straight copy them
-               for (String key : row.keySet())
+               for (String key : ordinals ? extraKeys : row.keySet())
                {
                   if (!key.equalsIgnoreCase("href") && !node.containsKey(key))
                   {
@@ -237,7 +237,7 @@ public class RestPostAction extends Action<RestPostAction>
          }
          maps.add(mapped);
       }
-      return collection.getDb().upsert(collection.getTable(), maps);
+      return collection.getDb().upsert(req.getContext(), collection.getTable(), maps);
    }
 
    /*
@@ -63,6 +63,7 @@ import io.rocketpartners.cloud.model.Response;
 import io.rocketpartners.cloud.model.SC;
 import io.rocketpartners.cloud.service.Chain;
 import io.rocketpartners.cloud.service.Engine;
+import io.rocketpartners.cloud.service.RequestContext;
 import io.rocketpartners.cloud.utils.Utils;
 import net.jodah.expiringmap.ExpiringMap;
 
@@ -72,8 +73,8 @@ import net.jodah.expiringmap.ExpiringMap;
  */
 public class ScriptAction extends Action<ScriptAction>
 {
-   static ThreadLocal<ScriptAction> scriptLocal        = new ThreadLocal();
-   static ThreadLocal<Chain>        chainLocal         = new ThreadLocal();
+   static final String              SCRIPT_KEY         = ScriptAction.class.getName() + ".script";
+   static final String              CHAIN_KEY          = ScriptAction.class.getName() + ".chain";
 
    Logger                           log                = LoggerFactory.getLogger(ScriptAction.class);
    String                           scriptsCollection  = "scripts";
@@ -158,8 +159,8 @@ public class ScriptAction extends Action<ScriptAction>
    @Override
    public void run(Engine engine, Api api, Endpoint endpoint, Chain chain, Request req, Response res) throws Exception
    {
-      scriptLocal.set(this);
-      chainLocal.set(chain);
+      chain.getContext().put(SCRIPT_KEY, this);
+      chain.getContext().put(CHAIN_KEY, chain);
 
       if (!inited)
       {
@@ -387,8 +388,9 @@ public class ScriptAction extends Action<ScriptAction>
 
    public static JSNode findScript(final String path) throws Exception
    {
-      ScriptAction handler = scriptLocal.get();
-      Chain chain = chainLocal.get();
+      RequestContext ctx = Chain.peek().getContext();
+      ScriptAction handler = (ScriptAction) ctx.get(SCRIPT_KEY);
+      Chain chain = (Chain) ctx.get(CHAIN_KEY);
 
       //      if (handler.CACHE.containsKey(path))
       //         return handler.CACHE.get(path);
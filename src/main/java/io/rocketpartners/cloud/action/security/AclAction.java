@@ -17,11 +17,16 @@ package io.rocketpartners.cloud.action.security;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 
+import org.apache.commons.collections4.map.LRUMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -31,9 +36,11 @@ import io.rocketpartners.cloud.model.ApiException;
 import io.rocketpartners.cloud.model.JSArray;
 import io.rocketpartners.cloud.model.Endpoint;
 import io.rocketpartners.cloud.model.JSNode;
+import io.rocketpartners.cloud.model.Path;
 import io.rocketpartners.cloud.model.Request;
 import io.rocketpartners.cloud.model.Response;
 import io.rocketpartners.cloud.model.SC;
+import io.rocketpartners.cloud.model.User;
 import io.rocketpartners.cloud.service.Chain;
 import io.rocketpartners.cloud.service.Engine;
 import io.rocketpartners.cloud.utils.Utils;
@@ -46,14 +53,26 @@ import io.rocketpartners.cloud.utils.Utils;
  * specific method/path combinations and can also specify input/output
  * parameters that are either required or restricted
  * 
+ * On first use the rules are compiled into an index by method and literal
+ * path prefix so only rules that could match a request are checked.  The 
+ * resulting decision is cached by method, the shape of the path and the 
+ * user's roles and permissions, keeping the <code>maxDecisions</code> most 
+ * recently used.  Path parts that no rule names literally, like entity keys,
+ * are left out of the cache key so they share one entry.  The index is rebuilt
+ * when withAclRules is called, call it again if a rule is changed after
+ * it was added.
+ * 
  * @author wells
  *
  */
 public class AclAction extends Action<AclAction>
 {
-   Logger                  log      = LoggerFactory.getLogger(AclAction.class);
+   Logger                   log          = LoggerFactory.getLogger(AclAction.class);
+
+   protected List<AclRule>  aclRules     = new ArrayList();
+   protected int            maxDecisions = 10000;
 
-   protected List<AclRule> aclRules = new ArrayList();
+   transient volatile Index index        = null;
 
    public AclAction()
    {
@@ -92,66 +111,45 @@ public class AclAction extends Action<AclAction>
       }
 
       Collections.sort(aclRules);
+      index = null;
+      return this;
+   }
+
+   public List<AclRule> getAclRules()
+   {
+      return new ArrayList(aclRules);
+   }
+
+   public int getMaxDecisions()
+   {
+      return maxDecisions;
+   }
+
+   /**
+    * @param maxDecisions the number of cached decisions to keep, 0 disables the cache
+    */
+   public AclAction withMaxDecisions(int maxDecisions)
+   {
+      this.maxDecisions = maxDecisions;
+      index = null;
       return this;
    }
 
    @Override
    public void run(Engine engine, Api api, Endpoint endpoint, Chain chain, Request req, Response resp) throws Exception
    {
-      List<AclRule> matched = new ArrayList<>();
-      boolean allowed = false;
-
       log.debug("Request Path: " + req.getPath());
 
-      for (AclRule aclRule : aclRules)
-      {
-         if (aclRule.ruleMatches(req))
-         {
-            //log.debug("Matched AclAction: " + aclRule.getName());
-            if (!aclRule.isAllow())
-            {
-               Chain.debug("AclAction: MATCH_DENY" + aclRule);
-
-               allowed = false;
-               break;
-            }
-            else
-            {
-               if (!aclRule.isInfo() && aclRule.isAllow())
-               {
-                  Chain.debug("AclAction: MATCH_ALLOW " + aclRule);
-                  allowed = true;
-               }
-               else
-               {
-                  Chain.debug("AclAction: MATCH_INFO " + aclRule);
-               }
-            }
+      Decision decision = getIndex().decide(req);
 
-            matched.add(aclRule);
-         }
-      }
+      for (String debug : decision.debug)
+         Chain.debug(debug);
 
-      if (!allowed)
-      {
-         Chain.debug("AclAction: NO_MATCH_DENY");
+      if (!decision.allowed)
          throw new ApiException(SC.SC_403_FORBIDDEN);
-      }
-
-      Set requires = new HashSet();
-      Set restricts = new HashSet();
-
-      for (AclRule aclRule : matched)
-      {
-         requires.addAll(aclRule.getRequires());
-         restricts.addAll(aclRule.getRestricts());
-      }
 
-      if (!requires.isEmpty())
-         Chain.debug("AclAction: requires: " + requires);
-
-      if (!restricts.isEmpty())
-         Chain.debug("AclAction: restricts: " + restricts);
+      Set<String> requires = decision.requires;
+      Set<String> restricts = decision.restricts;
 
       cleanParams(chain, req, restricts, requires);
       cleanJson(chain, req.getJson(), restricts, requires, false);
@@ -346,6 +344,262 @@ public class AclAction extends Action<AclAction>
       }
    }
 
+   Index getIndex()
+   {
+      Index index = this.index;
+      if (index == null)
+      {
+         synchronized (this)
+         {
+            index = this.index;
+            if (index == null)
+            {
+               index = new Index(new ArrayList(aclRules), maxDecisions);
+               this.index = index;
+            }
+         }
+      }
+      return index;
+   }
+
+   /**
+    * The outcome of checking a request against the rules: whether it is
+    * allowed, the merged requires/restricts of every matched rule, and
+    * the debug lines to replay.
+    */
+   static class Decision
+   {
+      boolean      allowed   = false;
+      Set<String>  requires  = Collections.EMPTY_SET;
+      Set<String>  restricts = Collections.EMPTY_SET;
+      List<String> debug     = new ArrayList();
+   }
+
+   /**
+    * The rules compiled into a tree of literal path parts per method.  A rule
+    * is stored at the node for the literal parts that lead each of its include
+    * paths, up to the first wildcard, so only rules found along a request's
+    * path need to be run.  Rules with no include paths sit at the root.
+    * <p>
+    * Every part of an include or exclude path is also recorded, as a literal
+    * or as a partial wildcard like "*.json", so a request path can be reduced
+    * to just the parts that could change which rules match.
+    */
+   static class Index
+   {
+      List<AclRule>         rules     = null;
+      Map<String, Node>     methods   = new HashMap();
+      Node                  anyMethod = new Node();
+
+      Set<String>           literals  = new HashSet();
+      List<String>          partials  = new ArrayList();
+
+      int                   maxDecisions;
+      Map<String, Decision> decisions = null;
+
+      Index(List<AclRule> rules, int maxDecisions)
+      {
+         this.rules = rules;
+         this.maxDecisions = maxDecisions;
+         this.decisions = new LRUMap(Math.max(1, maxDecisions));
+
+         for (int i = 0; i < rules.size(); i++)
+         {
+            AclRule rule = rules.get(i);
+
+            List<Node> roots = new ArrayList();
+            if (rule.getMethods().isEmpty())
+               roots.add(anyMethod);
+            else
+            {
+               for (String method : rule.getMethods())
+                  roots.add(methods.computeIfAbsent(method.toUpperCase(), k -> new Node()));
+            }
+
+            for (Node root : roots)
+            {
+               if (rule.getIncludePaths().isEmpty())
+                  root.rules.set(i);
+
+               for (Path path : rule.getIncludePaths())
+               {
+                  Node node = root;
+                  for (String part : path.parts())
+                  {
+                     if (part.indexOf("*") > -1 || part.indexOf("{") > -1)
+                        break;
+                     node = node.children.computeIfAbsent(part.toLowerCase(), k -> new Node());
+                  }
+                  node.rules.set(i);
+               }
+            }
+
+            List<Path> paths = new ArrayList(rule.getIncludePaths());
+            paths.addAll(rule.getExcludePaths());
+            for (Path path : paths)
+            {
+               for (String part : path.parts())
+               {
+                  part = part.toLowerCase();
+                  if (part.equals("*"))
+                     continue;
+
+                  if (part.indexOf("*") < 0)
+                     literals.add(part);
+                  else if (!partials.contains(part))
+                     partials.add(part);
+               }
+            }
+         }
+      }
+
+      Decision decide(Request req)
+      {
+         if (maxDecisions <= 0)
+            return evaluate(req);
+
+         String key = key(req);
+         Decision decision = null;
+         synchronized (decisions)
+         {
+            decision = decisions.get(key);
+         }
+
+         if (decision == null)
+         {
+            decision = evaluate(req);
+
+            //-- the least recently used decision makes room
+            synchronized (decisions)
+            {
+               decisions.put(key, decision);
+            }
+         }
+         return decision;
+      }
+
+      /**
+       * Parts named by a rule are kept, any other part only matches
+       * wildcards so it is replaced by "*" and the partial wildcards
+       * it matches.  "orders/1" and "orders/2" share a key.
+       */
+      String key(Request req)
+      {
+         StringBuilder key = new StringBuilder(req.getMethod().toUpperCase()).append(" ");
+         for (String part : req.getPath().parts())
+         {
+            part = part.toLowerCase();
+            key.append("/");
+            if (literals.contains(part))
+            {
+               key.append(part);
+               continue;
+            }
+
+            key.append("*");
+            for (int i = 0; i < partials.size(); i++)
+            {
+               if (Utils.wildcardMatch(partials.get(i), part))
+                  key.append(i).append(",");
+            }
+         }
+
+         User user = req.getUser();
+         if (user != null)
+            key.append(" ").append(new TreeSet(user.getRoles())).append(" ").append(new TreeSet(user.getPermissions()));
+
+         return key.toString();
+      }
+
+      /**
+       * Runs the candidate rules in order, exactly as every rule used to be run.
+       */
+      Decision evaluate(Request req)
+      {
+         BitSet candidates = new BitSet(rules.size());
+         List<String> parts = req.getPath().parts();
+
+         collect(anyMethod, parts, candidates);
+         Node methodRoot = methods.get(req.getMethod().toUpperCase());
+         if (methodRoot != null)
+            collect(methodRoot, parts, candidates);
+
+         Decision decision = new Decision();
+         List<AclRule> matched = new ArrayList();
+
+         for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1))
+         {
+            AclRule aclRule = rules.get(i);
+            if (aclRule.ruleMatches(req))
+            {
+               if (!aclRule.isAllow())
+               {
+                  decision.debug.add("AclAction: MATCH_DENY" + aclRule);
+
+                  decision.allowed = false;
+                  break;
+               }
+               else
+               {
+                  if (!aclRule.isInfo() && aclRule.isAllow())
+                  {
+                     decision.debug.add("AclAction: MATCH_ALLOW " + aclRule);
+                     decision.allowed = true;
+                  }
+                  else
+                  {
+                     decision.debug.add("AclAction: MATCH_INFO " + aclRule);
+                  }
+               }
+
+               matched.add(aclRule);
+            }
+         }
+
+         if (!decision.allowed)
+         {
+            decision.debug.add("AclAction: NO_MATCH_DENY");
+            return decision;
+         }
+
+         Set requires = new HashSet();
+         Set restricts = new HashSet();
+
+         for (AclRule aclRule : matched)
+         {
+            requires.addAll(aclRule.getRequires());
+            restricts.addAll(aclRule.getRestricts());
+         }
+
+         if (!requires.isEmpty())
+            decision.debug.add("AclAction: requires: " + requires);
+
+         if (!restricts.isEmpty())
+            decision.debug.add("AclAction: restricts: " + restricts);
+
+         decision.requires = Collections.unmodifiableSet(requires);
+         decision.restricts = Collections.unmodifiableSet(restricts);
+         return decision;
+      }
+
+      void collect(Node node, List<String> parts, BitSet candidates)
+      {
+         candidates.or(node.rules);
+         for (int i = 0; i < parts.size() && node != null; i++)
+         {
+            node = node.children.get(parts.get(i).toLowerCase());
+            if (node != null)
+               candidates.or(node.rules);
+         }
+      }
+   }
+
+   static class Node
+   {
+      BitSet            rules    = new BitSet();
+      Map<String, Node> children = new HashMap();
+   }
+
    boolean matchesVal(String restricted, String value)
    {
       if (restricted == null || value == null)
@@ -167,7 +167,7 @@ public class AuthAction extends Action<AuthAction>
       }
       else if (!Utils.empty(username, password))
       {
-         Connection conn = db.getConnection();
+         Connection conn = db.getConnection(chain.getContext(), true);
 
          User tempUser = getUser(conn, api, req.getTenantCode(), username, null);
          boolean authorized = false;
@@ -288,7 +288,7 @@ public class AuthAction extends Action<AuthAction>
             Integer tenantId = (Integer) api.getCache("TENANT_ID_" + tenantCode);
             if (tenantId == null)
             {
-               Connection conn = db.getConnection();
+               Connection conn = db.getConnection(chain.getContext(), false);
 
                Object tenant = SqlUtils.selectValue(conn, "SELECT id FROM Tenant WHERE tenantCode = ?", tenantCode);
                if (tenant == null)
@@ -15,8 +15,12 @@
  */
 package io.rocketpartners.cloud.action.security;
 
-import java.util.Hashtable;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
 
 import io.rocketpartners.cloud.model.Action;
 import io.rocketpartners.cloud.model.Api;
@@ -25,24 +29,29 @@ import io.rocketpartners.cloud.model.JSNode;
 import io.rocketpartners.cloud.model.Request;
 import io.rocketpartners.cloud.model.Response;
 import io.rocketpartners.cloud.model.SC;
+import io.rocketpartners.cloud.model.User;
 import io.rocketpartners.cloud.service.Chain;
 import io.rocketpartners.cloud.service.Engine;
 
 /**
- * Provides a blank or client specific request rate limit of <code>limitRequests</code> per 
- * <code>limitMinutes</code>.  
+ * Provides a blank or client specific request rate limit of <code>limitUserHits</code> 
+ * and/or <code>limitTotalHits</code> per <code>limitMinutes</code>.  
  * 
- * Endpoint/Action configurations override limitMinutes,limitRequests,limitToken so that
+ * Endpoint/Action configurations override limitMinutes,limitUserHits,limitTotalHits so that
  * an Endpoint/Action can customize rates to fit their needs.  
  * 
- * NOTICE 
- * There is intentionally no concurrency control on this class
- * other than using Hashtables instead of HashMaps.
- * The net result of no concurrency control should be limited
- * to a slightly leaky system that may allow more hits than 
- * configured.  In exchange, we don't have to worry about 
- * synchronization performance.
- *    
+ * Limits are enforced over a sliding window: the count for the current window
+ * plus the previous window's count weighted by how much of it still overlaps
+ * the last <code>limitMinutes</code>.  Counters are CAS updated so there is no
+ * locking, and no burst of traffic when a window ends.
+ * 
+ * Clients are identified by the authenticated user, then the api key the user
+ * authenticated with from the "x-auth-token" or "authorization" header.  Requests
+ * without an authenticated user are identified by their remote address, so an
+ * AuthAction should run before this action for per user limits.
+ * 
+ * Idle clients are evicted.  At most <code>maxClients</code> clients are tracked
+ * per rate configuration, any more than that share a single overflow counter.
  * 
  * @author wells
  *
@@ -52,116 +61,247 @@ public class RateLimitAction extends Action<RateLimitAction>
    protected int       limitMinutes   = 1;
    protected int       limitUserHits  = -1;
    protected int       limitTotalHits = -1;
+   protected int       maxClients     = 10000;
 
-   Map<String, Bucket> buckets        = new Hashtable();
+   Map<String, Bucket> buckets        = new ConcurrentHashMap();
 
    @Override
    public void run(Engine engine, Api api, Endpoint endpoint, Chain chain, Request req, Response res) throws Exception
    {
-      int limitMinutes = chain.getConfig("limitMinutes", this.limitMinutes);;
+      int limitMinutes = chain.getConfig("limitMinutes", this.limitMinutes);
       int limitUserHits = chain.getConfig("limitUserHits", this.limitUserHits);
       int limitTotalHits = chain.getConfig("limitTotalHits", this.limitTotalHits);
 
-      String bucketKey = new StringBuffer(limitMinutes).append("-").append(limitUserHits).append("-").append(limitTotalHits).toString();
+      if (!hit(limitMinutes, limitUserHits, limitTotalHits, getClientId(req)))
+         reject(chain, res);
+   }
 
-      String clientId = req.getRemoteAddr();
+   /**
+    * Counts a hit from <code>clientId</code> against this node's own counters.
+    * @return false if the hit is over a limit
+    */
+   protected boolean hit(int limitMinutes, int limitUserHits, int limitTotalHits, String clientId)
+   {
+      String bucketKey = new StringBuilder().append(limitMinutes).append("-").append(limitUserHits).append("-").append(limitTotalHits).toString();
 
       //this one handler can handle different rate configurations 
       //such as 100 hits per minutes or or 10000 hits per 5 minutes
-      Bucket bucket = buckets.get(bucketKey);
-      if (bucket == null)
-      {
-         bucket = new Bucket(limitMinutes, limitUserHits, limitTotalHits);
-         buckets.put(bucketKey, bucket);
-      }
+      Bucket bucket = buckets.computeIfAbsent(bucketKey, k -> new Bucket(limitMinutes, limitUserHits, limitTotalHits, maxClients));
 
-      if (!bucket.hit(clientId))
-      {
-         JSNode error = new JSNode("error", SC.SC_429_TOO_MANY_REQUESTS, "message", "slow down your request rate");
-         res.withJson(error);
-         res.withStatus(SC.SC_429_TOO_MANY_REQUESTS);
+      return bucket.hit(clientId, System.currentTimeMillis());
+   }
 
-         chain.cancel();
-      }
+   protected void reject(Chain chain, Response res)
+   {
+      JSNode error = new JSNode("error", SC.SC_429_TOO_MANY_REQUESTS, "message", "slow down your request rate");
+      res.withJson(error);
+      res.withStatus(SC.SC_429_TOO_MANY_REQUESTS);
+
+      chain.cancel();
+   }
+
+   protected String getClientId(Request req)
+   {
+      //-- unauthenticated headers are client supplied, a new value each request would dodge the limit
+      User user = req.getUser();
+      if (user == null)
+         return "ip:" + req.getRemoteAddr();
+
+      String username = user.getUsername() != null ? user.getUsername() : user.getAccessKey();
+      if (username != null)
+         return "user:" + user.getTenantId() + ":" + username;
+
+      String token = req.getHeader("x-auth-token");
+      if (token == null)
+         token = req.getHeader("authorization");
+      if (token != null)
+         return "key:" + token;
+
+      return "ip:" + req.getRemoteAddr();
+   }
+
+   public int getLimitMinutes()
+   {
+      return limitMinutes;
+   }
+
+   public RateLimitAction withLimitMinutes(int limitMinutes)
+   {
+      this.limitMinutes = limitMinutes;
+      return this;
+   }
+
+   public int getLimitUserHits()
+   {
+      return limitUserHits;
+   }
+
+   public RateLimitAction withLimitUserHits(int limitUserHits)
+   {
+      this.limitUserHits = limitUserHits;
+      return this;
+   }
+
+   public int getLimitTotalHits()
+   {
+      return limitTotalHits;
+   }
+
+   public RateLimitAction withLimitTotalHits(int limitTotalHits)
+   {
+      this.limitTotalHits = limitTotalHits;
+      return this;
+   }
+
+   public int getMaxClients()
+   {
+      return maxClients;
+   }
+
+   public RateLimitAction withMaxClients(int maxClients)
+   {
+      this.maxClients = maxClients;
+      return this;
    }
 
-   class Bucket
+   static class Bucket
    {
-      int              limitMillies   = 0;
-      int              limitUserHits  = 0;
-      int              limitTotalHits = 0;
+      long                limitMillis    = 0;
+      int                 limitUserHits  = 0;
+      int                 limitTotalHits = 0;
+      int                 maxClients     = 0;
 
-      long             resetAt        = 0;
-      Map<String, Num> userHits       = new Hashtable();
-      int              totalHits      = 0;
+      Window              total          = new Window();
+      Window              overflow       = new Window();
+      Map<String, Window> userHits       = new ConcurrentHashMap();
+      AtomicLong          sweptAt        = new AtomicLong();
+      LongAdder           rejected       = new LongAdder();
 
-      Bucket(int limitMinutes, int limitUserHits, int limitTotalHits)
+      Bucket(int limitMinutes, int limitUserHits, int limitTotalHits, int maxClients)
       {
-         this.limitMillies = limitMinutes * 60000;
+         this.limitMillis = Math.max(1, limitMinutes) * 60000L;
          this.limitUserHits = limitUserHits;
          this.limitTotalHits = limitTotalHits;
+         this.maxClients = maxClients;
       }
 
-      boolean hit(String clientId)
+      boolean hit(String clientId, long now)
       {
-         if (expired())
-            reset();
+         long window = now / limitMillis;
+         double overlap = 1 - (now % limitMillis) / (double) limitMillis;
 
-         if (limitTotalHits >= 0)
+         //-- the client's own limit goes first so a client over it can't use up the total for everyone else
+         Window user = limitUserHits > 0 ? getWindow(clientId, window) : null;
+         if (user != null && !user.hit(window, overlap, limitUserHits))
          {
-            synchronized (this)
-            {
-               totalHits += -1;
-            }
-
-            if (totalHits > limitTotalHits)
-               return false;
+            rejected.increment();
+            return false;
          }
 
-         if (limitUserHits > 0)
+         if (limitTotalHits >= 0 && !total.hit(window, overlap, limitTotalHits))
          {
-            Num num = userHits.get(clientId);
-            if (num == null)
-            {
-               num = new Num();
-               userHits.put(clientId, num);
-            }
+            //-- a request turned away is not charged to the client either
+            if (user != null)
+               user.unhit(window);
 
-            num.inc();
-
-            if (num.val() > limitUserHits)
-               return false;
+            rejected.increment();
+            return false;
          }
          return true;
       }
 
-      boolean expired()
+      Window getWindow(String clientId, long window)
       {
-         return resetAt < System.currentTimeMillis() - limitMillies;
+         Window counter = userHits.get(clientId);
+         if (counter != null)
+            return counter;
+
+         //-- clients only go idle when the window rolls so once per window is enough
+         long swept = sweptAt.get();
+         if (swept < window && sweptAt.compareAndSet(swept, window))
+            sweep(window);
+
+         if (userHits.size() >= maxClients)
+            return overflow;
+
+         return userHits.computeIfAbsent(clientId, k -> new Window());
       }
 
-      void reset()
+      /**
+       * Evicts clients that have not been seen in the current or previous window.
+       */
+      void sweep(long window)
       {
-         resetAt = System.currentTimeMillis();
-         totalHits = 0;
-         userHits.clear();
+         for (Iterator<Window> it = userHits.values().iterator(); it.hasNext();)
+         {
+            if (it.next().idle(window))
+               it.remove();
+         }
       }
+   }
 
-      class Num
+   /**
+    * Hit counts for the current and previous window in two slots chosen by
+    * the parity of the window number.  Each slot packs the window number
+    * into the high 32 bits and the count into the low 32 bits so that
+    * rolling to a new window and counting a hit is a single CAS.
+    */
+   static class Window
+   {
+      final AtomicLongArray slots = new AtomicLongArray(2);
+
+      /**
+       * Counts a hit unless it would put the sliding window estimate over 
+       * <code>limit</code>.  Rejected hits are not counted.
+       * 
+       * @return true if the hit was counted
+       */
+      boolean hit(long window, double overlap, long limit)
       {
-         int num = 0;
+         int slot = (int) (window & 1);
+         long stamp = window & 0xFFFFFFFFL;
 
-         void inc()
+         long previous = slots.get(slot ^ 1);
+         long count = (previous >>> 32) == ((window - 1) & 0xFFFFFFFFL) ? previous & 0xFFFFFFFFL : 0;
+         long carried = (long) (count * overlap);
+
+         while (true)
          {
-            num += 1;
+            long packed = slots.get(slot);
+            long current = (packed >>> 32) == stamp ? packed & 0xFFFFFFFFL : 0;
+            if (current + 1 + carried > limit)
+               return false;
+
+            if (slots.compareAndSet(slot, packed, (stamp << 32) | (current + 1)))
+               return true;
          }
+      }
+
+      /**
+       * Takes back a hit counted in <code>window</code>.
+       */
+      void unhit(long window)
+      {
+         int slot = (int) (window & 1);
+         long stamp = window & 0xFFFFFFFFL;
 
-         int val()
+         while (true)
          {
-            return num;
+            long packed = slots.get(slot);
+            if ((packed >>> 32) != stamp || (packed & 0xFFFFFFFFL) == 0)
+               return;
+
+            if (slots.compareAndSet(slot, packed, packed - 1))
+               return;
          }
       }
 
+      boolean idle(long window)
+      {
+         long stamp = window & 0xFFFFFFFFL;
+         long last = Math.max(slots.get(0) >>> 32, slots.get(1) >>> 32);
+         return last != stamp && last != ((window - 1) & 0xFFFFFFFFL);
+      }
    }
 
 }
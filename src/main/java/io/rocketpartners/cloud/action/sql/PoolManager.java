@@ -0,0 +1,234 @@
+/*
+ * Copyright (c) 2015-2018 Rocket Partners, LLC
+ * http://rocketpartners.io
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.rocketpartners.cloud.action.sql;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.metrics.IMetricsTracker;
+import com.zaxxer.hikari.metrics.MetricsTrackerFactory;
+import com.zaxxer.hikari.metrics.PoolStats;
+
+import io.rocketpartners.cloud.model.JSArray;
+import io.rocketpartners.cloud.model.JSNode;
+
+/**
+ * JVM wide registry of the connection pools used by SqlDbs.
+ * <p>
+ * Pools are keyed by db name, jdbc url and user so that SqlDbs configured
+ * identically, for example the same db wired into several Apis, share one
+ * pool.  Each pool is created exactly once and is closed when the last
+ * SqlDb using it shuts down.
+ * <p>
+ * Each pool records how many connections are active, idle and being
+ * waited for along with how long borrowers wait to acquire a connection.
+ * See {@link #getMetrics()}.
+ */
+public class PoolManager
+{
+   static Logger                          log   = LoggerFactory.getLogger(PoolManager.class);
+
+   static ConcurrentHashMap<String, Pool> pools = new ConcurrentHashMap();
+
+   /**
+    * Returns the pool for <code>url</code>, creating it if this is
+    * the first request for it, and registers <code>db</code> as a user
+    * of the pool.
+    */
+   public static DataSource getDataSource(SqlDb db, String url)
+   {
+      String key = getKey(db, url);
+      while (true)
+      {
+         Pool pool = pools.computeIfAbsent(key, k -> new Pool(k, url));
+         DataSource ds = pool.open(db);
+         if (ds != null)
+            return ds;
+
+         //-- the pool was closed out from under us by a concurrent shutdown
+         pools.remove(key, pool);
+      }
+   }
+
+   /**
+    * Unregisters <code>db</code> from every pool it uses, closing
+    * any pools no longer in use.
+    */
+   public static void release(SqlDb db)
+   {
+      for (Pool pool : pools.values())
+      {
+         if (pool.release(db))
+            pools.remove(pool.getKey(), pool);
+      }
+   }
+
+   public static Pool getPool(SqlDb db, String url)
+   {
+      return pools.get(getKey(db, url));
+   }
+
+   static String getKey(SqlDb db, String url)
+   {
+      return "name=" + db.getName() + ", url=" + url + ", user=" + db.getUser();
+   }
+
+   /**
+    * @return the metrics for every open pool
+    */
+   public static JSArray getMetrics()
+   {
+      JSArray metrics = new JSArray();
+      for (Pool pool : pools.values())
+      {
+         metrics.add(pool.getMetrics());
+      }
+      return metrics;
+   }
+
+   public static class Pool implements MetricsTrackerFactory, IMetricsTracker
+   {
+      protected String              key             = null;
+      protected String              url             = null;
+      protected volatile DataSource dataSource      = null;
+      protected volatile boolean    closed          = false;
+      protected Set<SqlDb>          dbs             = Collections.newSetFromMap(new ConcurrentHashMap());
+
+      protected PoolStats           stats           = null;
+      protected AtomicLong          acquireCount    = new AtomicLong(0);
+      protected AtomicLong          acquireNanos    = new AtomicLong(0);
+      protected AtomicLong          acquireMaxNanos = new AtomicLong(0);
+      protected AtomicLong          timeouts        = new AtomicLong(0);
+
+      public Pool(String key, String url)
+      {
+         this.key = key;
+         this.url = url;
+      }
+
+      DataSource open(SqlDb db)
+      {
+         //-- every connection checkout comes through here so the common case takes no lock
+         DataSource ds = dataSource;
+         if (ds != null && !closed && dbs.contains(db))
+            return ds;
+
+         synchronized (this)
+         {
+            return open0(db);
+         }
+      }
+
+      DataSource open0(SqlDb db)
+      {
+         if (closed)
+            return null;
+
+         if (dataSource == null)
+         {
+            log.info("Creating connection pool: " + key);
+
+            if (url.equals(db.getUrl()))
+               dataSource = db.createConnectionPool();
+            else
+               dataSource = db.createConnectionPool(url);
+         }
+
+         dbs.add(db);
+         return dataSource;
+      }
+
+      synchronized boolean release(SqlDb db)
+      {
+         if (!dbs.remove(db) || dbs.size() > 0 || closed)
+            return false;
+
+         closed = true;
+         log.info("Closing connection pool: " + key);
+
+         if (dataSource instanceof HikariDataSource)
+            ((HikariDataSource) dataSource).close();
+
+         return true;
+      }
+
+      @Override
+      public IMetricsTracker create(String poolName, PoolStats stats)
+      {
+         this.stats = stats;
+         return this;
+      }
+
+      @Override
+      public void recordConnectionAcquiredNanos(long elapsedAcquiredNanos)
+      {
+         acquireCount.incrementAndGet();
+         acquireNanos.addAndGet(elapsedAcquiredNanos);
+         acquireMaxNanos.accumulateAndGet(elapsedAcquiredNanos, Math::max);
+      }
+
+      @Override
+      public void recordConnectionTimeout()
+      {
+         timeouts.incrementAndGet();
+      }
+
+      public JSNode getMetrics()
+      {
+         JSNode metrics = new JSNode("key", key);
+
+         if (stats != null)
+         {
+            metrics.put("active", stats.getActiveConnections());
+            metrics.put("idle", stats.getIdleConnections());
+            metrics.put("waiting", stats.getPendingThreads());
+            metrics.put("total", stats.getTotalConnections());
+            metrics.put("max", stats.getMaxConnections());
+         }
+
+         long count = acquireCount.get();
+         metrics.put("acquired", count);
+         metrics.put("acquireAvgMillis", count == 0 ? 0 : acquireNanos.get() / count / 1000000d);
+         metrics.put("acquireMaxMillis", acquireMaxNanos.get() / 1000000d);
+         metrics.put("timeouts", timeouts.get());
+
+         return metrics;
+      }
+
+      public String getKey()
+      {
+         return key;
+      }
+
+      public String getUrl()
+      {
+         return url;
+      }
+
+      public boolean isClosed()
+      {
+         return closed;
+      }
+   }
+}
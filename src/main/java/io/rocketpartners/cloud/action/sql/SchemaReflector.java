@@ -0,0 +1,465 @@
+/*
+ * Copyright (c) 2015-2018 Rocket Partners, LLC
+ * http://rocketpartners.io
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.rocketpartners.cloud.action.sql;
+
+import java.lang.reflect.Field;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.rocketpartners.cloud.model.Column;
+import io.rocketpartners.cloud.model.Table;
+import io.rocketpartners.cloud.utils.Rows;
+import io.rocketpartners.cloud.utils.Rows.Row;
+import io.rocketpartners.cloud.utils.SqlUtils;
+import io.rocketpartners.cloud.utils.Utils;
+
+/**
+ * Builds the Table/Column/Index model for a SqlDb.
+ * <p>
+ * For mysql and postgres the whole schema is read with a handful of bulk
+ * information_schema/pg_catalog queries.  Other dialects, or a catalog
+ * query that fails, fall back to JDBC DatabaseMetaData where the per table
+ * getColumns/getIndexInfo/getImportedKeys calls are spread across up to
+ * <code>threads</code> connections.
+ * <p>
+ * In both cases foreign keys are only linked once every table and
+ * column exists.
+ */
+public class SchemaReflector
+{
+   static Logger              log   = LoggerFactory.getLogger(SchemaReflector.class);
+
+   //-- maps jdbc type integer codes to strings ex "4" to "INTEGER"
+   static Map<String, String> types = new HashMap();
+   static
+   {
+      try
+      {
+         for (Field field : Types.class.getFields())
+            types.put(field.get(null) + "", field.getName());
+      }
+      catch (Exception ex)
+      {
+         throw new RuntimeException(ex);
+      }
+   }
+
+   protected SqlDb            db      = null;
+   protected int              threads = 4;
+
+   public SchemaReflector(SqlDb db, int threads)
+   {
+      this.db = db;
+      this.threads = Math.max(1, threads);
+   }
+
+   public List<Table> reflect() throws Exception
+   {
+      DataSource ds = PoolManager.getDataSource(db, db.getUrl());
+
+      if (db.isType("mysql") || db.isType("postgres"))
+      {
+         Connection conn = ds.getConnection();
+         try
+         {
+            return reflectCatalog(conn);
+         }
+         catch (Exception ex)
+         {
+            log.warn("Bulk catalog reflection failed for db '" + db.getName() + "', falling back to jdbc metadata: " + ex.getMessage());
+         }
+         finally
+         {
+            SqlUtils.close(conn);
+         }
+      }
+
+      return reflectMetaData(ds);
+   }
+
+   //----------------------------------------------------------------------
+   //-- bulk catalog queries
+
+   protected List<Table> reflectCatalog(Connection conn) throws Exception
+   {
+      boolean mysql = db.isType("mysql");
+      List<Table> tables = new ArrayList();
+
+      for (Row row : select(conn, mysql ? MYSQL_TABLES : PG_TABLES))
+         tables.add(new Table(db, row.getString(0)));
+
+      Table table = null;
+      int columnNumber = 0;
+      for (Row row : select(conn, mysql ? MYSQL_COLUMNS : PG_COLUMNS))
+      {
+         String tableName = row.getString(0);
+         if (table == null || !table.getName().equals(tableName))
+         {
+            table = SchemaSnapshot.find(tables, tableName);
+            columnNumber = 0;
+         }
+         if (table == null)
+            continue;
+
+         columnNumber += 1;
+         String colType = toJdbcType(row.getString(2), row.getString(3), mysql);
+         boolean nullable = "YES".equalsIgnoreCase(row.getString(4));
+         table.withColumn(new Column(table, columnNumber, row.getString(1), colType, nullable));
+      }
+
+      for (Row row : select(conn, mysql ? MYSQL_UNIQUE_INDEXES : PG_UNIQUE_INDEXES))
+      {
+         table = SchemaSnapshot.find(tables, row.getString(0));
+         Column column = table != null ? table.getColumn(row.getString(2)) : null;
+         if (column == null)
+            continue;
+
+         column.withUnique(true);
+         table.makeIndex(column, row.getString(1), "Other", true);
+      }
+
+      for (Row row : select(conn, mysql ? MYSQL_FKS : PG_FKS))
+         link(tables, row.getString(0), row.getString(1), row.getString(2), row.getString(3), row.getString(4));
+
+      return tables;
+   }
+
+   protected Rows select(Connection conn, String sql) throws Exception
+   {
+      return SqlUtils.selectRows(conn, sql);
+   }
+
+   /**
+    * Maps information_schema data types to the java.sql.Types names the
+    * JDBC drivers report so the model matches a DatabaseMetaData reflection.
+    */
+   protected String toJdbcType(String dataType, String columnType, boolean mysql)
+   {
+      String type = dataType.toLowerCase();
+      switch (type)
+      {
+         case "tinyint":
+            return columnType != null && columnType.toLowerCase().startsWith("tinyint(1)") ? "BIT" : "TINYINT";
+         case "bit":
+         case "bool":
+         case "boolean":
+            return "BIT";
+         case "smallint":
+         case "smallserial":
+            return "SMALLINT";
+         case "mediumint":
+         case "int":
+         case "integer":
+         case "serial":
+            return "INTEGER";
+         case "bigint":
+         case "bigserial":
+            return "BIGINT";
+         case "decimal":
+            return "DECIMAL";
+         case "numeric":
+            return "NUMERIC";
+         case "float":
+         case "real":
+            return "REAL";
+         case "double":
+         case "double precision":
+            return "DOUBLE";
+         case "char":
+         case "character":
+         case "enum":
+         case "set":
+            return "CHAR";
+         case "varchar":
+         case "character varying":
+            return "VARCHAR";
+         case "text":
+            return mysql ? "LONGVARCHAR" : "VARCHAR";
+         case "tinytext":
+         case "mediumtext":
+         case "longtext":
+            return "LONGVARCHAR";
+         case "date":
+         case "year":
+            return "DATE";
+         case "time":
+         case "time without time zone":
+         case "time with time zone":
+            return "TIME";
+         case "datetime":
+         case "timestamp":
+         case "timestamp without time zone":
+         case "timestamp with time zone":
+            return "TIMESTAMP";
+         case "binary":
+         case "bytea":
+            return "BINARY";
+         case "varbinary":
+            return "VARBINARY";
+         case "tinyblob":
+         case "blob":
+         case "mediumblob":
+         case "longblob":
+            return "LONGVARBINARY";
+         case "array":
+            return "ARRAY";
+         default :
+            return "OTHER";
+      }
+   }
+
+   //----------------------------------------------------------------------
+   //-- jdbc metadata, parallel per table
+
+   protected List<Table> reflectMetaData(DataSource ds) throws Exception
+   {
+      List<TableMeta> metas = new ArrayList();
+
+      Connection conn = ds.getConnection();
+      try
+      {
+         DatabaseMetaData dbmd = conn.getMetaData();
+         ResultSet rs = dbmd.getTables(null, "public", "%", new String[]{"TABLE", "VIEW"});
+         boolean hasNext = rs.next();
+         if (!hasNext)
+         {
+            rs.close();
+            rs = dbmd.getTables(null, null, "%", new String[]{"TABLE", "VIEW"});
+            hasNext = rs.next();
+         }
+         if (hasNext)
+            do
+            {
+               metas.add(new TableMeta(new Table(db, rs.getString("TABLE_NAME")), rs.getString("TABLE_CAT"), rs.getString("TABLE_SCHEM")));
+            }
+            while (rs.next());
+         rs.close();
+      }
+      finally
+      {
+         SqlUtils.close(conn);
+      }
+
+      //-- each worker takes its own connection and pulls tables off the queue until it is empty
+      ConcurrentLinkedQueue<TableMeta> queue = new ConcurrentLinkedQueue(metas);
+      int workers = Math.min(threads, metas.size());
+      if (workers <= 1)
+      {
+         reflectTables(ds, queue);
+      }
+      else
+      {
+         ExecutorService executor = Executors.newFixedThreadPool(workers);
+         try
+         {
+            List<Future> futures = new ArrayList();
+            for (int i = 0; i < workers; i++)
+            {
+               futures.add(executor.submit(() -> {
+                  reflectTables(ds, queue);
+                  return null;
+               }));
+            }
+
+            for (Future future : futures)
+            {
+               try
+               {
+                  future.get();
+               }
+               catch (ExecutionException ex)
+               {
+                  Utils.rethrow(ex.getCause());
+               }
+            }
+         }
+         finally
+         {
+            executor.shutdownNow();
+         }
+      }
+
+      //-- fks are linked only after every table and column exists
+      List<Table> tables = new ArrayList();
+      for (TableMeta meta : metas)
+         tables.add(meta.table);
+
+      for (TableMeta meta : metas)
+      {
+         for (String[] fk : meta.fks)
+            link(tables, fk[0], fk[1], fk[2], fk[3], fk[4]);
+      }
+
+      return tables;
+   }
+
+   protected void reflectTables(DataSource ds, ConcurrentLinkedQueue<TableMeta> queue) throws Exception
+   {
+      Connection conn = null;
+      try
+      {
+         TableMeta meta = null;
+         while ((meta = queue.poll()) != null)
+         {
+            if (conn == null)
+               conn = ds.getConnection();
+
+            reflectTable(conn, meta);
+         }
+      }
+      catch (Exception ex)
+      {
+         //-- stop the other workers, the reflection has failed
+         queue.clear();
+         throw ex;
+      }
+      finally
+      {
+         SqlUtils.close(conn);
+      }
+   }
+
+   protected void reflectTable(Connection conn, TableMeta meta) throws Exception
+   {
+      DatabaseMetaData dbmd = conn.getMetaData();
+      Table table = meta.table;
+
+      ResultSet colsRs = dbmd.getColumns(meta.catalog, meta.schema, table.getName(), "%");
+      int columnNumber = 0;
+      while (colsRs.next())
+      {
+         columnNumber += 1;
+         String colName = colsRs.getString("COLUMN_NAME");
+         String colType = types.get(colsRs.getString("DATA_TYPE"));
+         boolean nullable = colsRs.getInt("NULLABLE") == DatabaseMetaData.columnNullable;
+
+         table.withColumn(new Column(table, columnNumber, colName, colType, nullable));
+      }
+      colsRs.close();
+
+      ResultSet indexMd = dbmd.getIndexInfo(conn.getCatalog(), null, table.getName(), true, false);
+      while (indexMd.next())
+      {
+         String idxName = indexMd.getString("INDEX_NAME");
+         String idxType = "Other";
+         String colName = indexMd.getString("COLUMN_NAME");
+
+         switch (indexMd.getInt("TYPE"))
+         {
+            case DatabaseMetaData.tableIndexClustered:
+               idxType = "Clustered";
+               break;
+            case DatabaseMetaData.tableIndexHashed:
+               idxType = "Hashed";
+               break;
+            case DatabaseMetaData.tableIndexOther:
+               idxType = "Other";
+               break;
+            case DatabaseMetaData.tableIndexStatistic:
+               idxType = "Statistic";
+               break;
+         }
+
+         Object nonUnique = indexMd.getObject("NON_UNIQUE") + "";
+         boolean unique = !(nonUnique.equals("true") || nonUnique.equals("1"));
+
+         Column column = table.getColumn(colName);
+         if (column == null)
+            continue;
+
+         if (unique)
+            column.withUnique(unique);
+
+         table.makeIndex(column, idxName, idxType, unique);
+      }
+      indexMd.close();
+
+      ResultSet keyMd = dbmd.getImportedKeys(conn.getCatalog(), null, table.getName());
+      while (keyMd.next())
+      {
+         meta.fks.add(new String[]{keyMd.getString("FKTABLE_NAME"), keyMd.getString("FKCOLUMN_NAME"), keyMd.getString("FK_NAME"), keyMd.getString("PKTABLE_NAME"), keyMd.getString("PKCOLUMN_NAME")});
+      }
+      keyMd.close();
+   }
+
+   protected void link(List<Table> tables, String fkTableName, String fkColumnName, String fkName, String pkTableName, String pkColumnName)
+   {
+      Table fkTable = SchemaSnapshot.find(tables, fkTableName);
+      Table pkTable = SchemaSnapshot.find(tables, pkTableName);
+
+      //-- a key pointing outside of the reflected schema
+      if (fkTable == null || pkTable == null)
+         return;
+
+      Column fk = fkTable.getColumn(fkColumnName);
+      Column pk = pkTable.getColumn(pkColumnName);
+      if (fk == null || pk == null)
+         return;
+
+      fk.withPk(pk);
+      fkTable.makeIndex(fk, fkName, "FOREIGN_KEY", false);
+   }
+
+   static class TableMeta
+   {
+      Table          table   = null;
+      String         catalog = null;
+      String         schema  = null;
+      List<String[]> fks     = new ArrayList();
+
+      TableMeta(Table table, String catalog, String schema)
+      {
+         this.table = table;
+         this.catalog = catalog;
+         this.schema = schema;
+      }
+   }
+
+   //----------------------------------------------------------------------
+   //-- catalog queries, every query returns its columns in the order reflectCatalog reads them
+
+   static final String MYSQL_TABLES         = "SELECT TABLE_NAME FROM information_schema.TABLES WHERE TABLE_SCHEMA = DATABASE() AND TABLE_TYPE IN ('BASE TABLE', 'VIEW') ORDER BY TABLE_NAME";
+
+   static final String MYSQL_COLUMNS        = "SELECT TABLE_NAME, COLUMN_NAME, DATA_TYPE, COLUMN_TYPE, IS_NULLABLE FROM information_schema.COLUMNS WHERE TABLE_SCHEMA = DATABASE() ORDER BY TABLE_NAME, ORDINAL_POSITION";
+
+   static final String MYSQL_UNIQUE_INDEXES = "SELECT TABLE_NAME, INDEX_NAME, COLUMN_NAME FROM information_schema.STATISTICS WHERE TABLE_SCHEMA = DATABASE() AND NON_UNIQUE = 0 ORDER BY TABLE_NAME, INDEX_NAME, SEQ_IN_INDEX";
+
+   static final String MYSQL_FKS            = "SELECT TABLE_NAME, COLUMN_NAME, CONSTRAINT_NAME, REFERENCED_TABLE_NAME, REFERENCED_COLUMN_NAME FROM information_schema.KEY_COLUMN_USAGE WHERE TABLE_SCHEMA = DATABASE() AND REFERENCED_TABLE_NAME IS NOT NULL ORDER BY TABLE_NAME, CONSTRAINT_NAME, ORDINAL_POSITION";
+
+   static final String PG_TABLES            = "SELECT table_name FROM information_schema.tables WHERE table_schema = current_schema() AND table_type IN ('BASE TABLE', 'VIEW') ORDER BY table_name";
+
+   static final String PG_COLUMNS           = "SELECT table_name, column_name, data_type, udt_name, is_nullable FROM information_schema.columns WHERE table_schema = current_schema() ORDER BY table_name, ordinal_position";
+
+   static final String PG_UNIQUE_INDEXES    = "SELECT t.relname, i.relname, a.attname FROM pg_index x JOIN pg_class i ON i.oid = x.indexrelid JOIN pg_class t ON t.oid = x.indrelid JOIN pg_namespace n ON n.oid = t.relnamespace JOIN pg_attribute a ON a.attrelid = t.oid AND a.attnum = ANY(x.indkey) WHERE x.indisunique AND n.nspname = current_schema() ORDER BY t.relname, i.relname, array_position(x.indkey::int2[], a.attnum)";
+
+   static final String PG_FKS               = "SELECT kcu.table_name, kcu.column_name, kcu.constraint_name, pk.table_name, pk.column_name FROM information_schema.referential_constraints rc JOIN information_schema.key_column_usage kcu ON kcu.constraint_schema = rc.constraint_schema AND kcu.constraint_name = rc.constraint_name JOIN information_schema.key_column_usage pk ON pk.constraint_schema = rc.unique_constraint_schema AND pk.constraint_name = rc.unique_constraint_name AND pk.ordinal_position = kcu.position_in_unique_constraint WHERE kcu.table_schema = current_schema() ORDER BY kcu.table_name, kcu.constraint_name, kcu.ordinal_position";
+}
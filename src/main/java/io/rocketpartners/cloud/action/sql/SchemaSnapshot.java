@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2015-2018 Rocket Partners, LLC
+ * http://rocketpartners.io
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.rocketpartners.cloud.action.sql;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import io.rocketpartners.cloud.model.Column;
+import io.rocketpartners.cloud.model.Index;
+import io.rocketpartners.cloud.model.JSArray;
+import io.rocketpartners.cloud.model.JSNode;
+import io.rocketpartners.cloud.model.Table;
+import io.rocketpartners.cloud.utils.Utils;
+
+/**
+ * Saves and restores the Table/Column/Index model that
+ * {@link SqlDb#reflectDb()} builds from JDBC metadata so that
+ * startup does not have to query the metadata again.
+ * <p>
+ * Only the reflected schema is stored.  Collections, entities and
+ * relationships are cheap to derive and are rebuilt by
+ * {@link SqlDb#configApi()} as usual.
+ * <p>
+ * The format is compact JSON:
+ * <pre>
+ * {"fingerprint":"...","tables":[
+ *    {"name":"Orders",
+ *     "columns":[["OrderID","INTEGER",false,true], ...],            //name, type, nullable, unique
+ *     "fks":[["CustomerID","Customers","CustomerID"], ...],         //column, pk table, pk column
+ *     "indexes":[["PRIMARY","Other",true,"OrderID"], ...]}, ...]}   //name, type, unique, column...
+ * </pre>
+ */
+public class SchemaSnapshot
+{
+   protected String      fingerprint = null;
+   protected List<Table> tables      = new ArrayList();
+
+   public SchemaSnapshot(String fingerprint, List<Table> tables)
+   {
+      this.fingerprint = fingerprint;
+      this.tables = tables;
+   }
+
+   public static SchemaSnapshot load(SqlDb db, File file) throws Exception
+   {
+      JSNode json = Utils.parseJsonMap(Utils.read(file));
+      List<Table> tables = new ArrayList();
+
+      for (Object t : json.getArray("tables"))
+      {
+         JSNode tableJson = (JSNode) t;
+         Table table = new Table(db, tableJson.getString("name"));
+
+         int number = 0;
+         for (Object c : tableJson.getArray("columns"))
+         {
+            JSArray col = (JSArray) c;
+            Column column = new Column(table, ++number, col.getString(0), col.getString(1), col.getBoolean(2));
+            column.withUnique(col.getBoolean(3));
+            table.withColumn(column);
+         }
+         tables.add(table);
+      }
+
+      //-- second pass because fks can point at tables later in the list
+      for (Object t : json.getArray("tables"))
+      {
+         JSNode tableJson = (JSNode) t;
+         Table table = find(tables, tableJson.getString("name"));
+
+         for (Object f : tableJson.getArray("fks"))
+         {
+            JSArray fk = (JSArray) f;
+            Table pkTable = find(tables, fk.getString(1));
+            table.getColumn(fk.getString(0)).withPk(pkTable.getColumn(fk.getString(2)));
+         }
+
+         for (Object i : tableJson.getArray("indexes"))
+         {
+            JSArray idx = (JSArray) i;
+            for (int j = 3; j < idx.length(); j++)
+               table.makeIndex(table.getColumn(idx.getString(j)), idx.getString(0), idx.getString(1), idx.getBoolean(2));
+         }
+      }
+
+      return new SchemaSnapshot(json.getString("fingerprint"), tables);
+   }
+
+   public void save(File file) throws Exception
+   {
+      if (file.getParentFile() != null)
+         file.getParentFile().mkdirs();
+
+      File temp = new File(file.getPath() + ".tmp");
+      Utils.write(temp, toJson().toString(false));
+
+      //-- so a concurrent cold start never reads a half written file
+      if (!temp.renameTo(file))
+      {
+         file.delete();
+         temp.renameTo(file);
+      }
+   }
+
+   public JSNode toJson()
+   {
+      JSArray tablesJson = new JSArray();
+      for (Table table : tables)
+      {
+         JSArray columns = new JSArray();
+         JSArray fks = new JSArray();
+         for (Column col : table.getColumns())
+         {
+            columns.add(new JSArray(col.getName(), col.getType(), col.isNullable(), col.isUnique()));
+
+            if (col.getPk() != null)
+               fks.add(new JSArray(col.getName(), col.getPk().getTable().getName(), col.getPk().getName()));
+         }
+
+         JSArray indexes = new JSArray();
+         for (Index index : table.getIndexes())
+         {
+            JSArray idx = new JSArray(index.getName(), index.getType(), index.isUnique());
+            for (Column col : index.getColumns())
+               idx.add(col.getName());
+            indexes.add(idx);
+         }
+
+         tablesJson.add(new JSNode("name", table.getName(), "columns", columns, "fks", fks, "indexes", indexes));
+      }
+
+      return new JSNode("fingerprint", fingerprint, "tables", tablesJson);
+   }
+
+   static Table find(List<Table> tables, String name)
+   {
+      for (Table table : tables)
+      {
+         if (table.getName().equalsIgnoreCase(name))
+            return table;
+      }
+      return null;
+   }
+
+   public String getFingerprint()
+   {
+      return fingerprint;
+   }
+
+   public List<Table> getTables()
+   {
+      return tables;
+   }
+}
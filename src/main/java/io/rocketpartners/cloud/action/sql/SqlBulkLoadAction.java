@@ -0,0 +1,437 @@
+/*
+ * Copyright (c) 2015-2019 Rocket Partners, LLC
+ * http://rocketpartners.io
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.rocketpartners.cloud.action.sql;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVRecord;
+import org.postgresql.PGConnection;
+
+import io.rocketpartners.cloud.model.Action;
+import io.rocketpartners.cloud.model.Api;
+import io.rocketpartners.cloud.model.ApiException;
+import io.rocketpartners.cloud.model.Attribute;
+import io.rocketpartners.cloud.model.Collection;
+import io.rocketpartners.cloud.model.Column;
+import io.rocketpartners.cloud.model.Endpoint;
+import io.rocketpartners.cloud.model.Request;
+import io.rocketpartners.cloud.model.Request.Upload;
+import io.rocketpartners.cloud.model.Response;
+import io.rocketpartners.cloud.model.SC;
+import io.rocketpartners.cloud.service.Chain;
+import io.rocketpartners.cloud.service.Engine;
+import io.rocketpartners.cloud.service.RequestContext;
+import io.rocketpartners.cloud.utils.SqlUtils;
+import io.rocketpartners.cloud.utils.Utils;
+
+/**
+ * Inserts a large number of rows into a SQL collection using the
+ * native bulk load path of the db instead of JDBC inserts.
+ * <p>
+ * The body, or the first multipart upload, is read as either newline
+ * delimited JSON objects or CSV with a header row.  Set <code>format</code>
+ * to 'csv' or 'ndjson' or send a 'text/csv' Content-Type.  The properties
+ * of the first record determine the columns loaded.  Each value is cast
+ * with {@link io.rocketpartners.cloud.model.Db#cast(Attribute, Object)}
+ * and then every <code>batchSize</code> rows are sent to the db and committed:
+ * <ul>
+ *   <li>postgres - COPY FROM STDIN through the driver's CopyManager
+ *   <li>mysql - LOAD DATA LOCAL INFILE from an in memory stream
+ *   <li>h2 - INSERT ... SELECT FROM CSVREAD() of a temp file
+ * </ul>
+ *
+ * This only inserts, rows that already exist will cause the load to fail
+ * and the uncommitted batch will be rolled back.
+ * <p>
+ * The response meta has the number of rows loaded and rows per second.
+ */
+public class SqlBulkLoadAction extends Action<SqlBulkLoadAction>
+{
+   protected int    batchSize = 10000;
+   protected String format    = null;
+
+   public SqlBulkLoadAction()
+   {
+      this(null);
+   }
+
+   public SqlBulkLoadAction(String inludePaths)
+   {
+      this(inludePaths, null, null);
+   }
+
+   public SqlBulkLoadAction(String inludePaths, String excludePaths, String config)
+   {
+      super(inludePaths, excludePaths, config);
+      withMethods("POST");
+   }
+
+   @Override
+   public void run(Engine engine, Api api, Endpoint endpoint, Chain chain, Request req, Response res) throws Exception
+   {
+      Collection collection = req.getCollection();
+      if (collection == null || !(collection.getDb() instanceof SqlDb))
+         throw new ApiException(SC.SC_400_BAD_REQUEST, "Bulk loads are only supported for SQL collections");
+
+      SqlDb db = (SqlDb) collection.getDb();
+      if (!db.isType("postgres", "mysql", "h2"))
+         throw new ApiException(SC.SC_400_BAD_REQUEST, "Bulk loads are not supported for db type '" + db.getType() + "'");
+
+      int batchSize = Math.max(1, Utils.atoi(chain.getConfig("batchSize", this.batchSize + "")));
+
+      String format = req.getParam("format");
+      if (Utils.empty(format))
+         format = chain.getConfig("format", this.format);
+      if (Utils.empty(format))
+      {
+         String contentType = req.getHeader("Content-Type");
+         format = contentType != null && contentType.toLowerCase().indexOf("csv") > -1 ? "csv" : "ndjson";
+      }
+
+      Reader reader = openReader(req);
+      try
+      {
+         Iterator<Map<String, Object>> records = "csv".equalsIgnoreCase(format) ? csvRecords(reader) : jsonRecords(reader);
+
+         long start = System.currentTimeMillis();
+         int rows = load(chain.getContext(), db, collection, records, batchSize);
+         long millis = Math.max(1, System.currentTimeMillis() - start);
+
+         res.withStatus(SC.SC_201_CREATED);
+         res.withMeta("rows", rows);
+         res.withMeta("millis", millis);
+         res.withMeta("rowsPerSecond", rows * 1000L / millis);
+      }
+      finally
+      {
+         reader.close();
+      }
+   }
+
+   protected int load(RequestContext ctx, SqlDb db, Collection collection, Iterator<Map<String, Object>> records, int batchSize) throws Exception
+   {
+      if (!records.hasNext())
+         return 0;
+
+      Connection conn = db.getConnection(ctx, true);
+      String nullStr = db.isType("mysql") ? "NULL" : "";
+
+      Map<String, Object> record = records.next();
+      List<String> names = new ArrayList(record.keySet());
+      List<String> cols = new ArrayList();
+      Attribute[] attrs = new Attribute[names.size()];
+      Column[] columns = new Column[names.size()];
+
+      for (int i = 0; i < names.size(); i++)
+      {
+         String name = names.get(i);
+         attrs[i] = collection.getEntity().getAttribute(name);
+         columns[i] = attrs[i] != null ? attrs[i].getColumn() : collection.getTable().getColumn(name);
+
+         if (columns[i] == null)
+            throw new ApiException(SC.SC_400_BAD_REQUEST, "Property '" + name + "' does not map to a column of collection '" + collection.getName() + "'");
+
+         cols.add(columns[i].getName());
+      }
+
+      int rows = 0;
+      StringBuilder batch = new StringBuilder();
+      Object[] values = new Object[names.size()];
+      while (record != null)
+      {
+         for (int i = 0; i < names.size(); i++)
+         {
+            Object value = record.get(names.get(i));
+            if ("".equals(value) && record instanceof CsvRecordMap && !isString(columns[i]))
+               value = null;
+
+            values[i] = attrs[i] != null ? db.cast(attrs[i], value) : db.cast(columns[i], value);
+         }
+         writeCsv(batch, values, nullStr);
+         rows += 1;
+
+         if (rows % batchSize == 0)
+         {
+            copy(db, conn, collection.getTable().getName(), cols, batch.toString());
+            conn.commit();
+            batch.setLength(0);
+         }
+
+         record = records.hasNext() ? records.next() : null;
+      }
+
+      if (batch.length() > 0)
+      {
+         copy(db, conn, collection.getTable().getName(), cols, batch.toString());
+         conn.commit();
+      }
+
+      return rows;
+   }
+
+   /**
+    * Sends one batch of CSV formatted rows to the db using its native bulk load.
+    */
+   protected void copy(SqlDb db, Connection conn, String table, List<String> cols, String csv) throws Exception
+   {
+      String sql = null;
+      Exception ex = null;
+      Statement stmt = null;
+      File file = null;
+      int networkTimeout = -1;
+      try
+      {
+         if (db.isType("postgres"))
+         {
+            sql = "COPY " + SqlUtils.quote(conn, table) + " (" + SqlUtils.getColumnStr(conn, cols) + ") FROM STDIN WITH (FORMAT csv)";
+            SqlUtils.notifyBefore("copy", sql, null);
+
+            //-- COPY does not use a Statement so the deadline is enforced on the socket
+            networkTimeout = SqlUtils.applyDeadline(conn);
+            conn.unwrap(PGConnection.class).getCopyAPI().copyIn(sql, new StringReader(csv));
+         }
+         else if (db.isType("mysql"))
+         {
+            //-- the file name is ignored when the statement has a local infile input stream
+            sql = "LOAD DATA LOCAL INFILE 'bulk.csv' INTO TABLE " + SqlUtils.quote(conn, table) + " CHARACTER SET utf8 FIELDS TERMINATED BY ',' OPTIONALLY ENCLOSED BY '\"' ESCAPED BY '' LINES TERMINATED BY '\\n' (" + SqlUtils.getColumnStr(conn, cols) + ")";
+            SqlUtils.notifyBefore("copy", sql, null);
+            stmt = conn.createStatement();
+            SqlUtils.applyDeadline(stmt);
+            com.mysql.jdbc.Statement mysqlStmt = stmt.unwrap(com.mysql.jdbc.Statement.class);
+            mysqlStmt.setLocalInfileInputStream(new ByteArrayInputStream(csv.getBytes("UTF-8")));
+            mysqlStmt.execute(sql);
+         }
+         else
+         {
+            StringBuilder header = new StringBuilder();
+            writeCsv(header, cols.toArray(), "");
+
+            file = File.createTempFile("bulk", ".csv");
+            Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+            try
+            {
+               out.write(header.toString());
+               out.write(csv);
+            }
+            finally
+            {
+               out.close();
+            }
+
+            sql = "INSERT INTO " + SqlUtils.quote(conn, table) + " (" + SqlUtils.getColumnStr(conn, cols) + ") SELECT * FROM CSVREAD('" + file.getAbsolutePath().replace("'", "''") + "', null, 'charset=UTF-8')";
+            SqlUtils.notifyBefore("copy", sql, null);
+            stmt = conn.createStatement();
+            SqlUtils.applyDeadline(stmt);
+            stmt.execute(sql);
+         }
+      }
+      catch (Exception e)
+      {
+         ex = SqlUtils.checkDeadline(sql, e);
+         SqlUtils.notifyError("copy", sql, null, ex);
+         throw ex;
+      }
+      finally
+      {
+         SqlUtils.close(stmt);
+         if (networkTimeout > -1)
+            restoreNetworkTimeout(conn, networkTimeout);
+         if (file != null)
+            file.delete();
+
+         SqlUtils.notifyAfter("copy", sql, null, ex, null);
+      }
+   }
+
+   static void restoreNetworkTimeout(Connection conn, int networkTimeout)
+   {
+      try
+      {
+         if (!conn.isClosed())
+            conn.setNetworkTimeout(Runnable::run, networkTimeout);
+      }
+      catch (Exception ex)
+      {
+         //-- the connection is already broken and will be discarded
+      }
+   }
+
+   /**
+    * Writes one CSV line.  Values are always quoted so that an unquoted
+    * <code>nullStr</code> is unambiguously null.
+    */
+   static void writeCsv(StringBuilder buff, Object[] values, String nullStr)
+   {
+      for (int i = 0; i < values.length; i++)
+      {
+         if (i > 0)
+            buff.append(',');
+
+         Object value = values[i];
+         if (value == null)
+         {
+            buff.append(nullStr);
+            continue;
+         }
+
+         if (value instanceof Boolean)
+            value = ((Boolean) value) ? "1" : "0";
+
+         buff.append('"').append(value.toString().replace("\"", "\"\"")).append('"');
+      }
+      buff.append('\n');
+   }
+
+   static boolean isString(Column column)
+   {
+      String type = column.getType();
+      return type != null && (type.toUpperCase().indexOf("CHAR") > -1 || type.toUpperCase().indexOf("TEXT") > -1);
+   }
+
+   protected Reader openReader(Request req) throws Exception
+   {
+      if (req.getUploader() != null)
+      {
+         List<Upload> uploads = req.getUploader().getUploads();
+         if (uploads != null && uploads.size() > 0)
+            return new BufferedReader(new InputStreamReader(uploads.get(0).getInputStream(), "UTF-8"));
+      }
+
+      String body = req.getBody();
+      if (Utils.empty(body))
+         throw new ApiException(SC.SC_400_BAD_REQUEST, "You must pass NDJSON or CSV rows in the body or as a file upload");
+
+      return new StringReader(body);
+   }
+
+   Iterator<Map<String, Object>> csvRecords(Reader reader) throws Exception
+   {
+      final Iterator<CSVRecord> it = CSVFormat.DEFAULT.withFirstRecordAsHeader().parse(reader).iterator();
+      return new Iterator<Map<String, Object>>()
+         {
+            @Override
+            public boolean hasNext()
+            {
+               return it.hasNext();
+            }
+
+            @Override
+            public Map<String, Object> next()
+            {
+               return new CsvRecordMap(it.next().toMap());
+            }
+         };
+   }
+
+   Iterator<Map<String, Object>> jsonRecords(Reader reader) throws Exception
+   {
+      final BufferedReader lines = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader);
+      return new Iterator<Map<String, Object>>()
+         {
+            String next = null;
+            int    line = 0;
+
+            @Override
+            public boolean hasNext()
+            {
+               try
+               {
+                  while (next == null)
+                  {
+                     next = lines.readLine();
+                     if (next == null)
+                        return false;
+
+                     line += 1;
+                     if (next.trim().length() == 0)
+                        next = null;
+                  }
+                  return true;
+               }
+               catch (Exception ex)
+               {
+                  Utils.rethrow(ex);
+               }
+               return false;
+            }
+
+            @Override
+            public Map<String, Object> next()
+            {
+               hasNext();
+               String json = next;
+               next = null;
+               try
+               {
+                  return Utils.parseJsonMap(json);
+               }
+               catch (Exception ex)
+               {
+                  throw new ApiException(SC.SC_400_BAD_REQUEST, "Unparsable JSON on line " + line);
+               }
+            }
+         };
+   }
+
+   /**
+    * Marks records that came from CSV where an empty cell is ambiguous
+    * between null and the empty string.
+    */
+   static class CsvRecordMap extends java.util.LinkedHashMap<String, Object>
+   {
+      CsvRecordMap(Map<String, String> record)
+      {
+         super(record);
+      }
+   }
+
+   public int getBatchSize()
+   {
+      return batchSize;
+   }
+
+   public SqlBulkLoadAction withBatchSize(int batchSize)
+   {
+      this.batchSize = batchSize;
+      return this;
+   }
+
+   public String getFormat()
+   {
+      return format;
+   }
+
+   public SqlBulkLoadAction withFormat(String format)
+   {
+      this.format = format;
+      return this;
+   }
+}
@@ -15,18 +15,25 @@
  */
 package io.rocketpartners.cloud.action.sql;
 
-import java.lang.reflect.Field;
+import java.io.File;
 import java.sql.Connection;
-import java.sql.DatabaseMetaData;
-import java.sql.ResultSet;
-import java.sql.Types;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.sql.DataSource;
 
@@ -38,17 +45,24 @@ import com.zaxxer.hikari.HikariDataSource;
 import ch.qos.logback.classic.Level;
 import io.rocketpartners.cloud.model.ApiException;
 import io.rocketpartners.cloud.model.Attribute;
+import io.rocketpartners.cloud.model.Bulkhead;
 import io.rocketpartners.cloud.model.Collection;
 import io.rocketpartners.cloud.model.Column;
 import io.rocketpartners.cloud.model.Db;
+import io.rocketpartners.cloud.model.Endpoint;
 import io.rocketpartners.cloud.model.Entity;
 import io.rocketpartners.cloud.model.Index;
+import io.rocketpartners.cloud.model.JSArray;
 import io.rocketpartners.cloud.model.Relationship;
+import io.rocketpartners.cloud.model.Request;
 import io.rocketpartners.cloud.model.Results;
 import io.rocketpartners.cloud.model.SC;
 import io.rocketpartners.cloud.model.Table;
 import io.rocketpartners.cloud.rql.Term;
 import io.rocketpartners.cloud.service.Chain;
+import io.rocketpartners.cloud.service.Engine;
+import io.rocketpartners.cloud.service.RequestContext;
+import io.rocketpartners.cloud.utils.Rows;
 import io.rocketpartners.cloud.utils.Rows.Row;
 import io.rocketpartners.cloud.utils.SqlUtils;
 import io.rocketpartners.cloud.utils.SqlUtils.SqlListener;
@@ -59,18 +73,18 @@ public class SqlDb extends Db<SqlDb>
    protected char                 stringQuote              = '\'';
    protected char                 columnQuote              = '"';
 
-   static Map<String, DataSource> pools                    = new HashMap();
-
-   public static final int        MIN_POOL_SIZE            = 3;
-   public static final int        MAX_POOL_SIZE            = 10;
-
    protected String               driver                   = null;
    protected String               url                      = null;
    protected String               user                     = null;
    protected String               pass                     = null;
    protected int                  poolMin                  = 3;
    protected int                  poolMax                  = 10;
-   protected int                  idleConnectionTestPeriod = 3600;         // in seconds
+   protected int                  idleConnectionTestPeriod = 600;          // in seconds, idle connections above poolMin are retired after this long
+   protected int                  connectionTimeout        = 30000;        // in millis, how long to wait for a pooled connection
+   protected int                  maxLifetime              = 1800000;      // in millis
+   protected int                  validationTimeout        = 5000;         // in millis
+   protected int                  leakDetectionThreshold   = 0;            // in millis, 0 disables
+   protected Properties           poolProperties           = new Properties(); // any other HikariConfig property, "dataSource.xxx" for driver properties
 
    // set this to false to turn off SQL_CALC_FOUND_ROWS and SELECT FOUND_ROWS()
    // Only impacts 'mysql' types
@@ -78,6 +92,50 @@ public class SqlDb extends Db<SqlDb>
 
    protected int                  relatedMax               = 500;
 
+   // max number of rows sent to the db in one upsert or delete statement/batch
+   protected int                  batchMax                 = 500;
+
+   // postgres limits a statement to 32767 bind variables
+   static final int               MAX_BATCH_PARAMS         = 32000;
+
+   // read only replicas that top level GET requests are load balanced across
+   protected List<String>         replicaUrls              = new ArrayList();
+
+   // after a write, reads from the same user/address go to the primary for this long
+   protected int                  stickyMillis             = 0;
+
+   // replicas further behind the primary than this are taken out of rotation, 0 disables
+   protected int                  replicaLagMax            = 0;
+
+   // how often replica lag and liveness are checked
+   protected int                  replicaCheckMillis       = 10000;
+
+   // overrides the dialect specific query that returns the replica lag in millis
+   protected String               replicaLagSql            = null;
+
+   protected volatile List<Replica> replicas               = null;
+   protected AtomicInteger        nextReplica              = new AtomicInteger(0);
+   protected Map<String, Long>    recentWrites             = new ConcurrentHashMap();
+   protected transient ScheduledFuture replicaCheck        = null;
+
+   // the reflected schema is saved here and loaded on startup instead of querying jdbc metadata, null disables
+   protected String               snapshotFile             = null;
+
+   // how often the live schema is compared to the snapshot, 0 checks once shortly after startup
+   protected int                  snapshotCheckMillis      = 60000;
+
+   // overrides the dialect specific queries that fingerprint the schema, separate multiple queries with ';'
+   protected String               fingerprintSql           = null;
+
+   // connections used in parallel to reflect the schema when the dialect has no bulk catalog queries
+   protected int                  reflectThreads           = 4;
+
+   protected transient String     schemaFingerprint        = null;
+   protected transient ScheduledFuture schemaCheck         = null;
+
+   // runs schema and replica checks off of the request threads
+   static ScheduledExecutorService executor                = null;
+
    static
    {
       ch.qos.logback.classic.Logger logger = (ch.qos.logback.classic.Logger) org.slf4j.LoggerFactory.getLogger("ROOT");
@@ -182,12 +240,47 @@ public class SqlDb extends Db<SqlDb>
 
    protected void shutdown0()
    {
-      //pool.close();
+      if (schemaCheck != null)
+         schemaCheck.cancel(false);
+
+      if (replicaCheck != null)
+         replicaCheck.cancel(false);
+
+      PoolManager.release(this);
+   }
+
+   /**
+    * @return active/idle/waiting connection counts and acquire times for 
+    *         the primary and replica pools of this db
+    */
+   public JSArray getPoolMetrics()
+   {
+      JSArray metrics = new JSArray();
+
+      PoolManager.Pool pool = PoolManager.getPool(this, getUrl());
+      if (pool != null)
+         metrics.add(pool.getMetrics());
+
+      for (String url : replicaUrls)
+      {
+         pool = PoolManager.getPool(this, url);
+         if (pool != null)
+            metrics.add(pool.getMetrics());
+      }
+      return metrics;
    }
 
    @Override
    public Results<Row> select(Table table, List<Term> columnMappedTerms) throws Exception
    {
+      return select(ConnectionLocal.threadContext(), table, columnMappedTerms);
+   }
+
+   @Override
+   public Results<Row> select(RequestContext ctx, Table table, List<Term> columnMappedTerms) throws Exception
+   {
+      ctx = context(ctx);
+
       SqlDb db = null;
       if (table == null)
       {
@@ -200,7 +293,8 @@ public class SqlDb extends Db<SqlDb>
 
       String selectKey = (table != null ? table.getKeyName() + "." : "") + "select";
 
-      String selectSql = (String) Chain.peek().remove(selectKey);
+      Chain chain = ctx.peek();
+      String selectSql = chain != null ? (String) chain.remove(selectKey) : null;
       //      if (Utils.empty(sql))
       //      {
       //         if (table == null)
@@ -210,6 +304,7 @@ public class SqlDb extends Db<SqlDb>
 
       SqlQuery query = new SqlQuery(table, columnMappedTerms);
       query.withDb(db);
+      query.withContext(ctx);
       if (selectSql != null)
       {
          query.withSelectSql(selectSql);
@@ -221,18 +316,156 @@ public class SqlDb extends Db<SqlDb>
    @Override
    public String upsert(Table table, Map<String, Object> row) throws Exception
    {
-      if (isType("h2"))
-      {
-         return h2Upsert(table, row);
-      }
-      else if (isType("mysql"))
+      return upsert(ConnectionLocal.threadContext(), table, Arrays.asList(row)).get(0);
+   }
+
+   @Override
+   public List<String> upsert(Table table, List<Map<String, Object>> rows) throws Exception
+   {
+      return upsert(ConnectionLocal.threadContext(), table, rows);
+   }
+
+   /**
+    * Upserts <code>rows</code> in batches of up to <code>batchMax</code> rows.  
+    * Consecutive rows with the same columns are sent together using
+    * INSERT ... ON CONFLICT for postgres, INSERT ... ON DUPLICATE KEY UPDATE
+    * for mysql, MERGE for h2 and a staging table for redshift.
+    * 
+    * @return the entity key of each row in the same order as <code>rows</code>
+    */
+   @Override
+   public List<String> upsert(RequestContext ctx, Table table, List<Map<String, Object>> rows) throws Exception
+   {
+      if (!isType("h2", "postgres", "redshift", "mysql"))
+         throw new ApiException(SC.SC_500_INTERNAL_SERVER_ERROR, "Need to implement SqlDb.upsert for db type '" + getType() + "'");
+
+      Index pk = table.getPrimaryIndex();
+      if (pk == null)
+         throw new ApiException(SC.SC_500_INTERNAL_SERVER_ERROR, "Table '" + table.getName() + "' does not have a unique index");
+
+      List<String> keyCols = new ArrayList();
+      for (Column col : pk.getColumns())
+         keyCols.add(col.getName());
+
+      List<String> keys = new ArrayList();
+      int start = 0;
+      while (start < rows.size())
       {
-         return StringUtils.join(mysqlUpsert(table, row), ',');
+         Map<String, Object> first = stripEmptyKey(table, keyCols, rows.get(start));
+         boolean keyed = table.encodeKey(first) != null;
+         int max = Math.max(1, Math.min(getBatchMax(), MAX_BATCH_PARAMS / Math.max(1, first.size())));
+
+         //-- postgres can only match numeric generated keys back to their rows
+         if (!keyed && isType("postgres") && (pk.getColumns().size() != 1 || !isNumericType(pk.getColumns().get(0).getType())))
+            max = 1;
+
+         //-- mysql only returns the auto increment column of each inserted row
+         if (!keyed && isType("mysql") && pk.getColumns().size() != 1)
+            max = 1;
+
+         List<Map<String, Object>> batch = new ArrayList();
+         batch.add(first);
+
+         int end = start + 1;
+         for (; end < rows.size() && batch.size() < max; end++)
+         {
+            Map<String, Object> row = stripEmptyKey(table, keyCols, rows.get(end));
+            if (!row.keySet().equals(first.keySet()) || (table.encodeKey(row) != null) != keyed)
+               break;
+
+            batch.add(row);
+         }
+
+         if (keyed)
+         {
+            //-- a statement can only write each key once so the last row for a key wins
+            Map<String, Map<String, Object>> unique = new LinkedHashMap();
+            for (Map<String, Object> row : batch)
+               unique.put(table.encodeKey(row), row);
+
+            List<Map<String, Object>> deduped = new ArrayList(unique.values());
+
+            if (isType("postgres"))
+               SqlUtils.postgresUpsert(getConnection(ctx, true), table.getName(), keyCols, deduped);
+            else if (isType("h2"))
+               SqlUtils.h2Upsert(getConnection(ctx, true), table.getName(), keyCols, deduped);
+            else if (isType("mysql"))
+               SqlUtils.mysqlUpsert(getConnection(ctx, true), table.getName(), deduped);
+            else
+               SqlUtils.redshiftUpsert(getConnection(ctx, true), table.getName(), keyCols, deduped);
+
+            for (Map<String, Object> row : batch)
+               keys.add(table.encodeKey(row));
+         }
+         else
+         {
+            if (isType("redshift"))
+               throw new ApiException(SC.SC_400_BAD_REQUEST, "Redshift upserts require a primary key value for every row");
+
+            if (isType("mysql") && pk.getColumns().size() != 1)
+            {
+               //-- a batch of one row, the key is whatever mysql generated for it
+               keys.add(StringUtils.join(SqlUtils.mysqlUpsert(getConnection(ctx, true), table.getName(), batch), ','));
+               start = end;
+               continue;
+            }
+
+            List<Map<String, Object>> batchKeys = null;
+            if (isType("postgres"))
+            {
+               batchKeys = SqlUtils.postgresUpsert(getConnection(ctx, true), table.getName(), keyCols, batch);
+            }
+            else if (isType("mysql"))
+            {
+               batchKeys = new ArrayList();
+               for (String generated : SqlUtils.mysqlUpsert(getConnection(ctx, true), table.getName(), batch))
+                  batchKeys.add(Collections.<String, Object> singletonMap(keyCols.get(0), generated));
+            }
+            else
+            {
+               batchKeys = SqlUtils.h2Upsert(getConnection(ctx, true), table.getName(), keyCols, batch);
+            }
+
+            if (batchKeys.size() != batch.size())
+               throw new ApiException(SC.SC_500_INTERNAL_SERVER_ERROR, "Unable to determine keys of upserted rows.  Expected " + batch.size() + " keys but found " + batchKeys.size());
+
+            for (Map<String, Object> batchKey : batchKeys)
+            {
+               String key = table.encodeKey(batchKey);
+               if (key == null)
+                  throw new ApiException(SC.SC_500_INTERNAL_SERVER_ERROR, "Unable to determine key of upserted row: " + batchKey);
+               keys.add(key);
+            }
+         }
+
+         start = end;
       }
-      else
+
+      return keys;
+   }
+
+   static boolean isNumericType(String type)
+   {
+      return type != null && type.toLowerCase().matches(".*(int|serial|numeric|decimal|number).*");
+   }
+
+   /**
+    * Removes null key columns from an insert so the db can generate the key.
+    */
+   Map<String, Object> stripEmptyKey(Table table, List<String> keyCols, Map<String, Object> row)
+   {
+      if (table.encodeKey(row) != null)
+         return row;
+
+      for (String keyCol : keyCols)
       {
-         throw new ApiException(SC.SC_500_INTERNAL_SERVER_ERROR, "Need to implement SqlDb.upsert for db type '" + getType() + "'");
+         if (row.containsKey(keyCol) && row.get(keyCol) == null)
+         {
+            row = new LinkedHashMap(row);
+            row.remove(keyCol);
+         }
       }
+      return row;
    }
 
    public List<String> mysqlUpsert(Table table, Map<String, Object> row) throws Exception
@@ -242,177 +475,740 @@ public class SqlDb extends Db<SqlDb>
 
    public List<String> mysqlUpsert(Table table, List<Map<String, Object>> rows) throws Exception
    {
-      return SqlUtils.mysqlUpsert(getConnection(), table.getName(), rows);
+      return SqlUtils.mysqlUpsert(getConnection(true), table.getName(), rows);
+   }
+
+   /**
+    * Deletes the rows in chunks of up to <code>batchMax</code> keys.  Single column 
+    * keys use "IN (?,?...)".  Compound keys use a row value "(a, b) IN ((?,?),(?,?)...)"
+    * for postgres and mysql and a JDBC batch of single row deletes otherwise.
+    */
+   @Override
+   public void delete(Table table, List<String> entityKeys) throws Exception
+   {
+      delete(ConnectionLocal.threadContext(), table, entityKeys);
    }
 
-   public String h2Upsert(Table table, Map<String, Object> row) throws Exception
+   @Override
+   public void delete(RequestContext ctx, Table table, List<String> entityKeys) throws Exception
    {
-      Object key = table.encodeKey(row);
+      Index pk = table.getPrimaryIndex();
+      if (pk == null)
+         throw new ApiException(SC.SC_500_INTERNAL_SERVER_ERROR, "Table '" + table.getName() + "' does not have a unique index");
 
-      if (key == null)//this must be an insert
+      List<Column> cols = pk.getColumns();
+      int max = Math.max(1, Math.min(getBatchMax(), MAX_BATCH_PARAMS / cols.size()));
+
+      for (int start = 0; start < entityKeys.size(); start += max)
       {
-         SqlUtils.insertMap(getConnection(), table.getName(), row);
+         List<String> chunk = entityKeys.subList(start, Math.min(entityKeys.size(), start + max));
+
+         if (cols.size() == 1)
+         {
+            List castKeys = new ArrayList();
+            for (String key : chunk)
+               castKeys.add(cast(cols.get(0), key));
+
+            String sql = "";
+            sql += " DELETE FROM " + quoteCol(table.getName());
+            sql += " WHERE " + quoteCol(cols.get(0).getName()) + " IN (" + SqlUtils.getQuestionMarkStr(chunk.size()) + ")";
+            SqlUtils.execute(getConnection(ctx, true), sql, castKeys.toArray());
+         }
+         else if (isType("postgres", "mysql"))
+         {
+            StringBuffer colStr = new StringBuffer();
+            for (Column col : cols)
+               colStr.append(colStr.length() > 0 ? ", " : "").append(quoteCol(col.getName()));
+
+            String qmarks = "(" + SqlUtils.getQuestionMarkStr(cols.size()) + ")";
+            StringBuffer sql = new StringBuffer(" DELETE FROM " + quoteCol(table.getName()) + " WHERE (" + colStr + ") IN (");
+
+            List values = new ArrayList();
+            for (int i = 0; i < chunk.size(); i++)
+            {
+               sql.append(i > 0 ? ", " : "").append(qmarks);
+               Row row = table.decodeKey(chunk.get(i));
+               for (Column col : cols)
+                  values.add(row.get(col.getName()));
+            }
+            sql.append(")");
+
+            SqlUtils.execute(getConnection(ctx, true), sql.toString(), values.toArray());
+         }
+         else
+         {
+            List<String> colNames = new ArrayList();
+            for (Column col : cols)
+               colNames.add(col.getName());
+
+            List<List> rows = new ArrayList();
+            for (String key : chunk)
+            {
+               Row row = table.decodeKey(key);
+               List values = new ArrayList();
+               for (String colName : colNames)
+                  values.add(row.get(colName));
+               rows.add(values);
+            }
+
+            SqlUtils.deleteBatch(getConnection(ctx, true), table.getName(), colNames, rows);
+         }
       }
-      else
+   }
+
+   /**
+    * Deletes all rows matching the terms with one DELETE ... WHERE statement.
+    */
+   @Override
+   public int delete(Table table, Term... columnMappedTerms) throws Exception
+   {
+      return delete(ConnectionLocal.threadContext(), table, columnMappedTerms);
+   }
+
+   @Override
+   public int delete(RequestContext ctx, Table table, Term... columnMappedTerms) throws Exception
+   {
+      SqlQuery query = new SqlQuery(table, Arrays.asList(columnMappedTerms));
+      query.withDb(this);
+      query.withContext(ctx);
+      return query.doDelete();
+   }
+
+   @Override
+   public void delete(Table table, String entityKey) throws Exception
+   {
+      delete(ConnectionLocal.threadContext(), table, Arrays.asList(entityKey));
+   }
+
+   /**
+    * @return <code>ctx</code> or, for callers that don't have one, the context bound to this thread
+    */
+   static RequestContext context(RequestContext ctx)
+   {
+      return ctx != null ? ctx : ConnectionLocal.threadContext();
+   }
+
+   /**
+    * Returns the connection for the request bound to this thread.
+    * 
+    * @see #getConnection(RequestContext, boolean)
+    */
+   public Connection getConnection() throws ApiException
+   {
+      return getConnection(false);
+   }
+
+   /**
+    * Returns the connection for the request bound to this thread.
+    * 
+    * @see #getConnection(RequestContext, boolean)
+    */
+   public Connection getConnection(boolean write) throws ApiException
+   {
+      return getConnection(ConnectionLocal.threadContext(), write, false);
+   }
+
+   /**
+    * Returns the connection for <code>ctx</code>'s request, acquiring one if 
+    * necessary.  Top level GET requests are given a read only connection 
+    * to a replica when replicas are configured.
+    * 
+    * @param ctx the request's context, see {@link Chain#getContext()}
+    * @param write true if the caller is going to modify data.  If the request
+    *        already holds a replica connection it is released and replaced 
+    *        with a primary connection.
+    */
+   public Connection getConnection(RequestContext ctx, boolean write) throws ApiException
+   {
+      return getConnection(ctx, write, false);
+   }
+
+   /**
+    * @see #getSelectConnection(RequestContext)
+    */
+   public Connection getSelectConnection() throws ApiException
+   {
+      return getConnection(ConnectionLocal.threadContext(), false, true);
+   }
+
+   /**
+    * Returns the connection for a single select.  If this is a top level 
+    * GET that does not already hold a connection, the one borrowed is read
+    * only and in autocommit mode, and the caller must hand it back with
+    * ConnectionLocal.release as soon as the select is done.  
+    */
+   public Connection getSelectConnection(RequestContext ctx) throws ApiException
+   {
+      return getConnection(ctx, false, true);
+   }
+
+   protected Connection getConnection(RequestContext ctx, boolean write, boolean select) throws ApiException
+   {
+      ctx = context(ctx);
+      try
+      {
+         //-- see Engine.lazyDbStartup
+         if (!isStarted())
+            startup();
+
+         Connection conn = ConnectionLocal.getConnection(ctx, this);
+
+         if (write)
+         {
+            if (conn != null && conn.isReadOnly())
+            {
+               //-- the request started out as a read, pin it to the primary from here on
+               ConnectionLocal.removeConnection(ctx, this);
+               SqlUtils.close(conn);
+               conn = null;
+            }
+
+            if (stickyMillis > 0 && replicaUrls.size() > 0 && ctx.first() != null)
+            {
+               //-- makes sure the replica check that evicts old writes is running
+               getReplicas();
+               recentWrites.put(getClientKey(ctx), System.currentTimeMillis());
+            }
+         }
+
+         if (conn == null && !isShutdown())
+         {
+            Bulkhead permit = acquirePermit(ctx);
+            try
+            {
+               boolean readChain = !write && isReadChain(ctx);
+
+               Replica replica = readChain ? findReplica(ctx) : null;
+               if (replica != null)
+               {
+                  conn = replica.getPool().getConnection();
+               }
+               else
+               {
+                  DataSource pool = PoolManager.getDataSource(this, getUrl());
+                  conn = pool.getConnection();
+               }
+
+               //-- a select on a read chain doesn't open a transaction so that its
+               //-- connection can go back to the pool as soon as the rows are read
+               boolean autoCommit = select && readChain;
+               conn.setAutoCommit(autoCommit);
+               conn.setReadOnly(autoCommit || replica != null);
+
+               ConnectionLocal.putConnection(ctx, this, conn, permit);
+               permit = null;
+            }
+            finally
+            {
+               if (permit != null)
+                  permit.release();
+            }
+         }
+
+         return conn;
+      }
+      catch (ApiException ex)
+      {
+         throw ex;
+      }
+      catch (Exception ex)
       {
-         String keyCol = table.getKeyName();
-         SqlUtils.upsert(getConnection(), table.getName(), keyCol, row);
+         log.error("Unable to get DB connection", ex);
+         throw new ApiException(SC.SC_500_INTERNAL_SERVER_ERROR, "Unable to get DB connection", ex);
       }
+   }
 
-      if (key == null)
+   /**
+    * Takes a permit from this db's bulkhead for the connection about to be 
+    * borrowed.  Work outside of a request and requests to priority 
+    * endpoints are always admitted.
+    * 
+    * @return the bulkhead the permit was taken from, or null if none was taken
+    */
+   protected Bulkhead acquirePermit(RequestContext ctx) throws ApiException
+   {
+      Chain first = ctx.first();
+      Endpoint endpoint = first != null ? first.getRequest().getEndpoint() : null;
+      boolean priority = first == null || (endpoint != null && endpoint.getPriority() > 0);
+
+      Bulkhead bulkhead = getBulkhead();
+      try
+      {
+         return bulkhead.acquire(priority) ? bulkhead : null;
+      }
+      catch (ApiException ex)
       {
-         key = SqlUtils.selectInt(getConnection(), "SELECT SCOPE_IDENTITY()");
+         first.getResponse().withHeader("Retry-After", bulkhead.getRetryAfter() + "");
+         throw ex;
       }
+   }
 
-      if (key == null)
-         throw new ApiException(SC.SC_500_INTERNAL_SERVER_ERROR, "Unable to determine key of upserted row: " + row);
+   /**
+    * @return true if <code>ctx</code> is servicing a top level GET request
+    */
+   protected boolean isReadChain(RequestContext ctx)
+   {
+      Chain first = ctx.first();
+      return first != null && first.getRequest().isGet();
+   }
+
+   /**
+    * @return a healthy replica, round robin, if this request has
+    *         not recently written through this db
+    */
+   protected Replica findReplica(RequestContext ctx)
+   {
+      if (replicaUrls.size() == 0)
+         return null;
 
-      return key.toString();
+      String clientKey = stickyMillis > 0 ? getClientKey(ctx) : null;
+      if (clientKey != null)
+      {
+         Long lastWrite = recentWrites.get(clientKey);
+         if (lastWrite != null)
+         {
+            if (System.currentTimeMillis() - lastWrite < stickyMillis)
+               return null;
+
+            recentWrites.remove(clientKey);
+         }
+      }
+
+      List<Replica> replicas = getReplicas();
+      int start = nextReplica.getAndIncrement() & Integer.MAX_VALUE;
+      for (int i = 0; i < replicas.size(); i++)
+      {
+         Replica replica = replicas.get((start + i) % replicas.size());
+         if (replica.isHealthy())
+            return replica;
+      }
+
+      //-- no healthy replicas, reads fall back to the primary
+      return null;
    }
 
-   public void delete(Table table, List<String> entityKeys) throws Exception
+   /**
+    * @return the user or address <code>ctx</code>'s request came from, or null outside of a request
+    */
+   protected String getClientKey(RequestContext ctx)
    {
-      Index pk = table.getPrimaryIndex();
+      Chain first = ctx.first();
+      if (first == null)
+         return null;
+
+      Request req = first.getRequest();
+      if (req.getUser() != null && req.getUser().getId() > 0)
+         return "user:" + req.getUser().getId();
+
+      return "addr:" + req.getRemoteAddr();
+   }
+
+   public List<Replica> getReplicas()
+   {
+      List<Replica> replicas = this.replicas;
+      if (replicas == null)
+      {
+         synchronized (this)
+         {
+            if (this.replicas == null)
+            {
+               List<Replica> list = new ArrayList();
+               for (String url : replicaUrls)
+                  list.add(new Replica(url));
+
+               this.replicas = list;
+               scheduleReplicaCheck();
+            }
+            replicas = this.replicas;
+         }
+      }
+      return replicas;
+   }
+
+   /**
+    * Checks replica health and evicts expired {@link #recentWrites} every
+    * <code>replicaCheckMillis</code> in the background.
+    */
+   protected void scheduleReplicaCheck()
+   {
+      if (replicaCheck != null || replicas == null || replicas.size() == 0)
+         return;
+
+      replicaCheck = getExecutor().scheduleWithFixedDelay(RequestContext.detached(() -> {
+         try
+         {
+            for (Replica replica : replicas)
+               replica.check();
+
+            long expired = System.currentTimeMillis() - stickyMillis;
+            recentWrites.values().removeIf(lastWrite -> lastWrite < expired);
+         }
+         catch (Throwable ex)
+         {
+            log.warn("Replica check failed for db '" + getName() + "'", ex);
+         }
+      }), 0, Math.max(1, replicaCheckMillis), TimeUnit.MILLISECONDS);
+   }
+
+   static synchronized ScheduledExecutorService getExecutor()
+   {
+      if (executor == null)
+      {
+         executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "SqlDb background");
+            t.setDaemon(true);
+            return t;
+         });
+      }
+      return executor;
+   }
+
+   /**
+    * Sql that returns how far behind the primary a replica is in millis.
+    */
+   protected String getReplicaLagSql()
+   {
+      if (replicaLagSql != null)
+         return replicaLagSql;
+
+      if (isType("postgres"))
+         return "SELECT CASE WHEN pg_last_xact_replay_timestamp() IS NULL THEN 0 ELSE EXTRACT(EPOCH FROM (now() - pg_last_xact_replay_timestamp())) * 1000 END";
+
+      if (isType("mysql"))
+         return "SHOW SLAVE STATUS";
+
+      return "SELECT 0";
+   }
+
+   /**
+    * A read only copy of the primary db with its own connection pool.
+    * <p>
+    * Liveness and replication lag are checked every <code>replicaCheckMillis</code>
+    * by a background task, never by a request.  Replicas that can't be reached 
+    * or that are more than <code>replicaLagMax</code> behind are skipped until 
+    * a later check finds them healthy again.
+    */
+   public class Replica
+   {
+      protected String              url         = null;
+      protected volatile DataSource pool        = null;
+      protected volatile boolean    healthy     = true;
+      protected volatile long       lagMillis   = 0;
+      protected volatile String     lastError   = null;
+      protected volatile long       lastChecked = 0;
+      protected AtomicBoolean       checking    = new AtomicBoolean(false);
+
+      public Replica(String url)
+      {
+         this.url = url;
+      }
+
+      public DataSource getPool()
+      {
+         DataSource ds = pool;
+         if (ds == null)
+         {
+            synchronized (this)
+            {
+               if (pool == null)
+                  pool = PoolManager.getDataSource(SqlDb.this, url);
+
+               ds = pool;
+            }
+         }
+         return ds;
+      }
+
+      public void check()
+      {
+         if (!checking.compareAndSet(false, true))
+            return;
+
+         Connection conn = null;
+         try
+         {
+            conn = getPool().getConnection();
+
+            long lag = 0;
+            String sql = getReplicaLagSql();
+            if (sql.toLowerCase().startsWith("show slave status"))
+            {
+               Row row = SqlUtils.selectRow(conn, sql);
+               if (row != null)
+               {
+                  Object seconds = row.get("Seconds_Behind_Master");
+                  lag = seconds == null ? Long.MAX_VALUE : Long.parseLong(seconds.toString()) * 1000;
+               }
+            }
+            else
+            {
+               Object value = SqlUtils.selectValue(conn, sql);
+               lag = value == null ? 0 : (long) Double.parseDouble(value.toString());
+            }
+
+            lagMillis = lag;
+            healthy = replicaLagMax <= 0 || lag <= replicaLagMax;
+            lastError = healthy ? null : "Replica lag " + lag + "ms exceeds " + replicaLagMax + "ms";
+         }
+         catch (Exception ex)
+         {
+            healthy = false;
+            lastError = ex.getMessage();
+            log.warn("Replica " + url + " failed health check: " + ex.getMessage());
+         }
+         finally
+         {
+            SqlUtils.close(conn);
+            lastChecked = System.currentTimeMillis();
+            checking.set(false);
+         }
+      }
+
+      public String getUrl()
+      {
+         return url;
+      }
+
+      public boolean isHealthy()
+      {
+         return healthy;
+      }
+
+      public long getLagMillis()
+      {
+         return lagMillis;
+      }
+
+      public String getLastError()
+      {
+         return lastError;
+      }
+
+      public long getLastChecked()
+      {
+         return lastChecked;
+      }
+
+      public String toString()
+      {
+         return url + " healthy=" + healthy + " lagMillis=" + lagMillis + (lastError != null ? " error=" + lastError : "");
+      }
+   }
+
+   protected DataSource createConnectionPool()
+   {
+      return createConnectionPool(getUrl());
+   }
+
+   protected DataSource createConnectionPool(String url)
+   {
+      Properties props = new Properties();
+      props.put("poolName", getName() + (url.equals(getUrl()) ? "" : "-replica" + replicaUrls.indexOf(url)));
+      props.put("driverClassName", getDriver());
+      props.put("jdbcUrl", url);
+      if (getUser() != null)
+         props.put("username", getUser());
+      if (getPass() != null)
+         props.put("password", getPass());
+      props.put("maximumPoolSize", Utils.findSysEnvPropInt(getName() + ".poolMax", getPoolMax()) + "");
+      props.put("minimumIdle", Utils.findSysEnvPropInt(getName() + ".poolMin", getPoolMin()) + "");
+      props.put("idleTimeout", (getIdleConnectionTestPeriod() * 1000L) + "");
+      props.put("connectionTimeout", getConnectionTimeout() + "");
+      props.put("maxLifetime", getMaxLifetime() + "");
+      props.put("validationTimeout", getValidationTimeout() + "");
+      props.put("leakDetectionThreshold", getLeakDetectionThreshold() + "");
+      props.putAll(poolProperties);
+
+      HikariConfig config = new HikariConfig(props);
+
+      PoolManager.Pool pool = PoolManager.getPool(this, url);
+      if (pool != null)
+         config.setMetricsTrackerFactory(pool);
+
+      return new HikariDataSource(config);
+   }
+
+   /**
+    * Tracks the connections, and bulkhead permits, that a request has
+    * checked out so they can be committed, rolled back and closed together
+    * when the request finishes.
+    * <p>
+    * State is kept in the request's {@link RequestContext}, which callers
+    * get from {@link Chain#getContext()} and pass in.  The methods without
+    * a context parameter are a deprecated fallback that uses the context 
+    * bound to the current thread.
+    */
+   public static class ConnectionLocal
+   {
+      static final String CONNECTIONS = ConnectionLocal.class.getName() + ".connections";
+
+      //-- the bulkhead each db's connection in the context holds a permit from,
+      //-- kept so the permit goes back to it even if the db swaps bulkheads
+      static final String PERMITS     = ConnectionLocal.class.getName() + ".permits";
+
+      static Map<Db, Connection> connections(RequestContext ctx)
+      {
+         return ctx.computeIfAbsent(CONNECTIONS, k -> new HashMap());
+      }
+
+      static Map<Db, Bulkhead> permits(RequestContext ctx)
+      {
+         return ctx.computeIfAbsent(PERMITS, k -> new HashMap());
+      }
+
+      /**
+       * The fallback for callers that don't pass a context.  A context is bound
+       * to this thread if there is none, background work should run in 
+       * {@link RequestContext#detached(Runnable)} so that it is unbound, and its
+       * connections closed, afterwards.
+       * 
+       * @deprecated pass the context from {@link Chain#getContext()} instead
+       */
+      @Deprecated
+      static RequestContext threadContext()
+      {
+         return RequestContext.current(true);
+      }
 
-      if (pk.getColumns().size() == 1)
+      public static Map<Db, Connection> getConnections(RequestContext ctx)
       {
-         List castKeys = new ArrayList();
-         for (String key : entityKeys)
-            castKeys.add(cast(pk.getColumn(0), key));
+         return ctx != null ? (Map<Db, Connection>) ctx.get(CONNECTIONS) : null;
+      }
 
-         String sql = "";
-         sql += " DELETE FROM " + quoteCol(table.getName());
-         sql += " WHERE " + quoteCol(pk.getColumn(0).getName()) + " IN (" + SqlUtils.getQuestionMarkStr(entityKeys.size()) + ")";
-         SqlUtils.execute(getConnection(), sql, castKeys.toArray());
+      public static Connection getConnection(RequestContext ctx, Db db)
+      {
+         Map<Db, Connection> conns = getConnections(ctx);
+         return conns != null ? conns.get(db) : null;
       }
-      else
+
+      public static Connection removeConnection(RequestContext ctx, Db db)
       {
-         String sql = "";
-         sql += " DELETE FROM " + quoteCol(table.getName());
-         sql += " WHERE ";
+         if (ctx == null)
+            return null;
 
-         List values = new ArrayList();
-         for (String entityKey : entityKeys)
-         {
-            if (values.size() > 0)
-               sql += " OR ";
-            sql += "(";
-            Row row = table.decodeKey(entityKey);
-            int i = 0;
-            for (String key : row.keySet())
-            {
-               i++;
-               if (i > 1)
-                  sql += "AND ";
-               sql += quoteCol(key) + " = ? ";
-               values.add(row.get(key));
-            }
-            sql += ")";
-         }
-         SqlUtils.execute(getConnection(), sql, values.toArray());
+         releasePermit(ctx, db);
+         return connections(ctx).remove(db);
       }
-   }
 
-   @Override
-   public void delete(Table table, String entityKey) throws Exception
-   {
-      delete(table, Arrays.asList(entityKey));
-   }
+      static void releasePermit(RequestContext ctx, Db db)
+      {
+         Bulkhead bulkhead = permits(ctx).remove(db);
+         if (bulkhead != null)
+            bulkhead.release();
+      }
 
-   public Connection getConnection() throws ApiException
-   {
-      try
+      /**
+       * Returns the connection for <code>db</code> to its pool
+       * if it is not part of a transaction.
+       */
+      public static void release(RequestContext ctx, Db db)
       {
-         Connection conn = ConnectionLocal.getConnection(this);
-         if (conn == null && !isShutdown())
+         Connection conn = getConnection(ctx, db);
+         try
          {
-            String dsKey = "name=" + getName() + ", url=" + getUrl() + ", user=" + getUser();
-
-            DataSource pool = pools.get(dsKey);
-
-            if (pool == null)
+            if (conn != null && conn.getAutoCommit())
             {
-               synchronized (pools)
-               {
-                  //System.out.println("CREATING CONNECTION POOL: " + dsKey);
-                  
-                  pool = pools.get(getName());
-
-                  if (pool == null && !isShutdown())
-                  {
-                     pool = createConnectionPool();
-                     pools.put(dsKey, pool);
-                  }
-               }
+               removeConnection(ctx, db);
+               conn.close();
             }
-
-            conn = pool.getConnection();
-            conn.setAutoCommit(false);
-
-            ConnectionLocal.putConnection(this, conn);
          }
-
-         return conn;
+         catch (Exception ex)
+         {
+            removeConnection(ctx, db);
+            SqlUtils.close(conn);
+         }
       }
-      catch (Exception ex)
+
+      public static void putConnection(RequestContext ctx, Db db, Connection connection)
       {
-         log.error("Unable to get DB connection", ex);
-         throw new ApiException(SC.SC_500_INTERNAL_SERVER_ERROR, "Unable to get DB connection", ex);
+         connections(ctx).put(db, connection);
       }
-   }
-
-   protected DataSource createConnectionPool()
-   {
-      HikariConfig config = new HikariConfig();
-      String driver = getDriver();
-      config.setDriverClassName(driver);
-      config.setJdbcUrl(getUrl());
-      config.setUsername(getUser());
-      config.setPassword(getPass());
-      config.setMaximumPoolSize(Math.min(getPoolMax(), MAX_POOL_SIZE));
-      DataSource pool = new HikariDataSource(config);
 
-      return pool;
-   }
+      /**
+       * @param permit the bulkhead a permit was taken from for this connection, if any
+       */
+      public static void putConnection(RequestContext ctx, Db db, Connection connection, Bulkhead permit)
+      {
+         putConnection(ctx, db, connection);
 
-   public static class ConnectionLocal
-   {
-      static ThreadLocal<Map<Db, Connection>> connections = new ThreadLocal();
+         if (permit != null)
+            permits(ctx).put(db, permit);
+      }
 
+      /**
+       * @deprecated use {@link #getConnections(RequestContext)}
+       */
+      @Deprecated
       public static Map<Db, Connection> getConnections()
       {
-         return connections.get();
+         return getConnections(RequestContext.current());
       }
 
+      /**
+       * @deprecated use {@link #getConnection(RequestContext, Db)}
+       */
+      @Deprecated
       public static Connection getConnection(Db db)
       {
-         Map<Db, Connection> conns = connections.get();
-         if (conns == null)
-         {
-            conns = new HashMap();
-            connections.set(conns);
-         }
+         return getConnection(RequestContext.current(), db);
+      }
+
+      /**
+       * @deprecated use {@link #removeConnection(RequestContext, Db)}
+       */
+      @Deprecated
+      public static Connection removeConnection(Db db)
+      {
+         return removeConnection(RequestContext.current(), db);
+      }
 
-         return conns.get(db);
+      /**
+       * @deprecated use {@link #release(RequestContext, Db)}
+       */
+      @Deprecated
+      public static void release(Db db)
+      {
+         release(RequestContext.current(), db);
       }
 
+      /**
+       * @deprecated use {@link #putConnection(RequestContext, Db, Connection)}
+       */
+      @Deprecated
       public static void putConnection(Db db, Connection connection)
       {
-         Map<Db, Connection> conns = connections.get();
-         if (conns == null)
-         {
-            conns = new HashMap();
-            connections.set(conns);
-         }
-         conns.put(db, connection);
+         putConnection(threadContext(), db, connection);
+      }
+
+      /**
+       * @deprecated use {@link #putConnection(RequestContext, Db, Connection, Bulkhead)}
+       */
+      @Deprecated
+      public static void putConnection(Db db, Connection connection, Bulkhead permit)
+      {
+         putConnection(threadContext(), db, connection, permit);
       }
 
+      /**
+       * @deprecated use {@link #commit(RequestContext)}
+       */
+      @Deprecated
       public static void commit() throws Exception
+      {
+         RequestContext ctx = RequestContext.current();
+         if (ctx != null)
+            commit(ctx);
+      }
+
+      /**
+       * Commits the connections opened by <code>ctx</code> and any context forked from it.
+       */
+      public static void commit(RequestContext ctx) throws Exception
       {
          Exception toThrow = null;
-         Map<Db, Connection> conns = connections.get();
-         if (conns != null)
+         for (RequestContext scope : ctx.getScope())
          {
+            Map<Db, Connection> conns = connections(scope);
             for (Db db : (List<Db>) new ArrayList(conns.keySet()))
             {
                try
@@ -429,7 +1225,7 @@ public class SqlDb extends Db<SqlDb>
                   if (msg.indexOf("connection is closed") > -1)
                      continue;
 
-                  if (toThrow != null)
+                  if (toThrow == null)
                      toThrow = ex;
                }
             }
@@ -439,22 +1235,34 @@ public class SqlDb extends Db<SqlDb>
             throw toThrow;
       }
 
+      /**
+       * @deprecated use {@link #rollback(RequestContext)}
+       */
+      @Deprecated
       public static void rollback() throws Exception
+      {
+         RequestContext ctx = RequestContext.current();
+         if (ctx != null)
+            rollback(ctx);
+      }
+
+      public static void rollback(RequestContext ctx) throws Exception
       {
          Exception toThrow = null;
-         Map<Db, Connection> conns = connections.get();
-         if (conns != null)
+         for (RequestContext scope : ctx.getScope())
          {
+            Map<Db, Connection> conns = connections(scope);
             for (Db db : (List<Db>) new ArrayList(conns.keySet()))
             {
                Connection conn = conns.get(db);
                try
                {
-                  conn.rollback();
+                  if (!conn.isClosed() && !conn.getAutoCommit())
+                     conn.rollback();
                }
                catch (Exception ex)
                {
-                  if (toThrow != null)
+                  if (toThrow == null)
                      toThrow = ex;
                }
             }
@@ -464,12 +1272,38 @@ public class SqlDb extends Db<SqlDb>
             throw toThrow;
       }
 
+      /**
+       * Closes the connections for the context bound to this thread.
+       * <p>
+       * Callers outside of a request get a context bound on first use
+       * which is unbound again here.
+       * 
+       * @deprecated use {@link #close(RequestContext)}
+       */
+      @Deprecated
       public static void close() throws Exception
+      {
+         RequestContext ctx = RequestContext.current();
+         if (ctx != null)
+         {
+            try
+            {
+               close(ctx);
+            }
+            finally
+            {
+               if (ctx.getDepth() == 0 && ctx.getParent() == null)
+                  RequestContext.unbind();
+            }
+         }
+      }
+
+      public static void close(RequestContext ctx) throws Exception
       {
          Exception toThrow = null;
-         Map<Db, Connection> conns = connections.get();
-         if (conns != null)
+         for (RequestContext scope : ctx.getScope())
          {
+            Map<Db, Connection> conns = connections(scope);
             for (Db db : (List<Db>) new ArrayList(conns.keySet()))
             {
                Connection conn = conns.get(db);
@@ -479,14 +1313,18 @@ public class SqlDb extends Db<SqlDb>
                }
                catch (Exception ex)
                {
-                  if (toThrow != null)
+                  if (toThrow == null)
                      toThrow = ex;
                }
+               finally
+               {
+                  releasePermit(scope, db);
+               }
             }
+            scope.remove(CONNECTIONS);
+            scope.remove(PERMITS);
          }
 
-         connections.remove();
-
          if (toThrow != null)
             throw toThrow;
       }
@@ -505,6 +1343,9 @@ public class SqlDb extends Db<SqlDb>
             reflectDb();
             configApi();
          }
+
+         if (isBootstrap() && snapshotFile != null)
+            scheduleSchemaCheck();
       }
       catch (Exception ex)
       {
@@ -512,6 +1353,13 @@ public class SqlDb extends Db<SqlDb>
       }
    }
 
+   /**
+    * Builds the Table/Column/Index model for this db.
+    * <p>
+    * If <code>snapshotFile</code> is set and exists the model is loaded
+    * from it, otherwise it is reflected from the JDBC metadata and then
+    * saved to <code>snapshotFile</code> for the next startup.
+    */
    public void reflectDb() throws Exception
    {
       if (!isBootstrap())
@@ -519,157 +1367,205 @@ public class SqlDb extends Db<SqlDb>
          return;
       }
 
-      Connection conn = getConnection();
-
-      DatabaseMetaData dbmd = conn.getMetaData();
-
-      //-- only here to map jdbc type integer codes to strings ex "4" to "BIGINT" or whatever it is
-      Map<String, String> types = new HashMap<String, String>();
-      for (Field field : Types.class.getFields())
-      {
-         types.put(field.get(null) + "", field.getName());
-      }
-      //--
-
-      //-- the first loop through is going to construct all of the
-      //-- Tbl and Col objects.  There will be a second loop through
-      //-- that caputres all of the foreign key relationships.  You
-      //-- have to do the fk loop second becuase the reference pk
-      //-- object needs to exist so that it can be set on the fk Col
-      ResultSet rs = dbmd.getTables(null, "public", "%", new String[]{"TABLE", "VIEW"});
-      boolean hasNext = rs.next();
-      if (!hasNext)
+      File file = snapshotFile != null ? new File(snapshotFile) : null;
+      if (file != null && file.exists())
       {
-         rs = dbmd.getTables(null, null, "%", new String[]{"TABLE", "VIEW"});
-         hasNext = rs.next();
-      }
-      if (hasNext)
-         do
+         try
          {
-            String tableCat = rs.getString("TABLE_CAT");
-            String tableSchem = rs.getString("TABLE_SCHEM");
-            String tableName = rs.getString("TABLE_NAME");
-            //String tableType = rs.getString("TABLE_TYPE");
+            SchemaSnapshot snapshot = SchemaSnapshot.load(this, file);
 
-            //System.out.println(tableName);
-
-            Table table = new Table(this, tableName);
-            withTable(table);
-
-            ResultSet colsRs = dbmd.getColumns(tableCat, tableSchem, tableName, "%");
-
-            int columnNumber = 0;
-            while (colsRs.next())
+            //-- a schema changed while the app was down makes the snapshot stale
+            String fingerprint = computeFingerprint();
+            if (fingerprint == null || fingerprint.equals(snapshot.getFingerprint()))
             {
-               columnNumber += 1;
-               String colName = colsRs.getString("COLUMN_NAME");
-               Object type = colsRs.getString("DATA_TYPE");
-               String colType = types.get(type);
+               for (Table table : snapshot.getTables())
+                  withTable(table);
 
-               boolean nullable = colsRs.getInt("NULLABLE") == DatabaseMetaData.columnNullable;
+               schemaFingerprint = snapshot.getFingerprint();
+               log.info("Loaded schema snapshot for db '" + getName() + "' from " + file);
+               return;
+            }
 
-               Column column = new Column(table, columnNumber, colName, colType, nullable);
-               table.withColumn(column);
+            log.info("Schema snapshot " + file + " is stale, reflecting db '" + getName() + "'");
+         }
+         catch (Exception ex)
+         {
+            log.warn("Unable to load schema snapshot " + file + ", reflecting db '" + getName() + "' instead", ex);
+            tables.clear();
+         }
+      }
 
-               //               if (DELETED_FLAGS.contains(colName.toLowerCase()))
-               //               {
-               //                  table.setDeletedFlag(column);
-               //               }
-            }
-            colsRs.close();
+      for (Table table : reflectMetaData())
+         withTable(table);
 
-            ResultSet indexMd = dbmd.getIndexInfo(conn.getCatalog(), null, tableName, true, false);
-            while (indexMd.next())
-            {
-               String idxName = indexMd.getString("INDEX_NAME");
-               String idxType = "Other";
-               String colName = indexMd.getString("COLUMN_NAME");
+      if (file != null)
+         saveSnapshot(computeFingerprint(), getTables());
+   }
 
-               switch (indexMd.getInt("TYPE"))
-               {
-                  case DatabaseMetaData.tableIndexClustered:
-                     idxType = "Clustered";
-                  case DatabaseMetaData.tableIndexHashed:
-                     idxType = "Hashed";
-                  case DatabaseMetaData.tableIndexOther:
-                     idxType = "Other";
-                  case DatabaseMetaData.tableIndexStatistic:
-                     idxType = "Statistic";
-               }
+   protected void saveSnapshot(String fingerprint, List<Table> tables)
+   {
+      try
+      {
+         new SchemaSnapshot(fingerprint, tables).save(new File(snapshotFile));
+         schemaFingerprint = fingerprint;
+      }
+      catch (Exception ex)
+      {
+         log.warn("Unable to write schema snapshot " + snapshotFile, ex);
+      }
+   }
 
-               Object nonUnique = indexMd.getObject("NON_UNIQUE") + "";
-               boolean unique = !(nonUnique.equals("true") || nonUnique.equals("1"));
+   /**
+    * Reflects every table, column, index and foreign key.
+    * <p>
+    * The tables are returned, not added to this db, so the schema can be
+    * re-reflected while requests continue to use the current model.
+    * 
+    * @see SchemaReflector
+    */
+   protected List<Table> reflectMetaData() throws Exception
+   {
+      return new SchemaReflector(this, reflectThreads).reflect();
+   }
 
-               Column column = table.getColumn(colName);
+   /**
+    * Hashes the information_schema rows describing every table, column,
+    * index and constraint so that any add, drop, rename or type change
+    * produces a new fingerprint.
+    * 
+    * @return the fingerprint or null if the schema can't be fingerprinted
+    */
+   protected String computeFingerprint()
+   {
+      List<String> sqls = getFingerprintQueries();
+      if (sqls.isEmpty())
+         return null;
 
-               if (unique)
-               {
-                  column.withUnique(unique);
-               }
+      Connection conn = null;
+      try
+      {
+         //-- straight from the pool so background checks don't touch the request thread state
+         conn = PoolManager.getDataSource(this, getUrl()).getConnection();
 
-               table.makeIndex(column, idxName, idxType, unique);
+         StringBuilder buff = new StringBuilder();
+         for (String sql : sqls)
+         {
+            Rows rows = SqlUtils.selectRows(conn, sql);
+            for (Row row : rows)
+               buff.append(row.values()).append("\n");
+         }
+         return Utils.md5(buff.toString().getBytes());
+      }
+      catch (Exception ex)
+      {
+         log.warn("Unable to fingerprint the schema for db '" + getName() + "'", ex);
+         return null;
+      }
+      finally
+      {
+         SqlUtils.close(conn);
+      }
+   }
 
-            }
-            indexMd.close();
+   protected List<String> getFingerprintQueries()
+   {
+      List<String> sqls = new ArrayList();
+      if (fingerprintSql != null)
+      {
+         for (String sql : fingerprintSql.split(";"))
+         {
+            if (!Utils.empty(sql.trim()))
+               sqls.add(sql.trim());
+         }
+      }
+      else if (isType("mysql"))
+      {
+         sqls.add("SELECT COUNT(*), SUM(CRC32(CONCAT_WS(':', TABLE_NAME, COLUMN_NAME, COLUMN_TYPE, IS_NULLABLE, ORDINAL_POSITION))) FROM information_schema.COLUMNS WHERE TABLE_SCHEMA = DATABASE()");
+         sqls.add("SELECT COUNT(*), SUM(CRC32(CONCAT_WS(':', TABLE_NAME, INDEX_NAME, COLUMN_NAME, NON_UNIQUE))) FROM information_schema.STATISTICS WHERE TABLE_SCHEMA = DATABASE()");
+         sqls.add("SELECT COUNT(*), SUM(CRC32(CONCAT_WS(':', TABLE_NAME, COLUMN_NAME, REFERENCED_TABLE_NAME, REFERENCED_COLUMN_NAME))) FROM information_schema.KEY_COLUMN_USAGE WHERE TABLE_SCHEMA = DATABASE()");
+         sqls.add("SELECT MAX(CREATE_TIME) FROM information_schema.TABLES WHERE TABLE_SCHEMA = DATABASE()");
+      }
+      else if (isType("postgres"))
+      {
+         sqls.add("SELECT COUNT(*), md5(string_agg(concat_ws(':', table_name, column_name, data_type, is_nullable, ordinal_position), ',' ORDER BY table_name, ordinal_position)) FROM information_schema.columns WHERE table_schema = current_schema()");
+         sqls.add("SELECT COUNT(*), md5(string_agg(concat_ws(':', table_name, constraint_name, constraint_type), ',' ORDER BY table_name, constraint_name)) FROM information_schema.table_constraints WHERE table_schema = current_schema()");
+         sqls.add("SELECT COUNT(*), md5(string_agg(concat_ws(':', tablename, indexname, indexdef), ',' ORDER BY tablename, indexname)) FROM pg_indexes WHERE schemaname = current_schema()");
+      }
+      else if (isType("redshift"))
+      {
+         //-- no string_agg on the leader node catalog, the rows themselves are hashed by computeFingerprint
+         sqls.add("SELECT table_name, column_name, data_type, is_nullable, ordinal_position FROM information_schema.columns WHERE table_schema = current_schema() ORDER BY table_name, ordinal_position");
+         sqls.add("SELECT table_name, constraint_name, constraint_type FROM information_schema.table_constraints WHERE table_schema = current_schema() ORDER BY table_name, constraint_name");
+      }
+      else if (isType("h2"))
+      {
+         sqls.add("SELECT COUNT(*), RAWTOHEX(HASH('SHA256', STRINGTOUTF8(GROUP_CONCAT(TABLE_NAME || ':' || COLUMN_NAME || ':' || TYPE_NAME || ':' || IS_NULLABLE || ':' || ORDINAL_POSITION ORDER BY TABLE_NAME, ORDINAL_POSITION SEPARATOR ',')), 1)) FROM INFORMATION_SCHEMA.COLUMNS WHERE TABLE_SCHEMA = SCHEMA()");
+         sqls.add("SELECT COUNT(*), RAWTOHEX(HASH('SHA256', STRINGTOUTF8(GROUP_CONCAT(TABLE_NAME || ':' || INDEX_NAME || ':' || COLUMN_NAME || ':' || NON_UNIQUE ORDER BY TABLE_NAME, INDEX_NAME, ORDINAL_POSITION SEPARATOR ',')), 1)) FROM INFORMATION_SCHEMA.INDEXES WHERE TABLE_SCHEMA = SCHEMA()");
+         sqls.add("SELECT COUNT(*), RAWTOHEX(HASH('SHA256', STRINGTOUTF8(GROUP_CONCAT(TABLE_NAME || ':' || CONSTRAINT_NAME || ':' || CONSTRAINT_TYPE ORDER BY TABLE_NAME, CONSTRAINT_NAME SEPARATOR ',')), 1)) FROM INFORMATION_SCHEMA.CONSTRAINTS WHERE TABLE_SCHEMA = SCHEMA()");
+      }
+      return sqls;
+   }
 
+   protected void scheduleSchemaCheck()
+   {
+      Runnable check = RequestContext.detached(() -> {
+         try
+         {
+            checkSchema();
          }
-         while (rs.next());
-      rs.close();
-
-      //-- now link all of the fks to pks
-      //-- this is done after the first loop
-      //-- so that all of the tbls/cols are
-      //-- created first and are there to
-      //-- be connected
-      rs = dbmd.getTables(null, "public", "%", new String[]{"TABLE"});
-      hasNext = rs.next();
-      if (!hasNext)
-      {
-         rs = dbmd.getTables(null, null, "%", new String[]{"TABLE"});
-         hasNext = rs.next();
-      }
-      if (hasNext)
-         do
+         catch (Throwable ex)
          {
-            String tableName = rs.getString("TABLE_NAME");
-            ResultSet keyMd = dbmd.getImportedKeys(conn.getCatalog(), null, tableName);
-            while (keyMd.next())
-            {
-               String pkName = keyMd.getString("PK_NAME");
-               String fkName = keyMd.getString("FK_NAME");
+            log.warn("Schema check failed for db '" + getName() + "'", ex);
+         }
+      });
+
+      //-- the initial delay gives a Configurator time to put the live copy of this db into the engine
+      if (snapshotCheckMillis > 0)
+         schemaCheck = getExecutor().scheduleWithFixedDelay(check, Math.min(snapshotCheckMillis, 5000), snapshotCheckMillis, TimeUnit.MILLISECONDS);
+      else
+         schemaCheck = getExecutor().schedule(check, 5000, TimeUnit.MILLISECONDS);
+   }
 
-               String fkTableName = keyMd.getString("FKTABLE_NAME");
-               String fkColumnName = keyMd.getString("FKCOLUMN_NAME");
-               String pkTableName = keyMd.getString("PKTABLE_NAME");
-               String pkColumnName = keyMd.getString("PKCOLUMN_NAME");
+   /**
+    * Re-reflects the schema if its fingerprint no longer matches the
+    * snapshot and saves a new snapshot.  
+    * <p>
+    * If the reflected model changed, the Configurator rebuilds the Api 
+    * from the new snapshot plus the configured renames, excludes and 
+    * relationships and swaps it into the Engine with {@link Engine#addApi(Api)}.
+    * Requests already running finish against the old Api.  Apis built 
+    * in code, rather than from config files, can't be rebuilt and keep
+    * their model until restart.
+    */
+   protected void checkSchema() throws Exception
+   {
+      //-- a Configurator wires throw away copies of each db before the live one, only the live one checks
+      if (isShutdown() || api == null || api.getEngine() == null || !api.getEngine().getApis().contains(api) || !api.getDbs().contains(this))
+         return;
 
-               Column fk = getColumn(fkTableName, fkColumnName);
-               Column pk = getColumn(pkTableName, pkColumnName);
-               fk.withPk(pk);
+      //-- the live copy is wired from props encoded off of the snapshot the bootstrap copy loaded
+      if (schemaFingerprint == null && new File(snapshotFile).exists())
+         schemaFingerprint = SchemaSnapshot.load(this, new File(snapshotFile)).getFingerprint();
 
-               getTable(fkTableName).makeIndex(fk, fkName, "FOREIGN_KEY", false);
+      String fingerprint = computeFingerprint();
+      if (fingerprint != null && fingerprint.equals(schemaFingerprint))
+         return;
 
-               //System.out.println("FOREIGN_KEY: " + tableName + " - " + pkName + " - " + fkName + "- " + fkTableName + "." + fkColumnName + " -> " + pkTableName + "." + pkColumnName);
-            }
-            keyMd.close();
-         }
-         while (rs.next());
+      List<Table> reflected = reflectMetaData();
+
+      String oldJson = new SchemaSnapshot(null, getTables()).toJson().get("tables").toString();
+      String newJson = new SchemaSnapshot(null, reflected).toJson().get("tables").toString();
 
-      rs.close();
+      saveSnapshot(fingerprint, reflected);
 
-      //2019-02-11 WB - moved below code into Table.isLinkTable
-      //      
-      //      -- if a table has two columns and both are foreign keys
-      //      -- then it is a relationship table for MANY_TO_MANY relationships
-      //            for (Table table : getTables())
-      //            {
-      //               List<Column> cols = table.getColumns();
-      //               if (cols.size() == 2 && cols.get(0).isFk() && cols.get(1).isFk())
-      //               {
-      //                  table.withLinkTbl(true);
-      //               }
-      //            }
+      if (oldJson.equals(newJson))
+         return;
 
+      Engine engine = api.getEngine();
+      if (engine.getConfigurator() != null && engine.getConfigurator().reloadApi(api.getApiCode()))
+         log.info("Schema changed for db '" + getName() + "', swapped in a rebuilt Api '" + api.getApiCode() + "'");
+      else
+         log.warn("Schema changed for db '" + getName() + "', saved a new snapshot to " + snapshotFile + ", Api '" + api.getApiCode() + "' was not loaded from config, restart to pick up the changes");
    }
 
    public void configApi() throws Exception
@@ -1023,6 +1919,66 @@ public class SqlDb extends Db<SqlDb>
       this.poolMax = poolMax;
    }
 
+   public int getConnectionTimeout()
+   {
+      return connectionTimeout;
+   }
+
+   public SqlDb withConnectionTimeout(int connectionTimeout)
+   {
+      this.connectionTimeout = connectionTimeout;
+      return this;
+   }
+
+   public int getMaxLifetime()
+   {
+      return maxLifetime;
+   }
+
+   public SqlDb withMaxLifetime(int maxLifetime)
+   {
+      this.maxLifetime = maxLifetime;
+      return this;
+   }
+
+   public int getValidationTimeout()
+   {
+      return validationTimeout;
+   }
+
+   public SqlDb withValidationTimeout(int validationTimeout)
+   {
+      this.validationTimeout = validationTimeout;
+      return this;
+   }
+
+   public int getLeakDetectionThreshold()
+   {
+      return leakDetectionThreshold;
+   }
+
+   public SqlDb withLeakDetectionThreshold(int leakDetectionThreshold)
+   {
+      this.leakDetectionThreshold = leakDetectionThreshold;
+      return this;
+   }
+
+   public Properties getPoolProperties()
+   {
+      return poolProperties;
+   }
+
+   /**
+    * Sets any HikariConfig property by its bean name, for example 
+    * "autoCommit" or "dataSource.cachePrepStmts".  These win over the
+    * individual pool settings on this db.
+    */
+   public SqlDb withPoolProperty(String name, Object value)
+   {
+      poolProperties.put(name, value + "");
+      return this;
+   }
+
    public int getIdleConnectionTestPeriod()
    {
       return idleConnectionTestPeriod;
@@ -1066,4 +2022,113 @@ public class SqlDb extends Db<SqlDb>
       return this;
    }
 
+   public List<String> getReplicaUrls()
+   {
+      return new ArrayList(replicaUrls);
+   }
+
+   public SqlDb withReplicaUrls(String... replicaUrls)
+   {
+      for (String url : replicaUrls)
+      {
+         if (!this.replicaUrls.contains(url))
+            this.replicaUrls.add(url);
+      }
+      return this;
+   }
+
+   public int getStickyMillis()
+   {
+      return stickyMillis;
+   }
+
+   public SqlDb withStickyMillis(int stickyMillis)
+   {
+      this.stickyMillis = stickyMillis;
+      return this;
+   }
+
+   public int getReplicaLagMax()
+   {
+      return replicaLagMax;
+   }
+
+   public SqlDb withReplicaLagMax(int replicaLagMax)
+   {
+      this.replicaLagMax = replicaLagMax;
+      return this;
+   }
+
+   public int getReplicaCheckMillis()
+   {
+      return replicaCheckMillis;
+   }
+
+   public SqlDb withReplicaCheckMillis(int replicaCheckMillis)
+   {
+      this.replicaCheckMillis = replicaCheckMillis;
+      return this;
+   }
+
+   public SqlDb withReplicaLagSql(String replicaLagSql)
+   {
+      this.replicaLagSql = replicaLagSql;
+      return this;
+   }
+
+   public int getReflectThreads()
+   {
+      return reflectThreads;
+   }
+
+   public SqlDb withReflectThreads(int reflectThreads)
+   {
+      this.reflectThreads = reflectThreads;
+      return this;
+   }
+
+   public String getSnapshotFile()
+   {
+      return snapshotFile;
+   }
+
+   public SqlDb withSnapshotFile(String snapshotFile)
+   {
+      this.snapshotFile = snapshotFile;
+      return this;
+   }
+
+   public int getSnapshotCheckMillis()
+   {
+      return snapshotCheckMillis;
+   }
+
+   public SqlDb withSnapshotCheckMillis(int snapshotCheckMillis)
+   {
+      this.snapshotCheckMillis = snapshotCheckMillis;
+      return this;
+   }
+
+   public String getFingerprintSql()
+   {
+      return fingerprintSql;
+   }
+
+   public SqlDb withFingerprintSql(String fingerprintSql)
+   {
+      this.fingerprintSql = fingerprintSql;
+      return this;
+   }
+
+   public int getBatchMax()
+   {
+      return batchMax;
+   }
+
+   public SqlDb withBatchMax(int batchMax)
+   {
+      this.batchMax = batchMax;
+      return this;
+   }
+
 }
@@ -21,9 +21,12 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import io.rocketpartners.cloud.action.sql.SqlDb.ConnectionLocal;
+import io.rocketpartners.cloud.model.ApiException;
 import io.rocketpartners.cloud.model.Column;
 import io.rocketpartners.cloud.model.Index;
 import io.rocketpartners.cloud.model.Results;
+import io.rocketpartners.cloud.model.SC;
 import io.rocketpartners.cloud.model.Table;
 import io.rocketpartners.cloud.rql.Group;
 import io.rocketpartners.cloud.rql.Order;
@@ -34,6 +37,7 @@ import io.rocketpartners.cloud.rql.Select;
 import io.rocketpartners.cloud.rql.Term;
 import io.rocketpartners.cloud.rql.Where;
 import io.rocketpartners.cloud.service.Chain;
+import io.rocketpartners.cloud.service.RequestContext;
 import io.rocketpartners.cloud.utils.Rows;
 import io.rocketpartners.cloud.utils.Rows.Row;
 import io.rocketpartners.cloud.utils.SqlUtils;
@@ -50,6 +54,8 @@ public class SqlQuery extends Query<SqlQuery, SqlDb, Table, Select<Select<Select
 
    List<Term>     joins;
 
+   RequestContext context     = null;
+
    public SqlQuery(Table table, List<Term> terms)
    {
       super(table, terms);
@@ -84,44 +90,87 @@ public class SqlQuery extends Query<SqlQuery, SqlDb, Table, Select<Select<Select
    protected Results<Row> doSelect() throws Exception
    {
       SqlDb db = getDb();
-      Connection conn = db.getConnection();
-      String sql = getPreparedStmt();
-
-      List values = getColValues();
-      Rows rows = SqlUtils.selectRows(conn, sql, values);
-      int foundRows = -1;
 
-      if (Chain.peek().get("foundRows") == null && Chain.first().getRequest().isMethod("GET"))
+      //-- a connection borrowed just for this select on a read only
+      //-- chain goes straight back to the pool once the rows are read
+      RequestContext ctx = getContext();
+      boolean release = ConnectionLocal.getConnection(ctx, db) == null;
+      Connection conn = db.getSelectConnection(ctx);
+      try
       {
-         if (rows.size() == 0)
-         {
-            foundRows = 0;
-         }
-         else if (db.isType("mysql"))
-         {
-            sql = "SELECT FOUND_ROWS()";
-            foundRows = SqlUtils.selectInt(conn, sql);
-         }
-         else
+         String sql = getPreparedStmt();
+
+         List values = getColValues();
+         Rows rows = SqlUtils.selectRows(conn, sql, values);
+         int foundRows = -1;
+
+         Chain chain = ctx.peek();
+         if (chain != null && chain.get("foundRows") == null && ctx.first().getRequest().isMethod("GET"))
          {
-            if (sql.indexOf("LIMIT ") > 0)
-               sql = sql.substring(0, sql.lastIndexOf("LIMIT "));
+            if (rows.size() == 0)
+            {
+               foundRows = 0;
+            }
+            else if (db.isType("mysql"))
+            {
+               sql = "SELECT FOUND_ROWS()";
+               foundRows = SqlUtils.selectInt(conn, sql);
+            }
+            else
+            {
+               if (sql.indexOf("LIMIT ") > 0)
+                  sql = sql.substring(0, sql.lastIndexOf("LIMIT "));
 
-            if (sql.indexOf("OFFSET ") > 0)
-               sql = sql.substring(0, sql.lastIndexOf("OFFSET "));
+               if (sql.indexOf("OFFSET ") > 0)
+                  sql = sql.substring(0, sql.lastIndexOf("OFFSET "));
 
-            if (sql.indexOf("ORDER BY ") > 0)
-               sql = sql.substring(0, sql.lastIndexOf("ORDER BY "));
+               if (sql.indexOf("ORDER BY ") > 0)
+                  sql = sql.substring(0, sql.lastIndexOf("ORDER BY "));
 
-            sql = "SELECT count(1) FROM ( " + sql + " ) as q";
+               sql = "SELECT count(1) FROM ( " + sql + " ) as q";
+
+               foundRows = SqlUtils.selectInt(conn, sql, getColValues());
+            }
 
-            foundRows = SqlUtils.selectInt(conn, sql, getColValues());
+            chain.put("foundRows", foundRows);
          }
 
-         Chain.peek().put("foundRows", foundRows);
+         return new Results(this, foundRows, rows);
       }
+      finally
+      {
+         if (release)
+            ConnectionLocal.release(ctx, db);
+      }
+   }
+
+   /**
+    * Runs a set based DELETE using only the where filters of this query.
+    * 
+    * @return the number of rows deleted or -1 if the filters join to
+    *         other tables and can't be expressed as a single table delete
+    */
+   protected int doDelete() throws Exception
+   {
+      if (joins != null && joins.size() > 0)
+         return -1;
+
+      clearValues();
+
+      String where = "";
+      for (Term term : where().filters())
+      {
+         String clause = print(term, null, true);
+         if (clause != null)
+            where += (where.length() == 0 ? " WHERE " : " AND ") + clause;
+      }
+
+      if (where.length() == 0)
+         throw new ApiException(SC.SC_400_BAD_REQUEST, "You can't DELETE to a collection unless you include an entityKey or query string");
 
-      return new Results(this, foundRows, rows);
+      String sql = "DELETE FROM " + quoteCol(table.getName()) + where;
+      Integer deleted = (Integer) SqlUtils.execute(getDb().getConnection(getContext(), true), sql, getColValues());
+      return deleted != null ? deleted : 0;
    }
 
    @Override
@@ -134,6 +183,20 @@ public class SqlQuery extends Query<SqlQuery, SqlDb, Table, Select<Select<Select
       return this;
    }
 
+   /**
+    * @return the context of the request this query runs for, or the one bound to this thread if none was set
+    */
+   public RequestContext getContext()
+   {
+      return SqlDb.context(context);
+   }
+
+   public SqlQuery withContext(RequestContext context)
+   {
+      this.context = context;
+      return this;
+   }
+
    public String getPreparedStmt()
    {
       return toSql(true);
@@ -256,7 +319,8 @@ public class SqlQuery extends Query<SqlQuery, SqlDb, Table, Select<Select<Select
          parts.select = parts.select.substring(0, idx) + " DISTINCT " + parts.select.substring(idx, parts.select.length());
       }
 
-      if (Chain.peek() != null && Chain.peek().get("foundRows") == null && "mysql".equalsIgnoreCase(getType()) && parts.select.toLowerCase().trim().startsWith("select"))
+      Chain chain = context != null ? context.peek() : null;
+      if (chain != null && chain.get("foundRows") == null && "mysql".equalsIgnoreCase(getType()) && parts.select.toLowerCase().trim().startsWith("select"))
       {
          int idx = parts.select.toLowerCase().indexOf("select") + 6;
          parts.select = parts.select.substring(0, idx) + " SQL_CALC_FOUND_ROWS " + parts.select.substring(idx, parts.select.length());
@@ -18,6 +18,8 @@ package io.rocketpartners.cloud.model;
 import java.util.ArrayList;
 import java.util.Hashtable;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import io.rocketpartners.cloud.service.Engine;
 
@@ -29,6 +31,10 @@ public class Api
    transient Hashtable        cache       = new Hashtable();
    transient protected String hash        = null;
 
+   //-- requests currently using this api, see Engine.retireApi()
+   transient AtomicInteger    inFlight    = new AtomicInteger(0);
+   transient volatile boolean retired     = false;
+
    protected transient Engine engine      = null;
 
    protected boolean          debug       = false;
@@ -44,7 +50,7 @@ public class Api
    protected List<Endpoint>   endpoints   = new ArrayList();
    protected List<Action>     actions     = new ArrayList();
 
-   protected List<Collection> collections = new ArrayList();
+   protected List<Collection> collections = new CopyOnWriteArrayList();
 
    public Api()
    {
@@ -66,6 +72,10 @@ public class Api
       {
          for (Db db : dbs)
          {
+            //-- a db whose model came from config can wait for its first request
+            if (engine != null && engine.isLazyDbStartup() && db.getTables().size() > 0)
+               continue;
+
             db.startup();
          }
 
@@ -79,6 +89,46 @@ public class Api
       }
    }
 
+   /**
+    * Called by the Engine when a request is routed to this api.
+    * 
+    * @return false if this api has been swapped out and the request must use its replacement
+    */
+   public boolean requestStarted()
+   {
+      inFlight.incrementAndGet();
+      if (retired)
+      {
+         inFlight.decrementAndGet();
+         return false;
+      }
+      return true;
+   }
+
+   public void requestFinished()
+   {
+      inFlight.decrementAndGet();
+   }
+
+   public int getInFlight()
+   {
+      return inFlight.get();
+   }
+
+   /**
+    * Stops new requests from being routed to this api.  
+    * Requests already using it are allowed to finish.
+    */
+   public void retire()
+   {
+      retired = true;
+   }
+
+   public boolean isRetired()
+   {
+      return retired;
+   }
+
    public boolean isStarted()
    {
       return started;
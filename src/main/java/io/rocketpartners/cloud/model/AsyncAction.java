@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2015-2018 Rocket Partners, LLC
+ * http://rocketpartners.io
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.rocketpartners.cloud.model;
+
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+
+import io.rocketpartners.cloud.service.Chain;
+import io.rocketpartners.cloud.service.Engine;
+
+/**
+ * An Action that starts remote work and hands back a stage instead
+ * of holding the request thread until the work is done.
+ * <p>
+ * When the chain is run with {@link Chain#goAsync()}, as it is by
+ * {@link Engine#serviceAsync(Request, Response)}, the next action
+ * runs when the stage completes, on the thread that completes it.
+ * When the chain is run with {@link Chain#go()}, for example by an
+ * action earlier in the chain that wraps the rest of it,
+ * {@link #run(Engine, Api, Endpoint, Chain, Request, Response)}
+ * waits on the stage.
+ * <p>
+ * The stage should complete once the action's changes to the
+ * Response are done.  A stage completed exceptionally is handled
+ * like an exception thrown from a sync action.
+ */
+public abstract class AsyncAction<A extends AsyncAction> extends Action<A>
+{
+   public AsyncAction()
+   {
+
+   }
+
+   public AsyncAction(String includePaths)
+   {
+      super(includePaths);
+   }
+
+   public AsyncAction(String includePaths, String excludePaths, String config)
+   {
+      super(includePaths, excludePaths, config);
+   }
+
+   public abstract CompletionStage<?> runAsync(Engine engine, Api api, Endpoint endpoint, Chain chain, Request req, Response res) throws Exception;
+
+   @Override
+   public void run(Engine engine, Api api, Endpoint endpoint, Chain chain, Request req, Response res) throws Exception
+   {
+      try
+      {
+         runAsync(engine, api, endpoint, chain, req, res).toCompletableFuture().get();
+      }
+      catch (ExecutionException ex)
+      {
+         if (ex.getCause() instanceof Exception)
+            throw (Exception) ex.getCause();
+
+         throw ex;
+      }
+   }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2016-2019 Rocket Partners, LLC
+ * http://rocketpartners.io
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.rocketpartners.cloud.model;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the number of requests that can concurrently use a Db.
+ * <p>
+ * Up to <code>maxConcurrent</code> callers are admitted immediately.
+ * The next <code>maxQueued</code> callers wait up to <code>queueTimeout</code>
+ * millis for a permit and anyone beyond that is turned away with a 503 so
+ * that a slow database can't tie up every request thread in the process.
+ * <p>
+ * Priority callers, see {@link Endpoint#getPriority()}, are never queued
+ * or rejected.
+ */
+public class Bulkhead
+{
+   protected int           maxConcurrent = 0;
+   protected int           maxQueued     = 0;
+   protected int           queueTimeout  = 0;
+   protected int           retryAfter    = 1;
+
+   protected Semaphore     permits       = null;
+   protected AtomicInteger queued        = new AtomicInteger(0);
+
+   protected AtomicLong    admitted      = new AtomicLong(0);
+   protected AtomicLong    rejected      = new AtomicLong(0);
+   protected AtomicLong    waited        = new AtomicLong(0);
+   protected AtomicLong    waitNanos     = new AtomicLong(0);
+   protected AtomicLong    waitMaxNanos  = new AtomicLong(0);
+
+   /**
+    * @param maxConcurrent permits, 0 or less disables the bulkhead
+    * @param maxQueued     callers that can wait for a permit at once
+    * @param queueTimeout  millis a queued caller waits before being rejected
+    * @param retryAfter    seconds sent to rejected callers in the Retry-After header
+    */
+   public Bulkhead(int maxConcurrent, int maxQueued, int queueTimeout, int retryAfter)
+   {
+      this.maxConcurrent = maxConcurrent;
+      this.maxQueued = maxQueued;
+      this.queueTimeout = queueTimeout;
+      this.retryAfter = retryAfter;
+
+      if (maxConcurrent > 0)
+         permits = new Semaphore(maxConcurrent, true);
+   }
+
+   /**
+    * @return true if a permit was taken and must be given back with {@link #release()}
+    * @throws ApiException 503 when the queue is full or the wait times out
+    */
+   public boolean acquire(boolean priority) throws ApiException
+   {
+      if (permits == null || priority)
+         return false;
+
+      if (permits.tryAcquire())
+      {
+         admitted.incrementAndGet();
+         return true;
+      }
+
+      if (queued.incrementAndGet() > maxQueued)
+      {
+         queued.decrementAndGet();
+         throw reject();
+      }
+
+      long start = System.nanoTime();
+      boolean acquired = false;
+      try
+      {
+         acquired = permits.tryAcquire(queueTimeout, TimeUnit.MILLISECONDS);
+      }
+      catch (InterruptedException ex)
+      {
+         Thread.currentThread().interrupt();
+      }
+      finally
+      {
+         queued.decrementAndGet();
+
+         long nanos = System.nanoTime() - start;
+         waited.incrementAndGet();
+         waitNanos.addAndGet(nanos);
+         waitMaxNanos.accumulateAndGet(nanos, Math::max);
+      }
+
+      if (!acquired)
+         throw reject();
+
+      admitted.incrementAndGet();
+      return true;
+   }
+
+   public void release()
+   {
+      if (permits != null)
+         permits.release();
+   }
+
+   protected ApiException reject()
+   {
+      rejected.incrementAndGet();
+      return new ApiException(SC.SC_503_SERVICE_UNAVAILABLE, "The server is too busy to handle your request, retry after " + retryAfter + " seconds");
+   }
+
+   public JSNode getMetrics()
+   {
+      long count = waited.get();
+
+      JSNode metrics = new JSNode();
+      metrics.put("maxConcurrent", maxConcurrent);
+      metrics.put("active", permits == null ? 0 : maxConcurrent - permits.availablePermits());
+      metrics.put("queued", queued.get());
+      metrics.put("admitted", admitted.get());
+      metrics.put("rejected", rejected.get());
+      metrics.put("waitAvgMillis", count == 0 ? 0 : waitNanos.get() / count / 1000000d);
+      metrics.put("waitMaxMillis", waitMaxNanos.get() / 1000000d);
+      return metrics;
+   }
+
+   public boolean isEnabled()
+   {
+      return permits != null;
+   }
+
+   public int getRetryAfter()
+   {
+      return retryAfter;
+   }
+
+   public int getQueued()
+   {
+      return queued.get();
+   }
+
+   public long getRejected()
+   {
+      return rejected.get();
+   }
+}
@@ -26,6 +26,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import io.rocketpartners.cloud.rql.Term;
+import io.rocketpartners.cloud.service.RequestContext;
 import io.rocketpartners.cloud.utils.English;
 import io.rocketpartners.cloud.utils.Rows.Row;
 import io.rocketpartners.cloud.utils.SqlUtils;
@@ -48,6 +49,14 @@ public abstract class Db<T extends Db>
 
    protected ArrayList<Table> tables         = new ArrayList();
 
+   //-- bulkhead settings, maxConcurrent <= 0 disables admission control
+   protected int              maxConcurrent  = 0;
+   protected int              maxQueued      = 0;
+   protected int              queueTimeout   = 500;             // in millis
+   protected int              retryAfter     = 1;               // in seconds
+
+   transient volatile Bulkhead bulkhead      = null;
+
    public Db()
    {
    }
@@ -87,6 +96,17 @@ public abstract class Db<T extends Db>
       throw new ApiException(SC.SC_500_INTERNAL_SERVER_ERROR, "Unsupported Operation.  Implement " + getClass().getName() + ".select()");
    }
 
+   /**
+    * Selects using the connections, or other request scoped resources, held
+    * by <code>ctx</code>.  Dbs without request scoped resources ignore it.
+    * 
+    * @param ctx the request's context, see {@link io.rocketpartners.cloud.service.Chain#getContext()}
+    */
+   public Results<Row> select(RequestContext ctx, Table table, List<Term> columnMappedTerms) throws Exception
+   {
+      return select(table, columnMappedTerms);
+   }
+
    public void delete(Table table, List<String> entityKeys) throws Exception
    {
       for (String entityKey : entityKeys)
@@ -100,6 +120,35 @@ public abstract class Db<T extends Db>
       throw new ApiException(SC.SC_500_INTERNAL_SERVER_ERROR, "Unsupported Operation.  Implement " + getClass().getName() + ".delete()");
    }
 
+   /**
+    * @see #select(RequestContext, Table, List)
+    */
+   public void delete(RequestContext ctx, Table table, List<String> entityKeys) throws Exception
+   {
+      delete(table, entityKeys);
+   }
+
+   /**
+    * Deletes every row matching <code>columnMappedTerms</code> without 
+    * selecting their keys first.
+    * 
+    * @return the number of rows deleted or -1 if this db can not do a 
+    *         set based delete for these terms and the caller should 
+    *         select the keys and delete them instead
+    */
+   public int delete(Table table, Term... columnMappedTerms) throws Exception
+   {
+      return -1;
+   }
+
+   /**
+    * @see #select(RequestContext, Table, List)
+    */
+   public int delete(RequestContext ctx, Table table, Term... columnMappedTerms) throws Exception
+   {
+      return delete(table, columnMappedTerms);
+   }
+
    public String upsert(Table table, Map<String, Object> row) throws Exception
    {
       throw new ApiException(SC.SC_500_INTERNAL_SERVER_ERROR, "Unsupported Operation.  Implement " + getClass().getName() + ".upsert()");
@@ -115,6 +164,14 @@ public abstract class Db<T extends Db>
       return keys;
    }
 
+   /**
+    * @see #select(RequestContext, Table, List)
+    */
+   public List<String> upsert(RequestContext ctx, Table table, List<Map<String, Object>> rows) throws Exception
+   {
+      return upsert(table, rows);
+   }
+
    public synchronized Db startup()
    {
       if (started || starting) //starting is an accidental recursion guard
@@ -143,6 +200,48 @@ public abstract class Db<T extends Db>
       }
    }
 
+   /**
+    * Admission control for operations against this db.  Endpoints with a
+    * priority greater than zero bypass it.
+    * <p>
+    * Changing the bulkhead settings swaps in a new Bulkhead.  Permits must
+    * be released to the instance they were acquired from, not to whatever
+    * this returns at release time.
+    */
+   public Bulkhead getBulkhead()
+   {
+      Bulkhead bulkhead = this.bulkhead;
+      if (bulkhead == null)
+      {
+         synchronized (this)
+         {
+            bulkhead = this.bulkhead;
+            if (bulkhead == null)
+            {
+               bulkhead = new Bulkhead(maxConcurrent, maxQueued, queueTimeout, retryAfter);
+               this.bulkhead = bulkhead;
+            }
+         }
+      }
+      return bulkhead;
+   }
+
+   public T withBulkhead(int maxConcurrent, int maxQueued, int queueTimeout)
+   {
+      this.maxConcurrent = maxConcurrent;
+      this.maxQueued = maxQueued;
+      this.queueTimeout = queueTimeout;
+      this.bulkhead = null;
+      return (T) this;
+   }
+
+   public T withRetryAfter(int retryAfter)
+   {
+      this.retryAfter = retryAfter;
+      this.bulkhead = null;
+      return (T) this;
+   }
+
    public boolean isStarted()
    {
       return started;
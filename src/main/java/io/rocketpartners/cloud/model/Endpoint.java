@@ -27,6 +27,8 @@ public class Endpoint extends Rule<Endpoint>
    protected Path         path     = null;
    protected List<Action> actions  = new ArrayList();
    protected boolean      internal = false;
+   protected int          priority = 0;
+   protected int          timeout  = 0;
 
    public Endpoint()
    {
@@ -177,6 +179,36 @@ public class Endpoint extends Rule<Endpoint>
       return this;
    }
 
+   /**
+    * Requests to endpoints with a priority greater than zero, health checks 
+    * and login for example, are never shed by a Db {@link Bulkhead}.
+    */
+   public int getPriority()
+   {
+      return priority;
+   }
+
+   public Endpoint withPriority(int priority)
+   {
+      this.priority = priority;
+      return this;
+   }
+
+   /**
+    * @return millis requests to this endpoint have to finish, overriding 
+    *         Engine.requestTimeout when greater than zero
+    */
+   public int getTimeout()
+   {
+      return timeout;
+   }
+
+   public Endpoint withTimeout(int timeout)
+   {
+      this.timeout = timeout;
+      return this;
+   }
+
    public List<Action> getActions(Request req)
    {
       List<Action> filtered = new ArrayList();
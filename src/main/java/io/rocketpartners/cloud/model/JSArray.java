@@ -131,6 +131,12 @@ public class JSArray extends JSNode implements Iterable
       return (String) get(index);
    }
 
+   public boolean getBoolean(int index)
+   {
+      Object value = get(index);
+      return value != null && "true".equalsIgnoreCase(value.toString());
+   }
+
    public JSNode getObject(int index)
    {
       return (JSNode) get(index);
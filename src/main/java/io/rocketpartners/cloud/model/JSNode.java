@@ -19,6 +19,7 @@
 package io.rocketpartners.cloud.model;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
@@ -26,20 +27,60 @@ import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import io.rocketpartners.cloud.utils.Utils;
 
 public class JSNode implements Map<String, Object>
 {
-   LinkedHashMap<String, Property> properties = new LinkedHashMap();
+   /**
+    * Interned lower case versions of property names.  Bounded
+    * so that arbitrary user supplied JSON can't grow it forever.
+    */
+   static final int                            MAX_LC_CACHE = 10000;
+   static final ConcurrentHashMap<String, String> LC_CACHE  = new ConcurrentHashMap();
+
+   /**
+    * Placeholder for a property that has been explicitly set to null 
+    * in a shaped node so it can be told apart from an unset slot.
+    */
+   static final Object                         NULL         = new Object();
+
+   LinkedHashMap<String, Property>             properties   = null;
+
+   /**
+    * When not null, values are stored in the <code>values</code> array
+    * at the position of the key in the shared shape instead of in 
+    * <code>properties</code>.
+    */
+   Shape                                       shape        = null;
+   Object[]                                    values       = null;
 
    public JSNode()
    {
+      properties = new LinkedHashMap();
+   }
 
+   /**
+    * Creates a node that stores its values in a flat array laid out by
+    * <code>shape</code>.  Nodes that share a shape share the key table
+    * so there is no per node map, lower cased key or Property wrapper.
+    * <p>
+    * Putting a key that is not part of the shape quietly converts the
+    * node back to the normal map representation.  Keys are ordered by 
+    * the shape, not by insertion order.
+    * 
+    * @param shape
+    */
+   public JSNode(Shape shape)
+   {
+      this.shape = shape;
+      this.values = new Object[shape.size()];
    }
 
    public JSNode(Object... nvPairs)
    {
+      this();
       for (int i = 0; i < nvPairs.length - 1; i += 2)
       {
          if (i == 0 && (nvPairs[i] instanceof Map && !(nvPairs[i] instanceof JSNode)))
@@ -51,6 +92,7 @@ public class JSNode implements Map<String, Object>
 
    public JSNode(Map map)
    {
+      this();
       for (Object key : map.keySet())
       {
          put(key + "", map.get(key));
@@ -278,12 +320,63 @@ public class JSNode implements Map<String, Object>
       return collected;
    }
 
+   /**
+    * @return the interned lower case version of <code>name</code>
+    */
+   static String lc(String name)
+   {
+      String lc = LC_CACHE.get(name);
+      if (lc == null)
+      {
+         lc = name.toLowerCase().intern();
+         if (LC_CACHE.size() < MAX_LC_CACHE)
+            LC_CACHE.put(name, lc);
+      }
+      return lc;
+   }
+
+   /**
+    * Moves a shaped node's values into the property map.  This happens
+    * when a caller adds a key the shape does not know about or needs
+    * direct access to the Property objects.
+    */
+   void unshape()
+   {
+      if (shape != null)
+      {
+         LinkedHashMap<String, Property> properties = new LinkedHashMap();
+         for (int i = 0; i < values.length; i++)
+         {
+            Object value = values[i];
+            if (value != null)
+            {
+               String name = shape.names[i];
+               properties.put(shape.lcNames[i], new Property(name, value == NULL ? null : value));
+            }
+         }
+
+         this.properties = properties;
+         this.shape = null;
+         this.values = null;
+      }
+   }
+
    @Override
    public Object get(Object name)
    {
       if (name == null)
          return null;
 
+      if (shape != null)
+      {
+         int idx = shape.indexOf(name.toString());
+         if (idx < 0)
+            return null;
+
+         Object value = values[idx];
+         return value == NULL ? null : value;
+      }
+
       Property p = getProperty(name.toString());
       if (p != null)
          return p.getValue();
@@ -294,13 +387,26 @@ public class JSNode implements Map<String, Object>
    @Override
    public Object put(String name, Object value)
    {
-      Property prop = properties.put(name.toLowerCase(), new Property(name, value));
+      if (shape != null)
+      {
+         int idx = shape.indexOf(name);
+         if (idx >= 0)
+         {
+            Object old = values[idx];
+            values[idx] = value == null ? NULL : value;
+            return old == null ? null : new Property(shape.names[idx], old == NULL ? null : old);
+         }
+         unshape();
+      }
+
+      Property prop = properties.put(lc(name), new Property(name, value));
       return prop;
    }
 
    public Property getProperty(String name)
    {
-      return properties.get(name.toLowerCase());
+      unshape();
+      return properties.get(lc(name));
    }
 
    @Override
@@ -309,8 +415,13 @@ public class JSNode implements Map<String, Object>
       if (name == null)
          return false;
 
-      return properties.containsKey(name.toString()
-                                        .toLowerCase());
+      if (shape != null)
+      {
+         int idx = shape.indexOf(name.toString());
+         return idx >= 0 && values[idx] != null;
+      }
+
+      return properties.containsKey(lc(name.toString()));
    }
 
    @Override
@@ -319,6 +430,17 @@ public class JSNode implements Map<String, Object>
       if (name == null)
          return null;
 
+      if (shape != null)
+      {
+         int idx = shape.indexOf(name.toString());
+         if (idx < 0)
+            return null;
+
+         Object old = values[idx];
+         values[idx] = null;
+         return old == NULL ? null : old;
+      }
+
       Property old = removeProperty(name.toString());
       return old != null ? old.getValue() : old;
    }
@@ -326,8 +448,18 @@ public class JSNode implements Map<String, Object>
    @Override
    public Set<String> keySet()
    {
-      //properties.getKeySet contains the lower case versions.
       LinkedHashSet keys = new LinkedHashSet();
+      if (shape != null)
+      {
+         for (int i = 0; i < values.length; i++)
+         {
+            if (values[i] != null)
+               keys.add(shape.names[i]);
+         }
+         return keys;
+      }
+
+      //properties.getKeySet contains the lower case versions.
       for (String key : properties.keySet())
       {
          Property p = properties.get(key);
@@ -338,24 +470,90 @@ public class JSNode implements Map<String, Object>
 
    public boolean hasProperty(String name)
    {
-      Property property = properties.get(name.toLowerCase());
-      return property != null;
+      return containsKey(name);
    }
 
    public List<Property> getProperties()
    {
+      unshape();
       return new ArrayList(properties.values());
    }
 
    public Property removeProperty(String name)
    {
-      Property property = properties.get(name.toLowerCase());
+      unshape();
+      Property property = properties.get(lc(name));
       if (property != null)
-         properties.remove(name.toLowerCase());
+         properties.remove(lc(name));
 
       return property;
    }
 
+   /**
+    * An ordered, case insensitive key table that can be shared by 
+    * many JSNodes that all have the same properties, for example 
+    * every row of a query result.
+    */
+   public static class Shape
+   {
+      final String[]             names;
+      final String[]             lcNames;
+      final Map<String, Integer> index = new HashMap();
+
+      public Shape(String... names)
+      {
+         this(Arrays.asList(names));
+      }
+
+      public Shape(List<String> names)
+      {
+         List<String> unique = new ArrayList();
+         List<String> lcs = new ArrayList();
+         for (String name : names)
+         {
+            String lc = lc(name);
+            if (!lcs.contains(lc))
+            {
+               unique.add(name);
+               lcs.add(lc);
+            }
+         }
+
+         this.names = unique.toArray(new String[unique.size()]);
+         this.lcNames = lcs.toArray(new String[lcs.size()]);
+
+         for (int i = 0; i < this.names.length; i++)
+         {
+            index.put(this.lcNames[i], i);
+            if (!index.containsKey(this.names[i]))
+               index.put(this.names[i], i);
+         }
+      }
+
+      /**
+       * @return the position of <code>name</code> or -1
+       */
+      public int indexOf(String name)
+      {
+         //exact case hit first to avoid the lower case conversion
+         Integer idx = index.get(name);
+         if (idx == null)
+            idx = index.get(lc(name));
+
+         return idx == null ? -1 : idx;
+      }
+
+      public int size()
+      {
+         return names.length;
+      }
+
+      public String getName(int index)
+      {
+         return names[index];
+      }
+   }
+
    public static class Property
    {
       String name  = null;
@@ -409,6 +607,20 @@ public class JSNode implements Map<String, Object>
    public Map asMap()
    {
       Map map = new HashMap();
+      if (shape != null)
+      {
+         for (int i = 0; i < values.length; i++)
+         {
+            Object value = values[i];
+            if (value == null)
+               continue;
+
+            value = value == NULL ? null : value;
+            map.put(shape.names[i], value instanceof JSArray ? ((JSArray) value).asList() : value);
+         }
+         return map;
+      }
+
       for (Property p : properties.values())
       {
          String name = p.name;
@@ -446,13 +658,24 @@ public class JSNode implements Map<String, Object>
    @Override
    public int size()
    {
+      if (shape != null)
+      {
+         int size = 0;
+         for (int i = 0; i < values.length; i++)
+         {
+            if (values[i] != null)
+               size += 1;
+         }
+         return size;
+      }
+
       return properties.size();
    }
 
    @Override
    public boolean isEmpty()
    {
-      return properties.isEmpty();
+      return size() == 0;
    }
 
    @Override
@@ -461,6 +684,15 @@ public class JSNode implements Map<String, Object>
       if (value == null)
          return false;
 
+      if (shape != null)
+      {
+         for (int i = 0; i < values.length; i++)
+            if (value.equals(values[i]))
+               return true;
+
+         return false;
+      }
+
       for (Property prop : properties.values())
          if (value.equals(prop.getValue()))
             return true;
@@ -471,7 +703,10 @@ public class JSNode implements Map<String, Object>
    @Override
    public void clear()
    {
-      properties.clear();
+      if (shape != null)
+         Arrays.fill(values, null);
+      else
+         properties.clear();
    }
 
    @Override
@@ -26,6 +26,7 @@ import org.apache.commons.collections4.multimap.ArrayListValuedHashMap;
 import io.rocketpartners.cloud.rql.Term;
 import io.rocketpartners.cloud.service.Chain;
 import io.rocketpartners.cloud.service.Engine;
+import io.rocketpartners.cloud.service.RequestContext;
 import io.rocketpartners.cloud.utils.HttpUtils;
 import io.rocketpartners.cloud.utils.Utils;
 
@@ -336,11 +337,25 @@ public class Request
       return getHeader("referrer");
    }
 
+   /**
+    * Header names are case insensitive, an exact match is tried first
+    * and then any name that differs only in case.
+    */
    public String getHeader(String key)
    {
       List<String> vals = headers.get(key);
       if (vals != null && vals.size() > 0)
          return vals.get(0);
+
+      for (String name : headers.keySet())
+      {
+         if (name.equalsIgnoreCase(key))
+         {
+            vals = headers.get(name);
+            if (vals.size() > 0)
+               return vals.get(0);
+         }
+      }
       return null;
    }
 
@@ -374,6 +389,14 @@ public class Request
       return this;
    }
 
+   /**
+    * @return the context of the chain servicing this request or null if it is not being serviced
+    */
+   public RequestContext getContext()
+   {
+      return chain != null ? chain.getContext() : null;
+   }
+
    public Url getUrl()
    {
       return url;
@@ -16,10 +16,12 @@
 package io.rocketpartners.cloud.model;
 
 import java.io.BufferedInputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -52,6 +54,7 @@ public class Response
 
    protected String                                 fileName          = null;
    protected File                                   file              = null;
+   protected Streamer                               stream            = null;
 
    protected Exception                              error             = null;
 
@@ -63,6 +66,16 @@ public class Response
    protected List<Change>                           changes           = new ArrayList();
    protected StringBuffer                           debug             = new StringBuffer();
 
+   /**
+    * A body that is copied to the client when the response is written
+    * instead of being held in memory, see {@link io.rocketpartners.cloud.utils.HttpUtils#stream(Request, Response)}.
+    * Front ends must close it whether or not it was written.
+    */
+   public static interface Streamer extends Closeable
+   {
+      public void writeTo(OutputStream out) throws IOException;
+   }
+
    public Response()
    {
 
@@ -614,6 +627,18 @@ public class Response
       return file;
    }
 
+   public Response withStream(Streamer stream)
+   {
+      this.json = null;
+      this.stream = stream;
+      return this;
+   }
+
+   public Streamer getStream()
+   {
+      return stream;
+   }
+
    /**
     * This is the value returned from the server via the "Content-Length" header
     * NOTE: this will not match file length, for partial downloads, consider also using ContentRangeSize
@@ -794,6 +819,20 @@ public class Response
    @Override
    public void finalize()
    {
+      if (stream != null)
+      {
+         try
+         {
+            Streamer unwritten = stream;
+            stream = null;
+            unwritten.close();
+         }
+         catch (Throwable t)
+         {
+            // ignore
+         }
+      }
+
       if (file != null)
       {
          try
@@ -34,6 +34,8 @@ public class SC
    public static final String         SC_404_NOT_FOUND             = "404 Not Found";
    public static final String         SC_429_TOO_MANY_REQUESTS     = "429 Too Many Requests";
    public static final String         SC_500_INTERNAL_SERVER_ERROR = "500 Internal Server Error";
+   public static final String         SC_503_SERVICE_UNAVAILABLE   = "503 Service Unavailable";
+   public static final String         SC_504_GATEWAY_TIMEOUT       = "504 Gateway Timeout";
 
    public static Map<Integer, String> SC_MAP                       = new HashMap<>();
    static
@@ -47,6 +49,8 @@ public class SC
       SC_MAP.put(404, SC_404_NOT_FOUND);
       SC_MAP.put(429, SC_429_TOO_MANY_REQUESTS);
       SC_MAP.put(500, SC_500_INTERNAL_SERVER_ERROR);
+      SC_MAP.put(503, SC_503_SERVICE_UNAVAILABLE);
+      SC_MAP.put(504, SC_504_GATEWAY_TIMEOUT);
    }
 
    public static boolean matches(Object responseCode, int... choices)
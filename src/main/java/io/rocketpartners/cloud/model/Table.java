@@ -218,6 +218,31 @@ public class Table
       return key.toString();
    }
 
+   /**
+    * Encodes the primary key of <code>row</code> where <code>ordinals</code>
+    * are the positions of the primary index columns in the row as 
+    * looked up once per result set via Rows.indexOf(). 
+    */
+   public String encodeKey(Row row, int[] ordinals)
+   {
+      StringBuffer key = new StringBuffer("");
+      for (int i = 0; i < ordinals.length; i++)
+      {
+         Object val = ordinals[i] < 0 ? null : row.get(ordinals[i]);
+         if (Utils.empty(val))
+            return null;
+
+         val = encodeStr(val.toString());
+
+         if (key.length() > 0)
+            key.append("~");
+
+         key.append(val);
+      }
+
+      return key.toString();
+   }
+
    public static String encodeKey(List pieces)
    {
       StringBuffer entityKey = new StringBuffer("");
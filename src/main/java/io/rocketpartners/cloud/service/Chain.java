@@ -23,98 +23,143 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.Stack;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.collections4.map.CaseInsensitiveMap;
 
 import io.rocketpartners.cloud.model.Action;
 import io.rocketpartners.cloud.model.Api;
+import io.rocketpartners.cloud.model.AsyncAction;
+import io.rocketpartners.cloud.model.ApiException;
 import io.rocketpartners.cloud.model.Collection;
 import io.rocketpartners.cloud.model.Endpoint;
 import io.rocketpartners.cloud.model.Path;
 import io.rocketpartners.cloud.model.Request;
 import io.rocketpartners.cloud.model.Response;
+import io.rocketpartners.cloud.model.SC;
 import io.rocketpartners.cloud.utils.Utils;
 
 public class Chain
 {
+   //-- fails async stages that are still running at the request deadline, Java 8 has no orTimeout
+   static ScheduledExecutorService timeouts = Executors.newSingleThreadScheduledExecutor(r -> {
+                                               Thread t = new Thread(r, "Chain async timeout");
+                                               t.setDaemon(true);
+                                               return t;
+                                            });
 
-   static ThreadLocal<Stack<Chain>> chainLocal = new ThreadLocal();
-
-   protected static Stack<Chain> get()
-   {
-      Stack stack = chainLocal.get();
-      if (stack == null)
-      {
-         stack = new Stack();
-         chainLocal.set(stack);
-      }
-      return stack;
-   }
-
+   /**
+    * @deprecated use {@link RequestContext#getDepth()}
+    */
+   @Deprecated
    public static int getDepth()
    {
-      return get().size();
+      return RequestContext.current(true).getDepth();
    }
 
+   /**
+    * @deprecated use {@link RequestContext#first()}
+    */
+   @Deprecated
    public static Chain first()
    {
-      Stack<Chain> stack = get();
-      if (!stack.empty())
-      {
-         return stack.get(0);
-      }
-      return null;
+      RequestContext ctx = RequestContext.current();
+      return ctx != null ? ctx.first() : null;
    }
 
+   /**
+    * @deprecated use {@link RequestContext#peek()}
+    */
+   @Deprecated
    public static Chain peek()
    {
-      Stack<Chain> stack = get();
-      if (!stack.empty())
-         return stack.peek();
-      return null;
+      RequestContext ctx = RequestContext.current();
+      return ctx != null ? ctx.peek() : null;
+   }
 
+   /**
+    * @return the time, in epoch millis, by which the top level request 
+    *         must finish or 0 if it has no deadline
+    */
+   public static long getRequestDeadline()
+   {
+      Chain first = first();
+      return first != null ? first.deadline : 0;
    }
 
-   public static Chain push(Engine engine, Request req, Response res)
+   /**
+    * @return millis left before the top level request's deadline
+    *         or Long.MAX_VALUE if it has none
+    */
+   public static long getTimeRemaining()
    {
-      Chain child = new Chain(engine, req, res);
+      long deadline = getRequestDeadline();
+      return deadline > 0 ? deadline - System.currentTimeMillis() : Long.MAX_VALUE;
+   }
 
-      Chain parent = peek();
-      if (parent != null)
-         child.setParent(parent);
+   /**
+    * @throws ApiException 504 if the top level request's deadline has passed
+    */
+   public static void checkDeadline() throws ApiException
+   {
+      if (getTimeRemaining() <= 0)
+         throw new ApiException(SC.SC_504_GATEWAY_TIMEOUT, "The request did not finish before its deadline");
+   }
 
-      get().push(child);
+   /**
+    * @deprecated use {@link #push(RequestContext, Engine, Request, Response)}
+    */
+   @Deprecated
+   public static Chain push(Engine engine, Request req, Response res)
+   {
+      return push(RequestContext.current(true), engine, req, res);
+   }
 
-      return child;
+   public static Chain push(RequestContext context, Engine engine, Request req, Response res)
+   {
+      Chain child = new Chain(context, engine, req, res);
+      return context.push(child);
    }
 
+   /**
+    * @deprecated use {@link RequestContext#pop()}
+    */
+   @Deprecated
    public static Chain pop()
    {
-      return get().pop();
+      return RequestContext.current(true).pop();
    }
 
+   /**
+    * @deprecated use {@link RequestContext#getDepth()}
+    */
+   @Deprecated
    public static int size()
    {
-      return get().size();
+      return getDepth();
    }
 
    public static void debug(Object... msgs)
    {
-      Stack<Chain> stack = get();
-      if (stack.size() < 1)
+      RequestContext ctx = RequestContext.current();
+      int depth = ctx != null ? ctx.getDepth() : 0;
+      if (depth < 1)
       {
          return;
       }
 
-      String prefix = "[" + stack.size() + "]: ";
-      for (int i = 1; i < stack.size(); i++)
+      String prefix = "[" + depth + "]: ";
+      for (int i = 1; i < depth; i++)
          prefix += "   ";
 
       if (msgs != null && msgs.length == 1 && msgs[0].toString().trim().length() == 0)
          return;
 
-      Chain root = stack.get(0);
+      Chain root = ctx.first();
       root.response.debug(prefix, msgs);
    }
 
@@ -194,6 +239,7 @@ public class Chain
       return url;
    }
 
+   protected RequestContext     context  = null;
    protected Engine             engine   = null;
    protected List<Action>       actions  = new ArrayList();
    protected Request            request  = null;
@@ -201,13 +247,18 @@ public class Chain
 
    protected int                next     = 0;
    protected boolean            canceled = false;
+   protected long               deadline = 0;
 
    protected CaseInsensitiveMap vars     = new CaseInsensitiveMap();
 
    protected Chain              parent   = null;
 
-   private Chain(Engine engine, Request req, Response res)
+   //-- the Api this chain holds in flight, see Api.requestStarted()
+   Api                          pinned   = null;
+
+   private Chain(RequestContext context, Engine engine, Request req, Response res)
    {
+      this.context = context;
       this.engine = engine;
       this.request = req;
       this.response = res;
@@ -218,6 +269,17 @@ public class Chain
    //      response.debug(msgs);
    //   }
 
+   public long getDeadline()
+   {
+      return deadline;
+   }
+
+   public Chain withDeadline(long deadline)
+   {
+      this.deadline = deadline;
+      return this;
+   }
+
    public Chain getParent()
    {
       return parent;
@@ -410,6 +472,88 @@ public class Chain
       }
    }
 
+   /**
+    * Runs the remaining actions like {@link #go()} except that the chain
+    * does not wait on an {@link AsyncAction}'s stage.  Sync actions run
+    * on the calling thread and the chain picks back up on whatever thread
+    * completes an async stage.  A stage still running at the request 
+    * deadline is failed with a 504.
+    * 
+    * @return a future that completes when the last action is done
+    */
+   public CompletableFuture<Chain> goAsync()
+   {
+      CompletableFuture<Chain> done = new CompletableFuture();
+      continueAsync(done);
+      return done;
+   }
+
+   protected void continueAsync(CompletableFuture<Chain> done)
+   {
+      try
+      {
+         while (!isCanceled() && next < actions.size())
+         {
+            Action action = actions.get(next);
+            if (!(action instanceof AsyncAction))
+            {
+               next();
+               continue;
+            }
+
+            next += 1;
+            CompletableFuture stage = ((AsyncAction) action).runAsync(engine, request.getApi(), request.getEndpoint(), this, request, response).toCompletableFuture();
+            if (!stage.isDone())
+            {
+               ScheduledFuture timeout = null;
+               long remaining = getTimeRemaining(context);
+               if (remaining <= 0)
+                  stage.completeExceptionally(new ApiException(SC.SC_504_GATEWAY_TIMEOUT, "The request did not finish before its deadline"));
+               else if (remaining < Long.MAX_VALUE)
+                  timeout = timeouts.schedule(() -> stage.completeExceptionally(new ApiException(SC.SC_504_GATEWAY_TIMEOUT, "The request did not finish before its deadline")), remaining, TimeUnit.MILLISECONDS);
+
+               ScheduledFuture pendingTimeout = timeout;
+               stage.whenComplete((result, ex) -> {
+                  if (pendingTimeout != null)
+                     pendingTimeout.cancel(false);
+
+                  RequestContext previous = RequestContext.bind(context);
+                  try
+                  {
+                     if (ex != null)
+                        done.completeExceptionally((Throwable) ex);
+                     else
+                        continueAsync(done);
+                  }
+                  finally
+                  {
+                     RequestContext.bind(previous);
+                  }
+               });
+               return;
+            }
+
+            //-- already done, loop instead of recursing so a long run of completed stages can't overflow the stack
+            stage.join();
+         }
+         done.complete(this);
+      }
+      catch (Throwable ex)
+      {
+         done.completeExceptionally(ex);
+      }
+   }
+
+   /**
+    * @return millis left before the deadline of the top level request in 
+    *         <code>context</code> or Long.MAX_VALUE if it has none
+    */
+   static long getTimeRemaining(RequestContext context)
+   {
+      Chain first = context != null ? context.first() : null;
+      return first != null && first.deadline > 0 ? first.deadline - System.currentTimeMillis() : Long.MAX_VALUE;
+   }
+
    public boolean next() throws Exception
    {
       if (!isCanceled() && next < actions.size())
@@ -432,6 +576,14 @@ public class Chain
       this.canceled = true;
    }
 
+   /**
+    * @return the context holding per request state for this chain and its parents
+    */
+   public RequestContext getContext()
+   {
+      return context;
+   }
+
    public Engine getEngine()
    {
       return engine;
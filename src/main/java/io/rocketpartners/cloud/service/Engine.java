@@ -24,6 +24,11 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 
 import org.apache.commons.collections4.multimap.ArrayListValuedHashMap;
 import org.slf4j.Logger;
@@ -54,7 +59,8 @@ public class Engine
    protected Logger                          log            = LoggerFactory.getLogger(getClass());
    protected Logger                          requestLog     = LoggerFactory.getLogger(getClass() + ".requests");
 
-   protected List<Api>                       apis           = new Vector();
+   //-- copy on write, replaced wholesale by addApi/removeApi so requests always see one consistent list
+   protected volatile List<Api>              apis           = new Vector();
 
    protected ResourceLoader                  resourceLoader = null;
 
@@ -84,14 +90,60 @@ public class Engine
     */
    protected int                             configTimeout  = 10000;
 
+   /**
+    * The maximum number of milliseconds a swapped out Api waits for
+    * in flight requests to finish before its Dbs are shutdown.
+    */
+   protected int                             configDrainTimeout = 30000;
+
    /**
     * Indicates that the supplied config files contain all the setup info and the Api
     * will not be reflectively configured as it otherwise would.
     */
    protected boolean                         configFast     = false;
+
+   /**
+    * Indicates that user supplied config properties should be set directly onto the
+    * model reflected by Db.startup() instead of serializing that model back to
+    * properties and wiring it a second time.  This roughly halves config load time.
+    */
+   protected boolean                         configDirect   = false;
+
+   /**
+    * Indicates that Dbs whose tables are already known, because they were
+    * supplied by config, are not started with their Api but on the first
+    * request for one of their collections.  This keeps connection pool 
+    * creation and other Db setup out of cold starts.
+    */
+   protected boolean                         lazyDbStartup  = false;
    protected boolean                         configDebug    = false;
    protected String                          configOut      = null;
 
+   /**
+    * Default number of milliseconds a request has to finish.  SQL statements,
+    * DynamoDB calls and outbound HTTP calls made while servicing the request 
+    * are given whatever time remains and are cancelled when it runs out.
+    * 0 means no deadline.  Endpoints can override this with their own timeout.
+    */
+   protected int                             requestTimeout = 0;
+
+   /**
+    * When true, and the JVM supports them (JDK 21+), Servlet runs each request
+    * on its own virtual thread so that requests blocked on JDBC, DynamoDB, Redis
+    * or HTTP calls don't tie up a container thread.  On older JVMs requests
+    * keep running on the container thread.
+    */
+   protected boolean                         virtualThreads = false;
+
+   /**
+    * The maximum number of requests serviced at once on virtual threads.
+    * Additional requests wait for a running request to finish.
+    */
+   protected int                             maxConcurrentRequests = 2000;
+
+   protected transient volatile ExecutorService requestExecutor = null;
+   protected transient Semaphore             requestPermits = null;
+
    /**
     * The last response returned.  Not that useful in concurrent 
     * production environments but useful for writing test cases.
@@ -126,6 +178,9 @@ public class Engine
    public void destroy()
    {
       destroyed = true;
+
+      if (requestExecutor != null)
+         requestExecutor.shutdown();
    }
 
    /*
@@ -166,35 +221,45 @@ public class Engine
             }
          }
 
-         //      if (service.getConfigTimeout() > 0 && !service.isConfigFast())
-         //      {
-         //         Thread t = new Thread(new Runnable()
-         //            {
-         //               @Override
-         //               public void run()
-         //               {
-         //                  while (true)
-         //                  {
-         //                     try
-         //                     {
-         //                        Utils.sleep(service.getConfigTimeout());
-         //                        if (destroyed)
-         //                           return;
-         //
-         //                        Config config = findConfig();
-         //                        loadConfig(config, false, false);
-         //                     }
-         //                     catch (Throwable t)
-         //                     {
-         //                        log.warn("Error loading config", t);
-         //                     }
-         //                  }
-         //               }
-         //            }, "inversion-config-reloader");
-         //
-         //         t.setDaemon(true);
-         //         t.start();
-         //      }
+         if (configTimeout > 0 && configurator.isLoaded())
+         {
+            Thread t = new Thread(new Runnable()
+               {
+                  @Override
+                  public void run()
+                  {
+                     while (true)
+                     {
+                        try
+                        {
+                           Utils.sleep(configTimeout);
+                           if (destroyed)
+                              return;
+
+                           //-- a changed Api is built and its Dbs started on this thread
+                           //-- and only then swapped in by addApi
+                           RequestContext.detached(() -> {
+                              try
+                              {
+                                 configurator.reloadConfig();
+                              }
+                              catch (Exception ex)
+                              {
+                                 log.warn("Error reloading config", ex);
+                              }
+                           }).run();
+                        }
+                        catch (Throwable t)
+                        {
+                           log.warn("Error reloading config", t);
+                        }
+                     }
+                  }
+               }, "inversion-config-reloader");
+
+            t.setDaemon(true);
+            t.start();
+         }
 
          //-- the following block is only debug output
          for (Api api : apis)
@@ -332,300 +397,416 @@ public class Engine
    }
 
    public Chain service(Request req, Response res)
+   {
+      //-- completes on this thread unless an AsyncAction leaves the chain waiting
+      return serviceAsync(req, res).join();
+   }
+
+   /**
+    * Services the request like {@link #service(Request, Response)} without
+    * blocking on any {@link io.rocketpartners.cloud.model.AsyncAction}s in 
+    * the chain.
+    * <p>
+    * The transaction is committed, or rolled back, the response written
+    * and the chain popped by whichever thread finishes the last action, 
+    * before the returned future completes.
+    */
+   public CompletableFuture<Chain> serviceAsync(Request req, Response res)
    {
       if (!started)
          startup();
 
-      Chain chain = null;
+      //-- nested calls, like forward(), share the caller's context
+      RequestContext ctx = RequestContext.current();
+      boolean ownsContext = ctx == null;
+      if (ownsContext)
+      {
+         ctx = new RequestContext(this);
+         RequestContext.bind(ctx);
+      }
+
+      Chain chain = Chain.push(ctx, this, req, res);
+      req.withChain(chain);
+      res.withChain(chain);
 
+      CompletableFuture<Chain> future = null;
       try
       {
-         chain = Chain.push(this, req, res);
-         req.withChain(chain);
-         res.withChain(chain);
+         future = service0(ctx, chain, req, res);
+      }
+      catch (Throwable ex)
+      {
+         future = new CompletableFuture();
+         future.completeExceptionally(ex);
+      }
 
-         //--
-         //-- CORS header setup
-         //--
-         String allowedHeaders = new String(this.allowedHeaders);
-         String corsRequestHeader = req.getHeader("Access-Control-Request-Header");
-         if (corsRequestHeader != null)
-         {
-            List<String> headers = Arrays.asList(corsRequestHeader.split(","));
-            for (String h : headers)
-            {
-               h = h.trim();
-               allowedHeaders = allowedHeaders.concat(h).concat(",");
-            }
-         }
-         res.withHeader("Access-Control-Allow-Origin", "*");
-         res.withHeader("Access-Control-Allow-Credentials", "true");
-         res.withHeader("Access-Control-Allow-Methods", "POST, GET, OPTIONS, PUT, DELETE");
-         res.withHeader("Access-Control-Allow-Headers", allowedHeaders);
+      RequestContext context = ctx;
+      CompletableFuture<Chain> done = future.handle((c, ex) -> finish(context, ownsContext, chain, req, res, ex));
 
-         //--
-         //-- End CORS Header Setup
+      //-- if the chain is still waiting on an async action it will finish on another thread
+      if (ownsContext && RequestContext.current() == ctx)
+         RequestContext.unbind();
 
-         if (req.isMethod("options"))
-         {
-            //this is a CORS preflight request. All of hte work was done bove
-            res.withStatus(SC.SC_200_OK);
-            return chain;
-         }
+      return done;
+   }
 
-         if (req.getUrl().toString().indexOf("/favicon.ico") >= 0)
+   protected CompletableFuture<Chain> service0(RequestContext ctx, Chain chain, Request req, Response res) throws Exception
+   {
+      //--
+      //-- CORS header setup
+      //--
+      String allowedHeaders = new String(this.allowedHeaders);
+      String corsRequestHeader = req.getHeader("Access-Control-Request-Header");
+      if (corsRequestHeader != null)
+      {
+         List<String> headers = Arrays.asList(corsRequestHeader.split(","));
+         for (String h : headers)
          {
-            res.withStatus(SC.SC_404_NOT_FOUND);
-            return chain;
+            h = h.trim();
+            allowedHeaders = allowedHeaders.concat(h).concat(",");
          }
+      }
+      res.withHeader("Access-Control-Allow-Origin", "*");
+      res.withHeader("Access-Control-Allow-Credentials", "true");
+      res.withHeader("Access-Control-Allow-Methods", "POST, GET, OPTIONS, PUT, DELETE");
+      res.withHeader("Access-Control-Allow-Headers", allowedHeaders);
 
-         String xfp = req.getHeader("X-Forwarded-Proto");
-         String xfh = req.getHeader("X-Forwarded-Host");
-         if (xfp != null || xfh != null)
-         {
-            if (xfp != null)
-               req.getUrl().withProtocol(xfp);
+      //--
+      //-- End CORS Header Setup
 
-            if (xfh != null)
-               req.getUrl().withHost(xfh);
-         }
+      if (req.isMethod("options"))
+      {
+         //this is a CORS preflight request. All of hte work was done bove
+         res.withStatus(SC.SC_200_OK);
+         return CompletableFuture.completedFuture(chain);
+      }
 
-         Url url = req.getUrl();
+      if (req.getUrl().toString().indexOf("/favicon.ico") >= 0)
+      {
+         res.withStatus(SC.SC_404_NOT_FOUND);
+         return CompletableFuture.completedFuture(chain);
+      }
 
-         Path urlPath = url.getPath();
-         List<String> parts = urlPath.parts();
+      String xfp = req.getHeader("X-Forwarded-Proto");
+      String xfh = req.getHeader("X-Forwarded-Host");
+      if (xfp != null || xfh != null)
+      {
+         if (xfp != null)
+            req.getUrl().withProtocol(xfp);
 
-         List<String> apiPath = new ArrayList();
+         if (xfh != null)
+            req.getUrl().withHost(xfh);
+      }
 
-         if (!Utils.empty(servletMapping))
+      Url url = req.getUrl();
+
+      Path urlPath = url.getPath();
+      List<String> parts = urlPath.parts();
+
+      List<String> apiPath = new ArrayList();
+
+      if (!Utils.empty(servletMapping))
+      {
+         for (String servletPathPart : Utils.explode("/", servletMapping))
          {
-            for (String servletPathPart : Utils.explode("/", servletMapping))
+            if (!servletPathPart.equalsIgnoreCase(parts.get(0)))
             {
-               if (!servletPathPart.equalsIgnoreCase(parts.get(0)))
-               {
-                  //the inbound URL does not match the expected servletMapping
-                  //this may be becuse you are localhost testing...going to 
-                  //optimistically skip 
-                  break;
-               }
-               apiPath.add(servletPathPart);
-               parts.remove(0);
+               //the inbound URL does not match the expected servletMapping
+               //this may be becuse you are localhost testing...going to 
+               //optimistically skip 
+               break;
             }
+            apiPath.add(servletPathPart);
+            parts.remove(0);
          }
+      }
 
-         for (Api a : apis)
+      //-- read once, a config reload may swap in a new list while this request is routed
+      List<Api> apis = this.apis;
+      for (Api a : apis)
+      {
+         if (!((parts.size() == 0 && apis.size() == 1) //
+               || (apis.size() == 1 && a.getApiCode() == null) //
+               || (parts.get(0).equalsIgnoreCase(a.getApiCode()))))
+            continue;
+
+         if (chain.pinned != a)
          {
-            if (!((parts.size() == 0 && apis.size() == 1) //
-                  || (apis.size() == 1 && a.getApiCode() == null) //
-                  || (parts.get(0).equalsIgnoreCase(a.getApiCode()))))
+            if (chain.pinned != null)
+               chain.pinned.requestFinished();
+            chain.pinned = null;
+
+            //-- if 'a' was swapped out after the list was read, use its replacement
+            while (a != null && !a.requestStarted())
+               a = a.getApiCode() != null ? getApi(a.getApiCode()) : null;
+
+            if (a == null)
                continue;
 
-            req.withApi(a);
+            chain.pinned = a;
+         }
 
-            if (parts.size() > 0 && parts.get(0).equalsIgnoreCase((a.getApiCode())))
-            {
-               apiPath.add(parts.remove(0));
-            }
+         req.withApi(a);
 
-            if (a.isMultiTenant() && parts.size() > 0)
-            {
-               String tenantCode = parts.remove(0);
-               apiPath.add(tenantCode);
-               req.withTenantCode(tenantCode);
-            }
+         if (parts.size() > 0 && parts.get(0).equalsIgnoreCase((a.getApiCode())))
+         {
+            apiPath.add(parts.remove(0));
+         }
 
-            req.withApiPath(new Path(apiPath));
+         if (a.isMultiTenant() && parts.size() > 0)
+         {
+            String tenantCode = parts.remove(0);
+            apiPath.add(tenantCode);
+            req.withTenantCode(tenantCode);
+         }
 
-            Path remainingPath = new Path(parts); //find the endpoint that matches the fewest path segments
-            for (int i = 0; i <= parts.size(); i++)
-            {
-               Path endpointPath = new Path(i == 0 ? Collections.EMPTY_LIST : parts.subList(0, i));
+         req.withApiPath(new Path(apiPath));
 
-               for (Endpoint e : a.getEndpoints())
+         Path remainingPath = new Path(parts); //find the endpoint that matches the fewest path segments
+         for (int i = 0; i <= parts.size(); i++)
+         {
+            Path endpointPath = new Path(i == 0 ? Collections.EMPTY_LIST : parts.subList(0, i));
+
+            for (Endpoint e : a.getEndpoints())
+            {
+               if (e.matches(req.getMethod(), endpointPath) //
+                     && e.matches(req.getMethod(), remainingPath))
                {
-                  if (e.matches(req.getMethod(), endpointPath) //
-                        && e.matches(req.getMethod(), remainingPath))
-                  {
-                     req.withEndpointPath(endpointPath);
-                     req.withEndpoint(e);
+                  req.withEndpointPath(endpointPath);
+                  req.withEndpoint(e);
 
-                     if (i < parts.size())
-                     {
-                        String collectionKey = parts.get(i);
+                  if (i < parts.size())
+                  {
+                     String collectionKey = parts.get(i);
 
-                        req.withCollectionKey(collectionKey);
-                        i += 1;
+                     req.withCollectionKey(collectionKey);
+                     i += 1;
 
-                        for (io.rocketpartners.cloud.model.Collection collection : a.getCollections())
+                     for (io.rocketpartners.cloud.model.Collection collection : a.getCollections())
+                     {
+                        if (collectionKey.equalsIgnoreCase(collection.getName())//
+                              && (collection.getIncludePaths().size() > 0 //
+                                    || collection.getExcludePaths().size() > 0))
                         {
-                           if (collectionKey.equalsIgnoreCase(collection.getName())//
-                                 && (collection.getIncludePaths().size() > 0 //
-                                       || collection.getExcludePaths().size() > 0))
+                           if (collection.matches(req.getMethod(), endpointPath))
                            {
-                              if (collection.matches(req.getMethod(), endpointPath))
-                              {
-                                 req.withCollection(collection);
-                                 break;
-                              }
+                              req.withCollection(collection);
+                              break;
                            }
                         }
+                     }
 
-                        if (req.getCollection() == null)
+                     if (req.getCollection() == null)
+                     {
+                        for (io.rocketpartners.cloud.model.Collection collection : a.getCollections())
                         {
-                           for (io.rocketpartners.cloud.model.Collection collection : a.getCollections())
+                           if (collectionKey.equalsIgnoreCase(collection.getName()) //
+                                 && collection.getIncludePaths().size() == 0 //
+                                 && collection.getExcludePaths().size() == 0)
                            {
-                              if (collectionKey.equalsIgnoreCase(collection.getName()) //
-                                    && collection.getIncludePaths().size() == 0 //
-                                    && collection.getExcludePaths().size() == 0)
-                              {
-                                 req.withCollection(collection);
-                                 break;
-                              }
+                              req.withCollection(collection);
+                              break;
                            }
                         }
-
-                     }
-                     if (i < parts.size())
-                     {
-                        req.withEntityKey(parts.get(i));
-                        i += 1;
                      }
-                     if (i < parts.size())
-                     {
-                        req.withSubCollectionKey(parts.get(i));
-                     }
-                     break;
-                  }
-               }
 
-               if (req.getEndpoint() != null)
+                  }
+                  if (i < parts.size())
+                  {
+                     req.withEntityKey(parts.get(i));
+                     i += 1;
+                  }
+                  if (i < parts.size())
+                  {
+                     req.withSubCollectionKey(parts.get(i));
+                  }
                   break;
+               }
             }
-         }
-
-         //---------------------------------
-
-         if (req.getEndpoint() == null || req.getUrl().getHost().equals("localhost"))
-         {
-            res.debug("");
-            res.debug("");
-            res.debug(">> request --------------");
-            res.debug(req.getMethod() + ": " + url);
 
-            ArrayListValuedHashMap<String, String> headers = req.getHeaders();
-            for (String key : headers.keys())
-            {
-               res.debug(key + " " + Utils.implode(",", headers.get(key)));
-            }
-            res.debug("");
+            if (req.getEndpoint() != null)
+               break;
          }
+      }
 
-         if (req.getApi() == null)
-         {
-            throw new ApiException(SC.SC_404_NOT_FOUND, "No API found matching URL: \"" + req.getUrl() + "\"");
-         }
+      //---------------------------------
+
+      if (req.getEndpoint() == null || req.getUrl().getHost().equals("localhost"))
+      {
+         res.debug("");
+         res.debug("");
+         res.debug(">> request --------------");
+         res.debug(req.getMethod() + ": " + url);
 
-         if (req.getEndpoint() == null)
+         ArrayListValuedHashMap<String, String> headers = req.getHeaders();
+         for (String key : headers.keys())
          {
-            //check to see if a non plural version of the collection endpoint 
-            //was passed in, if it was redirect to the plural version
-            if (redirectPlural(req, res))
-               return chain;
+            res.debug(key + " " + Utils.implode(",", headers.get(key)));
          }
+         res.debug("");
+      }
 
-         if (req.getEndpoint() == null)
-         {
-            String buff = "";
-            for (Endpoint e : req.getApi().getEndpoints())
-               buff += e.getMethods() + " path: " + e.getPath() + " : includePaths:" + e.getIncludePaths() + ": excludePaths" + e.getExcludePaths() + ",  ";
+      if (req.getApi() == null)
+      {
+         throw new ApiException(SC.SC_404_NOT_FOUND, "No API found matching URL: \"" + req.getUrl() + "\"");
+      }
 
-            throw new ApiException(SC.SC_404_NOT_FOUND, "No endpoint found matching \"" + req.getMethod() + ": " + req.getUrl() + "\" Valid end points include: " + buff);
-         }
+      if (req.getEndpoint() == null)
+      {
+         //check to see if a non plural version of the collection endpoint 
+         //was passed in, if it was redirect to the plural version
+         if (redirectPlural(req, res))
+            return CompletableFuture.completedFuture(chain);
+      }
 
-         //         if (Utils.empty(req.getCollectionKey()))
-         //         {
-         //            throw new ApiException(SC.SC_400_BAD_REQUEST, "It looks like your collectionKey is empty.  You need at least one more part to your url request path.");
-         //         }
+      if (req.getEndpoint() == null)
+      {
+         String buff = "";
+         for (Endpoint e : req.getApi().getEndpoints())
+            buff += e.getMethods() + " path: " + e.getPath() + " : includePaths:" + e.getIncludePaths() + ": excludePaths" + e.getExcludePaths() + ",  ";
 
-         //this will get all actions specifically configured on the endpoint
-         List<Action> actions = req.getEndpoint().getActions(req);
+         throw new ApiException(SC.SC_404_NOT_FOUND, "No endpoint found matching \"" + req.getMethod() + ": " + req.getUrl() + "\" Valid end points include: " + buff);
+      }
 
-         //this matches for actions that can run across multiple endpoints.
-         //this might be something like an authorization or logging action
-         //that acts like a filter
-         for (Action a : req.getApi().getActions())
-         {
-            //http://host/{apipath}/{endpointpath}/{subpath}
-            //since these actions were not assigned to 
-            if (a.matches(req.getMethod(), req.getPath()))
-               actions.add(a);
-         }
+      //         if (Utils.empty(req.getCollectionKey()))
+      //         {
+      //            throw new ApiException(SC.SC_400_BAD_REQUEST, "It looks like your collectionKey is empty.  You need at least one more part to your url request path.");
+      //         }
 
-         if (actions.size() == 0)
-            throw new ApiException(SC.SC_404_NOT_FOUND, "No Actions are configured to handle your request.  Check your server configuration.");
+      //this will get all actions specifically configured on the endpoint
+      List<Action> actions = req.getEndpoint().getActions(req);
 
-         Collections.sort(actions);
+      //this matches for actions that can run across multiple endpoints.
+      //this might be something like an authorization or logging action
+      //that acts like a filter
+      for (Action a : req.getApi().getActions())
+      {
+         //http://host/{apipath}/{endpointpath}/{subpath}
+         //since these actions were not assigned to 
+         if (a.matches(req.getMethod(), req.getPath()))
+            actions.add(a);
+      }
 
-         //-- appends info to chain.debug that can be used for debugging an d
-         //-- for test cases to validate what actually ran
-         if (req.isDebug())
-         {
-            Chain.debug("Endpoint: " + req.getEndpoint());
-            Chain.debug("Actions: " + actions);
-         }
+      if (actions.size() == 0)
+         throw new ApiException(SC.SC_404_NOT_FOUND, "No Actions are configured to handle your request.  Check your server configuration.");
 
-         chain.withActions(actions).go();
+      Collections.sort(actions);
 
-         ConnectionLocal.commit();
+      //-- appends info to chain.debug that can be used for debugging an d
+      //-- for test cases to validate what actually ran
+      if (req.isDebug())
+      {
+         Chain.debug("Endpoint: " + req.getEndpoint());
+         Chain.debug("Actions: " + actions);
+      }
 
-         return chain;
+      if (ctx.getDepth() == 1)
+      {
+         int timeout = req.getEndpoint() != null && req.getEndpoint().getTimeout() > 0 ? req.getEndpoint().getTimeout() : requestTimeout;
+         if (timeout > 0)
+            chain.withDeadline(System.currentTimeMillis() + timeout);
       }
-      catch (Throwable ex)
+
+      //-- with lazyDbStartup a db is not started until a request uses one of its collections
+      if (req.getCollection() != null && req.getCollection().getDb() != null && !req.getCollection().getDb().isStarted())
+         req.getCollection().getDb().startup();
+
+      return chain.withActions(actions).goAsync();
+   }
+
+   protected Chain finish(RequestContext ctx, boolean ownsContext, Chain chain, Request req, Response res, Throwable ex)
+   {
+      RequestContext previous = RequestContext.bind(ctx);
+      try
       {
-         try
+         if (ex instanceof CompletionException && ex.getCause() != null)
+            ex = ex.getCause();
+
+         if (ex == null)
          {
-            ConnectionLocal.rollback();
+            try
+            {
+               ConnectionLocal.commit(ctx);
+            }
+            catch (Throwable t)
+            {
+               ex = t;
+            }
          }
-         catch (Throwable t)
+
+         if (ex != null)
          {
-            log.warn("Error rollowing back transaction", t);
-         }
+            try
+            {
+               ConnectionLocal.rollback(ctx);
+            }
+            catch (Throwable t)
+            {
+               log.warn("Error rollowing back transaction", t);
+            }
 
-         String status = SC.SC_500_INTERNAL_SERVER_ERROR;
+            String status = SC.SC_500_INTERNAL_SERVER_ERROR;
 
-         if (ex instanceof ApiException)
-         {
-            if (req != null && req.isDebug() && ((ApiException) ex).getStatus().startsWith("5"))
+            if (ex instanceof ApiException)
+            {
+               if (req != null && req.isDebug() && ((ApiException) ex).getStatus().startsWith("5"))
+               {
+                  log.error("Error in Engine", ex);
+               }
+
+               status = ((ApiException) ex).getStatus();
+               if (SC.SC_404_NOT_FOUND.equals(status))
+               {
+                  //an endpoint could have match the url "such as GET * but then not 
+                  //known what to do with the URL because the collection was not pluralized
+                  if (redirectPlural(req, res))
+                     return chain;
+               }
+            }
+            else if (Chain.getTimeRemaining() <= 0)
+            {
+               status = SC.SC_504_GATEWAY_TIMEOUT;
+               log.warn("Request passed its deadline: " + req.getMethod() + " " + req.getUrl(), ex);
+            }
+            else
             {
                log.error("Error in Engine", ex);
             }
 
-            status = ((ApiException) ex).getStatus();
-            if (SC.SC_404_NOT_FOUND.equals(status))
+            //-- the error replaces a streamed body, so release it along with the headers that described it
+            Response.Streamer stream = res.getStream();
+            if (stream != null)
             {
-               //an endpoint could have match the url "such as GET * but then not 
-               //known what to do with the URL because the collection was not pluralized
-               if (redirectPlural(req, res))
-                  return chain;
+               res.withStream(null);
+               try
+               {
+                  stream.close();
+               }
+               catch (Throwable t)
+               {
+                  log.warn("Error closing response stream", t);
+               }
+
+               for (String key : new ArrayList<String>(res.getHeaders().keySet()))
+               {
+                  if (Arrays.asList("content-length", "content-range", "content-encoding", "content-type").contains(key.toLowerCase()))
+                     res.getHeaders().remove(key);
+               }
             }
-         }
-         else
-         {
-            log.error("Error in Engine", ex);
-         }
 
-         res.withStatus(status);
-         JSNode response = new JSNode("message", ex.getMessage());
-         if (SC.SC_500_INTERNAL_SERVER_ERROR.equals(status))
-            response.put("error", Utils.getShortCause(ex));
+            res.withStatus(status);
+            JSNode response = new JSNode("message", ex.getMessage());
+            if (SC.SC_500_INTERNAL_SERVER_ERROR.equals(status))
+               response.put("error", Utils.getShortCause(ex));
 
-         res.withJson(response);
+            res.withJson(response);
+         }
       }
       finally
       {
          try
          {
-            ConnectionLocal.close();
+            ConnectionLocal.close(ctx);
          }
          catch (Throwable t)
          {
@@ -636,13 +817,19 @@ public class Engine
          {
             writeResponse(req, res);
          }
-         catch (Throwable ex)
+         catch (Throwable t)
          {
-            log.error("Error in Engine", ex);
+            log.error("Error in Engine", t);
          }
 
-         Chain.pop();
+         ctx.pop();
          lastResponse = res;
+
+         if (chain.pinned != null)
+            chain.pinned.requestFinished();
+
+         //-- a context this call created is unbound, any other thread gets back what it had
+         RequestContext.bind(ownsContext && previous == ctx ? null : previous);
       }
 
       return chain;
@@ -680,6 +867,12 @@ public class Engine
             res.withHeader("Location", res.getRedirect());
             res.withStatus(SC.SC_302_FOUND);
          }
+         else if (res.getStream() != null)
+         {
+            //-- written by the front end straight to the client
+            if (res.getContentType() == null && res.getHeader("Content-Type") == null)
+               res.withContentType("application/octet-stream");
+         }
          else if (output == null && res.getJson() != null)
          {
             output = res.getJson().toString();
@@ -702,7 +895,8 @@ public class Engine
             res.debug(key + " " + buff);
          }
 
-         res.out(output);
+         if (res.getStream() == null)
+            res.out(output);
 
          res.debug("\r\n-- done -----------------\r\n");
 
@@ -797,7 +991,7 @@ public class Engine
 
       if (existingApi != null && existingApi != api)
       {
-         existingApi.shutdown();
+         retireApi(existingApi);
       }
 
       api.withEngine(this);
@@ -809,10 +1003,44 @@ public class Engine
       newList.remove(api);
       apis = newList;
 
-      api.shutdown();
+      retireApi(api);
+   }
+
+   /**
+    * Shuts down an Api that is no longer in <code>apis</code> once the requests
+    * already using it have finished, or after <code>configDrainTimeout</code>.
+    */
+   protected void retireApi(Api api)
+   {
+      api.retire();
+
+      if (api.getInFlight() <= 0)
+      {
+         api.shutdown();
+         return;
+      }
+
+      Thread t = new Thread(new Runnable()
+         {
+            @Override
+            public void run()
+            {
+               long start = System.currentTimeMillis();
+               while (api.getInFlight() > 0 && System.currentTimeMillis() - start < configDrainTimeout)
+                  Utils.sleep(50);
+
+               if (api.getInFlight() > 0)
+                  log.warn("Shutting down Api '" + api.getApiCode() + "' with " + api.getInFlight() + " requests still in flight");
+
+               api.shutdown();
+            }
+         }, "inversion-api-drain");
+
+      t.setDaemon(true);
+      t.start();
    }
 
-   public synchronized Api getApi(String apiCode)
+   public Api getApi(String apiCode)
    {
       for (Api api : apis)
       {
@@ -926,6 +1154,36 @@ public class Engine
       this.configFast = configFast;
    }
 
+   public boolean isLazyDbStartup()
+   {
+      return lazyDbStartup;
+   }
+
+   public void setLazyDbStartup(boolean lazyDbStartup)
+   {
+      this.lazyDbStartup = lazyDbStartup;
+   }
+
+   public int getConfigDrainTimeout()
+   {
+      return configDrainTimeout;
+   }
+
+   public void setConfigDrainTimeout(int configDrainTimeout)
+   {
+      this.configDrainTimeout = configDrainTimeout;
+   }
+
+   public boolean isConfigDirect()
+   {
+      return configDirect;
+   }
+
+   public void setConfigDirect(boolean configDirect)
+   {
+      this.configDirect = configDirect;
+   }
+
    public boolean isConfigDebug()
    {
       return configDebug;
@@ -946,6 +1204,107 @@ public class Engine
       this.configOut = configOut;
    }
 
+   public int getRequestTimeout()
+   {
+      return requestTimeout;
+   }
+
+   public Engine withRequestTimeout(int requestTimeout)
+   {
+      this.requestTimeout = requestTimeout;
+      return this;
+   }
+
+   /**
+    * @return the virtual thread executor requests run on or null if
+    *         <code>virtualThreads</code> is off or not supported by this JVM
+    */
+   public ExecutorService getRequestExecutor()
+   {
+      if (!virtualThreads)
+         return null;
+
+      if (requestPermits == null)
+      {
+         synchronized (this)
+         {
+            if (requestPermits == null)
+            {
+               requestExecutor = newVirtualThreadExecutor();
+               if (requestExecutor == null)
+                  log.warn("Virtual threads are not supported by this JVM, requests will run on the calling thread");
+
+               requestPermits = new Semaphore(maxConcurrentRequests);
+            }
+         }
+      }
+      return requestExecutor;
+   }
+
+   /**
+    * Runs <code>task</code> on a virtual thread once one of the 
+    * <code>maxConcurrentRequests</code> permits is free, or on the 
+    * calling thread if there is no request executor.
+    */
+   public void execute(Runnable task)
+   {
+      ExecutorService executor = getRequestExecutor();
+      if (executor == null)
+      {
+         task.run();
+         return;
+      }
+
+      executor.execute(() -> {
+         requestPermits.acquireUninterruptibly();
+         try
+         {
+            task.run();
+         }
+         finally
+         {
+            requestPermits.release();
+         }
+      });
+   }
+
+   /**
+    * Looked up reflectively so the project still builds and runs on Java 8.
+    * 
+    * @return Executors.newVirtualThreadPerTaskExecutor() or null before JDK 21
+    */
+   public static ExecutorService newVirtualThreadExecutor()
+   {
+      try
+      {
+         return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+      }
+      catch (Exception ex)
+      {
+         return null;
+      }
+   }
+
+   public boolean isVirtualThreads()
+   {
+      return virtualThreads;
+   }
+
+   public void setVirtualThreads(boolean virtualThreads)
+   {
+      this.virtualThreads = virtualThreads;
+   }
+
+   public int getMaxConcurrentRequests()
+   {
+      return maxConcurrentRequests;
+   }
+
+   public void setMaxConcurrentRequests(int maxConcurrentRequests)
+   {
+      this.maxConcurrentRequests = maxConcurrentRequests;
+   }
+
    public int getConfigTimeout()
    {
       return configTimeout;
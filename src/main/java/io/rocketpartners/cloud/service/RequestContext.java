@@ -0,0 +1,296 @@
+/*
+ * Copyright (c) 2015-2018 Rocket Partners, LLC
+ * http://rocketpartners.io
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.rocketpartners.cloud.service;
+
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Function;
+
+import io.rocketpartners.cloud.action.sql.SqlDb.ConnectionLocal;
+
+/**
+ * Holds all of the state that belongs to one top level request: the stack
+ * of Chains for it and any nested requests, plus request scoped resources
+ * such as SqlDb connections and the servlet request/response.
+ * <p>
+ * The context is reachable from the Chain handed to every Action, see
+ * {@link Chain#getContext()}, so Actions don't need thread state.  Work
+ * can be forked onto other threads with {@link #wrap(Callable)} or
+ * {@link #fork()}.  Each fork gets its own chain stack and resources, so
+ * a JDBC connection is never shared between threads, but it is registered
+ * with this context so that {@link #getScope()} can commit, roll back and
+ * close everything the request opened.
+ * <p>
+ * SqlDb.getConnection, the Db select/upsert/delete methods, SqlDb.ConnectionLocal
+ * and Servlet.ServletLocal take the context as a parameter.  Their overloads 
+ * without one, and the static {@link Chain#peek()}, are a deprecated fallback
+ * that looks up the context bound to the current thread.
+ */
+public class RequestContext
+{
+   static ThreadLocal<RequestContext> bound      = new ThreadLocal();
+
+   protected Engine                   engine     = null;
+   protected RequestContext           parent     = null;
+   protected Deque<Chain>             chains     = new ConcurrentLinkedDeque();
+   protected Map<Object, Object>      attributes = new ConcurrentHashMap();
+   protected List<RequestContext>     children   = new CopyOnWriteArrayList();
+
+   public RequestContext(Engine engine)
+   {
+      this.engine = engine;
+   }
+
+   /**
+    * @return the context bound to the current thread or null
+    * @deprecated pass the context, or use {@link Chain#getContext()}, instead
+    */
+   @Deprecated
+   public static RequestContext current()
+   {
+      return bound.get();
+   }
+
+   /**
+    * @return the context bound to the current thread, binding a new one if there is none
+    * @deprecated pass the context, or use {@link Chain#getContext()}, instead
+    */
+   @Deprecated
+   public static RequestContext current(boolean create)
+   {
+      RequestContext ctx = bound.get();
+      if (ctx == null && create)
+      {
+         ctx = new RequestContext(null);
+         bound.set(ctx);
+      }
+      return ctx;
+   }
+
+   /**
+    * Binds <code>ctx</code> to the current thread.
+    *
+    * @return the previously bound context, which should be rebound when done
+    */
+   public static RequestContext bind(RequestContext ctx)
+   {
+      RequestContext previous = bound.get();
+      if (ctx == null)
+         bound.remove();
+      else
+         bound.set(ctx);
+      return previous;
+   }
+
+   public static void unbind()
+   {
+      bound.remove();
+   }
+
+   /**
+    * Wraps <code>task</code>, background work that is not part of any request,
+    * so that it runs with a new context bound to whatever thread calls it.
+    * Connections the task opens are closed, and the thread's previous
+    * context rebound, when it finishes.
+    */
+   public static Runnable detached(Runnable task)
+   {
+      return () -> {
+         RequestContext previous = bindDetached();
+         try
+         {
+            task.run();
+         }
+         finally
+         {
+            unbindDetached(previous);
+         }
+      };
+   }
+
+   /**
+    * Binds a new context for background work, see {@link #detached(Runnable)}.
+    *
+    * @return the previously bound context to hand to {@link #unbindDetached(RequestContext)}
+    */
+   public static RequestContext bindDetached()
+   {
+      return bind(new RequestContext(null));
+   }
+
+   /**
+    * Closes the connections opened by the context bound with
+    * {@link #bindDetached()} and rebinds <code>previous</code>.
+    */
+   public static void unbindDetached(RequestContext previous)
+   {
+      RequestContext ctx = bound.get();
+      try
+      {
+         if (ctx != null)
+            ConnectionLocal.close(ctx);
+      }
+      catch (Exception ex)
+      {
+         //ignore
+      }
+      finally
+      {
+         bind(previous);
+      }
+   }
+
+   /**
+    * Creates a child context for work that will run on another thread.
+    * <p>
+    * The child starts with a copy of this context's chain stack, so
+    * {@link Chain#peek()} and request deadlines work as they would
+    * here, but pushes, pops and resources stay separate.
+    */
+   public RequestContext fork()
+   {
+      RequestContext child = new RequestContext(engine);
+      child.parent = this;
+      child.chains.addAll(chains);
+      children.add(child);
+      return child;
+   }
+
+   /**
+    * @return <code>task</code> wrapped to run in a fork of this context on whatever thread calls it
+    */
+   public <T> Callable<T> wrap(Callable<T> task)
+   {
+      RequestContext child = fork();
+      return () -> {
+         RequestContext previous = bind(child);
+         try
+         {
+            return task.call();
+         }
+         finally
+         {
+            bind(previous);
+         }
+      };
+   }
+
+   /**
+    * @return <code>task</code> wrapped to run in a fork of this context on whatever thread calls it
+    */
+   public Runnable wrap(Runnable task)
+   {
+      RequestContext child = fork();
+      return () -> {
+         RequestContext previous = bind(child);
+         try
+         {
+            task.run();
+         }
+         finally
+         {
+            bind(previous);
+         }
+      };
+   }
+
+   /**
+    * @return this context and every context forked from it, recursively
+    */
+   public List<RequestContext> getScope()
+   {
+      List<RequestContext> scope = new ArrayList();
+      scope.add(this);
+      for (RequestContext child : children)
+         scope.addAll(child.getScope());
+      return scope;
+   }
+
+   //----------------------------------------------------------------------
+   //-- chain stack
+
+   public Chain push(Chain chain)
+   {
+      Chain parent = chains.peekLast();
+      if (parent != null)
+         chain.setParent(parent);
+
+      chains.addLast(chain);
+      return chain;
+   }
+
+   public Chain pop()
+   {
+      return chains.pollLast();
+   }
+
+   public Chain peek()
+   {
+      return chains.peekLast();
+   }
+
+   public Chain first()
+   {
+      return chains.peekFirst();
+   }
+
+   public int getDepth()
+   {
+      return chains.size();
+   }
+
+   //----------------------------------------------------------------------
+   //-- request scoped resources
+
+   public Object get(Object key)
+   {
+      return attributes.get(key);
+   }
+
+   public void put(Object key, Object value)
+   {
+      if (value == null)
+         attributes.remove(key);
+      else
+         attributes.put(key, value);
+   }
+
+   public Object remove(Object key)
+   {
+      return attributes.remove(key);
+   }
+
+   public <T> T computeIfAbsent(Object key, Function<Object, T> factory)
+   {
+      return (T) attributes.computeIfAbsent(key, factory);
+   }
+
+   public Engine getEngine()
+   {
+      return engine;
+   }
+
+   public RequestContext getParent()
+   {
+      return parent;
+   }
+}
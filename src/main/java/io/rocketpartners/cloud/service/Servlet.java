@@ -25,7 +25,9 @@ import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -45,39 +47,83 @@ import io.rocketpartners.cloud.utils.Utils;
 
 public class Servlet extends HttpServlet
 {
+   /**
+    * The servlet request/response for a {@link RequestContext}.  The methods
+    * without a context parameter are a deprecated fallback that uses the 
+    * context bound to the current thread.
+    */
    public static class ServletLocal
    {
-      static ThreadLocal<HttpServletRequest>  request  = new ThreadLocal();
-      static ThreadLocal<HttpServletResponse> response = new ThreadLocal();
+      static final String REQUEST  = ServletLocal.class.getName() + ".request";
+      static final String RESPONSE = ServletLocal.class.getName() + ".response";
 
+      public static void set(RequestContext ctx, HttpServletRequest req, HttpServletResponse res)
+      {
+         ctx.put(REQUEST, req);
+         ctx.put(RESPONSE, res);
+      }
+
+      public static HttpServletRequest getRequest(RequestContext ctx)
+      {
+         return ctx != null ? (HttpServletRequest) ctx.get(REQUEST) : null;
+      }
+
+      public static HttpServletResponse getResponse(RequestContext ctx)
+      {
+         return ctx != null ? (HttpServletResponse) ctx.get(RESPONSE) : null;
+      }
+
+      /**
+       * @deprecated use {@link #set(RequestContext, HttpServletRequest, HttpServletResponse)}
+       */
+      @Deprecated
       public static void set(HttpServletRequest req, HttpServletResponse res)
       {
-         request.set(req);
-         response.set(res);
+         setRequest(req);
+         setResponse(res);
       }
 
+      /**
+       * @deprecated use {@link #set(RequestContext, HttpServletRequest, HttpServletResponse)}
+       */
+      @Deprecated
       public static void setRequest(HttpServletRequest req)
       {
-         request.set(req);
+         RequestContext.current(true).put(REQUEST, req);
       }
 
+      /**
+       * @deprecated use {@link #set(RequestContext, HttpServletRequest, HttpServletResponse)}
+       */
+      @Deprecated
       public static void setResponse(HttpServletResponse res)
       {
-         response.set(res);
+         RequestContext.current(true).put(RESPONSE, res);
       }
 
+      /**
+       * @deprecated use {@link #getRequest(RequestContext)}
+       */
+      @Deprecated
       public static HttpServletRequest getRequest()
       {
-         return request.get();
+         return getRequest(RequestContext.current());
       }
 
+      /**
+       * @deprecated use {@link #getResponse(RequestContext)}
+       */
+      @Deprecated
       public static HttpServletResponse getResponse()
       {
-         return response.get();
+         return getResponse(RequestContext.current());
       }
    }
 
-   Engine engine = null;//new Engine();
+   Engine engine       = null;//new Engine();
+
+   // millis before the container gives up on an async request, the engine's request timeout is used when it is longer
+   long   asyncTimeout = 60000;
 
    public void destroy()
    {
@@ -89,6 +135,20 @@ public class Servlet extends HttpServlet
       engine.startup();
    }
 
+   /**
+    * @return <code>asyncTimeout</code> or, if it is longer, the engine's 
+    *         request timeout plus a second for the engine to write its 504
+    */
+   public long getAsyncTimeout()
+   {
+      return Math.max(asyncTimeout, engine.getRequestTimeout() + 1000L);
+   }
+
+   public void setAsyncTimeout(long asyncTimeout)
+   {
+      this.asyncTimeout = asyncTimeout;
+   }
+
    public Engine getEngine()
    {
       return engine;
@@ -102,7 +162,32 @@ public class Servlet extends HttpServlet
    @Override
    public void service(HttpServletRequest httpReq, HttpServletResponse httpResp) throws ServletException, IOException
    {
-      ServletLocal.set(httpReq, httpResp);
+      if (engine.getRequestExecutor() != null && httpReq.isAsyncSupported())
+      {
+         //-- the container thread is released while the request runs on a virtual thread
+         AsyncContext async = httpReq.startAsync();
+         async.setTimeout(getAsyncTimeout());
+         engine.execute(() -> {
+            try
+            {
+               doService(httpReq, httpResp);
+            }
+            finally
+            {
+               async.complete();
+            }
+         });
+         return;
+      }
+
+      doService(httpReq, httpResp);
+   }
+
+   protected void doService(HttpServletRequest httpReq, HttpServletResponse httpResp)
+   {
+      RequestContext ctx = new RequestContext(engine);
+      RequestContext previous = RequestContext.bind(ctx);
+      ServletLocal.set(ctx, httpReq, httpResp);
 
       Response res = null;
       Request req = null;
@@ -194,14 +279,46 @@ public class Servlet extends HttpServlet
 
          res = new Response();
 
-         engine.service(req, res);
-         writeResponse(req, res, httpResp);
+         CompletableFuture<Chain> future = engine.serviceAsync(req, res);
+         if (future.isDone() || httpReq.isAsyncStarted() || !httpReq.isAsyncSupported())
+         {
+            future.join();
+            writeResponse(req, res, httpResp);
+         }
+         else
+         {
+            //-- an AsyncAction is still waiting, the container thread is released until it is done
+            AsyncContext async = httpReq.startAsync();
+            async.setTimeout(getAsyncTimeout());
+
+            Request request = req;
+            Response response = res;
+            future.whenComplete((chain, ex) -> {
+               try
+               {
+                  writeResponse(request, response, httpResp);
+               }
+               catch (Exception e)
+               {
+                  e.printStackTrace();
+                  httpResp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+               }
+               finally
+               {
+                  async.complete();
+               }
+            });
+         }
       }
       catch (Exception ex)
       {
          ex.printStackTrace();
          httpResp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
       }
+      finally
+      {
+         RequestContext.bind(previous);
+      }
    }
 
    public static String readBody(HttpServletRequest request) throws ApiException
@@ -258,6 +375,7 @@ public class Servlet extends HttpServlet
 
       http.setStatus(res.getStatusCode());
 
+      Response.Streamer stream = res.getStream();
       OutputStream out = http.getOutputStream();
       try
       {
@@ -278,6 +396,14 @@ public class Servlet extends HttpServlet
          {
             //
          }
+         else if (stream != null)
+         {
+            //-- copied straight through, Content-Length, if known, was copied from the remote response
+            if (res.getContentType() != null)
+               http.setContentType(res.getContentType());
+
+            stream.writeTo(out);
+         }
          else
          {
             String contentType = res.getContentType();
@@ -292,8 +418,16 @@ public class Servlet extends HttpServlet
       }
       finally
       {
-         out.flush();
-         out.close();
+         try
+         {
+            out.flush();
+            out.close();
+         }
+         finally
+         {
+            if (stream != null)
+               stream.close();
+         }
       }
    }
 }
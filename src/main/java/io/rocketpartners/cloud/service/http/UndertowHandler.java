@@ -0,0 +1,317 @@
+/*
+ * Copyright (c) 2015-2018 Rocket Partners, LLC
+ * http://rocketpartners.io
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.rocketpartners.cloud.service.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.collections4.multimap.ArrayListValuedHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.rocketpartners.cloud.model.Request;
+import io.rocketpartners.cloud.model.Response;
+import io.rocketpartners.cloud.service.Engine;
+import io.rocketpartners.cloud.utils.Utils;
+import io.undertow.Handlers;
+import io.undertow.Undertow;
+import io.undertow.UndertowOptions;
+import io.undertow.predicate.Predicates;
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.server.handlers.encoding.ContentEncodingRepository;
+import io.undertow.server.handlers.encoding.EncodingHandler;
+import io.undertow.server.handlers.encoding.GzipEncodingProvider;
+import io.undertow.util.HeaderMap;
+import io.undertow.util.HeaderValues;
+import io.undertow.util.Headers;
+import io.undertow.util.HttpString;
+
+/**
+ * Serves an Engine from Undertow core, without a servlet container, for
+ * deployments that don't need Spring Boot.
+ * <p>
+ * undertow-core is an optional dependency, add it to your own build to use
+ * this class.
+ * <p>
+ * Requests are read and written on Undertow's non blocking IO threads using
+ * its pooled buffers.  The request body is received in full before the chain
+ * is run and responses are sent straight from the bytes of the output, or
+ * streamed through a pooled buffer for {@link Response.Streamer}s, never
+ * copied into an intermediate buffer.  Gzipped request bodies are inflated,
+ * and responses of at least <code>gzipMinLength</code> bytes are gzipped,
+ * as they are written, for clients that accept it.
+ * <p>
+ * HTTP/2 is on so a client can run many requests at once over one connection
+ * instead of pipelining them one after another.
+ * <p>
+ * When the Engine has virtual threads on, the chain runs on its request
+ * executor.  Otherwise it runs on a pool of <code>threads</code> Undertow
+ * workers.  Requests are serviced with {@link Engine#serviceAsync(Request, Response)},
+ * so the response is sent from whichever thread finishes the chain.
+ * <p>
+ * Request headers are stored once, under their lower case name.
+ * {@link Request#getHeader(String)} matches names without regard to case,
+ * so "X-Forwarded-Proto" finds "x-forwarded-proto".
+ */
+public class UndertowHandler implements HttpHandler
+{
+   static Logger      log           = LoggerFactory.getLogger(UndertowHandler.class);
+
+   protected Engine   engine        = null;
+   protected int      gzipMinLength = 1024;
+
+   protected Undertow server        = null;
+   protected int      port          = -1;
+
+   public UndertowHandler(Engine engine)
+   {
+      this.engine = engine;
+   }
+
+   /**
+    * Convenience method for serving <code>engine</code> on <code>port</code>.
+    */
+   public static UndertowHandler run(Engine engine, int port)
+   {
+      return new UndertowHandler(engine).start(port, Runtime.getRuntime().availableProcessors() * 8);
+   }
+
+   public synchronized UndertowHandler start(int port, int threads)
+   {
+      engine.startup();
+
+      String context = engine.getServletMapping();
+      context = Utils.empty(context) ? "/" : "/" + Utils.implode("/", Utils.explode("/", context));
+
+      HttpHandler handler = this;
+      if (gzipMinLength >= 0)
+      {
+         ContentEncodingRepository encodings = new ContentEncodingRepository().addEncodingProvider("gzip", new GzipEncodingProvider(), 50, Predicates.maxContentSize(gzipMinLength - 1));
+         handler = new EncodingHandler(handler, encodings);
+      }
+
+      server = Undertow.builder()//
+                       .addHttpListener(port, "0.0.0.0")//
+                       .setIoThreads(Math.max(2, Runtime.getRuntime().availableProcessors()))//
+                       .setWorkerThreads(threads)//
+                       .setServerOption(UndertowOptions.ENABLE_HTTP2, true)//
+                       .setHandler(Handlers.path().addPrefixPath(context, handler))//
+                       .build();
+      server.start();
+      this.port = port;
+
+      log.info("Serving on port " + port + " at " + context);
+      return this;
+   }
+
+   public synchronized void stop()
+   {
+      if (server != null)
+      {
+         server.stop();
+         server = null;
+      }
+   }
+
+   @Override
+   public void handleRequest(HttpServerExchange exchange) throws Exception
+   {
+      //-- the callback runs once the whole body is in, without holding a thread while it arrives
+      exchange.getRequestReceiver().receiveFullBytes((ex, body) -> {
+
+         Request req = null;
+         try
+         {
+            req = buildRequest(ex, body);
+         }
+         catch (Exception e)
+         {
+            log.warn("Unable to read request", e);
+            ex.setStatusCode(400);
+            ex.endExchange();
+            return;
+         }
+
+         Request request = req;
+         Executor executor = engine.getRequestExecutor();
+         if (executor == null)
+            executor = ex.getConnection().getWorker();
+
+         //-- the chain may block on a db so it is never run on an IO thread
+         ex.dispatch(executor, () -> {
+            Response res = new Response();
+            engine.serviceAsync(request, res).whenComplete((chain, e) -> {
+               try
+               {
+                  writeResponse(request, res, ex);
+               }
+               catch (Exception e2)
+               {
+                  log.warn("Error writing response", e2);
+                  ex.endExchange();
+               }
+            });
+         });
+
+      }, (ex, e) -> {
+         log.warn("Unable to read request", e);
+         ex.setStatusCode(400);
+         ex.endExchange();
+      });
+   }
+
+   protected Request buildRequest(HttpServerExchange exchange, byte[] bytes) throws Exception
+   {
+      HeaderMap httpHeaders = exchange.getRequestHeaders();
+
+      ArrayListValuedHashMap<String, String> headers = new ArrayListValuedHashMap();
+      for (HeaderValues header : httpHeaders)
+      {
+         headers.putAll(header.getHeaderName().toString().toLowerCase(), header);
+      }
+
+      String url = exchange.getRequestScheme() + "://" + exchange.getHostAndPort() + exchange.getRequestURI();
+      if (!url.endsWith("/"))
+         url += "/";
+
+      if (!Utils.empty(exchange.getQueryString()))
+         url += "?" + exchange.getQueryString();
+
+      String body = readBody(bytes, "gzip".equalsIgnoreCase(httpHeaders.getFirst(Headers.CONTENT_ENCODING)));
+
+      Request req = new Request(exchange.getRequestMethod().toString(), url, body, headers, -1);
+      req.withRemoteAddr(exchange.getSourceAddress().getAddress().getHostAddress());
+
+      //-- form posts are merged into the params the same way a servlet container does
+      String contentType = httpHeaders.getFirst(Headers.CONTENT_TYPE);
+      if (body != null && contentType != null && contentType.toLowerCase().startsWith("application/x-www-form-urlencoded"))
+      {
+         for (String pair : Utils.explode("&", body))
+         {
+            int eq = pair.indexOf('=');
+            String key = URLDecoder.decode(eq > 0 ? pair.substring(0, eq) : pair, "UTF-8");
+            String value = eq > 0 ? URLDecoder.decode(pair.substring(eq + 1), "UTF-8") : "";
+            req.getUrl().withParams(key, value);
+         }
+      }
+
+      return req;
+   }
+
+   protected String readBody(byte[] bytes, boolean gzipped) throws IOException
+   {
+      if (bytes == null || bytes.length == 0)
+         return null;
+
+      if (!gzipped)
+         return new String(bytes, "UTF-8");
+
+      try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(bytes)))
+      {
+         ByteArrayOutputStream inflated = new ByteArrayOutputStream(bytes.length * 4);
+         byte[] buff = new byte[8192];
+         int read = 0;
+         while ((read = in.read(buff)) > -1)
+            inflated.write(buff, 0, read);
+
+         return inflated.size() == 0 ? null : new String(inflated.toByteArray(), "UTF-8");
+      }
+   }
+
+   protected void writeResponse(Request req, Response res, HttpServerExchange exchange) throws IOException
+   {
+      exchange.setStatusCode(res.getStatusCode());
+
+      HeaderMap headers = exchange.getResponseHeaders();
+      for (String key : res.getHeaders().keySet())
+         headers.putAll(HttpString.tryFromString(key), res.getHeaders().get(key));
+
+      if (res.getContentType() != null)
+         headers.put(Headers.CONTENT_TYPE, res.getContentType());
+
+      String method = req.getMethod();
+      boolean bodyless = "OPTIONS".equalsIgnoreCase(method) || "HEAD".equalsIgnoreCase(method);
+
+      Response.Streamer stream = res.getStream();
+      if (stream != null)
+      {
+         try
+         {
+            if (bodyless || "0".equals(headers.getFirst(Headers.CONTENT_LENGTH)))
+            {
+               exchange.setResponseContentLength(0);
+               exchange.endExchange();
+               return;
+            }
+
+            //-- without a Content-Length header the body is chunked
+            exchange.startBlocking();
+            stream.writeTo(exchange.getOutputStream());
+            exchange.endExchange();
+         }
+         finally
+         {
+            stream.close();
+         }
+         return;
+      }
+
+      String output = res.getOutput();
+      if (bodyless || output == null || output.length() == 0)
+      {
+         exchange.setResponseContentLength(0);
+         exchange.endExchange();
+         return;
+      }
+
+      //-- a fixed length lets the connection be reused for the next request
+      byte[] bytes = output.getBytes("UTF-8");
+      exchange.setResponseContentLength(bytes.length);
+      exchange.getResponseSender().send(ByteBuffer.wrap(bytes));
+   }
+
+   public int getGzipMinLength()
+   {
+      return gzipMinLength;
+   }
+
+   /**
+    * Takes effect the next time the server is started.
+    *
+    * @param gzipMinLength responses at least this many bytes are gzipped, -1 disables gzip
+    */
+   public void setGzipMinLength(int gzipMinLength)
+   {
+      this.gzipMinLength = gzipMinLength;
+   }
+
+   public Undertow getServer()
+   {
+      return server;
+   }
+
+   public int getPort()
+   {
+      return port;
+   }
+}
@@ -16,16 +16,26 @@
 package io.rocketpartners.cloud.service.lambda;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.util.Base64;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.RequestStreamHandler;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
 
 import io.rocketpartners.cloud.model.JSNode;
 import io.rocketpartners.cloud.model.Request;
@@ -36,12 +46,93 @@ import io.rocketpartners.cloud.service.Engine;
 import io.rocketpartners.cloud.utils.Utils;
 
 /**
+ * Lambda entry point for API Gateway proxy requests.
+ * <p>
+ * By default the Engine is built and started by the first request.  Setting
+ * the <code>INVERSION_PRIME</code> env var, or system property, to true builds 
+ * and starts the Engine when the runtime constructs this handler instead, 
+ * which happens during the Lambda init phase and so is captured by SnapStart 
+ * and provisioned concurrency.  Because no request is available yet, the 
+ * profile and servlet mapping are taken from <code>INVERSION_PROFILE</code> 
+ * and <code>INVERSION_SERVLET_MAPPING</code>.
+ * <p>
+ * <code>INVERSION_PRIME_REQUESTS</code> is an optional comma separated list of 
+ * "METHOD url" pairs, ex "GET /northwind/orders?pageSize=1", run through the 
+ * Engine after startup to open connection pools and warm the JIT.  Priming 
+ * also turns on {@link Engine#isLazyDbStartup()}.
+ * 
  * @author wells
  */
 public class ApiGatewayRequestStreamHandler implements RequestStreamHandler
 {
-   Engine engine = null;
-   boolean debug   = false;
+   Logger  log           = LoggerFactory.getLogger(getClass());
+
+   Engine  engine        = null;
+   boolean debug         = false;
+
+   // bodies at least this long are gzipped for clients that accept it, -1 disables
+   int     gzipMinLength = -1;
+
+   public ApiGatewayRequestStreamHandler()
+   {
+      if (getConfig("INVERSION_GZIP_MIN_LENGTH") != null)
+         gzipMinLength = Integer.parseInt(getConfig("INVERSION_GZIP_MIN_LENGTH").trim());
+
+      if ("true".equalsIgnoreCase(getConfig("INVERSION_PRIME")))
+         prime(getConfig("INVERSION_PROFILE"), getConfig("INVERSION_SERVLET_MAPPING"), getConfig("INVERSION_PRIME_REQUESTS"));
+   }
+
+   /**
+    * Builds and starts the engine and then runs each of the
+    * <code>primeRequests</code> through it.  Failures are 
+    * logged and otherwise ignored, priming is only an optimization.
+    */
+   protected void prime(String profile, String servletPath, String primeRequests)
+   {
+      long start = System.currentTimeMillis();
+      try
+      {
+         synchronized (this)
+         {
+            if (engine == null)
+            {
+               Engine engine = buildEngine(profile, servletPath);
+               engine.setLazyDbStartup(true);
+               engine.startup();
+               this.engine = engine;
+            }
+         }
+
+         if (!Utils.empty(primeRequests))
+         {
+            for (String primeRequest : Utils.explode(",", primeRequests))
+            {
+               List<String> parts = Utils.explode(" ", primeRequest);
+               String method = parts.size() > 1 ? parts.get(0) : "GET";
+               String url = parts.get(parts.size() - 1);
+               if (!url.startsWith("http"))
+                  url = "http://localhost" + (url.startsWith("/") ? "" : "/") + url;
+
+               Response res = engine.service(method, url);
+               debug("Prime " + method + " " + url + " -> " + res.getStatusCode());
+            }
+         }
+      }
+      catch (Throwable ex)
+      {
+         log.warn("Error priming engine: " + Utils.getShortCause(ex), ex);
+      }
+
+      debug("Primed engine in " + (System.currentTimeMillis() - start) + "ms");
+   }
+
+   static String getConfig(String name)
+   {
+      String value = System.getProperty(name);
+      if (value == null)
+         value = System.getenv(name);
+      return value;
+   }
 
    public void handleRequest(InputStream inputStream, OutputStream outputStream, Context context) throws IOException
    {
@@ -52,15 +143,14 @@ public class ApiGatewayRequestStreamHandler implements RequestStreamHandler
    {
       Chain chain = null;
 
-      String input = Utils.read(new BufferedInputStream(inputStream));
-
       JSNode responseBody = new JSNode();
       JSNode config = null;
+      JSNode json = null;
       Exception ex = null;
 
       try
       {
-         JSNode json = Utils.parseJsonMap(input);
+         json = (JSNode) Utils.parseJson(new BufferedInputStream(inputStream));
 
          debug("Request Event");
          debug(json.toString(false));
@@ -129,7 +219,7 @@ public class ApiGatewayRequestStreamHandler implements RequestStreamHandler
 
          if (outputStream != null)
          {
-            writeResponse(res, outputStream);
+            writeResponse(req, res, outputStream);
          }
 
       }
@@ -146,7 +236,8 @@ public class ApiGatewayRequestStreamHandler implements RequestStreamHandler
 
             responseBody.put("error", Utils.getShortCause(ex));
 
-            responseBody.put("request", Utils.parseJsonMap(input));
+            if (json != null)
+               responseBody.put("request", json);
 
             JSNode responseJson = new JSNode();
             responseJson.put("isBase64Encoded", false);
@@ -182,13 +273,67 @@ public class ApiGatewayRequestStreamHandler implements RequestStreamHandler
 
    protected void writeResponse(Response res, OutputStream outputStream) throws IOException
    {
-      JSNode responseJson = new JSNode();
+      writeResponse(null, res, outputStream);
+   }
+
+   /**
+    * Streams the API Gateway proxy envelope straight to <code>outputStream</code> 
+    * so the response body is escaped exactly once and never copied into an 
+    * intermediate JSNode.
+    * <p>
+    * If <code>gzipMinLength</code> is 0 or more, the client sent "Accept-Encoding: gzip"
+    * and the body is at least that long, the body is gzipped and base64 encoded.  
+    * API Gateway will only decode it if a binary media type is configured for the api.
+    * <p>
+    * A streamed body is buffered, textual ones are written as is and anything
+    * else is base64 encoded.
+    */
+   protected void writeResponse(Request req, Response res, OutputStream outputStream) throws IOException
+   {
+      String output = res.getOutput();
+      boolean gzip = gzipMinLength >= 0 && output != null && output.length() >= gzipMinLength && acceptsGzip(req);
+      boolean base64 = gzip;
+
+      if (res.getStream() != null)
+      {
+         //-- the proxy envelope has to carry the whole body, so a streamed body is buffered here
+         ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+         try
+         {
+            res.getStream().writeTo(bytes);
+         }
+         finally
+         {
+            res.getStream().close();
+         }
+         gzip = false;
+
+         //-- only binary bodies need base64, text goes in the envelope as is
+         if (isText(res))
+         {
+            output = new String(bytes.toByteArray(), "UTF-8");
+         }
+         else
+         {
+            output = Base64.getEncoder().encodeToString(bytes.toByteArray());
+            base64 = true;
+         }
+      }
+      else if (gzip)
+      {
+         ByteArrayOutputStream bytes = new ByteArrayOutputStream(output.length() / 4);
+         GZIPOutputStream gz = new GZIPOutputStream(bytes);
+         gz.write(output.getBytes("UTF-8"));
+         gz.close();
+         output = Base64.getEncoder().encodeToString(bytes.toByteArray());
+      }
 
-      responseJson.put("isBase64Encoded", false);
-      responseJson.put("statusCode", res.getStatusCode());
-      JSNode headers = new JSNode();
-      responseJson.put("headers", headers);
+      JsonGenerator json = new JsonFactory().createGenerator(new BufferedOutputStream(outputStream, 8192), JsonEncoding.UTF8);
+      json.writeStartObject();
+      json.writeBooleanField("isBase64Encoded", base64);
+      json.writeNumberField("statusCode", res.getStatusCode());
 
+      json.writeObjectFieldStart("headers");
       for (String key : res.getHeaders().keySet())
       {
          List values = res.getHeaders().get(key);
@@ -199,15 +344,66 @@ public class ApiGatewayRequestStreamHandler implements RequestStreamHandler
             if (i < values.size() - 1)
                buff.append(",");
          }
-         headers.put(key, buff.toString());
+         json.writeStringField(key, buff.toString());
       }
+      if (gzip)
+         json.writeStringField("Content-Encoding", "gzip");
+      json.writeEndObject();
 
-      String output = res.getOutput();
+      json.writeStringField("body", output);
+      json.writeEndObject();
+      json.close();
+   }
+
+   /**
+    * A streamed body is text when its Content-Type is text/*, json, xml or
+    * javascript in UTF-8 and it has no Content-Encoding.
+    */
+   protected boolean isText(Response res)
+   {
+      String type = res.getContentType();
+      for (String key : res.getHeaders().keySet())
+      {
+         List<String> values = res.getHeaders().get(key);
+         if (values.isEmpty())
+            continue;
+
+         if ("content-encoding".equalsIgnoreCase(key) && !"identity".equalsIgnoreCase(values.get(0).trim()))
+            return false;
 
-      responseJson.put("body", output);
-      OutputStreamWriter writer = new OutputStreamWriter(outputStream, "UTF-8");
-      writer.write(responseJson.toString());
-      writer.close();
+         if (type == null && "content-type".equalsIgnoreCase(key))
+            type = values.get(0);
+      }
+
+      if (type == null)
+         return false;
+
+      type = type.toLowerCase();
+      int charset = type.indexOf("charset=");
+      if (charset > -1 && !type.substring(charset + 8).trim().replace("\"", "").startsWith("utf-8"))
+         return false;
+
+      return type.startsWith("text/") || type.contains("json") || type.contains("xml") || type.contains("javascript");
+   }
+
+   protected boolean acceptsGzip(Request req)
+   {
+      if (req == null)
+         return false;
+
+      //-- API Gateway may pass header names in any case
+      for (String key : req.getHeaders().keySet())
+      {
+         if ("accept-encoding".equalsIgnoreCase(key))
+         {
+            for (String value : req.getHeaders().get(key))
+            {
+               if (value != null && value.toLowerCase().indexOf("gzip") > -1)
+                  return true;
+            }
+         }
+      }
+      return false;
    }
 
    public void debug(String msg)
@@ -218,6 +414,16 @@ public class ApiGatewayRequestStreamHandler implements RequestStreamHandler
       }
    }
 
+   public int getGzipMinLength()
+   {
+      return gzipMinLength;
+   }
+
+   public void setGzipMinLength(int gzipMinLength)
+   {
+      this.gzipMinLength = gzipMinLength;
+   }
+
    public boolean isDebug()
    {
       return debug;
@@ -30,6 +30,7 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
@@ -66,6 +67,7 @@ public class Configurator
    Logger                     log            = LoggerFactory.getLogger(Engine.class.getName() + ".configuration");
 
    Engine                     engine         = null;
+   boolean                    loaded         = false;
 
    public synchronized void loadConfig(Engine engine)
    {
@@ -81,12 +83,18 @@ public class Configurator
          if (config.files.size() == 0)
             return;
 
+         for (String fileName : config.files)
+         {
+            log.warn("LOADING CONFIG FILE: " + fileName);
+         }
+
          //all this does is set inversion.* properties on the engine class
          Wirer w = new Wirer();
          w.putBean(ROOT_BEAN_NAME, engine);
          w.load(config.props);
 
-         loadConfig(config, true, engine.isConfigFast());
+         loadConfig(config, true, null, engine.isConfigFast());
+         loaded = true;
       }
       catch (Exception e)
       {
@@ -95,13 +103,88 @@ public class Configurator
       }
    }
 
+   /**
+    * Reloads the config files and swaps in new copies of any Apis
+    * whose configuration has changed.  Unchanged Apis are left alone.
+    */
+   public synchronized void reloadConfig() throws Exception
+   {
+      if (engine == null)
+         return;
+
+      Config config = findConfig();
+
+      if (config.files.size() == 0)
+         return;
+
+      boolean changed = false;
+      for (Api api : engine.getApis())
+      {
+         //-- apis without a hash were added in code, not loaded from config
+         if (api.getHash() != null && !config.hash.equals(api.getHash()))
+            changed = true;
+      }
+
+      if (changed)
+      {
+         log.info("Config changed, reloading");
+         loadConfig(config, false, null, engine.isConfigFast());
+      }
+   }
+
+   /**
+    * Rebuilds a single Api from the config files, even if they have not 
+    * changed, and swaps it into the Engine.
+    * <p>
+    * This is how a db whose schema changed at runtime picks up the new
+    * model without losing the renames, excludes and relationships that 
+    * the config files apply on top of the bootstrapped collections.
+    * 
+    * @return false if the Api was not loaded from config files and can't be rebuilt
+    */
+   public synchronized boolean reloadApi(String apiCode) throws Exception
+   {
+      if (engine == null)
+         return false;
+
+      Api existing = engine.getApi(apiCode);
+      if (existing == null || existing.getHash() == null)
+         return false;
+
+      Config config = findConfig();
+
+      if (config.files.size() == 0)
+         return false;
+
+      log.info("Reloading Api '" + apiCode + "'");
+      loadConfig(config, false, apiCode, engine.isConfigFast());
+      return engine.getApi(apiCode) != existing;
+   }
+
+   /**
+    * @return true if Apis were loaded from config files
+    */
+   public boolean isLoaded()
+   {
+      return engine != null && loaded;
+   }
+
    public static Properties encode(Object... beans) throws Exception
    {
       Properties autoProps = Wirer.encode(new WirerSerializerNamer(), new WirerSerializerIncluder(), beans);
       return autoProps;
    }
 
-   void loadConfig(Config config, boolean forceReload, boolean fastLoad) throws Exception
+   /**
+    * @return true if <code>api</code> should replace the one with the same apiCode in the Engine
+    */
+   boolean needsLoad(Api api, Config config, boolean forceReload, String reloadApiCode)
+   {
+      Api existingApi = engine.getApi(api.getApiCode());
+      return forceReload || existingApi == null || !config.hash.equals(existingApi.getHash()) || api.getApiCode().equalsIgnoreCase(reloadApiCode);
+   }
+
+   void loadConfig(Config config, boolean forceReload, String reloadApiCode, boolean fastLoad) throws Exception
    {
       Wirer wire = new Wirer()
          {
@@ -128,6 +211,7 @@ public class Configurator
       autoWireApi(wire);
 
       boolean doLoad = false;
+      List<Db> bootstrapDbs = new ArrayList();
 
       if (!fastLoad)
       {
@@ -136,8 +220,7 @@ public class Configurator
             if (Utils.empty(api.getApiCode()))
                throw new ApiException(SC.SC_500_INTERNAL_SERVER_ERROR, "Api '" + api.getApiCode() + "' is missing an 'apiCode'.  An Api cannot be loaded without one.");
 
-            Api existingApi = engine.getApi(api.getApiCode());
-            if (forceReload || existingApi == null || !existingApi.getHash().equals(config.hash))
+            if (needsLoad(api, config, forceReload, reloadApiCode))
             {
                doLoad = true;
 
@@ -150,19 +233,35 @@ public class Configurator
 
          if (doLoad)
          {
-            //-- this serializes out the object model that was bootsrapped off of the
-            //-- configuration files.  At this point the db.startup() has been called
-            //-- on all of the DBs and they configured collections on the Api.  
-            Properties autoProps = Wirer.encode(new WirerSerializerNamer(), new WirerSerializerIncluder(), wire.getBeans(Api.class).toArray());
-            autoProps.putAll(config.props);
-            wire.clear();
-            wire.load(autoProps);
-            
-            
-            autoWireApi(wire);
+            Properties autoProps = null;
+
+            if (engine.isConfigDirect())
+            {
+               //-- the user props are set straight onto the model that db.startup() built
+               overrideModel(wire);
+            }
+            else
+            {
+               //-- this serializes out the object model that was bootsrapped off of the
+               //-- configuration files.  At this point the db.startup() has been called
+               //-- on all of the DBs and they configured collections on the Api.  
+               autoProps = Wirer.encode(new WirerSerializerNamer(), new WirerSerializerIncluder(), wire.getBeans(Api.class).toArray());
+               autoProps.putAll(config.props);
+               bootstrapDbs.addAll(wire.getBeans(Db.class));
+               wire.clear();
+               wire.load(autoProps);
+
+               autoWireApi(wire);
+            }
 
             if (!Utils.empty(engine.getConfigOut()))
             {
+               if (autoProps == null)
+               {
+                  autoProps = Wirer.encode(new WirerSerializerNamer(), new WirerSerializerIncluder(), wire.getBeans(Api.class).toArray());
+                  autoProps.putAll(config.props);
+               }
+
                String fileName = "./" + engine.getConfigOut().trim();
 
                File file = new File(fileName);
@@ -219,8 +318,7 @@ public class Configurator
       {
          for (Api api : wire.getBeans(Api.class))
          {
-            Api existingApi = engine.getApi(api.getApiCode());
-            if (forceReload || existingApi == null || !existingApi.getHash().equals(config.hash))
+            if (needsLoad(api, config, forceReload, reloadApiCode))
             {
                api.withHash(config.hash);
                api.removeExcludes();
@@ -228,6 +326,11 @@ public class Configurator
             }
          }
 
+         //-- the dbs that were started only to be encoded and re-wired are released 
+         //-- so their pool references and schema checks don't outlive the load
+         for (Db db : bootstrapDbs)
+            db.shutdown();
+
          // if (log.isInfoEnabled() && service.isConfigDebug())
          {
             List<String> keys = new ArrayList(config.props.keySet());
@@ -251,6 +354,51 @@ public class Configurator
       }
    }
 
+   /**
+    * Names the Tables, Columns, Indexes, Collections, Entities, Attributes and
+    * Relationships that db.startup() created exactly as {@link #encode(Object...)}
+    * would and hands them to the Wirer so user properties keyed by those names,
+    * ex "myapi.collections.mydb_orders.name=purchases", override the live objects.
+    */
+   void overrideModel(Wirer wire) throws Exception
+   {
+      Namer namer = new WirerSerializerNamer();
+      Map<String, Object> model = new LinkedHashMap();
+
+      for (Api api : wire.getBeans(Api.class))
+      {
+         for (Db db : api.getDbs())
+         {
+            for (Table table : (List<Table>) db.getTables())
+            {
+               model.put(namer.getName(table), table);
+
+               for (Column column : table.getColumns())
+                  model.put(namer.getName(column), column);
+
+               for (Index index : table.getIndexes())
+                  model.put(namer.getName(index), index);
+            }
+         }
+
+         for (Collection collection : api.getCollections())
+         {
+            model.put(namer.getName(collection), collection);
+
+            Entity entity = collection.getEntity();
+            model.put(namer.getName(entity), entity);
+
+            for (Attribute attr : entity.getAttributes())
+               model.put(namer.getName(attr), attr);
+
+            for (Relationship rel : entity.getRelationships())
+               model.put(namer.getName(rel), rel);
+         }
+      }
+
+      wire.override(model);
+   }
+
    void autoWireApi(Wirer wire)
    {
       List<Api> apis = wire.getBeans(Api.class);
@@ -450,6 +598,7 @@ public class Configurator
          {
             config.files.add(fileName);
             config.props.load(is);
+            is.close();
          }
       }
 
@@ -483,6 +632,7 @@ public class Configurator
             {
                config.files.add(fileName);
                config.props.load(is);
+               is.close();
             }
          }
       }
@@ -491,13 +641,6 @@ public class Configurator
       {
          log.warn("\n\n#########################################################################\n# WARNING!!! No '.properties' files have been loaded.                   #\n# Are you still using snooze.properties? Change to inversion.properties #\n#########################################################################\n");
       }
-      //      else
-      //      {
-      for (String fileName : config.files)
-      {
-         log.warn("LOADING CONFIG FILE: " + fileName);
-      }
-      //      }
 
       List keys = new ArrayList(config.props.keySet());
       Collections.sort(keys);
@@ -20,25 +20,32 @@ package io.rocketpartners.cloud.utils;
 
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URI;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.Vector;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.SSLContext;
-import javax.swing.SwingUtilities;
 
 import org.apache.commons.collections4.multimap.ArrayListValuedHashMap;
 import org.apache.commons.logging.Log;
@@ -64,9 +71,15 @@ import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.ssl.SSLContextBuilder;
 import org.apache.http.ssl.TrustStrategy;
 
+import io.rocketpartners.cloud.model.ApiException;
+import io.rocketpartners.cloud.model.JSArray;
+import io.rocketpartners.cloud.model.JSNode;
 import io.rocketpartners.cloud.model.Request;
 import io.rocketpartners.cloud.model.Response;
+import io.rocketpartners.cloud.model.SC;
 import io.rocketpartners.cloud.model.Url;
+import io.rocketpartners.cloud.service.Chain;
+import io.rocketpartners.cloud.service.RequestContext;
 
 /**
  * 
@@ -79,14 +92,31 @@ public class HttpUtils
 
    static final int DEFAULT_TIMEOUT          = 30000;
 
-   static final int POOL_MIN                 = 2;
    static final int POOL_MAX                 = 100;
    static final int QUEUE_MAX                = 500;
+   static final int HOST_MAX                 = 20;
    static final int DEFAULT_RETRY_ATTEMPTS   = 5;
    static final int TOTAL_MAX_RETRY_ATTEMPTS = 50;
+   static final int RETRY_DELAY_MAX          = 30000;
+   static final int BUFFER_SIZE              = 16 * 1024;
 
-   static Executor  pool                     = null;
-   static Timer     timer                    = null;
+   /**
+    * Runs the calls.  Threads are started as needed up to POOL_MAX and
+    * time out when idle.  Once QUEUE_MAX calls are waiting, new calls
+    * fail fast with a 503 instead of queueing without bound.
+    */
+   static final ThreadPoolExecutor                   pool     = newPool();
+
+   static final ScheduledExecutorService             retries  = Executors.newSingleThreadScheduledExecutor(daemonThreads("HttpUtils retry"));
+
+   static final AtomicLong                           rejected = new AtomicLong(0);
+
+   static final ConcurrentHashMap<String, HostStats> hosts    = new ConcurrentHashMap();
+
+   static volatile HttpClient                        client   = null;
+
+   //-- copy buffers for streamed responses, reused so proxying allocates nothing per call
+   static final ArrayBlockingQueue<byte[]>           buffers  = new ArrayBlockingQueue(POOL_MAX);
 
    public static FutureResponse get(String url)
    {
@@ -115,6 +145,9 @@ public class HttpUtils
 
    public static FutureResponse rest(final Request request)
    {
+      //-- captured here because the call runs on an executor thread
+      final long deadline = Chain.getRequestDeadline();
+
       final FutureResponse future = new FutureResponse()
          {
             public void run()
@@ -134,10 +167,25 @@ public class HttpUtils
                HttpRequestBase req = null;
                File tempFile = null;
 
+               HostStats stats = getHostStats(request.getUrl().getHost());
+               stats.active.incrementAndGet();
+               long start = System.nanoTime();
+
                try
                {
                   int timeout = 30000;
 
+                  if (deadline > 0)
+                  {
+                     long remaining = deadline - System.currentTimeMillis();
+                     if (remaining <= 0)
+                     {
+                        retryable = false;
+                        throw new ApiException(SC.SC_504_GATEWAY_TIMEOUT, "The request deadline passed before calling " + url);
+                     }
+                     timeout = (int) Math.min(timeout, remaining);
+                  }
+
                   HttpClient h = getHttpClient();
                   HttpResponse hr = null;
 
@@ -286,6 +334,8 @@ public class HttpUtils
                }
                finally
                {
+                  stats.record(System.nanoTime() - start, response.isSuccess());
+
                   if (req != null)
                   {
                      try
@@ -300,11 +350,12 @@ public class HttpUtils
 
                   // If this is a retryable response, submit it later
                   // Since we resetRetryCount upon any successful response, we are still guarding against a crazy large amount of retries with the TOTAL_MAX_RETRY_ATTEMPTS
-                  if (retryable && this.getRetryCount() < request.getRetryAttempts() && !response.isSuccess() && this.getTotalRetries() < TOTAL_MAX_RETRY_ATTEMPTS)
+                  if (retryable && this.getRetryCount() < request.getRetryAttempts() && !response.isSuccess() && this.getTotalRetries() < TOTAL_MAX_RETRY_ATTEMPTS //
+                        && (deadline <= 0 || System.currentTimeMillis() + getRetryDelay(this.getRetryCount() + 1) < deadline))
                   {
                      this.incrementRetryCount();
 
-                     long timeout = (1000 * this.getRetryCount() * this.getRetryCount()) + (int) (1000 * Math.random() * this.getRetryCount());
+                     long timeout = getRetryDelay(this.getRetryCount());
 
                      debug("retrying: " + this.getRetryCount() + " - " + timeout + " - " + url);
 
@@ -335,6 +386,146 @@ public class HttpUtils
 
    }
 
+   /**
+    * Proxies <code>request</code> into <code>res</code> without reading the remote body.
+    * <p>
+    * The call is made on the calling thread and returns once the status
+    * line and headers are in.  They are copied onto <code>res</code> along
+    * with a {@link Response.Streamer} that copies the remote body to the 
+    * client through a pooled buffer when the response is written, so heap 
+    * use stays the same no matter how large the payload is.  The remote 
+    * connection is held until the streamer is closed.
+    * <p>
+    * Request headers, including Range and If-Range, are sent as is so range
+    * requests pass straight through and the 206 status, Content-Range and
+    * Content-Length come back.  Hop by hop headers are not forwarded either way.
+    */
+   public static Response stream(Request request, Response res) throws Exception
+   {
+      String url = request.getUrl().toString();
+
+      long remaining = Chain.getTimeRemaining();
+      if (remaining <= 0)
+         throw new ApiException(SC.SC_504_GATEWAY_TIMEOUT, "The request deadline passed before calling " + url);
+      int timeout = (int) Math.min(DEFAULT_TIMEOUT, remaining);
+
+      String m = request.getMethod();
+      HttpRequestBase req = null;
+      if ("post".equalsIgnoreCase(m))
+         req = new HttpPost(url);
+      else if ("put".equalsIgnoreCase(m))
+         req = new HttpPut(url);
+      else if ("delete".equalsIgnoreCase(m))
+         req = request.getBody() != null ? new HttpDeleteWithBody(url) : new HttpDelete(url);
+      else
+         req = new HttpGet(url);
+
+      if (request.getHeaders() != null)
+      {
+         for (String key : request.getHeaders().keySet())
+         {
+            //-- the client sets the length of the body it sends
+            if (isHopByHop(key) || "content-length".equalsIgnoreCase(key))
+               continue;
+
+            for (String value : request.getHeaders().get(key))
+               req.addHeader(key, value);
+         }
+      }
+
+      if (request.getBody() != null && req instanceof HttpEntityEnclosingRequestBase)
+         ((HttpEntityEnclosingRequestBase) req).setEntity(new StringEntity(request.getBody(), "UTF-8"));
+
+      req.setConfig(RequestConfig.custom().setSocketTimeout(timeout).setConnectTimeout(timeout).setConnectionRequestTimeout(timeout).build());
+
+      HostStats stats = getHostStats(request.getUrl().getHost());
+      stats.active.incrementAndGet();
+      long start = System.nanoTime();
+
+      HttpResponse hr = null;
+      try
+      {
+         hr = getHttpClient().execute(req);
+      }
+      catch (Exception ex)
+      {
+         stats.record(System.nanoTime() - start, false);
+         req.releaseConnection();
+         throw ex;
+      }
+
+      int status = hr.getStatusLine().getStatusCode();
+      res.withStatusCode(status);
+      res.withStatusMesg(hr.getStatusLine().getReasonPhrase());
+      for (Header header : hr.getAllHeaders())
+      {
+         if (!isHopByHop(header.getName()))
+            res.withHeader(header.getName(), header.getValue());
+      }
+
+      final HttpRequestBase connection = req;
+      final HttpEntity entity = hr.getEntity();
+      res.withStream(new Response.Streamer()
+         {
+            AtomicBoolean closed = new AtomicBoolean(false);
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException
+            {
+               if (entity == null)
+                  return;
+
+               byte[] buff = buffers.poll();
+               if (buff == null)
+                  buff = new byte[BUFFER_SIZE];
+
+               try (InputStream in = entity.getContent())
+               {
+                  int read = 0;
+                  while ((read = in.read(buff)) > -1)
+                     out.write(buff, 0, read);
+
+                  out.flush();
+               }
+               finally
+               {
+                  buffers.offer(buff);
+               }
+            }
+
+            @Override
+            public void close()
+            {
+               if (!closed.compareAndSet(false, true))
+                  return;
+
+               stats.record(System.nanoTime() - start, status >= 200 && status < 300);
+               connection.releaseConnection();
+            }
+         });
+
+      return res;
+   }
+
+   static boolean isHopByHop(String header)
+   {
+      switch (header.toLowerCase())
+      {
+         case "connection":
+         case "keep-alive":
+         case "proxy-authenticate":
+         case "proxy-authorization":
+         case "te":
+         case "trailer":
+         case "transfer-encoding":
+         case "upgrade":
+         case "host":
+            return true;
+         default :
+            return false;
+      }
+   }
+
    public static boolean isNetworkException(Exception ex)
    {
       return ex instanceof org.apache.http.conn.HttpHostConnectException //
@@ -348,30 +539,135 @@ public class HttpUtils
       ;
    }
 
-   static synchronized void submit(FutureResponse future)
+   static void submit(FutureResponse future)
    {
-      if (pool == null)
-         pool = new Executor(POOL_MIN, POOL_MAX, QUEUE_MAX);
+      pool.execute(future);
+   }
 
-      pool.submit(future);
+   static void submitLater(final FutureResponse future, long delay)
+   {
+      retries.schedule(() -> submit(future), delay, TimeUnit.MILLISECONDS);
    }
 
-   static synchronized void submitLater(final FutureResponse future, long delay)
+   /**
+    * Exponential backoff from one second, capped at RETRY_DELAY_MAX,
+    * with half of the delay randomized so that calls that failed 
+    * together don't all retry together.
+    */
+   static long getRetryDelay(int retryCount)
    {
-      if (timer == null)
-      {
-         timer = new Timer();
-      }
+      long delay = Math.min(RETRY_DELAY_MAX, 1000L << Math.min(retryCount - 1, 15));
+      return delay / 2 + (long) (Math.random() * delay / 2);
+   }
 
-      timer.schedule(new TimerTask()
+   static ThreadPoolExecutor newPool()
+   {
+      ThreadPoolExecutor pool = new ThreadPoolExecutor(POOL_MAX, POOL_MAX, 60, TimeUnit.SECONDS, new ArrayBlockingQueue(QUEUE_MAX), daemonThreads("HttpUtils worker"), new RejectedExecutionHandler()
          {
             @Override
-            public void run()
+            public void rejectedExecution(Runnable task, ThreadPoolExecutor executor)
+            {
+               rejected.incrementAndGet();
+               if (task instanceof FutureResponse)
+               {
+                  Response response = new Response();
+                  response.withStatusCode(503);
+                  response.withError(new ApiException(SC.SC_503_SERVICE_UNAVAILABLE, "Too many outbound http calls are queued"));
+                  ((FutureResponse) task).setResponse(response);
+               }
+            }
+         })
+         {
+            //-- each call, and the response handlers it runs, gets a context of its own
+            //-- so nothing is left bound to the pooled thread afterwards
+
+            @Override
+            protected void beforeExecute(Thread t, Runnable task)
+            {
+               RequestContext.bindDetached();
+            }
+
+            @Override
+            protected void afterExecute(Runnable task, Throwable t)
             {
-               submit(future);
+               RequestContext.unbindDetached(null);
             }
-         }, delay);
+         };
+      pool.allowCoreThreadTimeOut(true);
+      return pool;
+   }
+
+   static ThreadFactory daemonThreads(String name)
+   {
+      AtomicInteger count = new AtomicInteger(0);
+      return task -> {
+         Thread t = new Thread(task, name + " " + count.incrementAndGet());
+         t.setDaemon(true);
+         return t;
+      };
+   }
+
+   static HostStats getHostStats(String host)
+   {
+      return hosts.computeIfAbsent(host + "", HostStats::new);
+   }
+
+   /**
+    * @return queue depth, active calls and per host call counts and latency
+    */
+   public static JSNode getMetrics()
+   {
+      JSNode metrics = new JSNode();
+      metrics.put("queued", pool.getQueue().size());
+      metrics.put("active", pool.getActiveCount());
+      metrics.put("threads", pool.getPoolSize());
+      metrics.put("rejected", rejected.get());
+
+      JSArray hostMetrics = new JSArray();
+      for (HostStats stats : hosts.values())
+         hostMetrics.add(stats.getMetrics());
+      metrics.put("hosts", hostMetrics);
+
+      return metrics;
+   }
+
+   static class HostStats
+   {
+      String        host     = null;
+      AtomicInteger active   = new AtomicInteger(0);
+      AtomicLong    calls    = new AtomicLong(0);
+      AtomicLong    errors   = new AtomicLong(0);
+      AtomicLong    nanos    = new AtomicLong(0);
+      AtomicLong    maxNanos = new AtomicLong(0);
+
+      HostStats(String host)
+      {
+         this.host = host;
+      }
+
+      void record(long elapsed, boolean success)
+      {
+         active.decrementAndGet();
+         calls.incrementAndGet();
+         if (!success)
+            errors.incrementAndGet();
+         nanos.addAndGet(elapsed);
+         maxNanos.accumulateAndGet(elapsed, Math::max);
+      }
 
+      JSNode getMetrics()
+      {
+         long count = calls.get();
+
+         JSNode metrics = new JSNode();
+         metrics.put("host", host);
+         metrics.put("active", active.get());
+         metrics.put("calls", count);
+         metrics.put("errors", errors.get());
+         metrics.put("avgMillis", count == 0 ? 0 : nanos.get() / count / 1000000d);
+         metrics.put("maxMillis", maxNanos.get() / 1000000d);
+         return metrics;
+      }
    }
 
    /**
@@ -379,7 +675,27 @@ public class HttpUtils
     * @return
     * @throws Exception
     */
-   public static synchronized HttpClient getHttpClient() throws Exception
+   public static HttpClient getHttpClient() throws Exception
+   {
+      HttpClient client = HttpUtils.client;
+      if (client == null)
+      {
+         synchronized (HttpUtils.class)
+         {
+            if (HttpUtils.client == null)
+               HttpUtils.client = createHttpClient();
+
+            client = HttpUtils.client;
+         }
+      }
+      return client;
+   }
+
+   /**
+    * Builds the client every call shares.  Its connection pool keeps up to
+    * HOST_MAX connections alive to each host and POOL_MAX overall.
+    */
+   static HttpClient createHttpClient() throws Exception
    {
       HttpClientBuilder b = HttpClientBuilder.create();
 
@@ -408,6 +724,8 @@ public class HttpUtils
       // now, we create connection-manager using our Registry.
       //      -- allows multi-threaded use
       PoolingHttpClientConnectionManager connMgr = new PoolingHttpClientConnectionManager(RegistryBuilder.<ConnectionSocketFactory> create().register("http", PlainConnectionSocketFactory.getSocketFactory()).register("https", sslSocketFactory).build());
+      connMgr.setMaxTotal(POOL_MAX);
+      connMgr.setDefaultMaxPerRoute(HOST_MAX);
       b.setConnectionManager(connMgr);
 
       RequestConfig requestConfig = RequestConfig.custom().setSocketTimeout(DEFAULT_TIMEOUT).setConnectTimeout(DEFAULT_TIMEOUT).setConnectionRequestTimeout(DEFAULT_TIMEOUT).build();
@@ -570,6 +888,17 @@ public class HttpUtils
          }
       }
 
+      /**
+       * @return a stage that completes with the response, successful or not,
+       *         so the call can be returned from an AsyncAction
+       */
+      public CompletableFuture<Response> toCompletableFuture()
+      {
+         CompletableFuture<Response> future = new CompletableFuture();
+         onResponse(future::complete);
+         return future;
+      }
+
       @Override
       public boolean cancel(boolean arg0)
       {
@@ -579,14 +908,6 @@ public class HttpUtils
       @Override
       public Response get()
       {
-         if (SwingUtilities.isEventDispatchThread())
-         {
-            String msg = "Blocking on the Swing thread. Your code is blocking the UI by calling FutureResponse.get() on the Swing event dispatch thread.  You should consider moving your call into a background thread.";
-            Exception ex = new Exception();
-            ex.fillInStackTrace();
-            log.warn(msg, ex);
-         }
-
          while (response == null)
          {
             synchronized (this)
@@ -618,14 +939,6 @@ public class HttpUtils
 
       public Response get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException
       {
-         if (SwingUtilities.isEventDispatchThread())
-         {
-            String msg = "Blocking on the Swing thread. Your code is blocking the UI by calling FutureResponse.get() on the Swing event dispatch thread.  You should consider moving your call into a background thread.";
-            Exception ex = new Exception();
-            ex.fillInStackTrace();
-            log.warn(msg, ex);
-         }
-
          timeout = TimeUnit.MILLISECONDS.convert(timeout, unit);
          while (response == null)
          {
@@ -711,262 +1024,4 @@ public class HttpUtils
       }
    }
 
-   static class Executor
-   {
-      int                        poolMin  = 1;
-      int                        poolMax  = 3;
-
-      long                       queueMax = Integer.MAX_VALUE;
-
-      LinkedList<RunnableFuture> queue    = new LinkedList();
-      Vector<Thread>             threads  = new Vector();
-
-      boolean                    daemon   = true;
-
-      String                     poolName = "Executor";
-
-      boolean                    shutdown = false;
-      long                       delay    = 1000;
-
-      static Timer               timer    = null;
-
-      public Executor(int poolMin, int poolMax, long queueMax)
-      {
-         this(poolMin, poolMax, queueMax, true, "Executor");
-      }
-
-      public Executor(int poolMin, int poolMax, long queueMax, boolean daemon, String poolName)
-      {
-         this.poolMin = Math.max(this.poolMin, poolMin);
-         this.poolMax = poolMax;
-         this.queueMax = queueMax;
-         this.daemon = daemon;
-         this.poolName = poolName;
-      }
-
-      public synchronized Future submit(final Runnable task)
-      {
-         return submit(new RunnableFuture()
-            {
-               boolean started  = false;
-               boolean canceled = false;
-               boolean done     = false;
-
-               @Override
-               public void run()
-               {
-                  try
-                  {
-                     if (canceled || done)
-                        return;
-
-                     started = true;
-                     task.run();
-                  }
-                  finally
-                  {
-                     synchronized (this)
-                     {
-                        done = true;
-                        notifyAll();
-                     }
-                  }
-               }
-
-               @Override
-               public boolean cancel(boolean mayInterruptIfRunning)
-               {
-                  canceled = true;
-                  return !started;
-               }
-
-               @Override
-               public boolean isCancelled()
-               {
-                  return canceled;
-               }
-
-               @Override
-               public boolean isDone()
-               {
-                  return false;
-               }
-
-               @Override
-               public Object get() throws InterruptedException, ExecutionException
-               {
-                  synchronized (this)
-                  {
-                     while (!done)
-                     {
-                        wait();
-                     }
-                  }
-                  return null;
-               }
-
-               @Override
-               public Object get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException
-               {
-                  synchronized (this)
-                  {
-                     while (!done)
-                     {
-                        wait(unit.toMillis(timeout));
-                     }
-                  }
-                  return null;
-               }
-
-            });
-      }
-
-      public synchronized RunnableFuture submit(RunnableFuture task)
-      {
-         put(task);
-         checkStartThread();
-         return task;
-      }
-
-      public synchronized RunnableFuture submit(final RunnableFuture task, long delay)
-      {
-         getTimer().schedule(new TimerTask()
-            {
-               @Override
-               public void run()
-               {
-                  Thread t = new Thread(new Runnable()
-                     {
-                        @Override
-                        public void run()
-                        {
-                           submit(task);
-                        }
-                     });
-                  t.setDaemon(daemon);
-                  t.start();
-               }
-            }, delay);
-
-         return task;
-      }
-
-      static synchronized Timer getTimer()
-      {
-         if (timer == null)
-            timer = new Timer("Executor timer");
-
-         return timer;
-      }
-
-      synchronized boolean checkStartThread()
-      {
-         if (queue.size() > 0 && threads.size() < poolMax)
-         {
-            Thread t = new Thread(new Runnable()
-               {
-                  public void run()
-                  {
-                     processQueue();
-                  }
-               }, poolName + " worker");
-            t.setDaemon(daemon);
-            threads.add(t);
-            t.start();
-            return true;
-         }
-         return false;
-      }
-
-      synchronized boolean checkEndThread()
-      {
-         if (queue.size() == 0 && threads.size() > poolMin)
-         {
-            threads.remove(Thread.currentThread());
-            return true;
-         }
-         return false;
-      }
-
-      int queued()
-      {
-         synchronized (queue)
-         {
-            return queue.size();
-         }
-      }
-
-      void put(RunnableFuture task)
-      {
-         synchronized (queue)
-         {
-            while (queue.size() >= queueMax)
-            {
-               try
-               {
-                  queue.wait();
-               }
-               catch (Exception ex)
-               {
-
-               }
-            }
-            queue.add(task);
-            queue.notifyAll();
-         }
-      }
-
-      RunnableFuture take()
-      {
-         RunnableFuture t = null;
-         synchronized (queue)
-         {
-            while (queue.size() == 0)
-            {
-               try
-               {
-                  queue.wait();
-               }
-               catch (InterruptedException ex)
-               {
-
-               }
-            }
-
-            t = queue.removeFirst();
-            queue.notifyAll();
-         }
-         return t;
-      }
-
-      void processQueue()
-      {
-         try
-         {
-            while (true && !shutdown && !checkEndThread())
-            {
-               do
-               {
-                  RunnableFuture task = take();
-                  task.run();
-               }
-               while (queue.size() > 0);
-
-               //            if (!shutdown)
-               //            {
-               //               Thread.sleep(delay);
-               //            }
-               //
-               //            if (queue.size() == 0)
-               //               break;
-            }
-         }
-         catch (Exception ex)
-         {
-            ex.printStackTrace();
-         }
-      }
-
-   }
-
 }
@@ -20,6 +20,7 @@ package io.rocketpartners.cloud.utils;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
@@ -38,6 +39,13 @@ public class Rows extends ArrayList<Row>
    Row     lastRow = null;
    int     idx     = 0;
 
+   /**
+    * When not null, rows created by addRow() are lightweight
+    * views into these shared column arrays instead of each
+    * row holding its own ArrayList of boxed values.
+    */
+   Columns columns = null;
+
    public Rows()
    {
       this.keys = new RowKeys();
@@ -53,6 +61,44 @@ public class Rows extends ArrayList<Row>
       this.keys = new RowKeys(keys);
    }
 
+   /**
+    * Creates a column oriented Rows where Integer, Long, Double and
+    * Boolean typed columns are stored in primitive arrays and all
+    * other types are stored in a plain Object[] per column.
+    * <p>
+    * The Row objects handed out are still fully functional Maps. 
+    * A Row is copied out of the column store into its own value list 
+    * the first time a caller structurally modifies it (put of a new 
+    * key, remove, clear etc.).
+    * 
+    * @param keys the column names
+    * @param types the value class of each column, Object.class or null for "anything"
+    */
+   public Rows(List<String> keys, Class[] types)
+   {
+      this.keys = new RowKeys(keys);
+      this.columns = new Columns(types);
+   }
+
+   public boolean isColumnar()
+   {
+      return columns != null;
+   }
+
+   /**
+    * Case insensitive lookup of the position of <code>key</code>.  
+    * <p>
+    * Callers that read the same columns out of every row should 
+    * call this once and then use {@link Row#get(int)} 
+    * 
+    * @param key
+    * @return the column ordinal or -1 if not found
+    */
+   public int indexOf(String key)
+   {
+      return keys.indexOf(key);
+   }
+
    public List<String> keyList()
    {
       return new ArrayList(keys.keys);
@@ -65,12 +111,24 @@ public class Rows extends ArrayList<Row>
 
    public int addKey(String key)
    {
+      if (columns != null)
+         columns.addColumn(Object.class);
+
       return keys.addKey(key);
    }
 
    public Row addRow()
    {
-      lastRow = new Row(keys);
+      idx = 0;
+      if (columns != null)
+      {
+         columns.ensureCapacity(size() + 1);
+         lastRow = new Row(keys, columns, size());
+      }
+      else
+      {
+         lastRow = new Row(keys);
+      }
       add(lastRow);
       return lastRow;
    }
@@ -111,7 +169,10 @@ public class Rows extends ArrayList<Row>
 
    public void put(Object value)
    {
-      lastRow.add(value);
+      if (lastRow.columns != null)
+         lastRow.set(idx++, value);
+      else
+         lastRow.add(value);
    }
 
    public void sortBy(final String... keys)
@@ -151,9 +212,17 @@ public class Rows extends ArrayList<Row>
     */
    public static class Row implements Map<String, Object>
    {
-      RowKeys      keys   = null;
-      List<Object> values = null;
-      boolean      cloned = false;
+      RowKeys      keys    = null;
+      List<Object> values  = null;
+      boolean      cloned  = false;
+
+      /**
+       * When not null, this row is a view of position 
+       * <code>index</code> in the shared column store and 
+       * <code>values</code> is null.
+       */
+      Columns      columns = null;
+      int          index   = -1;
 
       public Row()
       {
@@ -173,6 +242,28 @@ public class Rows extends ArrayList<Row>
          this.values = new ArrayList(Arrays.asList(values));
       }
 
+      Row(RowKeys keys, Columns columns, int index)
+      {
+         this.keys = keys;
+         this.columns = columns;
+         this.index = index;
+      }
+
+      /**
+       * Copies this row's values out of the shared column 
+       * store so that it can be structurally modified
+       * without impacting its siblings.
+       */
+      void detach()
+      {
+         if (columns != null)
+         {
+            values = new ArrayList(Arrays.asList(columns.getRow(index, keys.size())));
+            columns = null;
+            index = -1;
+         }
+      }
+
       public String getKey(int index)
       {
          return keys.getKey(index);
@@ -196,6 +287,9 @@ public class Rows extends ArrayList<Row>
 
       public int getInt(int index)
       {
+         if (columns != null && columns.kinds[index] == Columns.INT && !columns.isNull(this.index, index))
+            return ((int[]) columns.data[index])[this.index];
+
          Object value = get(index);
          if (value != null)
             return Integer.parseInt(value.toString());
@@ -204,14 +298,17 @@ public class Rows extends ArrayList<Row>
 
       public int getInt(String key)
       {
-         Object value = get(key);
-         if (value != null)
-            return Integer.parseInt(value.toString());
-         return -1;
+         int idx = indexOf(key);
+         if (idx < 0)
+            return -1;
+         return getInt(idx);
       }
 
       public long getLong(int index)
       {
+         if (columns != null && columns.kinds[index] == Columns.LONG && !columns.isNull(this.index, index))
+            return ((long[]) columns.data[index])[this.index];
+
          Object value = get(index);
          if (value != null)
             return Long.parseLong(value.toString());
@@ -220,10 +317,10 @@ public class Rows extends ArrayList<Row>
 
       public long getLong(String key)
       {
-         Object value = get(key);
-         if (value != null)
-            return Long.parseLong(value.toString());
-         return -1;
+         int idx = indexOf(key);
+         if (idx < 0)
+            return -1;
+         return getLong(idx);
       }
 
       public float getFloat(int index)
@@ -263,7 +360,7 @@ public class Rows extends ArrayList<Row>
          StringBuffer buff = new StringBuffer("{");
          for (int i = 0; i < keys.size(); i++)
          {
-            buff.append(keys.getKey(i)).append("=").append(values.get(i));
+            buff.append(keys.getKey(i)).append("=").append(get(i));
             if (i < keys.size() - 1)
                buff.append(", ");
          }
@@ -275,6 +372,9 @@ public class Rows extends ArrayList<Row>
       public int size()
       {
          //return keys.size();
+         if (columns != null)
+            return keys.size();
+
          return values.size();
       }
 
@@ -298,7 +398,7 @@ public class Rows extends ArrayList<Row>
       @Override
       public boolean containsValue(Object value)
       {
-         for (Object v : values)
+         for (Object v : asList())
          {
             if (v == null && value == null)
                return true;
@@ -315,7 +415,7 @@ public class Rows extends ArrayList<Row>
          {
             int idx = indexOf(key);
             if (idx >= 0)
-               return values.get(idx);
+               return get(idx);
          }
          catch (Exception ex)
          {
@@ -334,6 +434,9 @@ public class Rows extends ArrayList<Row>
 
       public Object get(int index)
       {
+         if (columns != null)
+            return columns.get(this.index, index);
+
          return values.get(index);
       }
 
@@ -344,18 +447,58 @@ public class Rows extends ArrayList<Row>
             return null;
 
          if (key instanceof Integer)
-            return values.get(((Integer) key).intValue());
+            return get(((Integer) key).intValue());
+
+         int idx = keys.indexOf((String) key);
+         if (idx < 0)
+            return null;
 
-         return values.get(keys.indexOf((String) key));
+         return get(idx);
       }
 
       public void set(int index, Object value)
       {
-         values.set(index, value);
+         if (columns != null)
+            columns.set(this.index, index, value);
+         else
+            values.set(index, value);
+      }
+
+      public void setInt(int index, int value)
+      {
+         if (columns != null)
+            columns.setInt(this.index, index, value);
+         else
+            values.set(index, value);
+      }
+
+      public void setLong(int index, long value)
+      {
+         if (columns != null)
+            columns.setLong(this.index, index, value);
+         else
+            values.set(index, value);
+      }
+
+      public void setDouble(int index, double value)
+      {
+         if (columns != null)
+            columns.setDouble(this.index, index, value);
+         else
+            values.set(index, value);
+      }
+
+      public void setBoolean(int index, boolean value)
+      {
+         if (columns != null)
+            columns.setBoolean(this.index, index, value);
+         else
+            values.set(index, value);
       }
 
       public void add(Object value)
       {
+         detach();
          values.add(value);
       }
 
@@ -365,6 +508,13 @@ public class Rows extends ArrayList<Row>
          int idx = keys.indexOf(key);
          if (idx >= 0)
          {
+            if (columns != null)
+            {
+               Object old = columns.get(this.index, idx);
+               columns.set(this.index, idx, value);
+               return old;
+            }
+
             while (idx > values.size() - 1)
                values.add(null);
 
@@ -372,6 +522,7 @@ public class Rows extends ArrayList<Row>
          }
          else
          {
+            detach();
             keys.addKey(key);
             values.add(value);
             return value;
@@ -384,6 +535,7 @@ public class Rows extends ArrayList<Row>
          int idx = keys.indexOf((String) key);
          if (idx >= 0)
          {
+            detach();
             if (!cloned)
             {
                //copy on write
@@ -409,6 +561,7 @@ public class Rows extends ArrayList<Row>
       @Override
       public void clear()
       {
+         detach();
          keys = new RowKeys();
          values.clear();
       }
@@ -422,11 +575,14 @@ public class Rows extends ArrayList<Row>
       @Override
       public Collection<Object> values()
       {
-         return Collections.unmodifiableList(values);
+         return asList();
       }
 
       public List<Object> asList()
       {
+         if (columns != null)
+            return Collections.unmodifiableList(Arrays.asList(columns.getRow(index, keys.size())));
+
          return Collections.unmodifiableList(values);
       }
 
@@ -435,7 +591,7 @@ public class Rows extends ArrayList<Row>
       {
          LinkedHashSet<Entry<String, Object>> entries = new LinkedHashSet();
          for (int i = 0; i < keys.size(); i++)
-            entries.add(new E(keys.getKey(i), values.get(i)));
+            entries.add(new E(keys.getKey(i), get(i)));
 
          return entries;
       }
@@ -477,10 +633,232 @@ public class Rows extends ArrayList<Row>
 
    }
 
+   /**
+    * Column oriented value storage shared by all of the 
+    * Rows.Row views of a columnar Rows.  
+    * <p>
+    * Integer, Long, Double and Boolean columns are held in 
+    * primitive arrays with a BitSet tracking SQL NULLs.  All other
+    * columns are held in an Object[].  If a value that does not 
+    * fit a primitive column is ever set, that column is converted
+    * to an Object[] so nothing is lost.
+    */
+   static class Columns
+   {
+      static final int OBJECT   = 0;
+      static final int INT      = 1;
+      static final int LONG     = 2;
+      static final int DOUBLE   = 3;
+      static final int BOOLEAN  = 4;
+
+      int[]            kinds    = new int[0];
+      Object[]         data     = new Object[0];
+      BitSet[]         nulls    = new BitSet[0];
+      int              capacity = 16;
+
+      Columns(Class[] types)
+      {
+         for (int i = 0; types != null && i < types.length; i++)
+            addColumn(types[i]);
+      }
+
+      static int kindOf(Class type)
+      {
+         if (type == Integer.class || type == int.class)
+            return INT;
+         if (type == Long.class || type == long.class)
+            return LONG;
+         if (type == Double.class || type == double.class)
+            return DOUBLE;
+         if (type == Boolean.class || type == boolean.class)
+            return BOOLEAN;
+
+         return OBJECT;
+      }
+
+      static Object newArray(int kind, int capacity)
+      {
+         switch (kind)
+         {
+            case INT:
+               return new int[capacity];
+            case LONG:
+               return new long[capacity];
+            case DOUBLE:
+               return new double[capacity];
+            case BOOLEAN:
+               return new boolean[capacity];
+            default :
+               return new Object[capacity];
+         }
+      }
+
+      void addColumn(Class type)
+      {
+         int col = kinds.length;
+         int kind = kindOf(type);
+
+         kinds = Arrays.copyOf(kinds, col + 1);
+         data = Arrays.copyOf(data, col + 1);
+         nulls = Arrays.copyOf(nulls, col + 1);
+
+         kinds[col] = kind;
+         data[col] = newArray(kind, capacity);
+         nulls[col] = kind == OBJECT ? null : new BitSet();
+      }
+
+      void ensureCapacity(int rows)
+      {
+         if (rows <= capacity)
+            return;
+
+         int newCapacity = Math.max(rows, capacity * 2);
+         for (int i = 0; i < data.length; i++)
+         {
+            Object newArr = newArray(kinds[i], newCapacity);
+            System.arraycopy(data[i], 0, newArr, 0, capacity);
+            data[i] = newArr;
+         }
+         capacity = newCapacity;
+      }
+
+      boolean isNull(int row, int col)
+      {
+         return nulls[col] != null && nulls[col].get(row);
+      }
+
+      Object get(int row, int col)
+      {
+         if (col < 0 || col >= kinds.length)
+            return null;
+
+         if (isNull(row, col))
+            return null;
+
+         switch (kinds[col])
+         {
+            case INT:
+               return ((int[]) data[col])[row];
+            case LONG:
+               return ((long[]) data[col])[row];
+            case DOUBLE:
+               return ((double[]) data[col])[row];
+            case BOOLEAN:
+               return ((boolean[]) data[col])[row];
+            default :
+               return ((Object[]) data[col])[row];
+         }
+      }
+
+      Object[] getRow(int row, int width)
+      {
+         Object[] values = new Object[width];
+         for (int i = 0; i < width; i++)
+            values[i] = get(row, i);
+         return values;
+      }
+
+      void set(int row, int col, Object value)
+      {
+         int kind = kinds[col];
+         if (kind != OBJECT)
+         {
+            if (value == null)
+            {
+               nulls[col].set(row);
+               return;
+            }
+            else if (kind == INT && value instanceof Integer)
+            {
+               setInt(row, col, (Integer) value);
+               return;
+            }
+            else if (kind == LONG && value instanceof Long)
+            {
+               setLong(row, col, (Long) value);
+               return;
+            }
+            else if (kind == DOUBLE && value instanceof Double)
+            {
+               setDouble(row, col, (Double) value);
+               return;
+            }
+            else if (kind == BOOLEAN && value instanceof Boolean)
+            {
+               setBoolean(row, col, (Boolean) value);
+               return;
+            }
+
+            toObjectColumn(col);
+         }
+         ((Object[]) data[col])[row] = value;
+      }
+
+      void setInt(int row, int col, int value)
+      {
+         if (kinds[col] != INT)
+         {
+            set(row, col, value);
+            return;
+         }
+         ((int[]) data[col])[row] = value;
+         nulls[col].clear(row);
+      }
+
+      void setLong(int row, int col, long value)
+      {
+         if (kinds[col] != LONG)
+         {
+            set(row, col, value);
+            return;
+         }
+         ((long[]) data[col])[row] = value;
+         nulls[col].clear(row);
+      }
+
+      void setDouble(int row, int col, double value)
+      {
+         if (kinds[col] != DOUBLE)
+         {
+            set(row, col, value);
+            return;
+         }
+         ((double[]) data[col])[row] = value;
+         nulls[col].clear(row);
+      }
+
+      void setBoolean(int row, int col, boolean value)
+      {
+         if (kinds[col] != BOOLEAN)
+         {
+            set(row, col, value);
+            return;
+         }
+         ((boolean[]) data[col])[row] = value;
+         nulls[col].clear(row);
+      }
+
+      /**
+       * Boxes a primitive column into an Object[] so that 
+       * it can hold values of any type.
+       */
+      void toObjectColumn(int col)
+      {
+         Object[] objects = new Object[capacity];
+         for (int i = 0; i < capacity; i++)
+            objects[i] = get(i, col);
+
+         kinds[col] = OBJECT;
+         data[col] = objects;
+         nulls[col] = null;
+      }
+   }
+
    private static class RowKeys
    {
       List<String>         keys   = new ArrayList();
       Map<String, Integer> lc     = new HashMap();
+      Map<String, Integer> exact  = new HashMap();
       Set<String>          keySet = null;
 
       RowKeys()
@@ -497,6 +875,7 @@ public class Rows extends ArrayList<Row>
          RowKeys clone = new RowKeys();
          clone.keys = new LinkedList(keys);
          clone.lc = new HashMap(lc);
+         clone.exact = new HashMap(exact);
          return clone;
       }
 
@@ -511,6 +890,7 @@ public class Rows extends ArrayList<Row>
 
          this.keys.add(key);
          this.lc.put(lc, this.keys.size() - 1);
+         this.exact.put(key, this.keys.size() - 1);
 
          return this.keys.size();
       }
@@ -524,12 +904,18 @@ public class Rows extends ArrayList<Row>
          if (idx != null)
          {
             for (int i = idx; i < keys.size(); i++)
+            {
                lc.remove(keys.get(i).toLowerCase());
+               exact.remove(keys.get(i));
+            }
 
             this.keys.remove(idx.intValue());
 
             for (int i = idx; i < keys.size(); i++)
+            {
                lc.put(keys.get(i).toLowerCase(), i);
+               exact.put(keys.get(i), i);
+            }
 
             return idx.intValue();
          }
@@ -542,6 +928,7 @@ public class Rows extends ArrayList<Row>
 
          this.keys.clear();
          this.lc.clear();
+         this.exact.clear();
 
          for (String key : keys)
          {
@@ -554,7 +941,13 @@ public class Rows extends ArrayList<Row>
          if (key == null)
             return -1;
 
-         Integer idx = lc.get(key.toLowerCase());
+         //-- most callers ask for the key exactly as it was 
+         //-- added so try that first to avoid the toLowerCase()
+         Integer idx = exact.get(key);
+         if (idx != null)
+            return idx;
+
+         idx = lc.get(key.toLowerCase());
          if (idx != null)
             return idx;
 
@@ -33,12 +33,14 @@ import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLTimeoutException;
 import java.sql.Statement;
 import java.sql.Types;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.LinkedHashSet;
@@ -47,6 +49,12 @@ import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.rocketpartners.cloud.model.ApiException;
+import io.rocketpartners.cloud.model.SC;
+import io.rocketpartners.cloud.service.Chain;
 import io.rocketpartners.cloud.utils.Rows.Row;
 
 /**
@@ -67,6 +75,8 @@ public class SqlUtils
       }
    }
 
+   static Logger            log       = LoggerFactory.getLogger(SqlUtils.class);
+
    static List<SqlListener> listeners = new ArrayList();
 
    public static char colQuote(Connection conn)
@@ -131,6 +141,76 @@ public class SqlUtils
       }
    }
 
+   /**
+    * Sets the statement's query timeout to the time left before the current
+    * request's deadline so that the driver cancels it when time runs out.
+    * 
+    * @see Chain#getTimeRemaining()
+    */
+   public static void applyDeadline(Statement stmt) throws SQLException
+   {
+      long remaining = Chain.getTimeRemaining();
+      if (remaining == Long.MAX_VALUE)
+         return;
+
+      Chain.checkDeadline();
+      stmt.setQueryTimeout((int) Math.max(1, (remaining + 999) / 1000));
+   }
+
+   /**
+    * Bounds driver calls that don't go through a Statement, such as the
+    * postgres CopyManager, by setting the network timeout of <code>conn</code> 
+    * to the time remaining before the request deadline.
+    * 
+    * @return the previous network timeout for the caller to restore, or -1 if there is no deadline
+    */
+   public static int applyDeadline(Connection conn) throws SQLException
+   {
+      long remaining = Chain.getTimeRemaining();
+      if (remaining == Long.MAX_VALUE)
+         return -1;
+
+      Chain.checkDeadline();
+      int previous = conn.getNetworkTimeout();
+      conn.setNetworkTimeout(Runnable::run, (int) Math.max(1, Math.min(Integer.MAX_VALUE, remaining)));
+      return previous;
+   }
+
+   /**
+    * @return a 504 ApiException if <code>ex</code> was caused by the statement 
+    *         being cancelled at the request deadline, otherwise <code>ex</code>
+    */
+   public static Exception checkDeadline(String sql, Exception ex)
+   {
+      if (ex instanceof ApiException)
+         return ex;
+
+      if (ex instanceof SQLTimeoutException || Chain.getTimeRemaining() <= 0)
+      {
+         log.warn("Query cancelled at request deadline: " + fingerprint(sql));
+         return new ApiException(SC.SC_504_GATEWAY_TIMEOUT, "The query did not finish before the request deadline", ex);
+      }
+      return ex;
+   }
+
+   /**
+    * Reduces <code>sql</code> to its shape, with literals, numbers and IN lists
+    * replaced by placeholders, prefixed with a hash of that shape so that 
+    * different executions of the same query can be grouped in the logs.
+    */
+   public static String fingerprint(String sql)
+   {
+      if (sql == null)
+         return null;
+
+      String shape = sql.replaceAll("'(?:[^']|'')*'", "?");
+      shape = shape.replaceAll("\\b\\d+(\\.\\d+)?\\b", "?");
+      shape = shape.replaceAll("\\s+", " ").trim();
+      shape = shape.replaceAll("\\(\\s*\\?(\\s*,\\s*\\?)+\\s*\\)", "(?+)");
+
+      return Integer.toHexString(shape.hashCode()) + " " + shape;
+   }
+
    public static Object execute(Connection conn, String sql, Object... vals) throws Exception
    {
       if (vals != null && vals.length == 1 && vals[0] instanceof Collection)
@@ -150,6 +230,7 @@ public class SqlUtils
             if (vals != null && vals.length > 0)
             {
                stmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+               applyDeadline(stmt);
                for (int i = 0; vals != null && i < vals.length; i++)
                {
                   ((PreparedStatement) stmt).setObject(i + 1, vals[i]);
@@ -159,6 +240,7 @@ public class SqlUtils
             else
             {
                stmt = conn.createStatement();
+               applyDeadline(stmt);
                rs = stmt.executeQuery(sql);
             }
             if (rs.next())
@@ -172,6 +254,7 @@ public class SqlUtils
             if (vals != null && vals.length > 0)
             {
                stmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+               applyDeadline(stmt);
                for (int i = 0; vals != null && i < vals.length; i++)
                {
                   ((PreparedStatement) stmt).setObject(i + 1, vals[i]);
@@ -181,6 +264,7 @@ public class SqlUtils
             else
             {
                stmt = conn.createStatement();
+               applyDeadline(stmt);
                stmt.execute(sql, Statement.RETURN_GENERATED_KEYS);
             }
 
@@ -201,7 +285,7 @@ public class SqlUtils
                   //do nothing
                }
             }
-            else if (isUpdate(sql))
+            else if (isUpdate(sql) || isDelete(sql))
             {
                try
                {
@@ -219,7 +303,9 @@ public class SqlUtils
       catch (Exception e)
       {
          notifyError("execute", sql, vals, e);
-         ex = new Exception(e.getMessage() + " SQL=" + sql, Utils.getCause(e));
+         ex = checkDeadline(sql, e);
+         if (ex == e)
+            ex = new Exception(e.getMessage() + " SQL=" + sql, Utils.getCause(e));
          throw ex;
       }
       finally
@@ -259,6 +345,7 @@ public class SqlUtils
          if (vals != null && vals.length > 0)
          {
             stmt = conn.prepareStatement(sql);
+            applyDeadline(stmt);
             for (int i = 0; vals != null && i < vals.length; i++)
             {
                Object o = vals[i];
@@ -269,36 +356,81 @@ public class SqlUtils
          else
          {
             stmt = conn.createStatement();
+            applyDeadline(stmt);
             rs = stmt.executeQuery(sql);
          }
 
-         rows = new Rows();
-
          ResultSetMetaData rsmd = rs.getMetaData();
          int cols = rsmd.getColumnCount();
+         List<String> keys = new ArrayList(cols);
+         Class[] types = new Class[cols];
          for (int i = 1; i <= cols; i++)
          {
-            rows.addKey(rsmd.getColumnLabel(i));
+            keys.add(rsmd.getColumnLabel(i));
+            types[i - 1] = getColumnClass(rsmd, i);
          }
 
+         rows = new Rows(keys, types);
+
          while (rs.next())
          {
-            rows.addRow();
+            Row row = rows.addRow();
             for (int i = 0; i < cols; i++)
             {
-               Object o = null;
                try
                {
-                  o = rs.getObject(i + 1);
+                  Class type = types[i];
+                  if (type == Integer.class)
+                  {
+                     int v = rs.getInt(i + 1);
+                     if (rs.wasNull())
+                        row.set(i, null);
+                     else
+                        row.setInt(i, v);
+                  }
+                  else if (type == Long.class)
+                  {
+                     long v = rs.getLong(i + 1);
+                     if (rs.wasNull())
+                        row.set(i, null);
+                     else
+                        row.setLong(i, v);
+                  }
+                  else if (type == Double.class)
+                  {
+                     double v = rs.getDouble(i + 1);
+                     if (rs.wasNull())
+                        row.set(i, null);
+                     else
+                        row.setDouble(i, v);
+                  }
+                  else if (type == Boolean.class)
+                  {
+                     boolean v = rs.getBoolean(i + 1);
+                     if (rs.wasNull())
+                        row.set(i, null);
+                     else
+                        row.setBoolean(i, v);
+                  }
+                  else
+                  {
+                     row.set(i, rs.getObject(i + 1));
+                  }
                }
                catch (Exception e)
                {
+                  //-- a primitive column would otherwise keep its 0/false default
+                  row.set(i, null);
                   notifyError("selectRows", sql, vals, e);
                }
-               rows.put(o);
             }
          }
       }
+      catch (Exception e)
+      {
+         ex = checkDeadline(sql, e);
+         throw ex;
+      }
       finally
       {
          close(stmt, rs);
@@ -307,6 +439,42 @@ public class SqlUtils
       return rows;
    }
 
+   /**
+    * Returns the boxed primitive class the driver will return from 
+    * ResultSet.getObject() for the column if it is an Integer, Long,
+    * Double or Boolean, otherwise Object.class.  
+    * <p>
+    * This uses the driver reported column class name instead of the
+    * JDBC type code so for example an unsigned MySQL INT that the 
+    * driver returns as a Long is not squeezed into an int.
+    */
+   static Class getColumnClass(ResultSetMetaData rsmd, int column)
+   {
+      try
+      {
+         String className = rsmd.getColumnClassName(column);
+         if (className != null)
+         {
+            switch (className)
+            {
+               case "java.lang.Integer":
+                  return Integer.class;
+               case "java.lang.Long":
+                  return Long.class;
+               case "java.lang.Double":
+                  return Double.class;
+               case "java.lang.Boolean":
+                  return Boolean.class;
+            }
+         }
+      }
+      catch (Exception ex)
+      {
+         //some drivers don't support getColumnClassName, just box everything
+      }
+      return Object.class;
+   }
+
    public static Row selectRow(Connection conn, String sql, Object... vals) throws Exception
    {
       Rows rows = selectRows(conn, sql, vals);
@@ -472,6 +640,7 @@ public class SqlUtils
       try
       {
          notifyBefore("upsert", sql, rows);
+         applyDeadline(stmt);
 
          for (Map<String, Object> row : rows)
          {
@@ -486,10 +655,19 @@ public class SqlUtils
       }
       catch (Exception e)
       {
-         ex = e;
+         ex = checkDeadline(sql, e);
          notifyError("upsert", sql, rows, ex);
+
+         //-- a statement cancelled at the deadline has no keys to read
+         if (ex instanceof ApiException)
+         {
+            SqlUtils.close(stmt);
+            notifyAfter("upsert", sql, rows, ex, null);
+            throw ex;
+         }
       }
-      finally
+
+      try
       {
          ResultSet rs = stmt.getGeneratedKeys();
          while (rs.next())
@@ -498,6 +676,9 @@ public class SqlUtils
             String key = rs.getString(1);
             primaryKeys.add(key);
          }
+      }
+      finally
+      {
          SqlUtils.close(stmt);
          notifyAfter("upsert", sql, rows, ex, null);
       }
@@ -536,6 +717,7 @@ public class SqlUtils
       try
       {
          notifyBefore("insertMaps", sql, rows);
+         applyDeadline(stmt);
 
          for (Map row : ((List<Map>) rows))
          {
@@ -550,8 +732,11 @@ public class SqlUtils
       }
       catch (Exception e)
       {
-         ex = e;
+         ex = checkDeadline(sql, e);
          notifyError("insertMaps", sql, rows, ex);
+
+         if (ex instanceof ApiException)
+            throw ex;
       }
       finally
       {
@@ -610,6 +795,7 @@ public class SqlUtils
          if (idField == null)
          {
             stmt = conn.prepareStatement(sql.toString());
+            applyDeadline(stmt);
             for (int i = 0; i < values.size(); i++)
             {
                stmt.setObject(i + 1, values.get(i));
@@ -619,6 +805,7 @@ public class SqlUtils
          else
          {
             stmt = conn.prepareStatement(sql.toString(), new String[]{idField.getName()});
+            applyDeadline(stmt);
             for (int i = 0; i < values.size(); i++)
             {
                stmt.setObject(i + 1, values.get(i));
@@ -731,6 +918,7 @@ public class SqlUtils
          notifyBefore("update", sql.toString(), values);
 
          stmt = conn.prepareStatement(sql.toString());
+         applyDeadline(stmt);
          for (int i = 0; i < values.size(); i++)
          {
             stmt.setObject(i + 1, values.get(i));
@@ -775,13 +963,344 @@ public class SqlUtils
 
    }
 
+   /**
+    * Upserts <code>rows</code>, which must all have the same columns, with a 
+    * single multi row INSERT ... ON CONFLICT DO UPDATE statement.
+    * <p>
+    * When the rows carry all of <code>keyCols</code> their keys are returned 
+    * as given.  The rows must not repeat a key, postgres can not update the
+    * same row twice in one statement.
+    * <p>
+    * Otherwise the keys are generated and read back with RETURNING, which 
+    * postgres does not promise to return in VALUES order.  The VALUES rows 
+    * are inserted in order though, so numeric generated keys are sorted back 
+    * into input order.  Rows with any other kind of generated key have to be
+    * upserted one at a time.
+    * 
+    * @return the key column values of each row in the same order as <code>rows</code>
+    */
+   public static List<Map<String, Object>> postgresUpsert(Connection conn, String tableName, List<String> keyCols, List<Map<String, Object>> rows) throws Exception
+   {
+      List<String> cols = new ArrayList(rows.get(0).keySet());
+
+      boolean keyed = true;
+      for (String keyCol : keyCols)
+      {
+         if (!containsIgnoreCase(cols, keyCol))
+            keyed = false;
+      }
+
+      List<String> updateCols = new ArrayList();
+      for (String col : cols)
+      {
+         if (!containsIgnoreCase(keyCols, col))
+            updateCols.add(col);
+      }
+
+      StringBuffer sql = new StringBuffer(buildInsertSQL(conn, tableName, cols.toArray()));
+      for (int i = 1; i < rows.size(); i++)
+         sql.append(", (").append(getQuestionMarkStr(cols.size())).append(")");
+
+      if (keyed)
+      {
+         sql.append(" ON CONFLICT (").append(getColumnStr(conn, keyCols)).append(")");
+         if (updateCols.size() == 0)
+         {
+            sql.append(" DO NOTHING");
+         }
+         else
+         {
+            sql.append(" DO UPDATE SET ");
+            for (int i = 0; i < updateCols.size(); i++)
+            {
+               String col = quote(conn, updateCols.get(i));
+               sql.append(col).append(" = EXCLUDED.").append(col);
+               if (i < updateCols.size() - 1)
+                  sql.append(", ");
+            }
+         }
+      }
+      else
+      {
+         sql.append(" RETURNING ").append(getColumnStr(conn, keyCols));
+      }
+
+      List<Map<String, Object>> keys = new ArrayList();
+
+      Exception ex = null;
+      PreparedStatement stmt = null;
+      ResultSet rs = null;
+      try
+      {
+         notifyBefore("upsert", sql.toString(), rows);
+
+         stmt = conn.prepareStatement(sql.toString());
+         applyDeadline(stmt);
+         int idx = 1;
+         for (Map<String, Object> row : rows)
+         {
+            for (String col : cols)
+               stmt.setObject(idx++, row.get(col));
+         }
+
+         if (keyed)
+         {
+            stmt.executeUpdate();
+            for (Map<String, Object> row : rows)
+            {
+               Map<String, Object> key = new HashMap();
+               for (String keyCol : keyCols)
+                  key.put(keyCol, getIgnoreCase(row, keyCol));
+               keys.add(key);
+            }
+         }
+         else
+         {
+            rs = stmt.executeQuery();
+            while (rs.next())
+            {
+               Map<String, Object> key = new HashMap();
+               for (int i = 0; i < keyCols.size(); i++)
+                  key.put(keyCols.get(i), rs.getObject(i + 1));
+               keys.add(key);
+            }
+         }
+      }
+      catch (Exception e)
+      {
+         ex = e;
+         notifyError("upsert", sql.toString(), rows, ex);
+         throw ex;
+      }
+      finally
+      {
+         close(rs, stmt);
+         notifyAfter("upsert", sql.toString(), rows, ex, null);
+      }
+
+      if (!keyed && keys.size() > 1)
+      {
+         boolean numeric = keyCols.size() == 1;
+         for (Map<String, Object> key : keys)
+         {
+            if (!(key.get(keyCols.get(0)) instanceof Number))
+               numeric = false;
+         }
+
+         if (!numeric)
+            throw new ApiException(SC.SC_500_INTERNAL_SERVER_ERROR, "Unable to match generated keys to rows for table '" + tableName + "', upsert the rows one at a time");
+
+         String keyCol = keyCols.get(0);
+         Collections.sort(keys, (a, b) -> Long.compare(((Number) a.get(keyCol)).longValue(), ((Number) b.get(keyCol)).longValue()));
+      }
+
+      return keys;
+   }
+
+   /**
+    * Upserts <code>rows</code>, which must all have the same columns, as a 
+    * JDBC batch.  When the rows contain all of <code>keyCols</code> a batch of 
+    * MERGE ... KEY() statements is used, otherwise the rows are inserted and 
+    * the generated keys are read back.
+    * 
+    * @return the key column values of each row in the same order as <code>rows</code>
+    */
+   public static List<Map<String, Object>> h2Upsert(Connection conn, String tableName, List<String> keyCols, List<Map<String, Object>> rows) throws Exception
+   {
+      List<String> cols = new ArrayList(rows.get(0).keySet());
+
+      boolean merge = true;
+      for (String keyCol : keyCols)
+      {
+         if (!containsIgnoreCase(cols, keyCol))
+            merge = false;
+      }
+
+      String sql = buildInsertSQL(conn, tableName, cols.toArray());
+      if (merge)
+         sql = "MERGE INTO " + quote(conn, tableName) + " (" + getColumnStr(conn, cols) + ") KEY(" + getColumnStr(conn, keyCols) + ") VALUES (" + getQuestionMarkStr(cols.size()) + ")";
+
+      List<Map<String, Object>> keys = new ArrayList();
+
+      Exception ex = null;
+      PreparedStatement stmt = null;
+      ResultSet rs = null;
+      try
+      {
+         notifyBefore("upsert", sql, rows);
+
+         stmt = merge ? conn.prepareStatement(sql) : conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+         applyDeadline(stmt);
+         for (Map<String, Object> row : rows)
+         {
+            for (int i = 0; i < cols.size(); i++)
+               stmt.setObject(i + 1, row.get(cols.get(i)));
+            stmt.addBatch();
+         }
+         stmt.executeBatch();
+
+         if (merge)
+         {
+            for (Map<String, Object> row : rows)
+            {
+               Map<String, Object> key = new HashMap();
+               for (String keyCol : keyCols)
+                  key.put(keyCol, getIgnoreCase(row, keyCol));
+               keys.add(key);
+            }
+         }
+         else
+         {
+            rs = stmt.getGeneratedKeys();
+            while (rs.next())
+            {
+               Map<String, Object> key = new HashMap();
+               key.put(keyCols.get(0), rs.getObject(1));
+               keys.add(key);
+            }
+         }
+      }
+      catch (Exception e)
+      {
+         ex = e;
+         notifyError("upsert", sql, rows, ex);
+         throw ex;
+      }
+      finally
+      {
+         close(rs, stmt);
+         notifyAfter("upsert", sql, rows, ex, null);
+      }
+
+      return keys;
+   }
+
+   /**
+    * Redshift has no ON CONFLICT or MERGE so <code>rows</code>, which must all have 
+    * the same columns including all <code>keyCols</code>, are loaded into a temp
+    * staging table with a multi row insert and then applied to <code>tableName</code>
+    * with one set based UPDATE and one set based INSERT of the missing rows.
+    */
+   public static void redshiftUpsert(Connection conn, String tableName, List<String> keyCols, List<Map<String, Object>> rows) throws Exception
+   {
+      List<String> cols = new ArrayList(rows.get(0).keySet());
+      String table = quote(conn, tableName);
+      String stage = quote(conn, "stage_" + tableName + "_" + Long.toHexString(Double.doubleToLongBits(Math.random())));
+
+      StringBuffer join = new StringBuffer();
+      for (int i = 0; i < keyCols.size(); i++)
+      {
+         String col = quote(conn, keyCols.get(i));
+         join.append(i > 0 ? " AND " : "").append(table).append(".").append(col).append(" = s.").append(col);
+      }
+
+      StringBuffer set = new StringBuffer();
+      StringBuffer select = new StringBuffer();
+      for (String col : cols)
+      {
+         String qcol = quote(conn, col);
+         select.append(select.length() > 0 ? ", " : "").append("s.").append(qcol);
+         if (!containsIgnoreCase(keyCols, col))
+            set.append(set.length() > 0 ? ", " : "").append(qcol).append(" = s.").append(qcol);
+      }
+
+      StringBuffer insert = new StringBuffer("INSERT INTO " + stage + " (" + getColumnStr(conn, cols) + ") VALUES (" + getQuestionMarkStr(cols.size()) + ")");
+      for (int i = 1; i < rows.size(); i++)
+         insert.append(", (").append(getQuestionMarkStr(cols.size())).append(")");
+
+      List vals = new ArrayList();
+      for (Map<String, Object> row : rows)
+      {
+         for (String col : cols)
+            vals.add(row.get(col));
+      }
+
+      String insertSql = insert.toString();
+      List<String> sqls = new ArrayList();
+      sqls.add(insertSql);
+      if (set.length() > 0)
+         sqls.add("UPDATE " + table + " SET " + set + " FROM " + stage + " s WHERE " + join);
+      sqls.add("INSERT INTO " + table + " (" + getColumnStr(conn, cols) + ") SELECT " + select + " FROM " + stage + " s LEFT JOIN " + table + " ON " + join + " WHERE " + table + "." + quote(conn, keyCols.get(0)) + " IS NULL");
+
+      redshiftExecute(conn, "CREATE TEMP TABLE " + stage + " (LIKE " + table + ")", null);
+      try
+      {
+         for (String sql : sqls)
+            redshiftExecute(conn, sql, sql == insertSql ? vals : null);
+      }
+      finally
+      {
+         //-- the temp table lives as long as the pooled session so it is dropped even on error
+         try
+         {
+            redshiftExecute(conn, "DROP TABLE IF EXISTS " + stage, null);
+         }
+         catch (Exception ex)
+         {
+            log.warn("Unable to drop redshift staging table " + stage, ex);
+         }
+      }
+   }
+
+   static void redshiftExecute(Connection conn, String sql, List vals) throws Exception
+   {
+      Exception ex = null;
+      PreparedStatement stmt = null;
+      try
+      {
+         notifyBefore("upsert", sql, vals);
+
+         //-- not using execute() because asking the driver for generated 
+         //-- keys makes it append a RETURNING clause Redshift rejects
+         stmt = conn.prepareStatement(sql);
+         applyDeadline(stmt);
+         for (int i = 0; vals != null && i < vals.size(); i++)
+            stmt.setObject(i + 1, vals.get(i));
+         stmt.execute();
+      }
+      catch (Exception e)
+      {
+         ex = e;
+         notifyError("upsert", sql, vals, ex);
+         throw ex;
+      }
+      finally
+      {
+         close(stmt);
+         notifyAfter("upsert", sql, vals, ex, null);
+      }
+   }
+
+   static boolean containsIgnoreCase(List<String> strings, String string)
+   {
+      for (String s : strings)
+      {
+         if (s.equalsIgnoreCase(string))
+            return true;
+      }
+      return false;
+   }
+
+   static Object getIgnoreCase(Map<String, Object> row, String key)
+   {
+      if (row.containsKey(key))
+         return row.get(key);
+
+      for (String k : row.keySet())
+      {
+         if (k.equalsIgnoreCase(key))
+            return row.get(k);
+      }
+      return null;
+   }
+
    /*
    +------------------------------------------------------------------------------+
    | DELETE UTILS
    +------------------------------------------------------------------------------+
     */
 
-   public boolean isDelete(String sql)
+   public static boolean isDelete(String sql)
    {
       return sql.toLowerCase().trim().startsWith("delete ");
    }
@@ -815,6 +1334,47 @@ public class SqlUtils
 
    }
 
+   /**
+    * Deletes each row identified by the values of <code>keyCols</code> in
+    * <code>rows</code> using a JDBC batch.
+    */
+   public static int deleteBatch(Connection conn, String table, List<String> keyCols, List<List> rows) throws Exception
+   {
+      String sql = " DELETE FROM " + quote(conn, table) + " WHERE " + getWhereColumnStr(conn, keyCols.toArray(), "AND");
+
+      int deleted = 0;
+      Exception ex = null;
+      PreparedStatement stmt = null;
+      try
+      {
+         notifyBefore("deleteBatch", sql, rows);
+
+         stmt = conn.prepareStatement(sql);
+         applyDeadline(stmt);
+         for (List row : rows)
+         {
+            for (int i = 0; i < row.size(); i++)
+               stmt.setObject(i + 1, row.get(i));
+            stmt.addBatch();
+         }
+
+         for (int count : stmt.executeBatch())
+            deleted += Math.max(0, count);
+      }
+      catch (Exception e)
+      {
+         ex = e;
+         notifyError("deleteBatch", sql, rows, ex);
+         throw ex;
+      }
+      finally
+      {
+         close(stmt);
+         notifyAfter("deleteBatch", sql, rows, ex, deleted);
+      }
+      return deleted;
+   }
+
    public static void delete(Connection conn, Object o) throws Exception
    {
       delete(conn, o.getClass().getSimpleName(), o);
@@ -846,6 +1406,7 @@ public class SqlUtils
          notifyBefore("delete", sql.toString(), o);
 
          stmt = conn.prepareStatement(sql.toString());
+         applyDeadline(stmt);
          stmt.setObject(1, id);
          stmt.execute();
       }
@@ -922,6 +1483,7 @@ public class SqlUtils
             Statement stmt = con.createStatement();
             try
             {
+               applyDeadline(stmt);
                for (int i = 0; i < sql.length; i++)
                {
                   //                  if (i % 100 == 0)
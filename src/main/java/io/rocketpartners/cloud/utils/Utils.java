@@ -50,6 +50,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
@@ -58,6 +59,7 @@ import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -66,6 +68,8 @@ import javax.xml.bind.annotation.adapters.HexBinaryAdapter;
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.util.ISO8601Utils;
@@ -97,6 +101,10 @@ public class Utils
 
    protected static final String[] EMPTY_STRING_ARRAY = new String[0];
 
+   //-- reflection lookups are cached, classes don't change at runtime
+   static Map<Class, Map<String, Field>> fieldCache   = new ConcurrentHashMap();
+   static Map<Class, List<Field>>        fieldsCache  = new ConcurrentHashMap();
+
    public static String toJson(JSNode node)
    {
       return toJson(node, true, false);
@@ -125,14 +133,14 @@ public class Utils
 
    static void writeNode(JSNode node, JsonGenerator json, HashSet visited, boolean lowercaseNames) throws Exception
    {
-      Property href = node.getProperty("href");
+      Object href = node.containsKey("href") ? node.get("href") : null;
 
       if (visited.contains(node))
       {
          json.writeStartObject();
          if (href != null)
          {
-            json.writeStringField("@link", href.getValue() + "");
+            json.writeStringField("@link", href + "");
          }
 
          json.writeEndObject();
@@ -149,16 +157,15 @@ public class Utils
       json.writeStartObject();
 
       if (href != null)
-         json.writeStringField("href", href.getValue() + "");
+         json.writeStringField("href", href + "");
 
       for (String key : node.keySet())
       {
-         Property p = node.getProperty(key);
-         if (p == href)
+         if (href != null && "href".equalsIgnoreCase(key))
             continue;
 
-         String name = p.getName();
-         Object value = p.getValue();
+         String name = key;
+         Object value = node.get(key);
 
          if (value == null)
          {
@@ -259,6 +266,62 @@ public class Utils
       }
    }
 
+   /**
+    * Parses JSON straight off of a stream into JSNodes and JSArrays 
+    * without buffering the text or building an intermediate tree.
+    */
+   public static Object parseJson(InputStream in)
+   {
+      try
+      {
+         JsonParser parser = new JsonFactory().createParser(in);
+         parser.nextToken();
+         return parse(parser);
+      }
+      catch (Exception ex)
+      {
+         throw new RuntimeException("400 Bad Request: " + ex.getMessage());
+      }
+   }
+
+   static Object parse(JsonParser parser) throws Exception
+   {
+      switch (parser.getCurrentToken())
+      {
+         case START_OBJECT:
+            JSNode node = new JSNode();
+            while (parser.nextToken() != JsonToken.END_OBJECT)
+            {
+               String name = parser.getCurrentName();
+               parser.nextToken();
+               node.put(name, parse(parser));
+            }
+            return node;
+
+         case START_ARRAY:
+            JSArray array = new JSArray();
+            while (parser.nextToken() != JsonToken.END_ARRAY)
+               array.add(parse(parser));
+            return array;
+
+         case VALUE_NUMBER_INT:
+         case VALUE_NUMBER_FLOAT:
+            return parser.getNumberValue();
+
+         case VALUE_TRUE:
+            return true;
+
+         case VALUE_FALSE:
+            return false;
+
+         case VALUE_NULL:
+            return null;
+
+         default :
+            return parser.getText();
+      }
+   }
+
    /**
     * @see https://stackoverflow.com/questions/14028716/how-to-remove-control-characters-from-java-string
     * @param str
@@ -1007,10 +1070,10 @@ public class Utils
    }
 
    /**
-    * Searches the inheritance hierarchy for a field with the the given name and makes sure it is settable via Field.setAccesible
-    * @param fieldName
-    * @param clazz
-    * @return
+    * Finds the named field on <code>clazz</code> or its nearest superclass.
+    * <p>
+    * Lookups are cached per class so repeated calls, as made by the
+    * Wirer for every configured property, don't walk the hierarchy again.
     */
    public static Field getField(String fieldName, Class clazz)
    {
@@ -1019,23 +1082,31 @@ public class Utils
          return null;
       }
 
-      Field[] fields = clazz.getDeclaredFields();
-      for (int i = 0; i < fields.length; i++)
+      Map<String, Field> fields = fieldCache.get(clazz);
+      if (fields == null)
       {
-         if (fields[i].getName().equals(fieldName))
+         fields = new HashMap();
+         Class c = clazz;
+         while (c != null)
          {
-            Field field = fields[i];
-            field.setAccessible(true);
-            return field;
-         }
-      }
+            for (Field field : c.getDeclaredFields())
+            {
+               if (!fields.containsKey(field.getName()))
+               {
+                  field.setAccessible(true);
+                  fields.put(field.getName(), field);
+               }
+            }
 
-      if (clazz.getSuperclass() != null && !clazz.equals(clazz.getSuperclass()))
-      {
-         return getField(fieldName, clazz.getSuperclass());
+            if (c.equals(c.getSuperclass()))
+               break;
+
+            c = c.getSuperclass();
+         }
+         fieldCache.put(clazz, fields);
       }
 
-      return null;
+      return fields.get(fieldName);
    }
 
    /**
@@ -1045,6 +1116,10 @@ public class Utils
     */
    public static List<Field> getFields(Class clazz)
    {
+      List<Field> cached = fieldsCache.get(clazz);
+      if (cached != null)
+         return new ArrayList(cached);
+
       Class inClass = clazz;
 
       Set found = new HashSet();
@@ -1076,7 +1151,8 @@ public class Utils
       }
       while (clazz != null && !Object.class.equals(clazz));
 
-      return fields;
+      fieldsCache.put(inClass, fields);
+      return new ArrayList(fields);
    }
 
    /**
@@ -218,6 +218,75 @@ public class Wirer
       List<String> keys = new ArrayList(beans.keySet());
       keys = sort(keys);
 
+      setProperties(keys);
+      compressPaths(keys);
+
+      for (String name : loaded.keySet())
+      {
+         Object bean = beans.get(name);
+         Map loadedPros = loaded.get(name);
+         onLoad(name, bean, loadedPros);
+      }
+
+   }
+
+   /**
+    * Registers beans that were constructed outside of the Wirer, such as the 
+    * model built by Db.startup(), and sets any properties keyed by their names 
+    * directly on them.  Nothing is instantiated or re-wired.
+    * <p>
+    * Beans already known to the Wirer take precedence over <code>live</code>
+    * beans with the same name.
+    * 
+    * @param live beans by the name their properties are keyed by
+    */
+   public void override(Map<String, Object> live) throws Exception
+   {
+      //-- only beans that actually have properties need to be visited
+      Set<String> named = new HashSet();
+      for (Set keySet : Arrays.asList(props.keySet(), System.getProperties().keySet(), System.getenv().keySet()))
+      {
+         for (Object key : keySet)
+         {
+            String str = (String) key;
+            if (str.lastIndexOf(".") > 0)
+               named.add(str.substring(0, str.lastIndexOf(".")));
+         }
+      }
+
+      List<String> added = new ArrayList();
+      for (String name : live.keySet())
+      {
+         if (!beans.containsKey(name))
+         {
+            beans.put(name, live.get(name));
+            if (named.contains(name))
+               added.add(name);
+         }
+      }
+      setProperties(sort(added));
+
+      //-- user beans nested under a live bean could not be attached when they were first loaded
+      List<String> nested = new ArrayList();
+      for (String name : beans.keySet())
+      {
+         if (live.containsKey(name) || name.lastIndexOf(".") < 0)
+            continue;
+
+         String parent = name.substring(0, name.lastIndexOf("."));
+         String grandParent = parent.lastIndexOf(".") < 0 ? null : parent.substring(0, parent.lastIndexOf("."));
+         if (live.containsKey(parent) || live.containsKey(grandParent))
+            nested.add(name);
+      }
+      compressPaths(sort(nested));
+   }
+
+   /**
+    * Sets the properties of the named beans, primitive values 
+    * first and then references to other beans.
+    */
+   protected void setProperties(List<String> keys) throws Exception
+   {
       //LOOP THROUGH TWICE.  
       // - First loop, set atomic props
       // - Second loop, set bean props
@@ -303,9 +372,13 @@ public class Wirer
          }
       }
 
-      //THIRD STEP
-      // - Perform implicit setters based on nested paths of keys
+   }
 
+   /**
+    * Performs implicit setters based on nested paths of keys
+    */
+   protected void compressPaths(List<String> keys) throws Exception
+   {
       for (String beanName : keys)
       {
          Object obj = beans.get(beanName);
@@ -364,13 +437,6 @@ public class Wirer
          }
       }
 
-      for (String name : loaded.keySet())
-      {
-         Object bean = beans.get(name);
-         Map loadedPros = loaded.get(name);
-         onLoad(name, bean, loadedPros);
-      }
-
    }
 
    public void putBean(String key, Object bean)
@@ -417,28 +483,7 @@ public class Wirer
 
    protected Field getField(String fieldName, Class clazz)
    {
-      if (fieldName == null || clazz == null)
-      {
-         return null;
-      }
-
-      Field[] fields = clazz.getDeclaredFields();
-      for (int i = 0; i < fields.length; i++)
-      {
-         if (fields[i].getName().equals(fieldName))
-         {
-            Field field = fields[i];
-            field.setAccessible(true);
-            return field;
-         }
-      }
-
-      if (clazz.getSuperclass() != null && !clazz.equals(clazz.getSuperclass()))
-      {
-         return getField(fieldName, clazz.getSuperclass());
-      }
-
-      return null;
+      return Utils.getField(fieldName, clazz);
    }
 
    protected Object cast(String str)
@@ -0,0 +1,269 @@
+package io.rocketpartners.cloud.action.redis;
+
+import java.net.ServerSocket;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import io.rocketpartners.cloud.model.Request;
+import io.rocketpartners.cloud.model.Response;
+import io.rocketpartners.cloud.service.Engine;
+import junit.framework.TestCase;
+import redis.clients.jedis.Jedis;
+import redis.clients.util.JedisClusterCRC16;
+import redis.embedded.RedisServer;
+
+/**
+ * Runs the flush script against an embedded Redis server.
+ */
+public class TestRedisRateLimitAction extends TestCase
+{
+   RedisServer server = null;
+   RedisDb     redis  = null;
+
+   /**
+    * Counts its flushes, the script itself runs on the embedded server.
+    */
+   static class Node extends RedisRateLimitAction
+   {
+      int calls = 0;
+
+      @Override
+      protected List<Long> eval(RedisDb db, List<String> keys, List<String> args) throws Exception
+      {
+         calls += 1;
+         return super.eval(db, keys, args);
+      }
+   }
+
+   @Override
+   protected void setUp() throws Exception
+   {
+      int port = freePort();
+      server = new RedisServer(port);
+      server.start();
+      redis = new RedisDb().withHost("localhost").withPort(port).withPoolMin(0);
+   }
+
+   @Override
+   protected void tearDown() throws Exception
+   {
+      server.stop();
+   }
+
+   static int freePort() throws Exception
+   {
+      try (ServerSocket socket = new ServerSocket(0))
+      {
+         return socket.getLocalPort();
+      }
+   }
+
+   static Node node(RedisDb db)
+   {
+      Node node = new Node();
+      node.withFlushMillis(0);
+      node.db = db;
+      return node;
+   }
+
+   long get(String key)
+   {
+      try (Jedis jedis = redis.getRedisClient())
+      {
+         String value = jedis.get(key);
+         return value != null ? Long.parseLong(value) : 0;
+      }
+   }
+
+   public void testLimitIsSharedAcrossNodes() throws Exception
+   {
+      Node a = node(redis);
+      Node b = node(redis);
+
+      long window = System.currentTimeMillis() / 60000;
+      String key = "{RateLimit-}1-10--1:client:" + window;
+      for (int i = 0; i < 6; i++)
+      {
+         assertTrue(a.getCounter("1-10--1", "client", window, 60000).hit(1, 10));
+         assertTrue(b.getCounter("1-10--1", "client", window, 60000).hit(1, 10));
+      }
+
+      //-- one batched call per node, not one per hit
+      a.flush();
+      b.flush();
+      assertEquals(1, a.calls);
+      assertEquals(1, b.calls);
+      assertEquals(12L, get(key));
+
+      try (Jedis jedis = redis.getRedisClient())
+      {
+         assertTrue(jedis.ttl(key) > 0);
+      }
+
+      //-- the flushed hits are counted once, not as both current and inflight
+      assertEquals(12, b.getCounter("1-10--1", "client", window, 60000).estimate(1));
+      assertFalse(b.getCounter("1-10--1", "client", window, 60000).hit(1, 10));
+
+      //-- node a learns about b's hits on its next flush
+      assertEquals(6, a.getCounter("1-10--1", "client", window, 60000).estimate(1));
+      assertTrue(a.getCounter("1-10--1", "client", window, 60000).hit(1, 10));
+      a.flush();
+      assertFalse(a.getCounter("1-10--1", "client", window, 60000).hit(1, 10));
+      assertEquals(13L, get(key));
+   }
+
+   public void testPreviousWindowComesFromRedis() throws Exception
+   {
+      long window = System.currentTimeMillis() / 60000;
+      try (Jedis jedis = redis.getRedisClient())
+      {
+         jedis.set("{RateLimit-}1-10--1:client:" + (window - 1), "8");
+      }
+      Node a = node(redis);
+
+      RedisRateLimitAction.Counter counter = a.getCounter("1-10--1", "client", window, 60000);
+      assertTrue(counter.hit(.5, 10));
+      a.flush();
+
+      assertEquals(8, counter.totals.previous);
+      assertEquals(1 + 4, counter.estimate(.5));
+   }
+
+   public void testFailsOpenWhenRedisIsDown() throws Exception
+   {
+      long window = System.currentTimeMillis() / 60000;
+      RedisDb down = new RedisDb().withHost("localhost").withPort(freePort()).withPoolMin(0).withReadSocketTimeout(500);
+      Node a = node(down);
+
+      RedisRateLimitAction.Counter counter = a.getCounter("1-10--1", "client", window, 60000);
+      counter.hit(1, 10);
+      counter.hit(1, 10);
+      a.flush();
+
+      assertEquals(1, a.calls);
+      assertTrue(a.outage);
+      assertTrue(a.failedUntil > System.currentTimeMillis());
+      assertEquals(2, counter.pending.sum());
+      assertEquals(0, counter.totals.inflight);
+
+      //-- no flushes until failOpenMillis has passed
+      a.flush();
+      assertEquals(1, a.calls);
+
+      //-- still down, the outage is not logged again
+      a.failedUntil = 0;
+      a.flush();
+      assertEquals(2, a.calls);
+      assertTrue(a.outage);
+
+      a.db = redis;
+      a.failedUntil = 0;
+      a.flush();
+      assertFalse(a.outage);
+      assertEquals(2L, get("{RateLimit-}1-10--1:client:" + window));
+   }
+
+   public void testRejectedHitsAreNotCounted() throws Exception
+   {
+      Node a = node(redis);
+      a.withLimitUserHits(2).withLimitTotalHits(3);
+
+      Engine engine = new Engine().withApi("limits").withEndpoint("GET", "*", a).getEngine();
+
+      assertEquals(200, hit(engine, "10.0.0.1"));
+      assertEquals(200, hit(engine, "10.0.0.1"));
+      assertEquals(429, hit(engine, "10.0.0.1"));
+      assertEquals(429, hit(engine, "10.0.0.1"));
+
+      //-- the noisy client only used 2 of the 3 total hits
+      assertEquals(200, hit(engine, "10.0.0.2"));
+      assertEquals(429, hit(engine, "10.0.0.3"));
+
+      a.flush();
+      long window = System.currentTimeMillis() / 60000;
+      assertEquals(3L, get("{RateLimit-}1-2-3:*:" + window));
+      assertEquals(2L, get("{RateLimit-}1-2-3:ip:10.0.0.1:" + window));
+      assertEquals(0L, get("{RateLimit-}1-2-3:ip:10.0.0.3:" + window));
+   }
+
+   public void testKeysShareOneClusterSlot() throws Exception
+   {
+      Node a = node(redis);
+
+      long window = System.currentTimeMillis() / 60000;
+      a.getCounter("1-10--1", "client", window, 60000).hit(1, 10);
+      a.getCounter("1-10--1", "*", window, 60000).hit(1, 10);
+      a.flush();
+
+      try (Jedis jedis = redis.getRedisClient())
+      {
+         Set<String> keys = jedis.keys("*");
+         assertEquals(2, keys.size());
+
+         int slot = JedisClusterCRC16.getSlot("{RateLimit-}");
+         for (String key : keys)
+            assertEquals(key, slot, JedisClusterCRC16.getSlot(key));
+      }
+   }
+
+   public void testClientsOverMaxClientsAreOnlyCountedLocally() throws Exception
+   {
+      Node a = node(redis);
+      a.withMaxClients(1).withLimitUserHits(2);
+
+      Engine engine = new Engine().withApi("limits").withEndpoint("GET", "*", a).getEngine();
+
+      assertEquals(200, hit(engine, "10.0.0.1"));
+      assertEquals(200, hit(engine, "10.0.0.2"));
+      assertEquals(200, hit(engine, "10.0.0.2"));
+      assertEquals(429, hit(engine, "10.0.0.2"));
+
+      a.flush();
+      try (Jedis jedis = redis.getRedisClient())
+      {
+         for (String key : jedis.keys("*"))
+            assertFalse(key, key.contains("10.0.0.2"));
+      }
+   }
+
+   int hit(Engine engine, String remoteAddr)
+   {
+      Request req = engine.request("GET", "limits/things", null).withRemoteAddr(remoteAddr);
+      Response res = new Response();
+      engine.service(req, res);
+      return res.getStatusCode();
+   }
+
+   public void testFlushStopsOnceTheDbIsShutdownOrIdle() throws Exception
+   {
+      Node a = node(redis);
+      a.flushTask = RedisRateLimitAction.flusher.schedule(() -> {}, 1, TimeUnit.HOURS);
+
+      //-- counters from two windows ago are dropped, leaving the action idle
+      long window = System.currentTimeMillis() / 60000;
+      a.getCounter("1-10--1", "client", window - 2, 60000);
+      a.flush();
+
+      assertNull(a.flushTask);
+      assertNull(a.db);
+      assertEquals(0, a.counters.size());
+
+      RedisDb db = new RedisDb()
+         {
+            @Override
+            public boolean isShutdown()
+            {
+               return true;
+            }
+         };
+      a.db = db;
+      ScheduledFuture task = RedisRateLimitAction.flusher.schedule(() -> {}, 1, TimeUnit.HOURS);
+      a.flushTask = task;
+      a.flush();
+
+      assertTrue(task.isCancelled());
+      assertNull(a.db);
+   }
+}
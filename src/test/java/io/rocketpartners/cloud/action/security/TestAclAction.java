@@ -3,6 +3,8 @@
  */
 package io.rocketpartners.cloud.action.security;
 
+import java.util.Map;
+
 import org.junit.Test;
 
 import io.rocketpartners.cloud.demo.Demo002AclRules;
@@ -31,6 +33,75 @@ public class TestAclAction extends TestCase
 
    }
 
+   @Test
+   public void testAddingRulesRebuildsIndex()
+   {
+      AclAction acl = new AclAction().withAclRules(new AclRule().withMethods("GET").withIncludePaths("open/*"));
+      Engine engine = new Engine()//
+                                     .withApi("test")//
+                                     .withEndpoint("GET", "blocked/*", new MockActionA())//
+                                     .withEndpoint("GET", "open/*", new MockActionA())//
+                                     .withAction(acl)//
+                                     .getEngine();
+
+      assertEquals(403, engine.get("/test/blocked/blah").getStatusCode());
+      assertEquals(200, engine.get("/test/open/blah").getStatusCode());
+      assertEquals(200, engine.get("/test/open/blah").getStatusCode());
+
+      acl.withAclRules(new AclRule().withMethods("GET").withIncludePaths("blocked/*"));
+      assertEquals(200, engine.get("/test/blocked/blah").getStatusCode());
+
+      acl.withAclRules(new AclRule().withMethods("GET").withIncludePaths("open/*").withAllow(false).withOrder(0));
+      assertEquals(403, engine.get("/test/open/blah").getStatusCode());
+   }
+
+   @Test
+   public void testEntityKeysShareACachedDecision()
+   {
+      AclAction acl = new AclAction().withAclRules(//
+                                                   new AclRule().withMethods("GET").withIncludePaths("orders/*"), //
+                                                   new AclRule().withMethods("GET").withIncludePaths("orders/*/secret").withAllow(false).withOrder(0), //
+                                                   new AclRule().withMethods("GET").withIncludePaths("files/*.json"));
+      Engine engine = new Engine()//
+                                  .withApi("test")//
+                                  .withEndpoint("GET", "*", new MockActionA())//
+                                  .withAction(acl)//
+                                  .getEngine();
+
+      assertEquals(200, engine.get("/test/orders/1").getStatusCode());
+      assertEquals(200, engine.get("/test/orders/2").getStatusCode());
+      assertEquals(403, engine.get("/test/orders/1/secret").getStatusCode());
+      assertEquals(403, engine.get("/test/orders/2/secret").getStatusCode());
+      assertEquals(2, acl.getIndex().decisions.size());
+
+      //-- a part matching a partial wildcard is keyed by the wildcards it matches
+      assertEquals(200, engine.get("/test/files/a.json").getStatusCode());
+      assertEquals(200, engine.get("/test/files/b.json").getStatusCode());
+      assertEquals(403, engine.get("/test/files/a.txt").getStatusCode());
+      assertEquals(4, acl.getIndex().decisions.size());
+   }
+
+   @Test
+   public void testLeastRecentlyUsedDecisionIsEvicted()
+   {
+      AclAction acl = new AclAction().withMaxDecisions(2).withAclRules(new AclRule().withMethods("GET").withIncludePaths("a/*", "b/*", "c/*"));
+      Engine engine = new Engine()//
+                                  .withApi("test")//
+                                  .withEndpoint("GET", "*", new MockActionA())//
+                                  .withAction(acl)//
+                                  .getEngine();
+
+      assertEquals(200, engine.get("/test/a/1").getStatusCode());
+      assertEquals(200, engine.get("/test/b/1").getStatusCode());
+      assertEquals(200, engine.get("/test/a/2").getStatusCode());
+      assertEquals(200, engine.get("/test/c/1").getStatusCode());
+
+      Map<String, ?> decisions = acl.getIndex().decisions;
+      assertEquals(2, decisions.size());
+      assertTrue(decisions.containsKey("GET /a/*"));
+      assertTrue(decisions.containsKey("GET /c/*"));
+   }
+
    /**
     * @see io.rocketpartners.cloud.demo.security.DemoAclRules1
     */
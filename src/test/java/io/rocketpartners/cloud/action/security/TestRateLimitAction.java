@@ -0,0 +1,116 @@
+package io.rocketpartners.cloud.action.security;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.rocketpartners.cloud.model.Request;
+import io.rocketpartners.cloud.model.User;
+import junit.framework.TestCase;
+
+public class TestRateLimitAction extends TestCase
+{
+   public void testTotalLimitHoldsUnderContention() throws Exception
+   {
+      RateLimitAction.Bucket bucket = new RateLimitAction.Bucket(1, -1, 1000, 100);
+      long now = 60000 * 10;
+
+      int threads = 16;
+      int hits = 10000;
+      AtomicInteger allowed = new AtomicInteger();
+      CountDownLatch start = new CountDownLatch(1);
+      CountDownLatch done = new CountDownLatch(threads);
+
+      for (int t = 0; t < threads; t++)
+      {
+         new Thread(() -> {
+            try
+            {
+               start.await();
+               for (int i = 0; i < hits; i++)
+               {
+                  if (bucket.hit("client", now))
+                     allowed.incrementAndGet();
+               }
+            }
+            catch (InterruptedException ex)
+            {
+            }
+            finally
+            {
+               done.countDown();
+            }
+         }).start();
+      }
+
+      start.countDown();
+      done.await();
+
+      assertEquals(1000, allowed.get());
+   }
+
+   public void testPreviousWindowSlidesOut()
+   {
+      RateLimitAction.Bucket bucket = new RateLimitAction.Bucket(1, 10, -1, 100);
+      long now = 60000 * 10;
+
+      for (int i = 0; i < 10; i++)
+         assertTrue(bucket.hit("a", now));
+      assertFalse(bucket.hit("a", now));
+
+      //-- halfway into the next window half of the 10 counted hits still count, the rejected one never did
+      int allowed = 0;
+      for (int i = 0; i < 10; i++)
+         allowed += bucket.hit("a", now + 90000) ? 1 : 0;
+      assertEquals(5, allowed);
+
+      assertTrue(bucket.hit("a", now + 180000));
+   }
+
+   public void testRejectedHitsAreNotChargedToTheTotal()
+   {
+      RateLimitAction.Bucket bucket = new RateLimitAction.Bucket(1, 2, 5, 100);
+      long now = 60000 * 10;
+
+      //-- a client hammering past its own limit only uses its 2 hits of the total
+      int allowed = 0;
+      for (int i = 0; i < 10; i++)
+         allowed += bucket.hit("noisy", now) ? 1 : 0;
+      assertEquals(2, allowed);
+
+      assertTrue(bucket.hit("a", now));
+      assertTrue(bucket.hit("a", now));
+      assertTrue(bucket.hit("b", now));
+
+      //-- the total is used up, "b" is turned away without using its own limit
+      assertFalse(bucket.hit("b", now));
+      assertEquals(1, bucket.userHits.get("b").slots.get((int) ((now / 60000) & 1)) & 0xFFFFFFFFL);
+   }
+
+   public void testClientsAreCappedAndEvicted()
+   {
+      RateLimitAction.Bucket bucket = new RateLimitAction.Bucket(1, 5, -1, 10);
+      long now = 60000 * 10;
+
+      for (int i = 0; i < 20; i++)
+         bucket.hit("client" + i, now);
+      assertEquals(10, bucket.userHits.size());
+
+      bucket.hit("late", now + 120000);
+      assertEquals(1, bucket.userHits.size());
+   }
+
+   public void testHeadersOnlyIdentifyAuthenticatedClients()
+   {
+      RateLimitAction action = new RateLimitAction();
+
+      Request req = new Request("GET", "http://localhost/api/users", null).withRemoteAddr("10.0.0.1");
+      req.getHeaders().put("x-auth-token", "made-up-" + System.nanoTime());
+      assertEquals("ip:10.0.0.1", action.getClientId(req));
+
+      req.withUser(new User().withTenantId(1));
+      assertEquals("key:" + req.getHeader("x-auth-token"), action.getClientId(req));
+
+      req.withUser(new User().withTenantId(1).withUsername("admin"));
+      assertEquals("user:1:admin", action.getClientId(req));
+   }
+}
@@ -0,0 +1,102 @@
+package io.rocketpartners.cloud.action.sql;
+
+import java.sql.Connection;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import io.rocketpartners.cloud.model.Index;
+import io.rocketpartners.cloud.model.Table;
+import io.rocketpartners.cloud.utils.Rows;
+import io.rocketpartners.cloud.utils.SqlUtils;
+import io.rocketpartners.cloud.utils.Utils;
+import junit.framework.TestCase;
+
+public class TestSchemaReflector extends TestCase
+{
+   /**
+    * Answers the postgres catalog queries with canned rows, in the
+    * order the real queries return them.
+    */
+   static class CannedReflector extends SchemaReflector
+   {
+      CannedReflector(SqlDb db)
+      {
+         super(db, 1);
+      }
+
+      @Override
+      protected Rows select(Connection conn, String sql) throws Exception
+      {
+         Rows rows = new Rows(Arrays.asList("a", "b", "c", "d", "e"));
+         if (sql == PG_TABLES)
+         {
+            rows.addRow(new Object[]{"accounts"});
+         }
+         else if (sql == PG_COLUMNS)
+         {
+            rows.addRow(new Object[]{"accounts", "id", "integer", "int4", "NO"});
+            rows.addRow(new Object[]{"accounts", "region", "integer", "int4", "NO"});
+            rows.addRow(new Object[]{"accounts", "number", "integer", "int4", "NO"});
+         }
+         else if (sql == PG_UNIQUE_INDEXES)
+         {
+            //-- key order, number was declared first even though region has the lower attnum
+            rows.addRow(new Object[]{"accounts", "accounts_number_region_key", "number"});
+            rows.addRow(new Object[]{"accounts", "accounts_number_region_key", "region"});
+         }
+         return rows;
+      }
+   }
+
+   List<String> columnNames(Index index)
+   {
+      String[] names = new String[index.getColumns().size()];
+      for (int i = 0; i < names.length; i++)
+         names[i] = index.getColumn(i).getName();
+      return Arrays.asList(names);
+   }
+
+   @Test
+   public void testCatalogKeepsUniqueIndexColumnsInKeyOrder() throws Exception
+   {
+      //-- attnum order would put region, the lower attnum, first
+      assertTrue(SchemaReflector.PG_UNIQUE_INDEXES.contains("array_position(x.indkey::int2[], a.attnum)"));
+
+      SqlDb db = new SqlDb("catalog", "org.postgresql.Driver", "jdbc:postgresql://localhost/catalog", "user", "pass");
+      List<Table> tables = new CannedReflector(db).reflectCatalog(null);
+
+      Index index = tables.get(0).getIndex("accounts_number_region_key");
+      assertEquals(Arrays.asList("number", "region"), columnNames(index));
+      assertTrue(index.isUnique());
+   }
+
+   @Test
+   public void testParallelMetaDataKeepsUniqueIndexColumnsInKeyOrder() throws Exception
+   {
+      String url = "jdbc:h2:mem:reflector-" + Utils.time() + ";DB_CLOSE_DELAY=-1";
+      SqlDb db = new SqlDb("reflector", "org.h2.Driver", url, "sa", "");
+      try
+      {
+         try (Connection conn = PoolManager.getDataSource(db, url).getConnection())
+         {
+            for (int i = 0; i < 8; i++)
+               SqlUtils.execute(conn, "CREATE TABLE FILLER" + i + " (ID INT PRIMARY KEY)");
+
+            SqlUtils.execute(conn, "CREATE TABLE ACCOUNTS (ID INT PRIMARY KEY, REGION INT, NUMBER INT)");
+            SqlUtils.execute(conn, "CREATE UNIQUE INDEX ACCOUNTS_NUMBER_REGION ON ACCOUNTS (NUMBER, REGION)");
+         }
+
+         List<Table> tables = new SchemaReflector(db, 4).reflect();
+         assertEquals(9, tables.size());
+
+         Table accounts = SchemaSnapshot.find(tables, "ACCOUNTS");
+         assertEquals(Arrays.asList("NUMBER", "REGION"), columnNames(accounts.getIndex("ACCOUNTS_NUMBER_REGION")));
+      }
+      finally
+      {
+         db.shutdown0();
+      }
+   }
+}
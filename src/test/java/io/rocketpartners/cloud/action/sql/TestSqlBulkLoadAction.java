@@ -0,0 +1,126 @@
+package io.rocketpartners.cloud.action.sql;
+
+import java.sql.Connection;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import io.rocketpartners.cloud.action.rest.RestAction;
+import io.rocketpartners.cloud.model.ApiException;
+import io.rocketpartners.cloud.model.JSNode;
+import io.rocketpartners.cloud.model.Request;
+import io.rocketpartners.cloud.model.Response;
+import io.rocketpartners.cloud.model.SC;
+import io.rocketpartners.cloud.service.Chain;
+import io.rocketpartners.cloud.service.Engine;
+import io.rocketpartners.cloud.service.RequestContext;
+import io.rocketpartners.cloud.utils.SqlUtils;
+import io.rocketpartners.cloud.utils.Utils;
+import junit.framework.TestCase;
+
+public class TestSqlBulkLoadAction extends TestCase
+{
+   static Engine engine = null;
+
+   static synchronized Engine service()
+   {
+      if (engine == null)
+      {
+         SqlDb db = SqlEngineFactory.createDb("bulk", "northwind-h2.ddl", "org.h2.Driver", "jdbc:h2:./.h2/northwind-bulk-" + Utils.time(), "sa", "", "bulk/");
+
+         engine = new Engine()//
+                              .withApi("northwind")//
+                              .withEndpoint("POST", "bulk/*", new SqlBulkLoadAction())//
+                              .withEndpoint("GET", "bulk/*", new RestAction())//
+                              .withDb(db)//
+                              .getEngine();
+      }
+      return engine;
+   }
+
+   @Test
+   public void testCsv() throws Exception
+   {
+      Engine engine = service();
+
+      String csv = "orderid,employeeid,freight,shipname,shipaddress\n" //
+            + "500,3,12.5,\"first, ship\",\"1 \"\"Main\"\" St\"\n" //
+            + "501,,,,\n";
+
+      Response res = engine.post("http://localhost/northwind/bulk/orders?format=csv", csv);
+      assertEquals(201, res.getStatusCode());
+      assertEquals(2, res.find("meta.rows"));
+
+      res = engine.get("http://localhost/northwind/bulk/orders/500").statusOk();
+      assertEquals(3, res.findInt("data.0.employeeid"));
+      assertEquals("first, ship", res.findString("data.0.shipname"));
+      assertEquals("1 \"Main\" St", res.findString("data.0.shipaddress"));
+
+      //-- empty cells are null for non string columns and empty strings otherwise
+      res = engine.get("http://localhost/northwind/bulk/orders/501").statusOk();
+      assertNull(res.find("data.0.employeeid"));
+      assertNull(res.find("data.0.freight"));
+      assertEquals("", res.findString("data.0.shipname"));
+   }
+
+   @Test
+   public void testNdjson() throws Exception
+   {
+      Engine engine = service();
+
+      String ndjson = new JSNode("orderid", 600, "employeeid", 4, "shipname", "ndjson ship").toString().replace("\n", "") + "\n" //
+            + "\n" //
+            + "{\"orderid\":601,\"employeeid\":null,\"shipname\":null}\n";
+
+      Response res = engine.post("http://localhost/northwind/bulk/orders", ndjson);
+      assertEquals(201, res.getStatusCode());
+      assertEquals(2, res.find("meta.rows"));
+
+      res = engine.get("http://localhost/northwind/bulk/orders/600").statusOk();
+      assertEquals(4, res.findInt("data.0.employeeid"));
+      assertEquals("ndjson ship", res.findString("data.0.shipname"));
+
+      res = engine.get("http://localhost/northwind/bulk/orders/601").statusOk();
+      assertNull(res.find("data.0.employeeid"));
+      assertNull(res.find("data.0.shipname"));
+   }
+
+   @Test
+   public void testUnknownPropertyIsRejected() throws Exception
+   {
+      Response res = service().post("http://localhost/northwind/bulk/orders", "{\"orderid\":700,\"notacolumn\":1}\n");
+      assertEquals(400, res.getStatusCode());
+   }
+
+   @Test
+   public void testCopyStopsAtDeadline() throws Exception
+   {
+      String url = "jdbc:h2:mem:bulkdeadline-" + Utils.time() + ";DB_CLOSE_DELAY=-1";
+      SqlDb db = new SqlDb("bulkdeadline", "org.h2.Driver", url, "sa", "");
+
+      RequestContext ctx = new RequestContext(null);
+      RequestContext previous = RequestContext.bind(ctx);
+      try (Connection conn = PoolManager.getDataSource(db, url).getConnection())
+      {
+         SqlUtils.execute(conn, "CREATE TABLE T (ID INT PRIMARY KEY)");
+
+         //-- a request whose deadline has already passed
+         Chain.push(ctx, null, new Request("POST", "http://localhost/"), new Response()).withDeadline(System.currentTimeMillis() - 1);
+         try
+         {
+            new SqlBulkLoadAction().copy(db, conn, "T", Arrays.asList("ID"), "\"1\"\n");
+            fail("expected a 504");
+         }
+         catch (ApiException ex)
+         {
+            assertEquals(SC.SC_504_GATEWAY_TIMEOUT, ex.getStatus());
+         }
+         assertEquals(0, SqlUtils.selectRows(conn, "SELECT * FROM T").size());
+      }
+      finally
+      {
+         RequestContext.bind(previous);
+         db.shutdown0();
+      }
+   }
+}
@@ -0,0 +1,66 @@
+package io.rocketpartners.cloud.action.sql;
+
+import org.junit.Test;
+
+import io.rocketpartners.cloud.service.RequestContext;
+import io.rocketpartners.cloud.utils.Utils;
+import junit.framework.TestCase;
+
+public class TestSqlDbReplicas extends TestCase
+{
+   SqlDb db(String name)
+   {
+      String url = "jdbc:h2:mem:" + name + "-" + Utils.time() + ";DB_CLOSE_DELAY=-1";
+      return new SqlDb(name, "org.h2.Driver", url, "sa", "").withReplicaUrls(url).withReplicaCheckMillis(50);
+   }
+
+   void waitForCheck(SqlDb.Replica replica) throws Exception
+   {
+      for (int i = 0; i < 100 && replica.getLastChecked() == 0; i++)
+         Thread.sleep(20);
+   }
+
+   @Test
+   public void testReplicaIsCheckedInTheBackground() throws Exception
+   {
+      SqlDb db = db("lagging");
+      db.withReplicaLagMax(1000).withReplicaLagSql("SELECT 5000");
+      try
+      {
+         SqlDb.Replica replica = db.getReplicas().get(0);
+         waitForCheck(replica);
+
+         assertFalse(replica.isHealthy());
+         assertEquals(5000, replica.getLagMillis());
+
+         //-- with no healthy replica reads go to the primary
+         assertNull(db.findReplica(new RequestContext(null)));
+      }
+      finally
+      {
+         db.shutdown0();
+      }
+   }
+
+   @Test
+   public void testRecentWritesAreEvicted() throws Exception
+   {
+      SqlDb db = db("sticky");
+      db.withStickyMillis(50).withReplicaLagSql("SELECT 0");
+      try
+      {
+         for (int i = 0; i < 1000; i++)
+            db.recentWrites.put("addr:" + i, System.currentTimeMillis());
+
+         waitForCheck(db.getReplicas().get(0));
+         Thread.sleep(200);
+
+         assertEquals(0, db.recentWrites.size());
+         assertTrue(db.findReplica(new RequestContext(null)) != null);
+      }
+      finally
+      {
+         db.shutdown0();
+      }
+   }
+}
@@ -0,0 +1,179 @@
+package io.rocketpartners.cloud.action.sql;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.sql.Connection;
+
+import org.junit.Test;
+
+import io.rocketpartners.cloud.model.Api;
+import io.rocketpartners.cloud.model.Collection;
+import io.rocketpartners.cloud.service.Engine;
+import io.rocketpartners.cloud.utils.SqlUtils;
+import io.rocketpartners.cloud.utils.Utils;
+import junit.framework.TestCase;
+
+public class TestSqlDbSchemaCheck extends TestCase
+{
+   SqlDb db(String name)
+   {
+      String url = "jdbc:h2:mem:" + name + "-" + Utils.time() + ";DB_CLOSE_DELAY=-1";
+      return new SqlDb(name, "org.h2.Driver", url, "sa", "");
+   }
+
+   void ddl(SqlDb db, String sql) throws Exception
+   {
+      try (Connection conn = PoolManager.getDataSource(db, db.getUrl()).getConnection())
+      {
+         SqlUtils.execute(conn, sql);
+      }
+   }
+
+   @Test
+   public void testFingerprintChangesOnSameLengthRenameAndTypeChange() throws Exception
+   {
+      SqlDb db = db("fingerprint");
+      try
+      {
+         ddl(db, "CREATE TABLE T (ID INT PRIMARY KEY, AB VARCHAR(10), AMOUNT DOUBLE)");
+         String original = db.computeFingerprint();
+         assertNotNull(original);
+
+         ddl(db, "ALTER TABLE T ALTER COLUMN AB RENAME TO BA");
+         String renamed = db.computeFingerprint();
+         assertFalse(original.equals(renamed));
+
+         //-- DOUBLE and BIGINT have names of the same length
+         ddl(db, "ALTER TABLE T ALTER COLUMN AMOUNT BIGINT");
+         String retyped = db.computeFingerprint();
+         assertFalse(renamed.equals(retyped));
+
+         assertEquals(retyped, db.computeFingerprint());
+      }
+      finally
+      {
+         db.shutdown0();
+      }
+   }
+
+   /**
+    * Starts an Engine from an in memory inversion.properties for
+    * an h2 db that snapshots its schema to <code>snapshot</code>.
+    */
+   Engine engine(String url, File snapshot, String... extraProps)
+   {
+      StringBuilder props = new StringBuilder();
+      props.append("api.class=io.rocketpartners.cloud.model.Api\n");
+      props.append("api.apiCode=schema\n");
+      props.append("db.class=io.rocketpartners.cloud.action.sql.SqlDb\n");
+      props.append("db.driver=org.h2.Driver\n");
+      props.append("db.url=").append(url).append("\n");
+      props.append("db.user=sa\n");
+      props.append("db.pass=\n");
+      props.append("db.snapshotFile=").append(snapshot.getAbsolutePath().replace('\\', '/')).append("\n");
+      props.append("db.snapshotCheckMillis=0\n");
+      for (String prop : extraProps)
+         props.append(prop).append("\n");
+
+      Engine engine = new Engine();
+      engine.setConfigPath("schemacheck/");
+      engine.setResourceLoader(name -> name.equals("schemacheck/inversion.properties") ? new ByteArrayInputStream(props.toString().getBytes()) : null);
+      return engine;
+   }
+
+   Collection collection(Api api, String tableName)
+   {
+      for (Collection collection : api.getCollections())
+      {
+         if (collection.getTable().getName().equalsIgnoreCase(tableName))
+            return collection;
+      }
+      return null;
+   }
+
+   @Test
+   public void testSchemaChangeSwapsInARebuiltApi() throws Exception
+   {
+      File snapshot = File.createTempFile("schema", ".json");
+      snapshot.delete();
+
+      SqlDb scratch = db("schemacheck");
+      ddl(scratch, "CREATE TABLE CUSTOMERS (ID INT PRIMARY KEY, NAME VARCHAR(20))");
+
+      Engine engine = engine(scratch.getUrl(), snapshot, "api.collections.db_customers.name=clients");
+      try
+      {
+         engine.startup();
+         Api before = engine.getApi("schema");
+         SqlDb db = (SqlDb) before.getDb("db");
+
+         assertEquals("clients", collection(before, "CUSTOMERS").getName());
+         assertNull(collection(before, "CUSTOMERS").getTable().getColumn("EMAIL"));
+
+         ddl(scratch, "ALTER TABLE CUSTOMERS ADD COLUMN EMAIL VARCHAR(50)");
+         ddl(scratch, "CREATE TABLE ORDERS (ID INT PRIMARY KEY)");
+         db.checkSchema();
+
+         //-- a new Api replaced the old one and kept the configured collection name
+         Api after = engine.getApi("schema");
+         assertNotSame(before, after);
+         assertEquals("clients", collection(after, "CUSTOMERS").getName());
+         assertNotNull(collection(after, "CUSTOMERS").getTable().getColumn("EMAIL"));
+         assertNotNull(collection(after, "ORDERS"));
+
+         //-- the old Api was replaced, not modified in place
+         assertNull(collection(before, "CUSTOMERS").getTable().getColumn("EMAIL"));
+
+         //-- the next startup loads the new schema
+         db = (SqlDb) after.getDb("db");
+         SchemaSnapshot saved = SchemaSnapshot.load(db, snapshot);
+         assertEquals(db.computeFingerprint(), saved.getFingerprint());
+         assertEquals(2, saved.getTables().size());
+
+         //-- an unchanged schema does not swap again
+         db.checkSchema();
+         assertSame(after, engine.getApi("schema"));
+      }
+      finally
+      {
+         for (Api api : engine.getApis())
+            api.shutdown();
+         engine.destroy();
+         scratch.shutdown0();
+         snapshot.delete();
+      }
+   }
+
+   @Test
+   public void testStaleSnapshotIsReflectedAtStartup() throws Exception
+   {
+      File snapshot = File.createTempFile("schema", ".json");
+      snapshot.delete();
+
+      SqlDb db = db("stalesnapshot").withSnapshotFile(snapshot.getAbsolutePath());
+      ddl(db, "CREATE TABLE CUSTOMERS (ID INT PRIMARY KEY, NAME VARCHAR(20))");
+      db.reflectDb();
+      assertTrue(snapshot.exists());
+      String original = SchemaSnapshot.load(db, snapshot).getFingerprint();
+
+      //-- changed while "down"
+      ddl(db, "CREATE TABLE ORDERS (ID INT PRIMARY KEY)");
+
+      SqlDb restarted = db("stalesnapshot").withUrl(db.getUrl()).withSnapshotFile(snapshot.getAbsolutePath());
+      try
+      {
+         restarted.reflectDb();
+         assertNotNull(restarted.getTable("ORDERS"));
+
+         SchemaSnapshot saved = SchemaSnapshot.load(restarted, snapshot);
+         assertFalse(original.equals(saved.getFingerprint()));
+         assertEquals(restarted.computeFingerprint(), saved.getFingerprint());
+      }
+      finally
+      {
+         db.shutdown0();
+         restarted.shutdown0();
+         snapshot.delete();
+      }
+   }
+}
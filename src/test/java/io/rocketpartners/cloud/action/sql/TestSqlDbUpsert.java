@@ -0,0 +1,103 @@
+package io.rocketpartners.cloud.action.sql;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import io.rocketpartners.cloud.model.Column;
+import io.rocketpartners.cloud.model.Table;
+import io.rocketpartners.cloud.service.RequestContext;
+import io.rocketpartners.cloud.utils.Rows;
+import io.rocketpartners.cloud.utils.SqlUtils;
+import io.rocketpartners.cloud.utils.SqlUtils.SqlListener;
+import io.rocketpartners.cloud.utils.Utils;
+import junit.framework.TestCase;
+
+public class TestSqlDbUpsert extends TestCase
+{
+   /**
+    * Counts the upsert statements sent to the database.
+    */
+   static class UpsertCounter implements SqlListener
+   {
+      int statements = 0;
+
+      public void onError(String method, String sql, Object args, Exception ex)
+      {
+      }
+
+      public void beforeStmt(String method, String sql, Object args)
+      {
+         if ("upsert".equals(method))
+            statements += 1;
+      }
+
+      public void afterStmt(String method, String sql, Object args, Exception ex, Object result)
+      {
+      }
+   }
+
+   Map<String, Object> row(int id, String name)
+   {
+      Map<String, Object> row = new LinkedHashMap();
+      row.put("ID", id);
+      row.put("NAME", name);
+      return row;
+   }
+
+   @Test
+   public void testMysqlUpsertsInBatchesWithKeysInInputOrder() throws Exception
+   {
+      String url = "jdbc:h2:mem:mysqlupsert-" + Utils.time() + ";MODE=MySQL;DB_CLOSE_DELAY=-1";
+      SqlDb db = new SqlDb("mysqlupsert", "org.h2.Driver", url, "sa", "").withType("mysql").withBootstrap(false).withBatchMax(3);
+
+      UpsertCounter counter = new UpsertCounter();
+      SqlUtils.addSqlListener(counter);
+      try
+      {
+         try (Connection conn = PoolManager.getDataSource(db, url).getConnection())
+         {
+            SqlUtils.execute(conn, "CREATE TABLE ACCOUNTS (ID INT PRIMARY KEY, NAME VARCHAR(20))");
+         }
+
+         Table table = new Table(db, "ACCOUNTS");
+         Column id = table.makeColumn("ID", "INT");
+         table.makeColumn("NAME", "VARCHAR");
+         table.makeIndex(id, "PRIMARY", "primary", true);
+
+         List<String> keys = new ArrayList();
+         List<Rows> found = new ArrayList();
+         RequestContext.detached(() -> {
+            try
+            {
+               keys.addAll(db.upsert(table, Arrays.asList(row(2, "b"), row(1, "a"), row(2, "c"), row(3, "d"))));
+               found.add(SqlUtils.selectRows(db.getConnection(), "SELECT ID, NAME FROM ACCOUNTS ORDER BY ID"));
+            }
+            catch (Exception ex)
+            {
+               Utils.rethrow(ex);
+            }
+         }).run();
+
+         //-- two batches for four rows, the last row for a key wins
+         assertEquals(2, counter.statements);
+         assertEquals(Arrays.asList("2", "1", "2", "3"), keys);
+
+         Rows rows = found.get(0);
+         assertEquals(3, rows.size());
+         assertEquals("a", rows.get(0).get("NAME"));
+         assertEquals("c", rows.get(1).get("NAME"));
+         assertEquals("d", rows.get(2).get("NAME"));
+      }
+      finally
+      {
+         SqlUtils.removeSqlListener(counter);
+         db.shutdown();
+      }
+   }
+}
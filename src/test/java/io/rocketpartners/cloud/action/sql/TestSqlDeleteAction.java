@@ -1,5 +1,6 @@
 package io.rocketpartners.cloud.action.sql;
 
+import java.sql.Connection;
 import java.util.Collection;
 
 import org.junit.Before;
@@ -7,10 +8,19 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 
+import io.rocketpartners.cloud.action.rest.RestAction;
+import io.rocketpartners.cloud.model.Action;
+import io.rocketpartners.cloud.model.Api;
+import io.rocketpartners.cloud.model.Endpoint;
 import io.rocketpartners.cloud.model.JSArray;
 import io.rocketpartners.cloud.model.JSNode;
+import io.rocketpartners.cloud.model.Request;
 import io.rocketpartners.cloud.model.Response;
+import io.rocketpartners.cloud.service.Chain;
 import io.rocketpartners.cloud.service.Engine;
+import io.rocketpartners.cloud.utils.Rows;
+import io.rocketpartners.cloud.utils.SqlUtils;
+import io.rocketpartners.cloud.utils.Utils;
 import junit.framework.TestCase;
 
 @RunWith(Parameterized.class)
@@ -177,6 +187,85 @@ public class TestSqlDeleteAction extends TestCase
       assertEquals("Wrong number of records were deleted", 3, (allRecordsSize - allRecordsSizeAfterDelete));
    }
 
+   /**
+    * Stands in for a tenant/auth filter that limits what a caller can read.
+    */
+   static class EmployeeFilter extends Action<EmployeeFilter>
+   {
+      String employeeId = null;
+
+      EmployeeFilter(String employeeId)
+      {
+         this.employeeId = employeeId;
+         withMethods("GET");
+         withOrder(1);
+      }
+
+      @Override
+      public void run(Engine engine, Api api, Endpoint endpoint, Chain chain, Request req, Response res) throws Exception
+      {
+         req.putParam("employeeid", employeeId);
+      }
+   }
+
+   Engine filteredEngine(String config) throws Exception
+   {
+      SqlDb sourceDb = (SqlDb) service().getApi("northwind").getDb("source");
+      Rows orders = SqlUtils.selectRows(sourceDb.getConnection(), "SELECT * FROM \"ORDERS\" WHERE \"SHIPNAME\" = ? OR \"CUSTOMERID\" = ?", "Blauer See Delikatessen", "HILAA");
+
+      SqlDb db = SqlEngineFactory.createDb("filtered", "northwind-h2.ddl", "org.h2.Driver", "jdbc:h2:./.h2/northwind-filtered-" + Utils.time(), "sa", "", "filtered/");
+      Engine engine = new Engine()//
+                                  .withApi("northwind")//
+                                  .withEndpoint("GET,DELETE", "filtered/*", new RestAction(null, null, config))//
+                                  .withAction(new EmployeeFilter(orders.get(0).get("EMPLOYEEID") + ""))//
+                                  .withDb(db)//
+                                  .getEngine();
+      engine.startup();
+
+      Connection conn = db.getConnection();
+      SqlUtils.insertMaps(conn, db.getTable("Orders").getName(), orders);
+      conn.commit();
+
+      return engine;
+   }
+
+   int countOrders(Engine engine) throws Exception
+   {
+      SqlDb db = (SqlDb) engine.getApi("northwind").getDb("filtered");
+      return SqlUtils.selectInt(db.getConnection(), "SELECT count(*) FROM " + db.quoteCol(db.getTable("Orders").getName()));
+   }
+
+   @Test
+   public void testQueryDeleteOnlyDeletesReadableRows() throws Exception
+   {
+      if (!"h2".equals(db))
+         return;
+
+      Engine engine = filteredEngine(null);
+      int total = countOrders(engine);
+      int readable = engine.get("http://localhost/northwind/filtered/orders?limit=100").statusOk().data().size();
+      assertTrue(readable > 0 && readable < total);
+
+      engine.delete("http://localhost/northwind/filtered/orders?gt(orderid,0)").isSuccess();
+
+      assertEquals(total - readable, countOrders(engine));
+   }
+
+   @Test
+   public void testSetBasedQueryDeleteIsOptIn() throws Exception
+   {
+      if (!"h2".equals(db))
+         return;
+
+      Engine engine = filteredEngine("setBasedDelete=true");
+      assertTrue(countOrders(engine) > 0);
+
+      //-- the set based delete does not go through the GET chain so the filter does not apply
+      engine.delete("http://localhost/northwind/filtered/orders?gt(orderid,0)").isSuccess();
+
+      assertEquals(0, countOrders(engine));
+   }
+
    //2019-05-16 this is currently failing because of the OrderDetails child records...not sure what to do with this test
    //   @Test
    //   public void testBatchQueryDeleteWithForeignKeyConstraint() throws Exception
@@ -4,14 +4,17 @@ import java.sql.Connection;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 
+import io.rocketpartners.cloud.model.JSArray;
 import io.rocketpartners.cloud.model.JSNode;
 import io.rocketpartners.cloud.model.Response;
 import io.rocketpartners.cloud.service.Engine;
@@ -210,4 +213,72 @@ public class TestSqlPostAction extends TestCase
 
    }
 
+   /**
+    * Sends 10k keyed rows through the batched MERGE path.
+    */
+   @Test
+   public void testPostManyRecords() throws Exception
+   {
+      Engine engine = service();
+      if (!((SqlDb) engine.getApi("northwind").getDb(db)).isType("h2"))
+         return;
+
+      int count = 10000;
+      JSArray orders = new JSArray();
+      for (int i = 0; i < count; i++)
+      {
+         orders.add(new JSNode("orderid", 200000 + i, "shipaddress", "address " + i, "shipcity", "atlanta"));
+      }
+
+      Response res = engine.post(url("orders"), orders.toString());
+
+      assertEquals(url("orders/200000"), res.find("data.0.href"));
+      assertEquals(url("orders/" + (200000 + count - 1)), res.find("data." + (count - 1) + ".href"));
+      assertEquals(25 + count, engine.get(url("orders?limit=1")).find("meta.foundRows"));
+   }
+
+   @Test
+   public void testPostManyRecordsWithGeneratedKeys() throws Exception
+   {
+      Engine engine = service();
+      if (!((SqlDb) engine.getApi("northwind").getDb(db)).isType("h2"))
+         return;
+
+      JSArray orders = new JSArray();
+      for (int i = 0; i < 5; i++)
+      {
+         orders.add(new JSNode("shipaddress", "generated " + i, "shipcity", "atlanta"));
+      }
+
+      Response res = engine.post(url("orders"), orders.toString());
+      res.statusOk();
+
+      Set hrefs = new HashSet();
+      for (int i = 0; i < 5; i++)
+      {
+         String href = res.findString("data." + i + ".href");
+         assertTrue(hrefs.add(href));
+         assertEquals("generated " + i, engine.get(href).findString("data.0.shipaddress"));
+      }
+   }
+
+   @Test
+   public void testPostDuplicateKeysInOneBatch() throws Exception
+   {
+      Engine engine = service();
+      if (!((SqlDb) engine.getApi("northwind").getDb(db)).isType("h2"))
+         return;
+
+      JSArray orders = new JSArray();
+      orders.add(new JSNode("orderid", 300000, "shipaddress", "first", "shipcity", "atlanta"));
+      orders.add(new JSNode("orderid", 300001, "shipaddress", "other", "shipcity", "atlanta"));
+      orders.add(new JSNode("orderid", 300000, "shipaddress", "second", "shipcity", "atlanta"));
+
+      Response res = engine.post(url("orders"), orders.toString());
+      res.statusOk();
+
+      assertEquals(url("orders/300000"), res.find("data.0.href"));
+      assertEquals(url("orders/300000"), res.find("data.2.href"));
+      assertEquals("second", engine.get(url("orders/300000")).findString("data.0.shipaddress"));
+   }
 }
@@ -0,0 +1,126 @@
+package io.rocketpartners.cloud.action.sql;
+
+import java.sql.Connection;
+
+import org.junit.Test;
+
+import io.rocketpartners.cloud.action.rest.RestAction;
+import io.rocketpartners.cloud.action.sql.SqlDb.ConnectionLocal;
+import io.rocketpartners.cloud.model.Action;
+import io.rocketpartners.cloud.model.Api;
+import io.rocketpartners.cloud.model.Endpoint;
+import io.rocketpartners.cloud.model.Request;
+import io.rocketpartners.cloud.model.Response;
+import io.rocketpartners.cloud.model.Table;
+import io.rocketpartners.cloud.service.Chain;
+import io.rocketpartners.cloud.service.Engine;
+import io.rocketpartners.cloud.utils.SqlUtils;
+import io.rocketpartners.cloud.utils.Utils;
+import junit.framework.TestCase;
+
+public class TestSqlReadChain extends TestCase
+{
+   /**
+    * Writes through the plain getConnection() before the GET is serviced
+    * and records whether the request still holds that connection after the select.
+    */
+   static class Writer extends Action<Writer>
+   {
+      SqlDb      db          = null;
+      String     shipName    = null;
+      boolean    readOnly    = true;
+      boolean    autoCommit  = true;
+      Connection afterSelect = null;
+
+      Writer(SqlDb db, String shipName)
+      {
+         this.db = db;
+         this.shipName = shipName;
+         withMethods("GET");
+         withOrder(1);
+      }
+
+      @Override
+      public void run(Engine engine, Api api, Endpoint endpoint, Chain chain, Request req, Response res) throws Exception
+      {
+         Connection conn = db.getConnection();
+         readOnly = conn.isReadOnly();
+         autoCommit = conn.getAutoCommit();
+
+         Table table = db.getTable("Orders");
+         String sql = "UPDATE " + db.quoteCol(table.getName()) + " SET " + db.quoteCol(table.getColumn("shipname").getName()) + " = ? WHERE " + db.quoteCol(table.getColumn("orderid").getName()) + " = ?";
+         SqlUtils.execute(conn, sql, shipName, 10248);
+
+         chain.go();
+         afterSelect = ConnectionLocal.getConnection(db);
+      }
+   }
+
+   /**
+    * Records whether the select left a connection on the request.
+    */
+   static class Reader extends Action<Reader>
+   {
+      SqlDb      db          = null;
+      Connection afterSelect = null;
+
+      Reader(SqlDb db)
+      {
+         this.db = db;
+         withMethods("GET");
+         withOrder(1);
+      }
+
+      @Override
+      public void run(Engine engine, Api api, Endpoint endpoint, Chain chain, Request req, Response res) throws Exception
+      {
+         chain.go();
+         afterSelect = ConnectionLocal.getConnection(db);
+      }
+   }
+
+   SqlDb db(String name)
+   {
+      return SqlEngineFactory.createDb(name, "northwind-h2.ddl", "org.h2.Driver", "jdbc:h2:./.h2/northwind-" + name + "-" + Utils.time(), "sa", "", name + "/");
+   }
+
+   @Test
+   public void testWriterOnGetChainCommits() throws Exception
+   {
+      SqlDb db = db("readchain");
+      Writer writer = new Writer(db, "written on a get");
+      Engine engine = new Engine()//
+                                  .withApi("northwind")//
+                                  .withEndpoint("GET", "readchain/*", new RestAction())//
+                                  .withAction(writer)//
+                                  .withDb(db)//
+                                  .getEngine();
+
+      Response res = engine.get("http://localhost/northwind/readchain/orders/10248").statusOk();
+      assertFalse(writer.readOnly);
+      assertFalse(writer.autoCommit);
+      assertNotNull(writer.afterSelect);
+
+      //-- the select ran in the writer's transaction, which was committed with the request
+      assertEquals("written on a get", res.findString("data.0.shipname"));
+      assertEquals(1, SqlUtils.selectInt(db.getConnection(), "SELECT count(*) FROM " + db.quoteCol(db.getTable("Orders").getName()) + " WHERE " + db.quoteCol(db.getTable("Orders").getColumn("shipname").getName()) + " = 'written on a get'"));
+   }
+
+   @Test
+   public void testSelectConnectionIsReleased() throws Exception
+   {
+      SqlDb db = db("readrelease");
+      Reader reader = new Reader(db);
+      Engine engine = new Engine()//
+                                  .withApi("northwind")//
+                                  .withEndpoint("GET", "readrelease/*", new RestAction())//
+                                  .withAction(reader)//
+                                  .withDb(db)//
+                                  .getEngine();
+
+      engine.get("http://localhost/northwind/readrelease/orders/10248").statusOk();
+
+      //-- nothing on the chain wrote, so the select's connection is already back in the pool
+      assertNull(reader.afterSelect);
+   }
+}
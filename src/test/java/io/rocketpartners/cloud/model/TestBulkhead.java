@@ -0,0 +1,55 @@
+package io.rocketpartners.cloud.model;
+
+import junit.framework.TestCase;
+
+public class TestBulkhead extends TestCase
+{
+   public void testRejectsWhenQueueIsFull() throws Exception
+   {
+      Bulkhead bulkhead = new Bulkhead(1, 0, 10, 2);
+      assertTrue(bulkhead.acquire(false));
+
+      try
+      {
+         bulkhead.acquire(false);
+         fail("should have been rejected");
+      }
+      catch (ApiException ex)
+      {
+         assertEquals(SC.SC_503_SERVICE_UNAVAILABLE, ex.getStatus());
+      }
+      assertEquals(1, bulkhead.getRejected());
+
+      //-- priority callers are never shed
+      assertFalse(bulkhead.acquire(true));
+
+      bulkhead.release();
+      assertTrue(bulkhead.acquire(false));
+   }
+
+   public void testQueuedCallerTimesOut() throws Exception
+   {
+      Bulkhead bulkhead = new Bulkhead(1, 1, 20, 1);
+      bulkhead.acquire(false);
+
+      long start = System.currentTimeMillis();
+      try
+      {
+         bulkhead.acquire(false);
+         fail("should have timed out");
+      }
+      catch (ApiException ex)
+      {
+         assertTrue(System.currentTimeMillis() - start >= 15);
+      }
+      assertEquals(0, bulkhead.getQueued());
+   }
+
+   public void testDisabled() throws Exception
+   {
+      Bulkhead bulkhead = new Bulkhead(0, 0, 0, 1);
+      assertFalse(bulkhead.isEnabled());
+      for (int i = 0; i < 100; i++)
+         assertFalse(bulkhead.acquire(false));
+   }
+}
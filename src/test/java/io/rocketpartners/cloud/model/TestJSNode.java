@@ -0,0 +1,66 @@
+package io.rocketpartners.cloud.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import io.rocketpartners.cloud.model.JSNode.Shape;
+
+public class TestJSNode
+{
+   @Test
+   public void testShapedNodeIsCaseInsensitive()
+   {
+      Shape shape = new Shape("ID", "Name", "href");
+      JSNode node = new JSNode(shape);
+      node.put("id", 1);
+      node.put("NAME", "one");
+
+      assertEquals(1, node.get("Id"));
+      assertEquals("one", node.get("name"));
+      assertTrue(node.containsKey("name"));
+      assertFalse(node.containsKey("href"));
+      assertEquals(2, node.size());
+      assertEquals(Arrays.asList("ID", "Name"), Arrays.asList(node.keySet().toArray()));
+   }
+
+   @Test
+   public void testShapedNodeNullValues()
+   {
+      JSNode node = new JSNode(new Shape("a", "b"));
+      node.put("a", null);
+
+      assertTrue(node.containsKey("a"));
+      assertNull(node.get("a"));
+      assertFalse(node.containsKey("b"));
+
+      node.remove("a");
+      assertFalse(node.containsKey("a"));
+      assertTrue(node.isEmpty());
+   }
+
+   @Test
+   public void testUnknownKeyConvertsToMap()
+   {
+      Shape shape = new Shape("a", "b");
+      JSNode node = new JSNode(shape);
+      node.put("b", "2");
+      node.put("a", "1");
+      node.put("c", "3");
+
+      assertEquals(Arrays.asList("a", "b", "c"), Arrays.asList(node.keySet().toArray()));
+      assertEquals("3", node.get("C"));
+      assertEquals("1", node.getProperty("A").getValue());
+
+      //-- other nodes with the same shape are unaffected
+      JSNode other = new JSNode(shape);
+      other.put("a", "x");
+      assertEquals(1, other.size());
+      assertNull(other.get("c"));
+   }
+}
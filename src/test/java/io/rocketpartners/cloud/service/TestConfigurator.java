@@ -5,7 +5,9 @@ import java.io.IOException;
 import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 
 import org.junit.Test;
@@ -17,6 +19,7 @@ import io.rocketpartners.cloud.demo.Demo001SqlDbNorthwind;
 import io.rocketpartners.cloud.model.Api;
 import io.rocketpartners.cloud.model.Collection;
 import io.rocketpartners.cloud.model.Relationship;
+import io.rocketpartners.cloud.model.Table;
 import io.rocketpartners.cloud.service.Engine;
 import io.rocketpartners.cloud.utils.Configurator;
 import io.rocketpartners.cloud.utils.Utils;
@@ -95,6 +98,27 @@ public class TestConfigurator extends TestCase
       assertTrue(compare(props1, props2));
    }
 
+   /**
+    * Test that properties keyed by the encoded name of a model object
+    * are set directly on an already constructed object.
+    */
+   @Test
+   public void testOverrideLiveModel() throws Exception
+   {
+      MockDb db = new MockDb();
+      Table users = db.makeTable("users");
+
+      Wirer w = new Wirer();
+      w.add("db.tables.users.exclude", "true");
+
+      Map<String, Object> live = new HashMap();
+      live.put("db.tables.users", users);
+      w.override(live);
+
+      assertTrue(users.isExclude());
+      assertSame(users, w.getBean("db.tables.users"));
+   }
+
    protected boolean compare(Properties props1, Properties props2) throws IOException
    {
       return compare(print(props1), print(props2));
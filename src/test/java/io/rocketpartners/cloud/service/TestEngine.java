@@ -1,14 +1,26 @@
 package io.rocketpartners.cloud.service;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import org.junit.Test;
 
 import io.rocketpartners.cloud.action.misc.MockAction;
 import io.rocketpartners.cloud.action.misc.StatusAction;
 import io.rocketpartners.cloud.model.Action;
+import io.rocketpartners.cloud.model.Api;
+import io.rocketpartners.cloud.model.ApiException;
+import io.rocketpartners.cloud.model.AsyncAction;
 import io.rocketpartners.cloud.model.Endpoint;
 import io.rocketpartners.cloud.model.JSNode;
 import io.rocketpartners.cloud.model.Path;
+import io.rocketpartners.cloud.model.Request;
 import io.rocketpartners.cloud.model.Response;
+import io.rocketpartners.cloud.model.SC;
 import junit.framework.TestCase;
 
 public class TestEngine extends TestCase
@@ -278,4 +290,145 @@ public class TestEngine extends TestCase
 
    }
 
+   @Test
+   public void testSwappedApiIsRetiredAfterRequestsDrain() throws Exception
+   {
+      Engine engine = new Engine();
+      Api oldApi = new Api("northwind");
+      engine.addApi(oldApi);
+
+      assertTrue(oldApi.requestStarted());
+
+      Api newApi = new Api("northwind");
+      engine.addApi(newApi);
+
+      assertSame(newApi, engine.getApi("northwind"));
+      assertTrue(oldApi.isRetired());
+      assertFalse(oldApi.requestStarted());
+      assertEquals(1, oldApi.getInFlight());
+
+      oldApi.requestFinished();
+      assertEquals(0, oldApi.getInFlight());
+   }
+
+   @Test
+   public void testAsyncActionResumesChainWhenStageCompletes() throws Exception
+   {
+      CompletableFuture<String> remote = new CompletableFuture();
+
+      Action asyncAction = new AsyncAction()
+         {
+            @Override
+            public CompletionStage runAsync(Engine engine, Api api, Endpoint endpoint, Chain chain, Request req, Response res)
+            {
+               return remote.thenAccept(value -> chain.put("remote", value));
+            }
+         };
+      asyncAction.withOrder(1);
+
+      Action syncAction = new Action()
+         {
+            @Override
+            public void run(Engine engine, Api api, Endpoint endpoint, Chain chain, Request req, Response res)
+            {
+               res.withJson(new JSNode("remote", chain.get("remote")));
+            }
+         };
+      syncAction.withOrder(2);
+
+      Engine engine = new Engine()//
+                                  .withApi((String) null)//
+                                  .withEndpoint("get", "/*", asyncAction, syncAction)//
+                                  .getEngine();
+
+      Response res = new Response();
+      CompletableFuture<Chain> future = engine.serviceAsync(engine.request("GET", "users", null), res);
+      assertFalse(future.isDone());
+
+      Thread remoteThread = new Thread(() -> remote.complete("hello"));
+      remoteThread.start();
+      remoteThread.join();
+
+      future.get(5, TimeUnit.SECONDS);
+      assertEquals(200, res.getStatusCode());
+      assertEquals("hello", res.getJson().getString("remote"));
+      assertEquals(0, future.get().getContext().getDepth());
+   }
+
+   @Test
+   public void testAsyncStageIsFailedAtDeadline() throws Exception
+   {
+      CompletableFuture<String> remote = new CompletableFuture();
+
+      Action asyncAction = new AsyncAction()
+         {
+            @Override
+            public CompletionStage runAsync(Engine engine, Api api, Endpoint endpoint, Chain chain, Request req, Response res)
+            {
+               //-- never completes
+               return remote;
+            }
+         };
+
+      Engine engine = new Engine()//
+                                  .withApi((String) null)//
+                                  .withEndpoint("get", "/*", asyncAction)//
+                                  .getEngine()//
+                                  .withRequestTimeout(100);
+
+      Response res = new Response();
+      CompletableFuture<Chain> future = engine.serviceAsync(engine.request("GET", "users", null), res);
+
+      future.get(5, TimeUnit.SECONDS);
+      assertEquals(504, res.getStatusCode());
+      assertTrue(remote.isCompletedExceptionally());
+   }
+
+   @Test
+   public void testErrorReleasesStreamedBody() throws Exception
+   {
+      AtomicBoolean closed = new AtomicBoolean(false);
+
+      Action streamAction = new Action()
+         {
+            @Override
+            public void run(Engine engine, Api api, Endpoint endpoint, Chain chain, Request req, Response res) throws Exception
+            {
+               //-- headers copied from an upstream response, then a later failure
+               res.withHeader("Content-Length", "4");
+               res.withHeader("content-range", "bytes 0-3/10");
+               res.withHeader("Content-Type", "image/png");
+               res.withStream(new Response.Streamer()
+                  {
+                     @Override
+                     public void writeTo(OutputStream out) throws IOException
+                     {
+                        out.write(new byte[]{1, 2, 3, 4});
+                     }
+
+                     @Override
+                     public void close()
+                     {
+                        closed.set(true);
+                     }
+                  });
+               throw new ApiException(SC.SC_503_SERVICE_UNAVAILABLE, "upstream failed");
+            }
+         };
+
+      Engine engine = new Engine()//
+                                  .withApi((String) null)//
+                                  .withEndpoint("get", "/*", streamAction)//
+                                  .getEngine();
+
+      Response res = engine.get("users");
+      assertEquals(503, res.getStatusCode());
+      assertTrue(closed.get());
+      assertNull(res.getStream());
+      assertNull(res.getHeader("Content-Length"));
+      assertNull(res.getHeader("content-range"));
+      assertEquals("application/json", res.getContentType());
+      assertEquals("upstream failed", res.getJson().getString("message"));
+   }
+
 }
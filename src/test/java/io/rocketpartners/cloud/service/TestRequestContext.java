@@ -0,0 +1,79 @@
+package io.rocketpartners.cloud.service;
+
+import java.sql.Connection;
+
+import org.junit.Test;
+
+import io.rocketpartners.cloud.action.sql.SqlDb;
+import io.rocketpartners.cloud.action.sql.SqlDb.ConnectionLocal;
+import io.rocketpartners.cloud.utils.Utils;
+import junit.framework.TestCase;
+
+public class TestRequestContext extends TestCase
+{
+   @Test
+   public void testLookupsDoNotBindAContext() throws Exception
+   {
+      RequestContext previous = RequestContext.bind(null);
+      try
+      {
+         SqlDb db = new SqlDb("lookup", "org.h2.Driver", "jdbc:h2:mem:lookup", "sa", "");
+         assertNull(ConnectionLocal.getConnection(db));
+         assertNull(ConnectionLocal.removeConnection(db));
+         assertNull(RequestContext.current());
+      }
+      finally
+      {
+         RequestContext.bind(previous);
+      }
+   }
+
+   @Test
+   public void testDetachedWorkClosesConnectionsAndUnbinds() throws Exception
+   {
+      SqlDb db = new SqlDb("detached", "org.h2.Driver", "jdbc:h2:mem:detached-" + Utils.time() + ";DB_CLOSE_DELAY=-1", "sa", "");
+      RequestContext previous = RequestContext.bind(null);
+      try
+      {
+         Connection[] opened = new Connection[1];
+         RequestContext.detached(() -> {
+            opened[0] = db.getConnection();
+            assertNotNull(RequestContext.current());
+         }).run();
+
+         assertNotNull(opened[0]);
+         assertTrue(opened[0].isClosed());
+         assertNull(RequestContext.current());
+      }
+      finally
+      {
+         RequestContext.bind(previous);
+         db.shutdown();
+      }
+   }
+
+   @Test
+   public void testPassedContextHoldsTheConnectionWithoutBinding() throws Exception
+   {
+      SqlDb db = new SqlDb("passed", "org.h2.Driver", "jdbc:h2:mem:passed-" + Utils.time() + ";DB_CLOSE_DELAY=-1", "sa", "");
+      RequestContext previous = RequestContext.bind(null);
+      try
+      {
+         RequestContext ctx = new RequestContext(null);
+         Connection conn = db.getConnection(ctx, true);
+
+         assertSame(conn, ConnectionLocal.getConnection(ctx, db));
+         assertSame(conn, db.getConnection(ctx, false));
+         assertNull(RequestContext.current());
+
+         ConnectionLocal.close(ctx);
+         assertTrue(conn.isClosed());
+         assertNull(ConnectionLocal.getConnection(ctx, db));
+      }
+      finally
+      {
+         RequestContext.bind(previous);
+         db.shutdown();
+      }
+   }
+}
@@ -0,0 +1,236 @@
+package io.rocketpartners.cloud.service.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Test;
+
+import io.rocketpartners.cloud.model.Action;
+import io.rocketpartners.cloud.model.Api;
+import io.rocketpartners.cloud.model.Endpoint;
+import io.rocketpartners.cloud.model.Request;
+import io.rocketpartners.cloud.model.Response;
+import io.rocketpartners.cloud.service.Chain;
+import io.rocketpartners.cloud.service.Engine;
+import junit.framework.TestCase;
+
+public class TestUndertowHandler extends TestCase
+{
+   /**
+    * Echoes the request body, and the value of the X-Test header looked
+    * up by its canonical name, back to the client.
+    */
+   static class EchoAction extends Action<EchoAction>
+   {
+      @Override
+      public void run(Engine engine, Api api, Endpoint endpoint, Chain chain, Request req, Response res) throws Exception
+      {
+         String header = req.getHeader("X-Test");
+         res.withHeader("X-Echo", header == null ? "none" : header);
+         res.withText(req.getBody() != null ? req.getBody() : "hello world hello world hello world");
+      }
+   }
+
+   /**
+    * Streams <code>size</code> bytes without a Content-Length.
+    */
+   static class StreamAction extends Action<StreamAction>
+   {
+      @Override
+      public void run(Engine engine, Api api, Endpoint endpoint, Chain chain, Request req, Response res) throws Exception
+      {
+         int size = Integer.parseInt(req.getParam("size"));
+         res.withStream(new Response.Streamer()
+            {
+               @Override
+               public void writeTo(OutputStream out) throws IOException
+               {
+                  byte[] row = "0123456789abcdef".getBytes("UTF-8");
+                  for (int i = 0; i < size / row.length; i++)
+                     out.write(row);
+               }
+
+               @Override
+               public void close() throws IOException
+               {
+               }
+            });
+      }
+   }
+
+   UndertowHandler start() throws Exception
+   {
+      return start(1024);
+   }
+
+   UndertowHandler start(int gzipMinLength) throws Exception
+   {
+      Engine engine = new Engine()//
+                                  .withApi("echo")//
+                                  .withEndpoint(null, "echo/*", new EchoAction())//
+                                  .withEndpoint("GET", "stream/*", new StreamAction())//
+                                  .getEngine();
+
+      int port = 0;
+      try (ServerSocket socket = new ServerSocket(0))
+      {
+         port = socket.getLocalPort();
+      }
+
+      UndertowHandler handler = new UndertowHandler(engine);
+      handler.setGzipMinLength(gzipMinLength);
+      handler.start(port, 2);
+      return handler;
+   }
+
+   int port(UndertowHandler handler)
+   {
+      return handler.getPort();
+   }
+
+   byte[] read(InputStream in) throws Exception
+   {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      byte[] buff = new byte[1024];
+      int read = 0;
+      while ((read = in.read(buff)) > -1)
+         bytes.write(buff, 0, read);
+      in.close();
+      return bytes.toByteArray();
+   }
+
+   @Test
+   public void testRoundTrip() throws Exception
+   {
+      UndertowHandler handler = start();
+      try
+      {
+         HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:" + port(handler) + "/echo/echo/things").openConnection();
+         conn.setRequestMethod("POST");
+         conn.setDoOutput(true);
+         conn.setRequestProperty("x-test", "lower case name");
+         conn.setRequestProperty("Content-Type", "application/json");
+
+         OutputStream out = conn.getOutputStream();
+         out.write("{\"name\":\"café\"}".getBytes("UTF-8"));
+         out.close();
+
+         assertEquals(200, conn.getResponseCode());
+         assertEquals("lower case name", conn.getHeaderField("X-Echo"));
+         assertEquals("{\"name\":\"café\"}", new String(read(conn.getInputStream()), "UTF-8"));
+      }
+      finally
+      {
+         handler.stop();
+      }
+   }
+
+   @Test
+   public void testRequestsShareAKeptAliveConnection() throws Exception
+   {
+      UndertowHandler handler = start();
+      try (Socket socket = new Socket("localhost", port(handler)))
+      {
+         OutputStream out = socket.getOutputStream();
+         InputStream in = socket.getInputStream();
+
+         for (int i = 0; i < 2; i++)
+         {
+            String body = "request " + i;
+            out.write(("POST /echo/echo/things HTTP/1.1\r\nHost: localhost\r\nX-Test: " + i + "\r\nContent-Length: " + body.length() + "\r\n\r\n" + body).getBytes("UTF-8"));
+            out.flush();
+
+            //-- a fixed Content-Length lets the second response be read off the same socket
+            String head = readHead(in);
+            assertTrue(head, head.startsWith("HTTP/1.1 200"));
+            assertTrue(head, head.toLowerCase().contains("x-echo: " + i));
+
+            int length = Integer.parseInt(header(head, "content-length"));
+            byte[] bytes = new byte[length];
+            for (int read = 0; read < length;)
+               read += in.read(bytes, read, length - read);
+            assertEquals(body, new String(bytes, "UTF-8"));
+         }
+      }
+      finally
+      {
+         handler.stop();
+      }
+   }
+
+   @Test
+   public void testGzipsResponsesForClientsThatAcceptIt() throws Exception
+   {
+      UndertowHandler handler = start(16);
+      try
+      {
+         URL url = new URL("http://localhost:" + port(handler) + "/echo/echo/things");
+
+         HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+         conn.setRequestProperty("Accept-Encoding", "gzip");
+         assertEquals(200, conn.getResponseCode());
+         assertEquals("gzip", conn.getHeaderField("Content-Encoding"));
+         assertEquals("hello world hello world hello world", new String(read(new GZIPInputStream(conn.getInputStream())), "UTF-8"));
+
+         conn = (HttpURLConnection) url.openConnection();
+         assertEquals(200, conn.getResponseCode());
+         assertNull(conn.getHeaderField("Content-Encoding"));
+         assertEquals("hello world hello world hello world", new String(read(conn.getInputStream()), "UTF-8"));
+      }
+      finally
+      {
+         handler.stop();
+      }
+   }
+
+   @Test
+   public void testStreamedResponsesAreChunked() throws Exception
+   {
+      UndertowHandler handler = start();
+      try
+      {
+         HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:" + port(handler) + "/echo/stream/things?size=1048576").openConnection();
+         assertEquals(200, conn.getResponseCode());
+         assertEquals("chunked", conn.getHeaderField("Transfer-Encoding"));
+
+         byte[] bytes = read(conn.getInputStream());
+         assertEquals(1048576, bytes.length);
+         assertEquals("0123456789abcdef", new String(bytes, bytes.length - 16, 16, "UTF-8"));
+      }
+      finally
+      {
+         handler.stop();
+      }
+   }
+
+   String readHead(InputStream in) throws Exception
+   {
+      StringBuilder head = new StringBuilder();
+      while (!head.toString().endsWith("\r\n\r\n"))
+      {
+         int c = in.read();
+         if (c < 0)
+            break;
+         head.append((char) c);
+      }
+      return head.toString();
+   }
+
+   String header(String head, String name)
+   {
+      for (String line : head.split("\r\n"))
+      {
+         int colon = line.indexOf(':');
+         if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase(name))
+            return line.substring(colon + 1).trim();
+      }
+      return null;
+   }
+}
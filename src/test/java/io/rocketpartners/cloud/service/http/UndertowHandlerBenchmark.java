@@ -0,0 +1,171 @@
+package io.rocketpartners.cloud.service.http;
+
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.Wrapper;
+import org.apache.catalina.startup.Tomcat;
+
+import io.rocketpartners.cloud.model.Action;
+import io.rocketpartners.cloud.model.Api;
+import io.rocketpartners.cloud.model.Endpoint;
+import io.rocketpartners.cloud.model.Request;
+import io.rocketpartners.cloud.model.Response;
+import io.rocketpartners.cloud.service.Chain;
+import io.rocketpartners.cloud.service.Engine;
+import io.rocketpartners.cloud.service.Servlet;
+
+/**
+ * Serves the same Engine from Undertow and from embedded Tomcat through
+ * {@link Servlet} and reports the requests per second and latency of each
+ * with <code>clients</code> keep alive connections hitting it.
+ * <p>
+ * Run by hand, it is not part of the unit tests.
+ */
+public class UndertowHandlerBenchmark
+{
+   /**
+    * Answers every request with a few KB of JSON.
+    */
+   static class RowsAction extends Action<RowsAction>
+   {
+      String json = null;
+
+      RowsAction(int rows)
+      {
+         StringBuilder buff = new StringBuilder("[");
+         for (int i = 0; i < rows; i++)
+            buff.append(i == 0 ? "" : ",").append("{\"id\":").append(i).append(",\"name\":\"row ").append(i).append("\"}");
+         json = buff.append("]").toString();
+      }
+
+      @Override
+      public void run(Engine engine, Api api, Endpoint endpoint, Chain chain, Request req, Response res) throws Exception
+      {
+         res.withHeader("Content-Type", "application/json");
+         res.withOutput(json);
+      }
+   }
+
+   public static void main(String[] args) throws Exception
+   {
+      int clients = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+      int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+      int port = freePort();
+      UndertowHandler undertow = new UndertowHandler(engine());
+      undertow.setGzipMinLength(-1);
+      undertow.start(port, clients);
+      try
+      {
+         run("undertow", "http://localhost:" + port + "/bench/rows/", clients, seconds);
+      }
+      finally
+      {
+         undertow.stop();
+      }
+
+      port = freePort();
+      Servlet servlet = new Servlet();
+      servlet.setEngine(engine());
+
+      Tomcat tomcat = new Tomcat();
+      tomcat.setPort(port);
+      tomcat.setBaseDir(Files.createTempDirectory("tomcat").toString());
+      tomcat.getConnector().setAttribute("maxThreads", clients);
+
+      Context context = tomcat.addContext("", null);
+      Wrapper wrapper = Tomcat.addServlet(context, "engine", servlet);
+      wrapper.setAsyncSupported(true);
+      context.addServletMapping("/*", "engine");
+
+      tomcat.start();
+      try
+      {
+         run("tomcat", "http://localhost:" + port + "/bench/rows/", clients, seconds);
+      }
+      finally
+      {
+         tomcat.stop();
+         tomcat.destroy();
+      }
+   }
+
+   static Engine engine()
+   {
+      return new Engine().withApi("bench").withEndpoint("GET", "rows/*", new RowsAction(50)).getEngine();
+   }
+
+   static int freePort() throws Exception
+   {
+      try (ServerSocket socket = new ServerSocket(0))
+      {
+         return socket.getLocalPort();
+      }
+   }
+
+   static void run(String name, String url, int clients, int seconds) throws Exception
+   {
+      //-- warm up both the server and the clients before measuring
+      load(url, clients, 2000);
+
+      long start = System.nanoTime();
+      long[] latencies = load(url, clients, seconds * 1000L);
+      long nanos = System.nanoTime() - start;
+
+      Arrays.sort(latencies);
+      System.out.println(name + " - " + latencies.length * 1000000000L / nanos + " req/s"//
+            + ", p50: " + latencies[latencies.length / 2] / 1000 + "us"//
+            + ", p99: " + latencies[(int) (latencies.length * .99)] / 1000 + "us");
+   }
+
+   static long[] load(String url, int clients, long millis) throws Exception
+   {
+      long end = System.currentTimeMillis() + millis;
+      List<List<Long>> results = new ArrayList();
+      List<Thread> threads = new ArrayList();
+      for (int i = 0; i < clients; i++)
+      {
+         List<Long> latencies = new ArrayList();
+         results.add(latencies);
+
+         Thread thread = new Thread(() -> {
+            byte[] buff = new byte[8192];
+            try
+            {
+               while (System.currentTimeMillis() < end)
+               {
+                  long start = System.nanoTime();
+
+                  //-- reading the body to the end returns the connection to the keep alive cache
+                  HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+                  try (InputStream in = conn.getInputStream())
+                  {
+                     while (in.read(buff) > -1)
+                        ;
+                  }
+                  latencies.add(System.nanoTime() - start);
+               }
+            }
+            catch (Exception ex)
+            {
+               ex.printStackTrace();
+            }
+         });
+         threads.add(thread);
+         thread.start();
+      }
+
+      for (Thread thread : threads)
+         thread.join();
+
+      return results.stream().flatMap(List::stream).mapToLong(Long::longValue).toArray();
+   }
+}
@@ -0,0 +1,46 @@
+package io.rocketpartners.cloud.service.lambda;
+
+import java.io.ByteArrayOutputStream;
+
+import io.rocketpartners.cloud.model.JSNode;
+import io.rocketpartners.cloud.model.Response;
+
+/**
+ * Writes a 5MB response through the streaming envelope and, for
+ * comparison, through the JSNode envelope the handler used to build.
+ * <p>
+ * Run by hand, it is not part of the unit tests.
+ */
+public class ApiGatewayResponseBenchmark
+{
+   public static void main(String[] args) throws Exception
+   {
+      int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+      int runs = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+      StringBuilder buff = new StringBuilder("[");
+      for (int i = 0; buff.length() < megabytes * 1024 * 1024; i++)
+         buff.append(i == 0 ? "" : ",").append("{\"id\":").append(i).append(",\"name\":\"row \\\"").append(i).append("\\\"\",\"notes\":\"tab\\tnewline\\n\"}");
+      buff.append("]");
+      String output = buff.toString();
+
+      ApiGatewayRequestStreamHandler handler = new ApiGatewayRequestStreamHandler();
+      Response res = new Response().withOutput(output);
+      res.withHeader("Content-Type", "application/json");
+
+      long streamingNanos = Long.MAX_VALUE;
+      long envelopeNanos = Long.MAX_VALUE;
+      for (int i = 0; i < runs; i++)
+      {
+         long start = System.nanoTime();
+         handler.writeResponse(res, new ByteArrayOutputStream());
+         streamingNanos = Math.min(streamingNanos, System.nanoTime() - start);
+
+         start = System.nanoTime();
+         JSNode envelope = new JSNode("isBase64Encoded", false, "statusCode", res.getStatusCode(), "headers", new JSNode("Content-Type", "application/json"), "body", output);
+         envelope.toString().getBytes("UTF-8");
+         envelopeNanos = Math.min(envelopeNanos, System.nanoTime() - start);
+      }
+      System.out.println(megabytes + "MB response - streaming envelope: " + streamingNanos / 1000000 + "ms, JSNode envelope: " + envelopeNanos / 1000000 + "ms");
+   }
+}
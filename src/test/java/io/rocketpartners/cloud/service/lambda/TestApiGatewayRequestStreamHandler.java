@@ -0,0 +1,174 @@
+package io.rocketpartners.cloud.service.lambda;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Test;
+
+import io.rocketpartners.cloud.model.Action;
+import io.rocketpartners.cloud.model.Api;
+import io.rocketpartners.cloud.model.Endpoint;
+import io.rocketpartners.cloud.model.JSNode;
+import io.rocketpartners.cloud.model.Request;
+import io.rocketpartners.cloud.model.Response;
+import io.rocketpartners.cloud.service.Chain;
+import io.rocketpartners.cloud.service.Engine;
+import io.rocketpartners.cloud.utils.Utils;
+import junit.framework.TestCase;
+
+public class TestApiGatewayRequestStreamHandler extends TestCase
+{
+   /**
+    * Builds an in memory api instead of loading one from config files
+    * and counts the requests that reach it.
+    */
+   static class PrimedHandler extends ApiGatewayRequestStreamHandler
+   {
+      static AtomicInteger hits = new AtomicInteger(0);
+
+      @Override
+      protected Engine buildEngine(String profile, String servletPath)
+      {
+         return new Engine()//
+                            .withApi("prime")//
+                            .withEndpoint("GET", "ping/*", new Action()
+                               {
+                                  @Override
+                                  public void run(Engine engine, Api api, Endpoint endpoint, Chain chain, Request req, Response res) throws Exception
+                                  {
+                                     hits.incrementAndGet();
+                                     res.withRecord(new JSNode("pong", true));
+                                  }
+                               })//
+                            .getEngine();
+      }
+   }
+
+   @Test
+   public void testPrimeStartsEngineAndRunsPrimeRequests() throws Exception
+   {
+      System.setProperty("INVERSION_PRIME", "true");
+      System.setProperty("INVERSION_PRIME_REQUESTS", "GET /prime/ping,/prime/ping?twice=true");
+      try
+      {
+         PrimedHandler.hits.set(0);
+         PrimedHandler handler = new PrimedHandler();
+
+         assertNotNull(handler.engine);
+         assertTrue(handler.engine.isLazyDbStartup());
+         assertEquals(2, PrimedHandler.hits.get());
+
+         //-- requests reuse the primed engine
+         Engine primed = handler.engine;
+         String event = new JSNode("httpMethod", "GET", "headers", new JSNode("Host", "localhost"), "requestContext", new JSNode("path", "/prime/ping"), "pathParameters", new JSNode("proxy", "prime/ping")).toString();
+         ByteArrayOutputStream out = new ByteArrayOutputStream();
+         handler.handleRequest(new ByteArrayInputStream(event.getBytes("UTF-8")), out, null);
+
+         assertSame(primed, handler.engine);
+         assertEquals(3, PrimedHandler.hits.get());
+         assertEquals(200, Utils.parseJsonMap(new String(out.toByteArray(), "UTF-8")).get("statusCode"));
+      }
+      finally
+      {
+         System.clearProperty("INVERSION_PRIME");
+         System.clearProperty("INVERSION_PRIME_REQUESTS");
+      }
+   }
+
+   @Test
+   public void testResponseRoundTrip() throws Exception
+   {
+      String output = "[{\"id\":1,\"name\":\"row \\\"1\\\"\",\"notes\":\"tab\\tnewline\\n\u00e9\"}]";
+
+      ApiGatewayRequestStreamHandler handler = new ApiGatewayRequestStreamHandler();
+      Response res = new Response().withOutput(output);
+      res.withHeader("Content-Type", "application/json");
+
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      handler.writeResponse(res, out);
+
+      JSNode json = Utils.parseJsonMap(new String(out.toByteArray(), "UTF-8"));
+      assertEquals(false, json.get("isBase64Encoded"));
+      assertEquals("application/json", json.getNode("headers").getString("Content-Type"));
+      assertEquals(output, json.getString("body"));
+   }
+
+   @Test
+   public void testGzipWhenAccepted() throws Exception
+   {
+      ApiGatewayRequestStreamHandler handler = new ApiGatewayRequestStreamHandler();
+      handler.setGzipMinLength(10);
+
+      Map headers = new HashMap();
+      headers.put("accept-encoding", "gzip, deflate");
+      Request req = new Request("http://localhost/api", "GET", headers, new HashMap(), null);
+      Response res = new Response().withOutput("{\"message\":\"hello world hello world\"}");
+
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      handler.writeResponse(req, res, out);
+
+      JSNode json = (JSNode) Utils.parseJson(new ByteArrayInputStream(out.toByteArray()));
+      assertEquals(true, json.get("isBase64Encoded"));
+      assertEquals("gzip", json.getNode("headers").getString("Content-Encoding"));
+
+      byte[] gzipped = Base64.getDecoder().decode(json.getString("body"));
+      String body = Utils.read(new GZIPInputStream(new ByteArrayInputStream(gzipped)));
+      assertEquals(res.getOutput(), body);
+   }
+
+   Response streamed(String contentType, byte[] body)
+   {
+      Response res = new Response();
+      res.withHeader("Content-Type", contentType);
+      res.withStream(new Response.Streamer()
+         {
+            @Override
+            public void writeTo(OutputStream out) throws IOException
+            {
+               out.write(body);
+            }
+
+            @Override
+            public void close()
+            {
+            }
+         });
+      return res;
+   }
+
+   @Test
+   public void testStreamedTextIsWrittenInline() throws Exception
+   {
+      String text = "{\"name\":\"caf\u00e9\"}";
+      ApiGatewayRequestStreamHandler handler = new ApiGatewayRequestStreamHandler();
+
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      handler.writeResponse(streamed("application/json; charset=UTF-8", text.getBytes("UTF-8")), out);
+
+      JSNode json = Utils.parseJsonMap(new String(out.toByteArray(), "UTF-8"));
+      assertEquals(false, json.get("isBase64Encoded"));
+      assertEquals(text, json.getString("body"));
+   }
+
+   @Test
+   public void testStreamedBinaryIsBase64Encoded() throws Exception
+   {
+      byte[] png = new byte[]{(byte) 0x89, 'P', 'N', 'G', 0, 1, 2};
+      ApiGatewayRequestStreamHandler handler = new ApiGatewayRequestStreamHandler();
+
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      handler.writeResponse(streamed("image/png", png), out);
+
+      JSNode json = Utils.parseJsonMap(new String(out.toByteArray(), "UTF-8"));
+      assertEquals(true, json.get("isBase64Encoded"));
+      assertTrue(Arrays.equals(png, Base64.getDecoder().decode(json.getString("body"))));
+   }
+}
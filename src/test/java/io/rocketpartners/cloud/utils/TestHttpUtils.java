@@ -0,0 +1,100 @@
+package io.rocketpartners.cloud.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+
+import org.apache.commons.collections4.multimap.ArrayListValuedHashMap;
+
+import com.sun.net.httpserver.HttpServer;
+
+import io.rocketpartners.cloud.model.Request;
+import io.rocketpartners.cloud.model.Response;
+import junit.framework.TestCase;
+
+public class TestHttpUtils extends TestCase
+{
+   HttpServer server = null;
+   byte[]     body   = new byte[3 * 1024 * 1024];
+
+   @Override
+   protected void setUp() throws Exception
+   {
+      for (int i = 0; i < body.length; i++)
+         body[i] = (byte) i;
+
+      server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+      server.createContext("/file", exchange -> {
+         String range = exchange.getRequestHeaders().getFirst("Range");
+         int start = range != null ? Integer.parseInt(range.substring(range.indexOf('=') + 1, range.indexOf('-'))) : 0;
+
+         if (range != null)
+            exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + (body.length - 1) + "/" + body.length);
+
+         exchange.sendResponseHeaders(range != null ? 206 : 200, body.length - start);
+         OutputStream out = exchange.getResponseBody();
+         out.write(body, start, body.length - start);
+         out.close();
+      });
+      server.start();
+   }
+
+   @Override
+   protected void tearDown()
+   {
+      server.stop(0);
+   }
+
+   String url()
+   {
+      return "http://localhost:" + server.getAddress().getPort() + "/file";
+   }
+
+   //-- the jdk server sends "Content-length" style header names
+   String header(Response res, String name)
+   {
+      for (String key : res.getHeaders().keySet())
+      {
+         if (key.equalsIgnoreCase(name))
+            return res.getHeader(key);
+      }
+      return null;
+   }
+
+   public void testStreamCopiesBodyWithoutBuffering() throws Exception
+   {
+      Response res = HttpUtils.stream(new Request("GET", url(), null, new ArrayListValuedHashMap(), -1), new Response());
+      assertEquals(200, res.getStatusCode());
+      assertEquals(body.length + "", header(res, "Content-Length"));
+      assertEquals("", res.getOutput());
+
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      try
+      {
+         res.getStream().writeTo(out);
+      }
+      finally
+      {
+         res.getStream().close();
+      }
+      assertTrue(Arrays.equals(body, out.toByteArray()));
+   }
+
+   public void testStreamPassesRangeRequestsThrough() throws Exception
+   {
+      ArrayListValuedHashMap<String, String> headers = new ArrayListValuedHashMap();
+      headers.put("Range", "bytes=1000-");
+
+      Response res = HttpUtils.stream(new Request("GET", url(), null, headers, -1), new Response());
+      assertEquals(206, res.getStatusCode());
+      assertEquals("bytes 1000-" + (body.length - 1) + "/" + body.length, header(res, "Content-Range"));
+
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      res.getStream().writeTo(out);
+      res.getStream().close();
+
+      assertEquals(body.length - 1000, out.size());
+      assertEquals(body[1000], out.toByteArray()[0]);
+   }
+}
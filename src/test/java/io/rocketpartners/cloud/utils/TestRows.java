@@ -0,0 +1,103 @@
+package io.rocketpartners.cloud.utils;
+
+import java.util.Arrays;
+
+import io.rocketpartners.cloud.utils.Rows.Row;
+import junit.framework.TestCase;
+
+public class TestRows extends TestCase
+{
+   Rows columnar()
+   {
+      Rows rows = new Rows(Arrays.asList("ID", "Name", "Price", "Active"), new Class[]{Integer.class, Object.class, Double.class, Boolean.class});
+
+      Row row = rows.addRow();
+      row.setInt(0, 1);
+      row.set(1, "one");
+      row.setDouble(2, 1.5);
+      row.setBoolean(3, true);
+
+      row = rows.addRow();
+      row.set(0, null);
+      row.set(1, "two");
+      row.set(2, null);
+      row.setBoolean(3, false);
+
+      return rows;
+   }
+
+   public void testColumnarRowIsAMap()
+   {
+      Rows rows = columnar();
+      assertTrue(rows.isColumnar());
+      assertEquals(2, rows.size());
+
+      Row row = rows.get(0);
+      assertEquals(4, row.size());
+      assertEquals(1, row.get("id"));
+      assertEquals(1, row.get("ID"));
+      assertEquals("one", row.get("name"));
+      assertEquals(1.5d, row.get("price"));
+      assertEquals(Boolean.TRUE, row.get("active"));
+      assertEquals(1, row.getInt("id"));
+      assertNull(row.get((Object) "missing"));
+      assertEquals(Arrays.asList(1, "one", 1.5d, true), row.asList());
+
+      row = rows.get(1);
+      assertNull(row.get("id"));
+      assertNull(row.get("price"));
+      assertEquals(-1, row.getInt("id"));
+      assertEquals(Boolean.FALSE, row.get("active"));
+   }
+
+   public void testOrdinalLookup()
+   {
+      Rows rows = columnar();
+      int idx = rows.indexOf("name");
+      assertEquals(1, idx);
+      assertEquals("two", rows.get(1).get(idx));
+      assertEquals(-1, rows.indexOf("nope"));
+   }
+
+   public void testGrowth()
+   {
+      Rows rows = new Rows(Arrays.asList("n"), new Class[]{Long.class});
+      for (int i = 0; i < 1000; i++)
+         rows.addRow().setLong(0, i);
+
+      for (int i = 0; i < 1000; i++)
+         assertEquals((long) i, rows.get(i).getLong(0));
+   }
+
+   public void testRemoveDetachesOnlyThatRow()
+   {
+      Rows rows = columnar();
+      Row first = rows.get(0);
+
+      assertEquals(1, first.remove("id"));
+      assertFalse(first.containsKey("id"));
+      assertEquals(3, first.size());
+      assertEquals("one", first.get("name"));
+
+      Row second = rows.get(1);
+      assertTrue(second.containsKey("id"));
+      assertEquals("two", second.get("name"));
+   }
+
+   public void testSetOfUnexpectedTypeKeepsValue()
+   {
+      Rows rows = columnar();
+      rows.get(1).put("id", "abc");
+      assertEquals("abc", rows.get(1).get("id"));
+      assertEquals(1, rows.get(0).get("id"));
+   }
+
+   public void testPutNewKeyDetaches()
+   {
+      Rows rows = columnar();
+      Row row = rows.get(0);
+      row.put("extra", "x");
+      assertEquals("x", row.get("extra"));
+      assertEquals(1, row.get("id"));
+   }
+}
@@ -0,0 +1,116 @@
+package io.rocketpartners.cloud.utils;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.rocketpartners.cloud.model.ApiException;
+import io.rocketpartners.cloud.model.Request;
+import io.rocketpartners.cloud.model.Response;
+import io.rocketpartners.cloud.model.SC;
+import io.rocketpartners.cloud.service.Chain;
+import io.rocketpartners.cloud.service.RequestContext;
+import junit.framework.TestCase;
+
+public class TestSqlUtils extends TestCase
+{
+   Connection       conn       = null;
+   List<Statement>  statements = new ArrayList();
+   RequestContext   previous   = null;
+
+   @Override
+   protected void setUp() throws Exception
+   {
+      Class.forName("org.h2.Driver");
+      Connection h2 = DriverManager.getConnection("jdbc:h2:mem:sqlutils-" + Utils.time() + ";MODE=MySQL", "sa", "");
+      SqlUtils.execute(h2, "CREATE TABLE T (ID INT PRIMARY KEY, NAME VARCHAR(20))");
+
+      //-- remembers every statement handed out so the test can check they were closed
+      conn = (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{Connection.class}, (proxy, method, args) -> {
+         try
+         {
+            Object result = method.invoke(h2, args);
+            if (result instanceof Statement)
+               statements.add((Statement) result);
+            return result;
+         }
+         catch (InvocationTargetException ex)
+         {
+            throw ex.getCause();
+         }
+      });
+
+      //-- a request whose deadline has already passed
+      RequestContext ctx = new RequestContext(null);
+      previous = RequestContext.bind(ctx);
+      Chain.push(ctx, null, new Request("GET", "http://localhost/"), new Response()).withDeadline(System.currentTimeMillis() - 1);
+   }
+
+   @Override
+   protected void tearDown() throws Exception
+   {
+      RequestContext.bind(previous);
+   }
+
+   void assertTimedOut(Exception ex) throws Exception
+   {
+      assertTrue(ex instanceof ApiException);
+      assertEquals(SC.SC_504_GATEWAY_TIMEOUT, ((ApiException) ex).getStatus());
+
+      assertTrue(statements.size() > 0);
+      for (Statement stmt : statements)
+         assertTrue(stmt.isClosed());
+   }
+
+   public void testExecuteClosesStatementAtDeadline() throws Exception
+   {
+      try
+      {
+         SqlUtils.execute(conn, "INSERT INTO T (ID, NAME) VALUES (?, ?)", 1, "one");
+         fail("expected a 504");
+      }
+      catch (Exception ex)
+      {
+         assertTimedOut(ex);
+      }
+   }
+
+   public void testInsertMapsClosesStatementAtDeadline() throws Exception
+   {
+      Map row = new HashMap();
+      row.put("ID", 1);
+      row.put("NAME", "one");
+      try
+      {
+         SqlUtils.insertMaps(conn, "T", Arrays.asList(row));
+         fail("expected a 504");
+      }
+      catch (Exception ex)
+      {
+         assertTimedOut(ex);
+      }
+   }
+
+   public void testMysqlUpsertClosesStatementAtDeadline() throws Exception
+   {
+      Map row = new HashMap();
+      row.put("ID", 1);
+      row.put("NAME", "one");
+      try
+      {
+         SqlUtils.mysqlUpsert(conn, "T", Arrays.asList(row));
+         fail("expected a 504");
+      }
+      catch (Exception ex)
+      {
+         assertTimedOut(ex);
+      }
+   }
+}